@@ -0,0 +1,82 @@
+package com.clickhouse1ctj.loader;
+
+import com.clickhouse1ctj.parser.LogRecord;
+import com.clickhouse1ctj.parser.SampleRecords;
+import com.clickhouse1ctj.parser.TechJournalParser;
+import com.clickhouse1ctj.parser.TechJournalParserException;
+import com.clickhouse1ctj.parser.ThroughputCounters;
+
+import org.openjdk.jmh.annotations.*;
+import ru.yandex.clickhouse.ClickHousePreparedStatementImpl;
+import ru.yandex.clickhouse.settings.ClickHouseProperties;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Заполнение пакетного запроса записями ТЖ (ClickHouseInserter.addRecordToBatch) вместе с
+ * сериализацией значений драйвером в TSV. Обращения к серверу нет: пакет очищается после заполнения.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InsertEncodingBenchmark {
+    @Param({"10000"})
+    public int batchSize;
+
+    private Path tempDir;
+    private TechJournalParser parser;
+    private List<LogRecord> batch;
+    private SortedSet<String> recordFields;
+    private PreparedStatement stmt;
+    private long batchBytes;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, TechJournalParserException, SQLException {
+        tempDir = Files.createTempDirectory("tj-bench");
+        Path logFile = tempDir.resolve("rphost_1234").resolve("21102215.log");
+        batchBytes = SampleRecords.writeLogFile(logFile, batchSize);
+        parser = new TechJournalParser(logFile);
+        batch = parser.getNextRecords(batchSize, null);
+
+        recordFields = new TreeSet<>(ClickHouseDDLer.getDefaultColumns().keySet());
+        recordFields.addAll(parser.getParsedFields());
+        StringJoiner columns = new StringJoiner(",");
+        StringJoiner params = new StringJoiner(",");
+        for (String field : recordFields) {
+            columns.add(field);
+            params.add("?");
+        }
+        String insertQuery = "INSERT INTO bench_TJ (" + columns + ") VALUES (" + params + ")";
+        stmt = new ClickHousePreparedStatementImpl(null, null, new ClickHouseProperties(), insertQuery,
+                TimeZone.getTimeZone("UTC"), ResultSet.TYPE_FORWARD_ONLY);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, SQLException {
+        stmt.close();
+        try (Stream<Path> paths = Files.walk(tempDir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void encodeBatch(ThroughputCounters counters) throws SQLException {
+        for (LogRecord rec : batch) {
+            ClickHouseInserter.addRecordToBatch(parser, recordFields, stmt, rec);
+        }
+        stmt.clearBatch();
+        counters.records += batch.size();
+        counters.bytes += batchBytes;
+    }
+}
@@ -0,0 +1,49 @@
+package com.clickhouse1ctj.parser;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор одной записи ТЖ: только LogRecordParser и полное создание LogRecord (с разбором даты и
+ * регистрацией свойств события)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogRecordParserBenchmark {
+    @Param({"PROC", "EXCP", "DBMSSQL", "QUOTED"})
+    public String kind;
+
+    private String rawRecord;
+    private long recordBytes;
+
+    @Setup
+    public void setup() {
+        rawRecord = SampleRecords.get(kind);
+        recordBytes = rawRecord.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    @Benchmark
+    public SortedMap<String, String> parseRecord(ThroughputCounters counters) throws LogRecordParserException {
+        LogRecordParser parser = new LogRecordParser(rawRecord);
+        parser.parseVariablePart();
+        SortedMap<String, String> dict = parser.getDict();
+        counters.records++;
+        counters.bytes += recordBytes;
+        return dict;
+    }
+
+    @Benchmark
+    public LogRecord createLogRecord(ThroughputCounters counters) throws LogRecordParserException {
+        LogRecord logRecord = new LogRecord(rawRecord, 1, "21102215");
+        counters.records++;
+        counters.bytes += recordBytes;
+        return logRecord;
+    }
+}
@@ -0,0 +1,66 @@
+package com.clickhouse1ctj.parser;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Характерные записи ТЖ для бенчмарков: короткая PROC, многострочная EXCP с Descr,
+ * DBMSSQL с текстом запроса и контекстом, значения в кавычках с экранированными кавычками.
+ */
+public final class SampleRecords {
+    public static final Map<String, String> RECORDS = Map.of(
+            "PROC", "20:18.919000-0,PROC,0,process=rphost,OSThread=12324,Txt=Process terminated. Stop signal received (ragent)",
+            "EXCP", "20:19.857000-0,EXCP,1,process=rphost,OSThread=11000,Exception=dd149677-3d47-4e05-a55f-4e75b13a441f,"
+                    + "Descr='src\\RemoteInterfaceImpl.cpp(756):\n"
+                    + "dd149677-3d47-4e05-a55f-4e75b13a441f: Процесс завершается. Исходящий вызов запрещен.\n"
+                    + "src\\DataExchangeTcpClientImpl.cpp(1118):\n"
+                    + "Ошибка сетевого доступа к серверу: (Соединение разорвано удаленным узлом)'",
+            "DBMSSQL", "20:21.126001-15023,DBMSSQL,4,process=rphost,p:processName=buh_test,OSThread=9248,t:clientID=185,"
+                    + "t:applicationName=1CV8C,t:computerName=WS-01,t:connectID=2047,SessionID=12,Usr=Иванов,AppID=1CV8C,"
+                    + "DBMS=DBMSSQL,DataBase=srv\\buh_test,Trans=1,dbpid=67,"
+                    + "Sql='SELECT\nT1._IDRRef,\nT1._Version,\nT1._Marked\nFROM dbo._Reference42 T1\n"
+                    + "WHERE ((T1._Fld1154 = @P1)) AND (T1._Description LIKE @P2)\np_0: 0x00\np_1: N''Иванов%''\n',"
+                    + "Rows=1,RowsAffected=-1,"
+                    + "Context='Форма.Вызов : Справочник.Контрагенты.Форма.ФормаСписка.Модуль.НайтиКонтрагента\n"
+                    + "Справочник.Контрагенты.Форма.ФормаСписка.Форма : 128 : Результат = Запрос.Выполнить();'",
+            "QUOTED", "20:22.500000-2,CALL,1,process=rphost,OSThread=7312,t:clientID=42,"
+                    + "Txt=\"Сообщение с \"\"кавычками\"\" внутри, и запятой\",Module='Общий модуль ''Сервер''',"
+                    + "Method=13,Memory=52340,MemoryPeak=1048576,InBytes=512,OutBytes=2048,CpuTime=15000"
+    );
+
+    public static final List<String> KINDS = List.of("PROC", "EXCP", "DBMSSQL", "QUOTED");
+
+    private SampleRecords() {}
+
+    public static String get(String kind) {
+        String record = RECORDS.get(kind);
+        if (record == null)
+            throw new IllegalArgumentException("Неизвестный вид записи: " + kind);
+        return record;
+    }
+
+    /**
+     * Записывает файл ТЖ с указанным числом записей, чередуя виды записей и увеличивая время события.
+     * Возвращает размер файла в байтах
+     */
+    public static long writeLogFile(Path file, int records) throws IOException {
+        Files.createDirectories(file.getParent());
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < records; i++) {
+                String record = get(KINDS.get(i % KINDS.size()));
+                // Время события вида mm:ss.ffffff, записи идут по возрастанию в пределах часа
+                long micros = (long) i * 3_600_000_000L / records;
+                String time = String.format("%02d:%02d.%06d", micros / 60_000_000L, micros / 1_000_000L % 60, micros % 1_000_000L);
+                writer.write(time);
+                writer.write(record, record.indexOf('-'), record.length() - record.indexOf('-'));
+                writer.newLine();
+            }
+        }
+        return Files.size(file);
+    }
+}
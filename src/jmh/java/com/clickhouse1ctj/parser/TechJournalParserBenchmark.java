@@ -0,0 +1,59 @@
+package com.clickhouse1ctj.parser;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Чтение и разбор синтетического файла ТЖ целиком через TechJournalParser.getNextRecords порциями batchSize
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TechJournalParserBenchmark {
+    @Param({"20000"})
+    public int records;
+
+    @Param({"1000", "10000"})
+    public int batchSize;
+
+    private Path tempDir;
+    private Path logFile;
+    private long fileSize;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        tempDir = Files.createTempDirectory("tj-bench");
+        logFile = tempDir.resolve("rphost_1234").resolve("21102215.log");
+        fileSize = SampleRecords.writeLogFile(logFile, records);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(tempDir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int parseFile(ThroughputCounters counters) throws IOException, TechJournalParserException {
+        TechJournalParser parser = new TechJournalParser(logFile);
+        int parsedRecords = 0;
+        while (!parser.isCompleted()) {
+            List<LogRecord> batch = parser.getNextRecords(batchSize, null);
+            parsedRecords += batch.size();
+        }
+        counters.records += parsedRecords;
+        counters.bytes += fileSize;
+        return parsedRecords;
+    }
+}
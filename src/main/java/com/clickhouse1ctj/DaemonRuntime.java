@@ -0,0 +1,163 @@
+package com.clickhouse1ctj;
+
+import com.clickhouse1ctj.config.AppConfig;
+import com.clickhouse1ctj.loader.ClickHouseDDLer;
+import com.clickhouse1ctj.loader.ClickHouseInserter;
+import com.clickhouse1ctj.loader.FileStateStore;
+import com.clickhouse1ctj.loader.LogsPool;
+import com.clickhouse1ctj.loader.ResourceGovernor;
+import com.clickhouse1ctj.metrics.MetricsServer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Постоянная среда выполнения режима демона. Подключение к ClickHouse, рабочие потоки загрузки (со своими
+ * соединениями и кешем схемы таблиц), пул файлов и потоки поиска создаются один раз и живут все время работы.
+ * Планировщик с интервалом monitoringIntervalSec только запускает поиск новых и измененных файлов, которые сразу
+ * попадают в общий пул. При остановке приложения (Ctrl+C, SIGTERM) рабочие потоки дописывают текущие пакеты,
+ * после чего сбрасываются накопленные агрегаты и сохраняется состояние загрузки.
+ */
+class DaemonRuntime {
+    private static final Logger logger = LoggerFactory.getLogger(DaemonRuntime.class);
+    private static final long SHUTDOWN_TIMEOUT_SEC = 60;
+
+    private final AppConfig appConfig;
+    private final Path[] pathsToLogs;
+    private final LogsPool logsPool;
+    private final LogFilesDiscovery discovery;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final List<ClickHouseInserter> loaders = new ArrayList<>();
+    private LogFilesWatcher logFilesWatcher;
+    private ExecutorService loadersExecutor;
+    private int previousAddedFiles;
+
+    DaemonRuntime(AppConfig appConfig, Path[] pathsToLogs) throws IOException {
+        this.appConfig = appConfig;
+        this.pathsToLogs = pathsToLogs;
+        this.logsPool = new LogsPool(appConfig.getRecentFilesWeight(), appConfig.getBacklogFilesWeight());
+        // Состояние просмотренных файлов переживает перезапуск демона
+        if (!appConfig.getStateDir().isEmpty())
+            FileStateStore.open(Path.of(appConfig.getStateDir()), appConfig.getStateRetentionDays());
+        if (appConfig.isWatchDiscovery()) {
+            logFilesWatcher = new LogFilesWatcher(pathsToLogs, appConfig.getLogExtension(), appConfig.getReconcileIntervalSec());
+            logFilesWatcher.start();
+        }
+        discovery = new LogFilesDiscovery(appConfig, new FileChangeDetector(appConfig));
+    }
+
+    void start() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "daemon-shutdown"));
+        logger.info("Запущен демон поиска новых логов с интервалом {} секунд", appConfig.getMonitoringIntervalSec());
+        scheduler.scheduleAtFixedRate(this::tick, 0, appConfig.getMonitoringIntervalSec(), TimeUnit.SECONDS);
+    }
+
+    private void tick() {
+        try {
+            // Подключение и рабочие потоки создаются один раз, при недоступности ClickHouse попытка повторится на следующей итерации
+            if (loadersExecutor == null && !startLoaders())
+                return;
+
+            LocalDateTime startTime = LocalDateTime.now();
+            CompletableFuture<Void> discovered;
+            if (logFilesWatcher != null && !logFilesWatcher.takeReconcileRequired()) {
+                // Полный обход каталогов не нужен, проверяем только файлы, по которым были события
+                List<Path> changedFiles = logFilesWatcher.takeChangedFiles();
+                logger.info("По событиям файловой системы изменилось {} файлов", changedFiles.size());
+                discovered = discovery.check(changedFiles, logsPool);
+            } else {
+                discovered = discovery.scan(pathsToLogs, logsPool);
+            }
+            discovered.join();
+
+            // Поминутные агрегаты сбрасываются на каждой итерации, пары "событие-свойство" - фоновой задачей
+            TechJournalToClickHouse.flushRollups();
+            showStatistics(startTime);
+        } catch (RuntimeException e) {
+            // Исключение в задаче планировщика отменило бы все следующие итерации
+            logger.error("Ошибка на итерации поиска файлов: {}", e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private boolean startLoaders() {
+        if (!TechJournalToClickHouse.checkFilter() || !TechJournalToClickHouse.checkEventTables()
+                || !TechJournalToClickHouse.connectToClickHouse())
+            return false;
+        TechJournalToClickHouse.startBackgroundFlushes();
+        ResourceGovernor.configure(appConfig);
+
+        int threadsCount = Integer.max(appConfig.getThreadCount(), 1);
+        logger.info("Загрузка будет выполняться {} потоками", threadsCount);
+        loadersExecutor = Executors.newFixedThreadPool(threadsCount);
+        for (int i = 0; i < threadsCount; i++) {
+            ClickHouseInserter loadThread = new ClickHouseInserter(appConfig, logsPool);
+            loadersExecutor.execute(loadThread);
+            loaders.add(loadThread);
+        }
+        return true;
+    }
+
+    private void showStatistics(LocalDateTime startTime) {
+        int addedFiles = logsPool.getAddedFiles();
+        int totalFiles = 0;
+        long totalRecords = 0;
+        for (ClickHouseInserter loader : loaders) {
+            totalFiles += loader.getProcessedFiles();
+            totalRecords += loader.getProcessedRecords();
+        }
+        logger.info("Поиск завершен за {}: в пул добавлено {} файлов. Ожидают загрузки {} свежих файлов " +
+                        "(отставание {} сек.) и {} старых файлов (отставание {} сек.). " +
+                        "Всего с момента запуска из {} непустых файлов загружено {} записей",
+                Duration.between(startTime, LocalDateTime.now()), addedFiles - previousAddedFiles,
+                logsPool.size(LogsPool.FileClass.RECENT), logsPool.getLagSeconds(LogsPool.FileClass.RECENT),
+                logsPool.size(LogsPool.FileClass.BACKLOG), logsPool.getLagSeconds(LogsPool.FileClass.BACKLOG),
+                totalFiles, totalRecords);
+        if (ResourceGovernor.isEnabled())
+            logger.info("Ограничение ресурсов: {}", ResourceGovernor.getStatistics());
+        previousAddedFiles = addedFiles;
+    }
+
+    private void shutdown() {
+        logger.info("Остановка демона: ожидаем завершения вставки текущих пакетов");
+        scheduler.shutdownNow();
+        discovery.shutdown();
+        if (logFilesWatcher != null)
+            logFilesWatcher.close();
+
+        // Файлы, загрузка которых не начиналась, будут найдены при следующем запуске
+        int droppedFiles = logsPool.clearQueued();
+        logsPool.finishDiscovery();
+        if (droppedFiles > 0)
+            logger.info("Отложена загрузка {} файлов из пула", droppedFiles);
+
+        if (loadersExecutor != null) {
+            loaders.forEach(ClickHouseInserter::stop);
+            loadersExecutor.shutdown();
+            try {
+                if (!loadersExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SEC, TimeUnit.SECONDS))
+                    logger.warn("Рабочие потоки не завершились за {} секунд", SHUTDOWN_TIMEOUT_SEC);
+            } catch (InterruptedException e) {
+                logger.error("Ошибка при ожидании завершения потоков: {}", e.getMessage());
+                e.printStackTrace();
+                Thread.currentThread().interrupt();
+            }
+            TechJournalToClickHouse.flushRollups();
+            TechJournalToClickHouse.flushPropertiesByEvents();
+            TechJournalToClickHouse.flushLoaderStats();
+            if (!appConfig.isFileSink())
+                ClickHouseDDLer.close();
+        }
+        FileStateStore.close();
+        MetricsServer.stop();
+        logger.info("Демон остановлен");
+    }
+}
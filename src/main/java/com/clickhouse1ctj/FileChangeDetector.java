@@ -0,0 +1,190 @@
+package com.clickhouse1ctj;
+
+import com.clickhouse1ctj.config.AppConfig;
+import com.clickhouse1ctj.loader.FileStateStore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * Определяет, изменился ли файл ТЖ с предыдущей обработки (режим демона).
+ * В режиме changeDetection: attributes файл считается неизмененным, если совпадают размер, дата изменения и
+ * идентификатор файла в файловой системе (fileKey) - содержимое при этом не читается. Для измененного файла
+ * отпечаток дополняется контрольными суммами небольших фрагментов начала и конца файла, по которым видна
+ * перезапись или ротация файла под тем же именем.
+ * В режиме changeDetection: hash используется прежняя проверка по MD5 первых thresholdSizeHashByAttr байт файла.
+ * Полностью загруженные файлы прошедших часов, атрибуты которых не менялись, не читаются в обоих режимах.
+ */
+class FileChangeDetector {
+    private static final Logger logger = LoggerFactory.getLogger(FileChangeDetector.class);
+    private static final int SAMPLE_SIZE = 4 * 1024;
+    private static final DateTimeFormatter hourFormat = DateTimeFormatter.ofPattern("yyMMddHH");
+
+    private final boolean hashMode;
+    private final int thresholdSizeHashByAttr;
+
+    FileChangeDetector(AppConfig config) {
+        hashMode = "hash".equalsIgnoreCase(config.getChangeDetection());
+        thresholdSizeHashByAttr = config.getThresholdSizeHashByAttr();
+    }
+
+    /**
+     * Отпечаток файла, если файл изменился (или ранее не был загружен до конца), иначе null
+     */
+    String getChangedFingerprint(Path path, BasicFileAttributes attributes, FileStateStore.FileState previous) {
+        boolean sameAttributes = previous != null
+                && previous.isCompleted()
+                && previous.getSize() == attributes.size()
+                && previous.getLastModified() == attributes.lastModifiedTime().toMillis()
+                && previous.getFileKey().equals(getFileKey(attributes));
+        if (sameAttributes && (!hashMode || isClosedPastHourFile(path))) {
+            return null;
+        }
+
+        if (hashMode) {
+            String currentHash = toHex(getFileHash(path));
+            if (sameAttributes && !currentHash.isEmpty() && currentHash.equals(previous.getFingerprint()))
+                return null;
+            return currentHash;
+        }
+
+        return getSamplesFingerprint(path, attributes.size());
+    }
+
+    static String getFileKey(BasicFileAttributes attributes) {
+        return attributes.fileKey() == null ? "" : attributes.fileKey().toString();
+    }
+
+    /**
+     * Файл перезаписан или ротирован под тем же именем: сменился идентификатор файла, файл стал меньше или изменилось
+     * уже записанное начало файла (только в режиме attributes). Прежнее смещение загрузки для такого файла неверно
+     */
+    boolean isRewritten(FileStateStore.FileState previous, String fingerprint, BasicFileAttributes attributes) {
+        if (!previous.getFileKey().equals(getFileKey(attributes)) || attributes.size() < previous.getSize())
+            return true;
+        if (hashMode)
+            return false;
+        // Начало файла, уже записанное целиком, при дописывании не меняется
+        String[] previousSamples = previous.getFingerprint().split(":");
+        String[] currentSamples = fingerprint.split(":");
+        return previous.getSize() >= SAMPLE_SIZE && previousSamples.length == 2 && currentSamples.length == 2
+                && !Objects.equals(previousSamples[0], currentSamples[0]);
+    }
+
+    /**
+     * Файл за прошедший час (имя в формате YYMMDDHH) 1С уже не дописывает
+     */
+    static boolean isClosedPastHourFile(Path path) {
+        String filename = path.getFileName().toString();
+        int dot = filename.lastIndexOf('.');
+        String hour = dot < 0 ? filename : filename.substring(0, dot);
+        try {
+            LocalDateTime hourEnd = LocalDateTime.parse(hour, hourFormat).plusHours(1);
+            return hourEnd.isBefore(LocalDateTime.now());
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    private static String getSamplesFingerprint(Path path, long size) {
+        // Контрольные суммы первых и последних SAMPLE_SIZE байт файла
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(SAMPLE_SIZE);
+            String head = getSampleCrc(channel, buffer, 0);
+            String tail = getSampleCrc(channel, buffer, Long.max(0, size - SAMPLE_SIZE));
+            return head + ":" + tail;
+        } catch (IOException e) {
+            logger.warn("Не удалось прочитать фрагменты файла {}: {}", path, e.getMessage());
+            e.printStackTrace();
+            return "";
+        }
+    }
+
+    private static String getSampleCrc(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+            // Читаем фрагмент целиком
+        }
+        buffer.flip();
+        CRC32 crc = new CRC32();
+        crc.update(buffer);
+        return Long.toHexString(crc.getValue());
+    }
+
+    private byte[] getFileHash(Path pathToLog) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            logger.warn("Не удалось получить MD5 хешер: {}", e.getMessage());
+            e.printStackTrace();
+            return new byte[0];
+        }
+
+        boolean overSize;
+        try (InputStream is = Files.newInputStream(pathToLog);
+             DigestInputStream dis = new DigestInputStream(is, md)) {
+            byte[] buf = new byte[8*1024];
+            int s;
+            int reduceThreshold = thresholdSizeHashByAttr;
+            do {
+                s = dis.read(buf);
+                if (s <= 0) break;
+                reduceThreshold -= s;
+            } while (reduceThreshold >= 0);
+            overSize = reduceThreshold < 0;
+
+        } catch (IOException e) {
+            logger.warn("Не удалось получить контрольную сумму файла {}: {}", pathToLog, e.getMessage());
+            e.printStackTrace();
+            return new byte[0];
+        }
+
+        if (overSize) {
+            // Если файл имеет размер больше порогового, то полный хеш не получился.
+            // Дополнительно к тому что прочитал добавляем атрибуты файла: размер и дату изменения
+            ByteBuffer buffer = ByteBuffer.allocate(2*Long.BYTES);
+            try {
+                buffer.putLong(Files.size(pathToLog)); // Размер файла
+                buffer.putLong(Files.getLastModifiedTime(pathToLog).toMillis()); // Последняя правка
+            } catch (IOException e) {
+                logger.warn("Не удалось получить размер или дату последнего изменения файла {}: {}", pathToLog, e.getMessage());
+                e.printStackTrace();
+                return new byte[0];
+            } catch (BufferOverflowException | ReadOnlyBufferException e) {
+                logger.warn("Не удалось получить двоичный буфер по атрибутам файла файла {}: {}", pathToLog, e.getMessage());
+                e.printStackTrace();
+                return new byte[0];
+            }
+            md.update(buffer.array());
+        }
+        return md.digest();
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
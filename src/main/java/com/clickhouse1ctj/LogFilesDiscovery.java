@@ -0,0 +1,208 @@
+package com.clickhouse1ctj;
+
+import com.clickhouse1ctj.config.AppConfig;
+import com.clickhouse1ctj.loader.FileStateStore;
+import com.clickhouse1ctj.loader.LoadStateStore;
+import com.clickhouse1ctj.loader.LogsPool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Параллельный поиск и отбор файлов ТЖ для загрузки. Каждый каталог первого уровня внутри корневых путей
+ * (обычно это каталоги процессов rphost_*, ragent_* ...) обходится отдельной задачей. Общее число задач
+ * ограничено настройкой discoveryThreads, а число одновременных задач на одном диске (FileStore) -
+ * настройкой discoveryThreadsPerDisk. Отобранные файлы попадают в пул небольшими порциями, поэтому рабочие
+ * потоки начинают загрузку, не дожидаясь окончания обхода.
+ */
+class LogFilesDiscovery {
+    private static final Logger logger = LoggerFactory.getLogger(LogFilesDiscovery.class);
+    // Размер порции файлов, для которой одним запросом зачитывается состояние загрузки перед помещением в пул
+    private static final int FILES_PORTION_SIZE = 100;
+
+    private final AppConfig appConfig;
+    private final FileChangeDetector changeDetector;
+    private final ExecutorService executor;
+    private final int threadsPerDisk;
+    private final Map<FileStore, Semaphore> diskSemaphores = new ConcurrentHashMap<>();
+
+    LogFilesDiscovery(AppConfig appConfig, FileChangeDetector changeDetector) {
+        this.appConfig = appConfig;
+        this.changeDetector = changeDetector;
+        this.threadsPerDisk = Integer.max(appConfig.getDiscoveryThreadsPerDisk(), 1);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Integer.max(appConfig.getDiscoveryThreads(), 1), runnable -> {
+            Thread thread = new Thread(runnable, "discovery-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Запускает обход корневых путей. Возвращает признак окончания обхода
+     */
+    CompletableFuture<Void> scan(Path[] roots, LogsPool logsPool) {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (Path root : roots) {
+            logger.info("Инициирован поиск технологического журнала по адресу {}", root.toAbsolutePath());
+            Path absoluteRoot = root.toAbsolutePath();
+            List<Path> filesInRoot = new ArrayList<>();
+            try (Stream<Path> children = Files.list(absoluteRoot)) {
+                children.forEach(child -> {
+                    if (Files.isDirectory(child))
+                        tasks.add(() -> walk(child, logsPool));
+                    else if (isLogFile(child))
+                        filesInRoot.add(child);
+                });
+            } catch (IOException e) {
+                logger.warn("Не удалось найти файлы логов по пути {}: {}", root, e.getMessage());
+                e.printStackTrace();
+            }
+            if (!filesInRoot.isEmpty())
+                tasks.add(() -> checkFiles(filesInRoot, logsPool));
+        }
+        return submitAll(tasks);
+    }
+
+    /**
+     * Запускает проверку указанных файлов (например, полученных по событиям файловой системы)
+     */
+    CompletableFuture<Void> check(List<Path> files, LogsPool logsPool) {
+        return submitAll(List.of(() -> checkFiles(files, logsPool)));
+    }
+
+    private CompletableFuture<Void> submitAll(List<Callable<Void>> tasks) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (Callable<Void> task : tasks) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                try {
+                    task.call();
+                } catch (Exception e) {
+                    logger.warn("Ошибка при поиске файлов логов: {}", e.getMessage());
+                    e.printStackTrace();
+                }
+            }, executor));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private Void walk(Path directory, LogsPool logsPool) throws IOException {
+        Semaphore diskSemaphore = getDiskSemaphore(directory);
+        try {
+            diskSemaphore.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        try (Stream<Path> streamOfFile = Files.find(directory, Integer.MAX_VALUE,
+                (p, i) -> isLogFile(p) && i.isRegularFile())) {
+            List<Path> portion = new ArrayList<>();
+            Iterator<Path> files = streamOfFile.iterator();
+            while (files.hasNext()) {
+                Path file = files.next();
+                // Полный обход заменяет накопленные события файловой системы, поэтому изменение файла в работе
+                // отмечается так же, как при проверке файлов по событиям
+                if (logsPool.markChanged(file))
+                    continue;
+                if (isChanged(file))
+                    portion.add(file);
+                if (portion.size() >= FILES_PORTION_SIZE)
+                    addPortion(portion, logsPool);
+            }
+            addPortion(portion, logsPool);
+        } catch (IOException | UncheckedIOException e) {
+            throw new IOException(String.format("Не удалось прочитать каталог логов %s", directory), e);
+        } finally {
+            diskSemaphore.release();
+        }
+        return null;
+    }
+
+    private Void checkFiles(List<Path> files, LogsPool logsPool) {
+        List<Path> portion = new ArrayList<>();
+        for (Path file : files) {
+            // Изменение файла в работе не теряется: после окончания загрузки файл снова попадет в пул
+            if (logsPool.markChanged(file))
+                continue;
+            if (Files.isRegularFile(file) && isChanged(file))
+                portion.add(file);
+            if (portion.size() >= FILES_PORTION_SIZE)
+                addPortion(portion, logsPool);
+        }
+        addPortion(portion, logsPool);
+        return null;
+    }
+
+    private void addPortion(List<Path> portion, LogsPool logsPool) {
+        if (portion.isEmpty())
+            return;
+        // Одним запросом получим состояние загрузки файлов порции
+        LoadStateStore.prefetch(portion);
+        logsPool.addAll(portion);
+        portion.clear();
+    }
+
+    private Semaphore getDiskSemaphore(Path directory) {
+        try {
+            FileStore fileStore = Files.getFileStore(directory);
+            return diskSemaphores.computeIfAbsent(fileStore, store -> new Semaphore(threadsPerDisk));
+        } catch (IOException e) {
+            // Диск не определен, ограничиваем только общим числом потоков поиска
+            return new Semaphore(threadsPerDisk);
+        }
+    }
+
+    private boolean isLogFile(Path path) {
+        return path.toString().endsWith(appConfig.getLogExtension());
+    }
+
+    /**
+     * Проверяет, нужна ли загрузка файла: в обычном режиме загружаются все файлы,
+     * в режиме демона - только новые, измененные или не загруженные до конца
+     */
+    private boolean isChanged(Path path) {
+        if (!appConfig.isDaemonMode()) {
+            logger.info("Файл {} добавлен в пул к обработке", path);
+            return true;
+        }
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            logger.warn("Не удалось получить атрибуты файла {}: {}", path, e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+        FileStateStore.FileState previous = FileStateStore.get(path);
+        String currentFingerprint = changeDetector.getChangedFingerprint(path, attributes, previous);
+        if (currentFingerprint == null) {
+            logger.info("Файл {} не изменился с предыдущей обработки", path);
+            return false;
+        }
+        // Перезаписанный файл читается с начала: прежнее смещение относится к другому содержимому
+        boolean rewritten = previous != null && changeDetector.isRewritten(previous, currentFingerprint, attributes);
+        if (rewritten)
+            logger.info("Файл {} был перезаписан и будет загружен с начала", path);
+        // Файл ранее не обрабатывался, изменился или не был загружен до конца, сохраним его текущий отпечаток
+        FileStateStore.markQueued(path, FileChangeDetector.getFileKey(attributes),
+                attributes.size(), attributes.lastModifiedTime().toMillis(), currentFingerprint, rewritten);
+        logger.info("Файл {} добавлен в пул к обработке", path);
+        return true;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,156 @@
+package com.clickhouse1ctj;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Поиск изменившихся файлов ТЖ по событиям файловой системы (discoveryMode: watch).
+ * Дерево каталогов регистрируется в WatchService один раз при старте, новые каталоги (например, rphost_* нового
+ * процесса) регистрируются по мере появления. События создания и изменения файлов с расширением логов накапливаются
+ * и забираются основным потоком на очередной итерации загрузки вместо полного обхода каталогов.
+ * События могут теряться (переполнение очереди ОС, сетевые каталоги), поэтому с интервалом reconcileIntervalSec
+ * и после переполнения очереди событий выполняется полный обход каталогов для сверки.
+ */
+class LogFilesWatcher implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(LogFilesWatcher.class);
+
+    private final WatchService watchService;
+    private final String logExtension;
+    private final long reconcileIntervalMillis;
+    // Зарегистрированные каталоги
+    private final Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<>();
+    // Файлы, по которым получены события с момента предыдущей итерации загрузки
+    private final Set<Path> changedFiles = ConcurrentHashMap.newKeySet();
+    private volatile boolean reconcileRequired = true; // Первая итерация всегда выполняет полный обход
+    private volatile long lastReconcileMillis;
+
+    LogFilesWatcher(Path[] roots, String logExtension, int reconcileIntervalSec) throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.logExtension = logExtension;
+        this.reconcileIntervalMillis = reconcileIntervalSec * 1000L;
+        for (Path root : roots) {
+            registerTree(root.toAbsolutePath(), false);
+        }
+        logger.info("Отслеживается изменение файлов логов в {} каталогах", watchedDirs.size());
+    }
+
+    /**
+     * Запускает фоновый поток обработки событий файловой системы
+     */
+    void start() {
+        Thread thread = new Thread(this, "LogFilesWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ClosedWatchServiceException e) {
+                break;
+            }
+            Path dir = watchedDirs.get(key);
+            if (dir != null)
+                processEvents(dir, key);
+            if (!key.reset()) {
+                // Каталог удален или стал недоступен
+                watchedDirs.remove(key);
+            }
+        }
+    }
+
+    private void processEvents(Path dir, WatchKey key) {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                logger.warn("Переполнена очередь событий по каталогу {}, на следующей итерации будет выполнен полный обход", dir);
+                reconcileRequired = true;
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                // Файлы в новом каталоге могли появиться до его регистрации, поэтому добавляем и их
+                try {
+                    registerTree(path, true);
+                } catch (IOException e) {
+                    logger.warn("Не удалось зарегистрировать каталог {}: {}", path, e.getMessage());
+                    reconcileRequired = true;
+                }
+            } else if (isLogFile(path)) {
+                changedFiles.add(path);
+            }
+        }
+    }
+
+    private void registerTree(Path start, boolean collectFiles) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                watchedDirs.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (collectFiles && attrs.isRegularFile() && isLogFile(file))
+                    changedFiles.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private boolean isLogFile(Path path) {
+        return path.toString().endsWith(logExtension);
+    }
+
+    /**
+     * Признак необходимости полного обхода каталогов на текущей итерации. Сбрасывается при вызове
+     */
+    boolean takeReconcileRequired() {
+        long now = System.currentTimeMillis();
+        if (reconcileRequired || now - lastReconcileMillis >= reconcileIntervalMillis) {
+            reconcileRequired = false;
+            lastReconcileMillis = now;
+            // Полный обход найдет все файлы (в том числе отметит изменение загружаемых), накопленные события больше не нужны
+            changedFiles.clear();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Возвращает файлы, по которым получены события с предыдущего вызова
+     */
+    List<Path> takeChangedFiles() {
+        List<Path> files = new ArrayList<>();
+        Iterator<Path> iterator = changedFiles.iterator();
+        while (iterator.hasNext()) {
+            files.add(iterator.next());
+            iterator.remove();
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.warn("Не удалось закрыть WatchService: {}", e.getMessage());
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,24 +1,27 @@
 package com.clickhouse1ctj;
 
 import com.clickhouse1ctj.config.AppConfig;
+import com.clickhouse1ctj.config.AppConfigException;
+import com.clickhouse1ctj.config.EventTableConfig;
 import com.clickhouse1ctj.loader.ClickHouseDDLer;
 import com.clickhouse1ctj.loader.ClickHouseInserter;
+import com.clickhouse1ctj.loader.LoaderStats;
+import com.clickhouse1ctj.loader.LogsPool;
+import com.clickhouse1ctj.loader.MinuteRollup;
+import com.clickhouse1ctj.loader.PropertiesByEvents;
+import com.clickhouse1ctj.loader.ResourceGovernor;
+import com.clickhouse1ctj.metrics.MetricsServer;
+import com.clickhouse1ctj.parser.RecordFilter;
+import com.clickhouse1ctj.parser.RecordFilterException;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.BufferOverflowException;
-import java.nio.ByteBuffer;
-import java.nio.ReadOnlyBufferException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.commons.cli.*;
@@ -29,10 +32,10 @@ public class TechJournalToClickHouse implements Runnable {
     static AppConfig appConfig;
     // Массив путей, где выполняется поиск логов ТЖ
     static Path[] pathsToLogs;
-    // Для хранения найденных фалов используем потокобезопасную очередь
-    static final Queue<Path> logsPool = new ConcurrentLinkedQueue<>();
-    // В режиме демона будем запоминать просмотренный файлы и их контрольные суммы
-    static final Map<Path, byte[]> observedFiles = new HashMap<>();
+    // Найденные файлы попадают в потокобезопасный пул по мере поиска
+    static LogsPool logsPool;
+    // Параллельный поиск и отбор файлов
+    static LogFilesDiscovery discovery;
 
     public static void main(String[] args) throws ParseException, IOException {
         Options options = new Options();
@@ -58,13 +61,15 @@ public class TechJournalToClickHouse implements Runnable {
         // Массив путей, в котором будем искать логи
         pathsToLogs = getPaths(cmd.getArgs());
 
-        // В зависимости от режима работы (демон/ не демон) будет
-        // запущен исполнитель с интервалом в monitoringIntervalSec или разовый вызов
-        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        if (appConfig.getMetricsPort() > 0)
+            MetricsServer.start(appConfig.getMetricsPort());
+
+        // В режиме демона запускается постоянная среда выполнения, которая с интервалом в monitoringIntervalSec
+        // ищет новые файлы для загрузки, иначе выполняется разовая загрузка
         if (appConfig.isDaemonMode()) {
-            logger.info("Запущен демон поиска новых логов с интервалом {} секунд", appConfig.getMonitoringIntervalSec());
-            executor.scheduleAtFixedRate(new TechJournalToClickHouse(), 0, appConfig.getMonitoringIntervalSec(), TimeUnit.SECONDS);
+            new DaemonRuntime(appConfig, pathsToLogs).start();
         } else {
+            ExecutorService executor = Executors.newSingleThreadExecutor();
             executor.execute(new TechJournalToClickHouse());
             executor.shutdown();
         }
@@ -92,137 +97,101 @@ public class TechJournalToClickHouse implements Runnable {
 
     @Override
     public void run() {
+        try {
+            load();
+        } finally {
+            // При разовой загрузке сервер метрик работает только до ее окончания
+            MetricsServer.stop();
+        }
+    }
+
+    private void load() {
         LocalDateTime startTime = LocalDateTime.now();
 
-        // Выполним проверку подключения
-        ClickHouseDDLer.init(appConfig);
-        if (!ClickHouseDDLer.checkDB(true)) {
-            logger.error("Не удалось подключиться к базе данных Clickhouse. Проверьте параметры подключения " +
-                    "(управлять ими можно через переменные окружения). Текущие значения:" +
-                    "CH_HOST={}; CH_PORT={}; CH_USER={}; CH_PASS=[forbidden]",
-                    appConfig.clickhouse.getHost(),
-                    appConfig.clickhouse.getPort(),
-                    appConfig.clickhouse.getUser());
+        // Выполним проверку фильтра записей, групп таблиц событий и подключения
+        if (!checkFilter() || !checkEventTables() || !connectToClickHouse())
             return;
-        }
 
-        // Ищем файлы с логами
-        if (!findAndPoolingLogFiles()) {
-            logger.info("Загрузка отменена: нет файлов для загрузки");
-            return;
-        }
+        // Новые пары "событие-свойство" сохраняются фоновой задачей, а не после каждого файла
+        startBackgroundFlushes();
+        ResourceGovernor.configure(appConfig);
+
+        // Запускаем поиск файлов с логами, найденные файлы сразу попадают в пул
+        logsPool = new LogsPool(appConfig.getRecentFilesWeight(), appConfig.getBacklogFilesWeight());
+        startDiscovery();
 
-        // Запускаем указанное в параметрах число потоков по загрузке логов
+        // Запускаем указанное в параметрах число потоков по загрузке логов, не дожидаясь окончания поиска
         List<ClickHouseInserter> loaders = startLoadersExecution();
+        if (logsPool.getAddedFiles() == 0) {
+            logger.info("Загрузка не выполнялась: нет файлов для загрузки");
+            return;
+        }
 
         // Вывод статистики
         showStatistics(startTime, loaders);
     }
 
-    private static boolean findAndPoolingLogFiles() {
-        for (Path pathsToLog : pathsToLogs) {
-            logger.info("Инициирована загрузка технологического журнала по адресу {}",
-                    pathsToLog.toAbsolutePath());
-            try {
-                fillLogsPool(pathsToLog);
-            } catch (IOException e) {
-                logger.warn("Не удалось найти файлы логов по пути {}: {}", pathsToLog, e.getMessage());
-                e.printStackTrace();
-            }
+    static boolean checkFilter() {
+        try {
+            RecordFilter filter = RecordFilter.compile(appConfig.getFilter());
+            if (filter != null)
+                logger.info("Будут загружены только записи ТЖ, удовлетворяющие фильтру: {}", filter);
+            return true;
+        } catch (RecordFilterException e) {
+            logger.error("Загрузка не выполняется. {}", e.getMessage());
+            return false;
         }
-        return !logsPool.isEmpty();
     }
 
-    private static void fillLogsPool(Path pathToLogs) throws IOException {
-        // Ищем все файлы с расширением .log
-        try (Stream<Path> streamOfFile = Files.find(pathToLogs.toAbsolutePath(), Integer.MAX_VALUE,
-                (p, i) -> p.toString().endsWith(appConfig.getLogExtension()) && Files.isRegularFile(p))) {
-            streamOfFile.forEach(
-                // Добавим найденный файл в пул для обработки
-                TechJournalToClickHouse::addFileToLogsPool
-            );
-        } catch (IOException e) {
-            throw new IOException(String.format("Не удалось прочитать каталог логов %s", pathToLogs.toAbsolutePath()), e);
+    static boolean checkEventTables() {
+        try {
+            for (EventTableConfig group : appConfig.clickhouse.getEventTables())
+                group.validate();
+            return true;
+        } catch (AppConfigException e) {
+            logger.error("Загрузка не выполняется. {}", e.getMessage());
+            return false;
         }
-
-        if (logsPool.isEmpty())
-            logger.info("По пути {} не найдено логов для загрузки", pathToLogs);
-        else
-            logger.info("По пути {} для загрузки найдено {} логов", pathToLogs, logsPool.size());
     }
 
-    private static void addFileToLogsPool(Path path) {
-        if (!appConfig.isDaemonMode()) {
-            // В обычном режиме не проверяем изменялись ли файлы, сразу добавим в пул
-            logsPool.add(path);
-            logger.info("Файл {} добавлен в пул к обработке", path);
-            return;
+    static boolean connectToClickHouse() {
+        if (appConfig.isFileSink()) {
+            logger.info("Записи будут сохранены в файлы формата Native в каталоге {}, подключение к ClickHouse не требуется",
+                    Path.of(appConfig.getSinkDir()).toAbsolutePath());
+            return true;
         }
-
-        byte[] previousHash = observedFiles.getOrDefault(path, new byte[0]);
-        byte[] currentHash = getFileHash(path);
-        if (previousHash.length == 0 || currentHash.length == 0 || Arrays.compare(previousHash, currentHash) != 0) {
-            // Файл ранее не обрабатывался или изменился, сохраним текущую контрольную сумму
-            observedFiles.put(path, currentHash);
-            // B добавим в пул
-            logsPool.add(path);
-            logger.info("Файл {} добавлен в пул к обработке", path);
-        } else
-            logger.info("Файл {} не изменился с предыдущей обработки", path);
-    }
-
-    private static byte[] getFileHash(Path pathToLog) {
-        MessageDigest md;
-        try {
-            md = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            logger.warn("Не удалось получить MD5 хешер: {}", e.getMessage());
-            e.printStackTrace();
-            return new byte[0];
+        ClickHouseDDLer.init(appConfig);
+        if (!ClickHouseDDLer.checkDB(true)) {
+            logger.error("Не удалось подключиться к базе данных Clickhouse. Проверьте параметры подключения " +
+                    "(управлять ими можно через переменные окружения). Текущие значения:" +
+                    "CH_HOST={}; CH_PORT={}; CH_USER={}; CH_PASS=[forbidden]",
+                    appConfig.clickhouse.getHost(),
+                    appConfig.clickhouse.getPort(),
+                    appConfig.clickhouse.getUser());
+            return false;
         }
+        return true;
+    }
 
-        boolean overSize;
-        try (InputStream is = Files.newInputStream(pathToLog);
-             DigestInputStream dis = new DigestInputStream(is, md)) {
-            byte[] buf = new byte[8*1024];
-            int s;
-            int reduceThreshold = appConfig.getThresholdSizeHashByAttr();
-            do {
-                s = dis.read(buf);
-                if (s <= 0) break;
-                reduceThreshold -= s;
-            } while (reduceThreshold >= 0);
-            overSize = reduceThreshold < 0;
-
-        } catch (IOException e) {
-            logger.warn("Не удалось получить контрольную сумму файла {}: {}", pathToLog, e.getMessage());
-            e.printStackTrace();
-            return new byte[0];
-        }
+    static void startBackgroundFlushes() {
+        // При записи в файлы служебные таблицы в ClickHouse не ведутся
+        if (appConfig.isFileSink())
+            return;
+        PropertiesByEvents.startBackgroundFlush(appConfig.getPropertiesFlushIntervalSec());
+        if (appConfig.isLoaderStatsEnabled())
+            LoaderStats.startBackgroundFlush();
+    }
 
-        if (overSize) {
-            // Если файл имеет размер больше порогового, то полный хеш не получился.
-            // Дополнительно к тому что прочитал добавляем атрибуты файла: размер и дату изменения
-            ByteBuffer buffer = ByteBuffer.allocate(2*Long.BYTES);
-            try {
-                buffer.putLong(Files.size(pathToLog)); // Размер файла
-                buffer.putLong(Files.getLastModifiedTime(pathToLog).toMillis()); // Последняя правка
-            } catch (IOException e) {
-                logger.warn("Не удалось получить размер или дату последнего изменения файла {}: {}", pathToLog, e.getMessage());
-                e.printStackTrace();
-                return new byte[0];
-            } catch (BufferOverflowException | ReadOnlyBufferException e) {
-                logger.warn("Не удалось получить двоичный буфер по атрибутам файла файла {}: {}", pathToLog, e.getMessage());
-                e.printStackTrace();
-                return new byte[0];
-            }
-            md.update(buffer.array());
-        }
-        return md.digest();
+    private static void startDiscovery() {
+        discovery = new LogFilesDiscovery(appConfig, null);
+        discovery.scan(pathsToLogs, logsPool).whenComplete((result, e) -> {
+            logsPool.finishDiscovery();
+            logger.info("Поиск файлов завершен, для загрузки отобрано {} логов", logsPool.getAddedFiles());
+        });
     }
 
     private static List<ClickHouseInserter> startLoadersExecution() {
-        int threadsCount = Integer.min(appConfig.getThreadCount(), logsPool.size());
+        int threadsCount = Integer.max(appConfig.getThreadCount(), 1);
         logger.info("Загрузка будет выполнена {} потоками", threadsCount);
         ExecutorService executor = Executors.newFixedThreadPool(threadsCount);
         List<ClickHouseInserter> loaders = new ArrayList<>();
@@ -241,12 +210,51 @@ public class TechJournalToClickHouse implements Runnable {
             e.printStackTrace();
             Thread.currentThread().interrupt();
         } finally {
+            discovery.shutdown();
+            // Сбросим накопленные поминутные агрегаты и оставшиеся пары "событие-свойство"
+            flushRollups();
+            flushPropertiesByEvents();
+            flushLoaderStats();
             // Закроем общее соединение для операций DDl
-            ClickHouseDDLer.close();
+            if (!appConfig.isFileSink())
+                ClickHouseDDLer.close();
         }
         return loaders;
     }
 
+    static void flushRollups() {
+        if (!appConfig.isRollupEnabled() || appConfig.isFileSink())
+            return;
+        try {
+            MinuteRollup.flush(appConfig.clickhouse.getTablePostfix());
+        } catch (SQLException e) {
+            logger.error("Не удалось сохранить поминутные агрегаты: {}", e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    static void flushPropertiesByEvents() {
+        if (appConfig.isFileSink())
+            return;
+        try {
+            PropertiesByEvents.save();
+        } catch (SQLException e) {
+            logger.error("Не удалось сохранить соответствия событий и свойств: {}", e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    static void flushLoaderStats() {
+        if (!appConfig.isLoaderStatsEnabled() || appConfig.isFileSink())
+            return;
+        try {
+            LoaderStats.flush();
+        } catch (SQLException e) {
+            logger.error("Не удалось сохранить журнал производительности: {}", e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
     private static void showStatistics(LocalDateTime startTime, List<ClickHouseInserter> loaders) {
         int totalFiles = 0;
         int totalRecords = 0;
@@ -256,6 +264,8 @@ public class TechJournalToClickHouse implements Runnable {
         }
         Duration duration = Duration.between(startTime, LocalDateTime.now());
         logger.info("Загрузка завершена за {}. Всего из {} непустых файлов загружено {} записей", duration, totalFiles, totalRecords);
+        if (ResourceGovernor.isEnabled())
+            logger.info("Ограничение ресурсов: {}", ResourceGovernor.getStatistics());
     }
 
     private static void showHelp(Options options) {
@@ -13,6 +13,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
 
 public class AppConfig {
     static final Logger logger = LoggerFactory.getLogger(AppConfig.class);
@@ -26,6 +30,34 @@ public class AppConfig {
     private String logExtension; // фильтр расширения для поиска логов
     private int thresholdSizeHashByAttr; // Порог размера файла, когда его контрольная сумма будет считаться по атрибутам
     private int monitoringIntervalSec; // Интервал поиска файлов для загрузки в режиме демона в секундах
+    private boolean rollupEnabled; // Формировать поминутные агрегаты по загруженным записям
+    private int propertiesFlushIntervalSec; // Интервал фонового сохранения новых пар "событие-свойство" в секундах
+    private String discoveryMode; // Способ поиска файлов в режиме демона: scan - полный обход каталогов, watch - по событиям файловой системы
+    private int reconcileIntervalSec; // Интервал полного обхода каталогов в режиме watch для сверки пропущенных событий в секундах
+    private String changeDetection; // Проверка изменений файлов в режиме демона: attributes - по атрибутам файла, hash - по MD5 содержимого
+    private int discoveryThreads; // Число потоков параллельного поиска файлов
+    private int discoveryThreadsPerDisk; // Число одновременных потоков поиска файлов на одном диске
+    private int recentFilesWeight; // Доля выдач из пула для файлов текущего и предыдущего часа
+    private int backlogFilesWeight; // Доля выдач из пула для файлов прошлых периодов (0 - только когда нет свежих файлов)
+    private String stateDir; // Каталог для сохранения состояния просмотренных файлов в режиме демона (пусто - только в памяти)
+    private int stateRetentionDays; // Срок хранения состояния загруженных файлов в днях с их последнего изменения (0 - пока файл существует)
+    private int metricsPort; // Порт HTTP сервера метрик в формате Prometheus (0 - сервер не запускается)
+    private boolean loaderStatsEnabled; // Сохранять времена этапов загрузки по пакетам и файлам в таблицу loader_stats_tj
+    private String filter; // Фильтр записей ТЖ при загрузке (пусто - загружаются все записи), см. RecordFilter
+    private List<PropertyProjectionConfig> projections; // Правила проекции свойств по событиям (пусто - загружаются все свойства)
+    private boolean sqlFingerprintEnabled; // Добавлять нормализованный текст и отпечаток запросов СУБД (Sql_normalized, Sql_fingerprint)
+    private int sqlNormalizerCacheSize; // Количество нормализованных текстов запросов в кэше
+    private int dictionaryCacheSize; // Количество хешей значений, уже записанных в словарь property_values_tj, в кэше
+    private List<SamplingConfig> sampling; // Правила прореживания записей по событиям (пусто - загружаются все записи)
+    private String sink; // Приемник разобранных записей: clickhouse - вставка в ClickHouse, native - файлы в каталоге sinkDir
+    private String sinkDir; // Каталог файлов для загрузки в ClickHouse при sink: native
+    private int readLimitMbPerSec; // Общая скорость чтения файлов ТЖ рабочими потоками в МБ/с (0 - без ограничения)
+    private int maxParseThreads; // Число потоков, одновременно читающих и разбирающих файлы (0 - все threadCount потоков)
+    private boolean adaptiveThrottling; // Снижать скорость чтения и число потоков разбора при высокой загрузке системы
+    private int maxLoadAveragePercent; // Порог load average системы в процентах на ядро для adaptiveThrottling (0 - не проверяется)
+    private int maxCpuPercent; // Порог загрузки процессора загрузчиком в процентах от всех ядер для adaptiveThrottling (0 - не проверяется)
+    private int maxRecordSizeKb; // Наибольший размер текста записи ТЖ в КБ (байты UTF-8), длинные записи обрезаются (0 - без ограничения)
+    private int batchMemoryLimitMb; // Объем текстов записей пакета в МБ, при превышении пакет завершается раньше batchSize (0 - без ограничения)
 
     public AppConfig() {
         // Задает настройки по умолчанию
@@ -36,6 +68,34 @@ public class AppConfig {
         setLogExtension(".log");
         setThresholdSizeHashByAttr(10*1024*1024);
         setMonitoringIntervalSec(30);
+        setRollupEnabled(false);
+        setPropertiesFlushIntervalSec(5);
+        setDiscoveryMode("scan");
+        setReconcileIntervalSec(3600);
+        setStateDir("state");
+        setStateRetentionDays(0);
+        setChangeDetection("attributes");
+        setDiscoveryThreads(4);
+        setDiscoveryThreadsPerDisk(2);
+        setRecentFilesWeight(4);
+        setBacklogFilesWeight(1);
+        setMetricsPort(0);
+        setLoaderStatsEnabled(true);
+        setFilter("");
+        setProjections(new ArrayList<>());
+        setSqlFingerprintEnabled(false);
+        setSqlNormalizerCacheSize(10000);
+        setDictionaryCacheSize(100000);
+        setSampling(new ArrayList<>());
+        setSink("clickhouse");
+        setSinkDir("out");
+        setReadLimitMbPerSec(0);
+        setMaxParseThreads(0);
+        setAdaptiveThrottling(false);
+        setMaxLoadAveragePercent(80);
+        setMaxCpuPercent(50);
+        setMaxRecordSizeKb(1024);
+        setBatchMemoryLimitMb(64);
     }
 
     public static AppConfig getConfig(String pathToConfig) {
@@ -161,5 +221,307 @@ public class AppConfig {
     public void setMonitoringIntervalSec(int monitoringIntervalSec) {
         this.monitoringIntervalSec = monitoringIntervalSec;
     }
-}
 
+    public boolean isRollupEnabled() {
+        return rollupEnabled;
+    }
+
+    public void setRollupEnabled(boolean rollupEnabled) {
+        this.rollupEnabled = rollupEnabled;
+    }
+
+    public int getPropertiesFlushIntervalSec() {
+        return propertiesFlushIntervalSec;
+    }
+
+    public void setPropertiesFlushIntervalSec(int propertiesFlushIntervalSec) {
+        this.propertiesFlushIntervalSec = propertiesFlushIntervalSec;
+    }
+
+    public String getDiscoveryMode() {
+        return discoveryMode;
+    }
+
+    public void setDiscoveryMode(String discoveryMode) {
+        this.discoveryMode = discoveryMode;
+    }
+
+    public boolean isWatchDiscovery() {
+        return "watch".equalsIgnoreCase(discoveryMode);
+    }
+
+    public int getReconcileIntervalSec() {
+        return reconcileIntervalSec;
+    }
+
+    public void setReconcileIntervalSec(int reconcileIntervalSec) {
+        this.reconcileIntervalSec = reconcileIntervalSec;
+    }
+
+    public String getStateDir() {
+        return stateDir;
+    }
+
+    public void setStateDir(String stateDir) {
+        this.stateDir = stateDir == null ? "" : stateDir;
+    }
+
+    public int getStateRetentionDays() {
+        return stateRetentionDays;
+    }
+
+    public void setStateRetentionDays(int stateRetentionDays) {
+        this.stateRetentionDays = stateRetentionDays;
+    }
+
+    public String getChangeDetection() {
+        return changeDetection;
+    }
+
+    public void setChangeDetection(String changeDetection) {
+        this.changeDetection = changeDetection;
+    }
+
+    public int getDiscoveryThreads() {
+        return discoveryThreads;
+    }
+
+    public void setDiscoveryThreads(int discoveryThreads) {
+        this.discoveryThreads = discoveryThreads;
+    }
+
+    public int getDiscoveryThreadsPerDisk() {
+        return discoveryThreadsPerDisk;
+    }
+
+    public void setDiscoveryThreadsPerDisk(int discoveryThreadsPerDisk) {
+        this.discoveryThreadsPerDisk = discoveryThreadsPerDisk;
+    }
+
+    public int getRecentFilesWeight() {
+        return recentFilesWeight;
+    }
+
+    public void setRecentFilesWeight(int recentFilesWeight) {
+        this.recentFilesWeight = recentFilesWeight;
+    }
+
+    public int getBacklogFilesWeight() {
+        return backlogFilesWeight;
+    }
+
+    public void setBacklogFilesWeight(int backlogFilesWeight) {
+        this.backlogFilesWeight = backlogFilesWeight;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    public boolean isLoaderStatsEnabled() {
+        return loaderStatsEnabled;
+    }
+
+    public void setLoaderStatsEnabled(boolean loaderStatsEnabled) {
+        this.loaderStatsEnabled = loaderStatsEnabled;
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    public void setFilter(String filter) {
+        this.filter = filter == null ? "" : filter;
+    }
+
+    public List<PropertyProjectionConfig> getProjections() {
+        return projections;
+    }
+
+    public void setProjections(List<PropertyProjectionConfig> projections) {
+        this.projections = projections == null ? new ArrayList<>() : projections;
+    }
+
+    /**
+     * Задает правила проекции строкой (удобно для переменных окружения) в формате:
+     * "СОБЫТИЕ1,СОБЫТИЕ2:-Свойство1,~Свойство2;*:+Свойство3", где "-" - исключить свойство, "+" - загружать только
+     * перечисленные свойства, "~" - обрезать значение до длины по умолчанию с сохранением хеша, "#" - заменить значение
+     * хешем с записью текста в словарь; "*" - все события
+     */
+    public void setProjectionsSpec(String projectionsSpec) {
+        List<PropertyProjectionConfig> rules = new ArrayList<>();
+        for (String ruleSpec : projectionsSpec.split(";")) {
+            String[] eventsAndProperties = ruleSpec.split(":", 2);
+            if (eventsAndProperties.length != 2)
+                continue;
+            PropertyProjectionConfig rule = new PropertyProjectionConfig();
+            rule.setEvents(Arrays.stream(eventsAndProperties[0].split(","))
+                    .map(String::trim)
+                    .filter(e -> !e.isEmpty() && !e.equals("*"))
+                    .collect(Collectors.toList()));
+            for (String property : eventsAndProperties[1].split(",")) {
+                property = property.trim();
+                if (property.length() < 2)
+                    continue;
+                String name = property.substring(1).trim();
+                switch (property.charAt(0)) {
+                    case '-': rule.getExclude().add(name); break;
+                    case '+': rule.getInclude().add(name); break;
+                    case '~': rule.getTruncate().add(name); break;
+                    case '#': rule.getDictionary().add(name); break;
+                    default: logger.warn("Не указано действие для свойства {} в правиле проекции {}", property, ruleSpec);
+                }
+            }
+            rules.add(rule);
+        }
+        setProjections(rules);
+    }
+
+    public boolean isSqlFingerprintEnabled() {
+        return sqlFingerprintEnabled;
+    }
+
+    public void setSqlFingerprintEnabled(boolean sqlFingerprintEnabled) {
+        this.sqlFingerprintEnabled = sqlFingerprintEnabled;
+    }
+
+    public int getSqlNormalizerCacheSize() {
+        return sqlNormalizerCacheSize;
+    }
+
+    public void setSqlNormalizerCacheSize(int sqlNormalizerCacheSize) {
+        this.sqlNormalizerCacheSize = sqlNormalizerCacheSize;
+    }
+
+    public int getDictionaryCacheSize() {
+        return dictionaryCacheSize;
+    }
+
+    public void setDictionaryCacheSize(int dictionaryCacheSize) {
+        this.dictionaryCacheSize = dictionaryCacheSize;
+    }
+
+    public List<SamplingConfig> getSampling() {
+        return sampling;
+    }
+
+    public void setSampling(List<SamplingConfig> sampling) {
+        this.sampling = sampling == null ? new ArrayList<>() : sampling;
+    }
+
+    /**
+     * Задает правила прореживания строкой (удобно для переменных окружения) в формате:
+     * "СОБЫТИЕ1,СОБЫТИЕ2:ratio=0.1,minDuration=1000000;СОБЫТИЕ3:perMinute=1000", "*" - все события
+     */
+    public void setSamplingSpec(String samplingSpec) {
+        List<SamplingConfig> rules = new ArrayList<>();
+        for (String ruleSpec : samplingSpec.split(";")) {
+            String[] eventsAndParams = ruleSpec.split(":", 2);
+            if (eventsAndParams.length != 2)
+                continue;
+            SamplingConfig rule = new SamplingConfig();
+            rule.setEvents(Arrays.stream(eventsAndParams[0].split(","))
+                    .map(String::trim)
+                    .filter(e -> !e.isEmpty() && !e.equals("*"))
+                    .collect(Collectors.toList()));
+            for (String param : eventsAndParams[1].split(",")) {
+                String[] nameAndValue = param.split("=", 2);
+                try {
+                    switch (nameAndValue[0].trim()) {
+                        case "ratio": rule.setRatio(Double.parseDouble(nameAndValue[1].trim())); break;
+                        case "minDuration": rule.setMinDuration(Long.parseLong(nameAndValue[1].trim())); break;
+                        case "perMinute": rule.setPerMinute(Integer.parseInt(nameAndValue[1].trim())); break;
+                        default: logger.warn("Неизвестный параметр {} в правиле прореживания {}", param, ruleSpec);
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    logger.warn("Некорректное значение параметра {} в правиле прореживания {}", param, ruleSpec);
+                }
+            }
+            rules.add(rule);
+        }
+        setSampling(rules);
+    }
+
+    public String getSink() {
+        return sink;
+    }
+
+    public void setSink(String sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Записи пишутся в локальные файлы, подключение к ClickHouse не требуется
+     */
+    public boolean isFileSink() {
+        return "native".equalsIgnoreCase(sink);
+    }
+
+    public String getSinkDir() {
+        return sinkDir;
+    }
+
+    public void setSinkDir(String sinkDir) {
+        this.sinkDir = sinkDir;
+    }
+
+    public int getReadLimitMbPerSec() {
+        return readLimitMbPerSec;
+    }
+
+    public void setReadLimitMbPerSec(int readLimitMbPerSec) {
+        this.readLimitMbPerSec = readLimitMbPerSec;
+    }
+
+    public int getMaxParseThreads() {
+        return maxParseThreads;
+    }
+
+    public void setMaxParseThreads(int maxParseThreads) {
+        this.maxParseThreads = maxParseThreads;
+    }
+
+    public boolean isAdaptiveThrottling() {
+        return adaptiveThrottling;
+    }
+
+    public void setAdaptiveThrottling(boolean adaptiveThrottling) {
+        this.adaptiveThrottling = adaptiveThrottling;
+    }
+
+    public int getMaxLoadAveragePercent() {
+        return maxLoadAveragePercent;
+    }
+
+    public void setMaxLoadAveragePercent(int maxLoadAveragePercent) {
+        this.maxLoadAveragePercent = maxLoadAveragePercent;
+    }
+
+    public int getMaxCpuPercent() {
+        return maxCpuPercent;
+    }
+
+    public void setMaxCpuPercent(int maxCpuPercent) {
+        this.maxCpuPercent = maxCpuPercent;
+    }
+
+    public int getMaxRecordSizeKb() {
+        return maxRecordSizeKb;
+    }
+
+    public void setMaxRecordSizeKb(int maxRecordSizeKb) {
+        this.maxRecordSizeKb = maxRecordSizeKb;
+    }
+
+    public int getBatchMemoryLimitMb() {
+        return batchMemoryLimitMb;
+    }
+
+    public void setBatchMemoryLimitMb(int batchMemoryLimitMb) {
+        this.batchMemoryLimitMb = batchMemoryLimitMb;
+    }
+}
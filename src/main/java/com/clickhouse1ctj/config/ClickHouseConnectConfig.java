@@ -1,5 +1,10 @@
 package com.clickhouse1ctj.config;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
 public class ClickHouseConnectConfig {
     private String host;
     private String port;
@@ -10,6 +15,11 @@ public class ClickHouseConnectConfig {
     private String engine;
     private String orderBy;
     private String partition;
+    private List<EventTableConfig> eventTables; // отдельные таблицы для групп событий
+    private String shards; // узлы ClickHouse для распределенной записи: "host1:8123, host2:8123"
+    private String shardingKey; // ключ распределения файлов по узлам: source, source_pid, parent, filename, day, hour
+    private int shardRetries; // число повторных попыток вставки на узел перед переключением на следующий
+    private String jdbcParams; // дополнительные параметры строки подключения JDBC: "compress=0&socket_timeout=300000"
 
     ClickHouseConnectConfig() {
         // Настройки по умолчанию
@@ -22,6 +32,11 @@ public class ClickHouseConnectConfig {
         setEngine("MergeTree"); // Используется более тяжелый MergeTree, т.к. Log не может добавлять колонки динамически
         setOrderBy("datetime, event"); // первичный ключ
         setPartition("toHour(datetime), source"); // секционирование таблиц логов по часам и типу источника
+        setEventTables(new ArrayList<>()); // по умолчанию все события грузятся в одну таблицу
+        setShards(""); // по умолчанию используется единственный узел host:port
+        setShardingKey("source, source_pid");
+        setShardRetries(2);
+        setJdbcParams("");
     }
 
     public String getHost() {
@@ -96,4 +111,90 @@ public class ClickHouseConnectConfig {
         this.partition = partition;
     }
 
+    public List<EventTableConfig> getEventTables() {
+        return eventTables;
+    }
+
+    public void setEventTables(List<EventTableConfig> eventTables) {
+        this.eventTables = eventTables;
+    }
+
+    /**
+     * Задает таблицы групп событий строкой (удобно для переменных окружения) в формате:
+     * "ИмяГруппы:СОБЫТИЕ1,СОБЫТИЕ2;ИмяГруппы2:СОБЫТИЕ3". Первичный ключ и секционирование
+     * в этом случае наследуются от общей таблицы.
+     */
+    public void setEventTablesSpec(String eventTablesSpec) {
+        List<EventTableConfig> tables = new ArrayList<>();
+        for (String groupSpec : eventTablesSpec.split(";")) {
+            String[] nameAndEvents = groupSpec.split(":", 2);
+            if (nameAndEvents.length != 2 || nameAndEvents[0].isBlank())
+                continue;
+            List<String> events = Arrays.stream(nameAndEvents[1].split(","))
+                    .map(String::trim)
+                    .filter(e -> !e.isEmpty())
+                    .collect(Collectors.toList());
+            tables.add(new EventTableConfig(nameAndEvents[0].trim(), events, null, null));
+        }
+        setEventTables(tables);
+    }
+
+    public String getShards() {
+        return shards;
+    }
+
+    public void setShards(String shards) {
+        this.shards = shards;
+    }
+
+    public String getShardingKey() {
+        return shardingKey;
+    }
+
+    public void setShardingKey(String shardingKey) {
+        this.shardingKey = shardingKey;
+    }
+
+    public int getShardRetries() {
+        return shardRetries;
+    }
+
+    public void setShardRetries(int shardRetries) {
+        this.shardRetries = shardRetries;
+    }
+
+    public String getJdbcParams() {
+        return jdbcParams;
+    }
+
+    public void setJdbcParams(String jdbcParams) {
+        this.jdbcParams = jdbcParams;
+    }
+
+    /**
+     * Возвращает список узлов ClickHouse в формате "host:port". Если узлы для распределенной записи
+     * не заданы, то список состоит из единственного узла host:port
+     */
+    public List<String> getNodes() {
+        List<String> nodes = new ArrayList<>();
+        if (shards != null) {
+            for (String node : shards.split(",")) {
+                node = node.trim();
+                if (node.isEmpty())
+                    continue;
+                nodes.add(node.contains(":") ? node : node + ":" + getPort());
+            }
+        }
+        if (nodes.isEmpty())
+            nodes.add(getHost() + ":" + getPort());
+        return nodes;
+    }
+
+    /**
+     * Строка подключения JDBC к указанной базе данных на узле в формате "host:port"
+     */
+    public String getJdbcUrl(String node, String database) {
+        String url = "jdbc:clickhouse://" + node + "/" + database;
+        return jdbcParams == null || jdbcParams.isBlank() ? url : url + "?" + jdbcParams.trim();
+    }
 }
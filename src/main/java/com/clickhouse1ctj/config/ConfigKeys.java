@@ -8,6 +8,34 @@ public enum ConfigKeys {
     BATCHSIZE("setBatchSize", int.class),
     THRESHOLD_SIZE_HASH_BY_ATTR("setThresholdSizeHashByAttr", int.class),
     MONITORING_INTERVAL_SEC("setMonitoringIntervalSec", int.class),
+    ROLLUP_ENABLED("setRollupEnabled", boolean.class),
+    PROPERTIES_FLUSH_INTERVAL_SEC("setPropertiesFlushIntervalSec", int.class),
+    DISCOVERY_MODE("setDiscoveryMode", String.class),
+    RECONCILE_INTERVAL_SEC("setReconcileIntervalSec", int.class),
+    STATE_DIR("setStateDir", String.class),
+    STATE_RETENTION_DAYS("setStateRetentionDays", int.class),
+    CHANGE_DETECTION("setChangeDetection", String.class),
+    DISCOVERY_THREADS("setDiscoveryThreads", int.class),
+    DISCOVERY_THREADS_PER_DISK("setDiscoveryThreadsPerDisk", int.class),
+    RECENT_FILES_WEIGHT("setRecentFilesWeight", int.class),
+    BACKLOG_FILES_WEIGHT("setBacklogFilesWeight", int.class),
+    METRICS_PORT("setMetricsPort", int.class),
+    LOADER_STATS_ENABLED("setLoaderStatsEnabled", boolean.class),
+    FILTER("setFilter", String.class),
+    PROJECTIONS("setProjectionsSpec", String.class),
+    SQL_FINGERPRINT_ENABLED("setSqlFingerprintEnabled", boolean.class),
+    SQL_NORMALIZER_CACHE_SIZE("setSqlNormalizerCacheSize", int.class),
+    DICTIONARY_CACHE_SIZE("setDictionaryCacheSize", int.class),
+    SAMPLING("setSamplingSpec", String.class),
+    SINK("setSink", String.class),
+    SINK_DIR("setSinkDir", String.class),
+    READ_LIMIT_MB_PER_SEC("setReadLimitMbPerSec", int.class),
+    MAX_PARSE_THREADS("setMaxParseThreads", int.class),
+    ADAPTIVE_THROTTLING("setAdaptiveThrottling", boolean.class),
+    MAX_LOAD_AVERAGE_PERCENT("setMaxLoadAveragePercent", int.class),
+    MAX_CPU_PERCENT("setMaxCpuPercent", int.class),
+    MAX_RECORD_SIZE_KB("setMaxRecordSizeKb", int.class),
+    BATCH_MEMORY_LIMIT_MB("setBatchMemoryLimitMb", int.class),
     CH_HOST("clickhouse.setHost", String.class),
     CH_PORT("clickhouse.setPort", String.class),
     CH_USER("clickhouse.setUser", String.class),
@@ -16,7 +44,12 @@ public enum ConfigKeys {
     CH_ENGINE("clickhouse.setEngine", String.class),
     CH_TABLEPOSTFIX("clickhouse.setTablePostfix", String.class),
     CH_ORDERBY("clickhouse.setOrderBy", String.class),
-    CH_PARTITION("clickhouse.setPartition", String.class);
+    CH_PARTITION("clickhouse.setPartition", String.class),
+    CH_EVENT_TABLES("clickhouse.setEventTablesSpec", String.class),
+    CH_SHARDS("clickhouse.setShards", String.class),
+    CH_SHARDING_KEY("clickhouse.setShardingKey", String.class),
+    CH_SHARD_RETRIES("clickhouse.setShardRetries", int.class),
+    CH_JDBC_PARAMS("clickhouse.setJdbcParams", String.class);
 
     private final String setMethodName;
     private final Class<?> valueType;
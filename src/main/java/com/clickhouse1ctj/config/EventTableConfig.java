@@ -0,0 +1,116 @@
+package com.clickhouse1ctj.config;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Описание отдельной таблицы для группы событий ТЖ (EXCP, TLOCK, DBMSSQL и т.д.).
+ * Записи перечисленных событий загружаются не в общую дневную таблицу, а в таблицу вида
+ * YYMMDD_[tablePostfix]_[name]_TJ с собственным первичным ключом и секционированием.
+ * Если orderBy или partition не заданы, то используются значения общей таблицы.
+ * Колонки, на которые ссылаются orderBy и partition группы, добавляются в таблицу группы при ее создании.
+ */
+public class EventTableConfig {
+    // Имя группы входит в имя таблицы и в регулярное выражение поиска таблиц дня (см. EventTableRouter.getDaySource)
+    private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z0-9_]+");
+    // Ссылка на колонку в выражении: имя в двойных кавычках (как у свойств вида "p:processName") или идентификатор,
+    // за которым не следует открывающая скобка (иначе это имя функции). Строковые литералы пропускаются
+    private static final Pattern COLUMN_PATTERN = Pattern.compile("'(?:[^'\\\\]|\\\\.)*'|(\"[^\"]+\")|([A-Za-z_][A-Za-z0-9_]*)(\\s*\\()?");
+
+    private String name;
+    private List<String> events;
+    private String orderBy;
+    private String partition;
+
+    public EventTableConfig() {
+        // Настройки по умолчанию (требуется для чтения из yaml)
+        setEvents(new ArrayList<>());
+    }
+
+    public EventTableConfig(String name, List<String> events, String orderBy, String partition) {
+        setName(name);
+        setEvents(events);
+        setOrderBy(orderBy);
+        setPartition(partition);
+    }
+
+    /**
+     * Проверяет настройки группы при запуске загрузки
+     */
+    public void validate() throws AppConfigException {
+        if (name == null || !NAME_PATTERN.matcher(name).matches())
+            throw new AppConfigException(String.format("Недопустимое имя группы событий '%s': имя входит в имя таблицы " +
+                    "и может содержать только латинские буквы, цифры и знак подчеркивания", name), null);
+        if (events == null || events.isEmpty())
+            throw new AppConfigException(String.format("Для группы событий %s не указан список событий", name), null);
+        if (orderBy != null) {
+            if (orderBy.isBlank() || getColumns(orderBy).isEmpty())
+                throw new AppConfigException(String.format("Первичный ключ '%s' группы событий %s не содержит ни одной колонки",
+                        orderBy, name), null);
+            Matcher unquoted = Pattern.compile("(^|[\\s,(])[A-Za-z_][A-Za-z0-9_]*:").matcher(orderBy);
+            if (unquoted.find())
+                throw new AppConfigException(String.format("Первичный ключ '%s' группы событий %s: имя свойства с двоеточием " +
+                        "нужно заключить в двойные кавычки, например \"p:processName\"", orderBy, name), null);
+        }
+    }
+
+    /**
+     * Колонки, на которые ссылаются первичный ключ и секционирование группы (пусто, если они наследуются от общей таблицы)
+     */
+    public Set<String> getKeyColumns() {
+        Set<String> columns = new LinkedHashSet<>();
+        if (orderBy != null)
+            columns.addAll(getColumns(orderBy));
+        if (partition != null)
+            columns.addAll(getColumns(partition));
+        return columns;
+    }
+
+    static Set<String> getColumns(String expression) {
+        Set<String> columns = new LinkedHashSet<>();
+        Matcher matcher = COLUMN_PATTERN.matcher(expression);
+        while (matcher.find()) {
+            if (matcher.group(1) != null)
+                columns.add(matcher.group(1));
+            else if (matcher.group(2) != null && matcher.group(3) == null)
+                columns.add(matcher.group(2));
+        }
+        return columns;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public List<String> getEvents() {
+        return events;
+    }
+
+    public void setEvents(List<String> events) {
+        this.events = events;
+    }
+
+    public String getOrderBy() {
+        return orderBy;
+    }
+
+    public void setOrderBy(String orderBy) {
+        this.orderBy = orderBy;
+    }
+
+    public String getPartition() {
+        return partition;
+    }
+
+    public void setPartition(String partition) {
+        this.partition = partition;
+    }
+}
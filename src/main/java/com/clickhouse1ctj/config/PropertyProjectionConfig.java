@@ -0,0 +1,88 @@
+package com.clickhouse1ctj.config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Правило проекции свойств записей ТЖ для группы событий (пустой список событий - для всех событий).
+ * include - загружать только перечисленные свойства, exclude - не загружать перечисленные свойства,
+ * truncate - обрезать значения перечисленных свойств до maxLength символов, а хеш полного значения
+ * (sipHash64) сохранять в колонку [свойство]_hash, dictionary - заменять значения перечисленных свойств хешем
+ * в колонке [свойство]_hash, а сами тексты однократно записывать в словарь property_values_tj
+ */
+public class PropertyProjectionConfig {
+    private List<String> events;
+    private List<String> include;
+    private List<String> exclude;
+    private List<String> truncate;
+    private List<String> dictionary;
+    private int maxLength;
+
+    public PropertyProjectionConfig() {
+        // Настройки по умолчанию (требуется для чтения из yaml)
+        setEvents(new ArrayList<>());
+        setInclude(new ArrayList<>());
+        setExclude(new ArrayList<>());
+        setTruncate(new ArrayList<>());
+        setDictionary(new ArrayList<>());
+        setMaxLength(1024);
+    }
+
+    public PropertyProjectionConfig(List<String> events, List<String> include, List<String> exclude,
+                                    List<String> truncate, int maxLength) {
+        setEvents(events);
+        setInclude(include);
+        setExclude(exclude);
+        setTruncate(truncate);
+        setDictionary(new ArrayList<>());
+        setMaxLength(maxLength);
+    }
+
+    public List<String> getEvents() {
+        return events;
+    }
+
+    public void setEvents(List<String> events) {
+        this.events = events == null ? new ArrayList<>() : events;
+    }
+
+    public List<String> getInclude() {
+        return include;
+    }
+
+    public void setInclude(List<String> include) {
+        this.include = include == null ? new ArrayList<>() : include;
+    }
+
+    public List<String> getExclude() {
+        return exclude;
+    }
+
+    public void setExclude(List<String> exclude) {
+        this.exclude = exclude == null ? new ArrayList<>() : exclude;
+    }
+
+    public List<String> getTruncate() {
+        return truncate;
+    }
+
+    public void setTruncate(List<String> truncate) {
+        this.truncate = truncate == null ? new ArrayList<>() : truncate;
+    }
+
+    public List<String> getDictionary() {
+        return dictionary;
+    }
+
+    public void setDictionary(List<String> dictionary) {
+        this.dictionary = dictionary == null ? new ArrayList<>() : dictionary;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    public void setMaxLength(int maxLength) {
+        this.maxLength = Integer.max(maxLength, 0);
+    }
+}
@@ -0,0 +1,64 @@
+package com.clickhouse1ctj.config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Правило прореживания записей ТЖ для группы событий (пустой список событий - для всех событий).
+ * ratio - доля загружаемых записей (1 - все записи), minDuration - записи с длительностью не меньше указанной
+ * загружаются всегда (0 - порог не задан), perMinute - ограничение числа загружаемых записей события за минуту
+ * (0 - без ограничения). Загруженные записи получают вес в колонке sample_weight
+ */
+public class SamplingConfig {
+    private List<String> events;
+    private double ratio;
+    private long minDuration;
+    private int perMinute;
+
+    public SamplingConfig() {
+        // Настройки по умолчанию (требуется для чтения из yaml)
+        setEvents(new ArrayList<>());
+        setRatio(1);
+        setMinDuration(0);
+        setPerMinute(0);
+    }
+
+    public SamplingConfig(List<String> events, double ratio, long minDuration, int perMinute) {
+        setEvents(events);
+        setRatio(ratio);
+        setMinDuration(minDuration);
+        setPerMinute(perMinute);
+    }
+
+    public List<String> getEvents() {
+        return events;
+    }
+
+    public void setEvents(List<String> events) {
+        this.events = events == null ? new ArrayList<>() : events;
+    }
+
+    public double getRatio() {
+        return ratio;
+    }
+
+    public void setRatio(double ratio) {
+        this.ratio = Double.min(Double.max(ratio, 0), 1);
+    }
+
+    public long getMinDuration() {
+        return minDuration;
+    }
+
+    public void setMinDuration(long minDuration) {
+        this.minDuration = Long.max(minDuration, 0);
+    }
+
+    public int getPerMinute() {
+        return perMinute;
+    }
+
+    public void setPerMinute(int perMinute) {
+        this.perMinute = Integer.max(perMinute, 0);
+    }
+}
@@ -0,0 +1,273 @@
+package com.clickhouse1ctj.generator;
+
+import org.apache.commons.cli.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+/**
+ * Генератор синтетического ТЖ для нагрузочного тестирования и бенчмарков. Формирует дерево каталогов
+ * rphost_[pid]/YYMMDDHH.log с заданной смесью событий и количеством различных значений свойств (кардинальностью).
+ * В логах встречаются многострочные Context и Sql, BOM в начале файлов, повторяющиеся ключи (p:processName)
+ * и значения в кавычках с кавычками и запятыми внутри. Случайные значения каждого файла определяются начальным
+ * значением (seed) и именем файла, поэтому при одинаковых параметрах содержимое файлов совпадает между запусками.
+ */
+public class TechJournalGenerator {
+    private static final Logger logger = LoggerFactory.getLogger(TechJournalGenerator.class);
+    private static final DateTimeFormatter hourFormat = DateTimeFormatter.ofPattern("yyMMddHH");
+    private static final long MICROS_IN_HOUR = 3_600_000_000L;
+    private static final byte[] BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+    private static final String[] TABLES = {"_Reference42", "_Document118", "_AccumRg1234", "_InfoRg5678", "_Const17"};
+    private static final String[] MODULES = {"ОбщийМодуль.ОбменДанными.Модуль", "Документ.РеализацияТоваров.МодульОбъекта",
+            "Справочник.Контрагенты.Форма.ФормаСписка.Модуль", "РегистрНакопления.ТоварыНаСкладах.МодульНабораЗаписей"};
+    private static final String[] ERRORS = {"Процесс завершается. Исходящий вызов запрещен.",
+            "Ошибка сетевого доступа к серверу, соединение разорвано", "Конфликт блокировок при выполнении транзакции: \"Превышено время ожидания\"",
+            "Значение не является значением объектного типа (Ссылка)"};
+
+    private final Path outputDir;
+    private final LocalDateTime startHour;
+    private final int hours;
+    private final int processes;
+    private final int recordsPerFile;
+    private final int cardinality;
+    private final boolean withBom;
+    private final long seed;
+    private final NavigableMap<Integer, String> eventMix = new TreeMap<>();
+    private final int eventMixTotal;
+
+    public TechJournalGenerator(Path outputDir, LocalDateTime startHour, int hours, int processes, int recordsPerFile,
+                                String eventMixSpec, int cardinality, boolean withBom, long seed) {
+        this.outputDir = outputDir;
+        this.startHour = startHour;
+        this.hours = hours;
+        this.processes = processes;
+        this.recordsPerFile = recordsPerFile;
+        this.cardinality = Integer.max(cardinality, 1);
+        this.withBom = withBom;
+        this.seed = seed;
+        this.eventMixTotal = parseEventMix(eventMixSpec);
+    }
+
+    public static void main(String[] args) throws ParseException, IOException {
+        Options options = new Options();
+        options.addOption(new Option("", "out", true, "Output directory"));
+        options.addOption(new Option("", "start", true, "First hour, YYMMDDHH (default 21102215)"));
+        options.addOption(new Option("", "hours", true, "Number of hourly files per process (default 1)"));
+        options.addOption(new Option("", "processes", true, "Number of rphost_<pid> directories (default 2)"));
+        options.addOption(new Option("", "records", true, "Records per file (default 100000)"));
+        options.addOption(new Option("", "mix", true,
+                "Event mix EVENT:WEIGHT,... (default CALL:30,SCALL:20,DBMSSQL:25,SDBL:10,TLOCK:10,EXCP:5)"));
+        options.addOption(new Option("", "cardinality", true, "Distinct values of users, sessions, clients (default 100)"));
+        options.addOption(new Option("", "no-bom", false, "Do not write BOM at the beginning of files"));
+        options.addOption(new Option("", "seed", true, "Random seed (default 1)"));
+        options.addOption(new Option("h", "help", false, "Show help"));
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = parser.parse(options, args);
+        if (cmd.hasOption("h") || !cmd.hasOption("out")) {
+            HelpFormatter help = new HelpFormatter();
+            help.printHelp("TechJournalGenerator --out DIR [OPTIONS]",
+                    "Generates rphost_<pid>/YYMMDDHH.log files of synthetic technological journal",
+                    options,
+                    "For example, TechJournalGenerator --out D:\\LOGS\\Test --processes 4 --records 500000 --seed 7");
+            return;
+        }
+        TechJournalGenerator generator = new TechJournalGenerator(
+                Path.of(cmd.getOptionValue("out")),
+                LocalDateTime.parse(cmd.getOptionValue("start", "21102215"), hourFormat),
+                Integer.parseInt(cmd.getOptionValue("hours", "1")),
+                Integer.parseInt(cmd.getOptionValue("processes", "2")),
+                Integer.parseInt(cmd.getOptionValue("records", "100000")),
+                cmd.getOptionValue("mix", "CALL:30,SCALL:20,DBMSSQL:25,SDBL:10,TLOCK:10,EXCP:5"),
+                Integer.parseInt(cmd.getOptionValue("cardinality", "100")),
+                !cmd.hasOption("no-bom"),
+                Long.parseLong(cmd.getOptionValue("seed", "1")));
+        generator.generate();
+    }
+
+    /**
+     * Формирует все файлы. Возвращает общий размер сформированных файлов в байтах
+     */
+    public long generate() throws IOException {
+        long totalBytes = 0;
+        for (int process = 0; process < processes; process++) {
+            // Идентификаторы процессов тоже детерминированы
+            int pid = 1000 + new Random(seed + process).nextInt(60000);
+            Path processDir = outputDir.resolve("rphost_" + pid);
+            Files.createDirectories(processDir);
+            for (int hour = 0; hour < hours; hour++) {
+                Path file = processDir.resolve(startHour.plusHours(hour).format(hourFormat) + ".log");
+                totalBytes += generateFile(file);
+            }
+        }
+        logger.info("Сформировано {} файлов ТЖ общим размером {} байт в каталоге {}",
+                processes * hours, totalBytes, outputDir.toAbsolutePath());
+        return totalBytes;
+    }
+
+    long generateFile(Path file) throws IOException {
+        Random random = new Random(seed * 31 + file.getParent().getFileName().toString().hashCode() * 17L
+                + file.getFileName().toString().hashCode());
+        long step = Long.max(MICROS_IN_HOUR / Long.max(recordsPerFile, 1), 1);
+        long micros = 0;
+        try (OutputStream os = Files.newOutputStream(file)) {
+            if (withBom)
+                os.write(BOM);
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 64 * 1024);
+            for (int i = 0; i < recordsPerFile; i++) {
+                // Время событий возрастает в пределах часа со случайным шагом
+                micros = Long.min(micros + (long) (random.nextDouble() * 2 * step), MICROS_IN_HOUR - 1);
+                writer.write(String.format("%02d:%02d.%06d", micros / 60_000_000L, micros / 1_000_000L % 60, micros % 1_000_000L));
+                writer.write('-');
+                writer.write(Long.toString(getDuration(random)));
+                writer.write(',');
+                String event = nextEvent(random);
+                writer.write(event);
+                writer.write(',');
+                writer.write(Integer.toString(random.nextInt(6)));
+                writer.write(',');
+                writer.write(getProperties(event, random));
+                writer.write("\r\n");
+            }
+            writer.flush();
+        }
+        return Files.size(file);
+    }
+
+    private int parseEventMix(String eventMixSpec) {
+        int total = 0;
+        for (String item : eventMixSpec.split(",")) {
+            String[] eventAndWeight = item.trim().split(":");
+            if (eventAndWeight.length != 2)
+                throw new IllegalArgumentException("Некорректный элемент смеси событий: " + item);
+            int weight = Integer.parseInt(eventAndWeight[1].trim());
+            if (weight <= 0)
+                continue;
+            eventMix.put(total, eventAndWeight[0].trim().toUpperCase());
+            total += weight;
+        }
+        if (total == 0)
+            throw new IllegalArgumentException("Пустая смесь событий: " + eventMixSpec);
+        return total;
+    }
+
+    private String nextEvent(Random random) {
+        return eventMix.floorEntry(random.nextInt(eventMixTotal)).getValue();
+    }
+
+    private static long getDuration(Random random) {
+        // Длительности распределены логарифмически: от микросекунд до десятков секунд
+        return (long) Math.pow(10, random.nextDouble() * 7.5);
+    }
+
+    private String getProperties(String event, Random random) {
+        StringJoiner properties = new StringJoiner(",");
+        properties.add("process=rphost");
+        String database = "base_" + random.nextInt(Integer.min(cardinality, 5));
+        properties.add("p:processName=" + database);
+        if (random.nextInt(20) == 0) {
+            // Повторяющийся ключ: парсер объединяет значения через запятую
+            properties.add("p:processName=" + database + "_copy");
+        }
+        properties.add("OSThread=" + (1000 + random.nextInt(cardinality * 4)));
+        properties.add("t:clientID=" + random.nextInt(cardinality));
+        properties.add("t:applicationName=" + (random.nextBoolean() ? "1CV8C" : "BackgroundJob"));
+        properties.add("t:computerName=WS-" + random.nextInt(cardinality));
+        properties.add("t:connectID=" + random.nextInt(cardinality * 10));
+        properties.add("SessionID=" + random.nextInt(cardinality));
+        properties.add("Usr=" + quote("Пользователь " + random.nextInt(cardinality), random));
+        switch (event) {
+            case "CALL":
+                properties.add("Context=" + quote(getContext(random), random));
+                properties.add("Interface=" + new UUID(random.nextLong(), random.nextLong()));
+                properties.add("IName=IVResourceRemoteConnection");
+                properties.add("Method=0");
+                properties.add("CallID=" + random.nextInt(1_000_000));
+                properties.add("MName=send");
+                properties.add("Memory=" + random.nextInt(10_000_000));
+                properties.add("MemoryPeak=" + random.nextInt(100_000_000));
+                properties.add("InBytes=" + random.nextInt(100_000));
+                properties.add("OutBytes=" + random.nextInt(100_000));
+                properties.add("CpuTime=" + random.nextInt(1_000_000));
+                break;
+            case "SCALL":
+                properties.add("ClientID=" + random.nextInt(cardinality));
+                properties.add("Interface=" + new UUID(random.nextLong(), random.nextLong()));
+                properties.add("IName=IClusterState");
+                properties.add("Method=" + random.nextInt(30));
+                properties.add("CallID=" + random.nextInt(1_000_000));
+                properties.add("MName=getState");
+                break;
+            case "DBMSSQL":
+            case "SDBL":
+                properties.add("DBMS=DBMSSQL");
+                properties.add("DataBase=" + quote("srv\\" + database, random));
+                properties.add("Trans=" + random.nextInt(2));
+                properties.add("dbpid=" + random.nextInt(200));
+                properties.add((event.equals("SDBL") ? "Sdbl=" : "Sql=") + quote(getSql(random), random));
+                properties.add("Rows=" + random.nextInt(1000));
+                properties.add("RowsAffected=" + (random.nextInt(3) - 1));
+                properties.add("Context=" + quote(getContext(random), random));
+                break;
+            case "TLOCK":
+                String table = TABLES[random.nextInt(TABLES.length)];
+                properties.add("Regions=" + table.substring(1) + ".DIMS");
+                properties.add("Locks=" + quote(table.substring(1) + ".DIMS Exclusive Fld" + random.nextInt(100) + "=" + random.nextInt(cardinality), random));
+                properties.add("WaitConnections=" + (random.nextInt(4) == 0 ? Integer.toString(random.nextInt(cardinality * 10)) : ""));
+                properties.add("Context=" + quote(getContext(random), random));
+                break;
+            case "EXCP":
+                UUID exception = new UUID(random.nextLong(), random.nextLong());
+                properties.add("Exception=" + exception);
+                properties.add("Descr=" + quote("src\\RemoteInterfaceImpl.cpp(" + random.nextInt(2000) + "):\n"
+                        + exception + ": " + ERRORS[random.nextInt(ERRORS.length)], random));
+                break;
+            default:
+                properties.add("Txt=" + quote("Событие " + event + ", вариант " + random.nextInt(cardinality), random));
+                break;
+        }
+        return properties.toString();
+    }
+
+    private String getContext(Random random) {
+        // Многострочный стек вызовов встроенного языка
+        StringBuilder context = new StringBuilder();
+        int depth = 1 + random.nextInt(4);
+        for (int i = 0; i < depth; i++) {
+            if (i > 0)
+                context.append('\n');
+            context.append(MODULES[random.nextInt(MODULES.length)]).append(" : ").append(1 + random.nextInt(3000))
+                    .append(" : Результат = Запрос.Выполнить();");
+        }
+        return context.toString();
+    }
+
+    private String getSql(Random random) {
+        String table = TABLES[random.nextInt(TABLES.length)];
+        return "SELECT\nT1._IDRRef,\nT1._Version,\nT1._Description\nFROM dbo." + table + " T1\n"
+                + "WHERE ((T1._Fld" + random.nextInt(2000) + " = @P1)) AND (T1._Description LIKE @P2)\n"
+                + "p_0: 0x" + Long.toHexString(random.nextLong()) + "\n"
+                + "p_1: N'Наименование, \"" + random.nextInt(cardinality) + "\"%'\n";
+    }
+
+    /**
+     * Значение со служебными символами 1С записывает в одинарных или двойных кавычках, удваивая такие же кавычки внутри
+     */
+    private static String quote(String value, Random random) {
+        if (value.indexOf(',') < 0 && value.indexOf('\n') < 0 && value.indexOf('\'') < 0 && value.indexOf('"') < 0)
+            return value;
+        char quote = random.nextBoolean() ? '\'' : '"';
+        String doubled = String.valueOf(quote) + quote;
+        return quote + value.replace(String.valueOf(quote), doubled) + quote;
+    }
+}
@@ -0,0 +1,32 @@
+package com.clickhouse1ctj.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Подготовка таблицы или добавление колонок (ClickHouseDDLer.prepareTableSync/updateColumnsInTableSync).
+ * Загружаемый файл определяется по событию вставки пакета в том же потоке
+ */
+@Name("com.clickhouse1ctj.Ddl")
+@Label("DDL")
+@Category({"ClickHouse1CTechJournal", "ClickHouse"})
+@Description("Table preparation or column update, including waiting for the table lock")
+@StackTrace(false)
+public class DdlEvent extends Event {
+    @Label("Operation")
+    public String operation;
+
+    @Label("Node")
+    public String node;
+
+    @Label("Table")
+    public String table;
+
+    @Label("Lock Wait")
+    @Description("Time spent waiting for inserts into the table to finish")
+    @Timespan(Timespan.NANOSECONDS)
+    public long lockWait;
+
+    @Label("Columns")
+    @Description("Number of columns requested for the table")
+    public int columns;
+}
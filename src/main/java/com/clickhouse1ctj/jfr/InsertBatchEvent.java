@@ -0,0 +1,25 @@
+package com.clickhouse1ctj.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Выполнение пакетной вставки в таблицу (executeBatch), без заполнения пакета и ожидания DDL
+ */
+@Name("com.clickhouse1ctj.InsertBatch")
+@Label("Insert Batch")
+@Category({"ClickHouse1CTechJournal", "ClickHouse"})
+@Description("Execution of a batch insert into a journal table")
+@StackTrace(false)
+public class InsertBatchEvent extends Event {
+    @Label("File")
+    public String file;
+
+    @Label("Node")
+    public String node;
+
+    @Label("Table")
+    public String table;
+
+    @Label("Batch Size")
+    public int batchSize;
+}
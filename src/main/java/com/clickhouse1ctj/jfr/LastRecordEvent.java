@@ -0,0 +1,25 @@
+package com.clickhouse1ctj.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Поиск последней загруженной записи файла в таблицах логов (ClickHouseInserter.getLastRecord)
+ */
+@Name("com.clickhouse1ctj.LastRecord")
+@Label("Last Record Lookup")
+@Category({"ClickHouse1CTechJournal", "ClickHouse"})
+@Description("Lookup of the last loaded record of a file in journal tables")
+@StackTrace(false)
+public class LastRecordEvent extends Event {
+    @Label("File")
+    public String file;
+
+    @Label("Node")
+    public String node;
+
+    @Label("Table")
+    public String table;
+
+    @Label("Found")
+    public boolean found;
+}
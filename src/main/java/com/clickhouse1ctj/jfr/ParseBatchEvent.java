@@ -0,0 +1,27 @@
+package com.clickhouse1ctj.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Чтение и разбор очередной порции записей файла ТЖ (TechJournalParser.getNextRecords)
+ */
+@Name("com.clickhouse1ctj.ParseBatch")
+@Label("Parse Batch")
+@Category({"ClickHouse1CTechJournal", "Parser"})
+@Description("Reading and parsing of the next batch of technological journal records")
+@StackTrace(false)
+public class ParseBatchEvent extends Event {
+    @Label("File")
+    public String file;
+
+    @Label("Batch Size")
+    @Description("Requested number of records")
+    public int batchSize;
+
+    @Label("Records")
+    public int records;
+
+    @Label("Bytes Read")
+    @DataAmount
+    public long bytes;
+}
@@ -0,0 +1,25 @@
+package com.clickhouse1ctj.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Разбор одной записи ТЖ (LogRecord и LogRecordParser). Событий очень много, поэтому по умолчанию
+ * сохраняются только записи, разбор которых занял больше миллисекунды
+ */
+@Name("com.clickhouse1ctj.ParseRecord")
+@Label("Parse Record")
+@Category({"ClickHouse1CTechJournal", "Parser"})
+@Description("Parsing of a single technological journal record")
+@StackTrace(false)
+@Threshold("1 ms")
+public class ParseRecordEvent extends Event {
+    @Label("File")
+    public String file;
+
+    @Label("Line Number")
+    public int lineNumber;
+
+    @Label("Record Length")
+    @Description("Length of the raw record in characters")
+    public int length;
+}
@@ -2,6 +2,12 @@ package com.clickhouse1ctj.loader;
 
 import com.clickhouse1ctj.config.AppConfig;
 import com.clickhouse1ctj.config.ClickHouseConnectConfig;
+import com.clickhouse1ctj.jfr.DdlEvent;
+import com.clickhouse1ctj.metrics.LoaderMetrics;
+import com.clickhouse1ctj.parser.PropertyProjection;
+import com.clickhouse1ctj.parser.RecordSampler;
+import com.clickhouse1ctj.parser.SqlNormalizer;
+import com.clickhouse1ctj.parser.TechJournalParser;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,18 +18,26 @@ import ru.yandex.clickhouse.settings.ClickHouseQueryParam;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
-/* Для всех операций по созданию таблиц, колонок и пр. DDL используется данный класс */
+/* Для всех операций по созданию таблиц, колонок и пр. DDL используется данный класс.
+ * На каждый узел ClickHouse (см. clickhouse.shards) создается свой экземпляр, экземпляр chDDLSync
+ * относится к первому узлу, на котором хранятся общие служебные таблицы */
 public class ClickHouseDDLer {
     private static final Logger logger = LoggerFactory.getLogger(ClickHouseDDLer.class);
     protected static final ClickHouseDDLer chDDLSync = new ClickHouseDDLer();
+    private static final Map<String, ClickHouseDDLer> ddlersByNode = new LinkedHashMap<>();
+    // Число последних вставок в таблицу логов, среди которых ClickHouse ищет повтор по токену дедупликации
+    static final int DEDUPLICATION_WINDOW = 1000;
     private static ClickHouseConnectConfig chConfig;
 
     protected final Map<ClickHouseQueryParam, String> chAdditionalDBParams = new EnumMap<>(ClickHouseQueryParam.class);
+    private String node;
     private ClickHouseDataSource dataSource;
     private ClickHouseConnection connection;
     // Будем хранить кешированный набор колонок по каждой таблице
-    private final Map<String, SortedSet<String>> fieldsInTables = new HashMap<>();
+    private final Map<String, SortedSet<String>> fieldsInTables = new ConcurrentHashMap<>();
+    private Boolean deduplicationSupported; // версия сервера поддерживает insert_deduplication_token (null - не проверялась)
 
     private ClickHouseDDLer() {}
 
@@ -31,18 +45,44 @@ public class ClickHouseDDLer {
         // Используем синглтон для синхронных операций по изменению схемы базы данных
         synchronized (chDDLSync) {
             chConfig = appConfig.clickhouse;
-            String url = "jdbc:clickhouse://" + chConfig.getHost()
-                    + ":" + chConfig.getPort()
-                    + "/" + chConfig.getDatabase();
-            chDDLSync.dataSource = new ClickHouseDataSource(url);
-            chDDLSync.chAdditionalDBParams.put(ClickHouseQueryParam.DATABASE, chConfig.getDatabase());
+            List<String> nodes = chConfig.getNodes();
+            ddlersByNode.clear();
+            for (String chNode : nodes) {
+                ClickHouseDDLer ddler = ddlersByNode.isEmpty() ? chDDLSync : new ClickHouseDDLer();
+                ddler.node = chNode;
+                ddler.dataSource = new ClickHouseDataSource(chConfig.getJdbcUrl(chNode, chConfig.getDatabase()));
+                ddler.chAdditionalDBParams.put(ClickHouseQueryParam.DATABASE, chConfig.getDatabase());
+                ddlersByNode.put(chNode, ddler);
+            }
+            PropertyValuesDictionary.setNodes(nodes);
         }
     }
 
+    /**
+     * Список узлов ClickHouse, первый узел является основным
+     */
+    public static List<String> getNodes() {
+        synchronized (chDDLSync) {
+            return new ArrayList<>(ddlersByNode.keySet());
+        }
+    }
+
+    public static String getDefaultNode() {
+        return chDDLSync.node;
+    }
+
     public static boolean checkDB(boolean createDB) {
-        String url = "jdbc:clickhouse://" + chConfig.getHost()
-                + ":" + chConfig.getPort()
-                + "/system";
+        // Достаточно, чтобы был доступен хотя бы один узел: на недоступные узлы запись не пойдет
+        // до их восстановления (см. переключение узлов в ClickHouseInserter)
+        boolean available = false;
+        for (String chNode : getNodes()) {
+            available |= checkDB(chNode, createDB);
+        }
+        return available;
+    }
+
+    private static boolean checkDB(String chNode, boolean createDB) {
+        String url = chConfig.getJdbcUrl(chNode, "system");
         String sql = "SHOW DATABASES LIKE '" + chConfig.getDatabase() + "'";
         ClickHouseDataSource tmpDataSource = new ClickHouseDataSource(url);
         try (ClickHouseConnection conn = tmpDataSource.getConnection(chConfig.getUser(), chConfig.getPass());
@@ -52,7 +92,7 @@ public class ClickHouseDDLer {
                 if (createDB) {
                     String sqlCreateDB = "CREATE DATABASE " + chConfig.getDatabase();
                     stmt.executeQuery(sqlCreateDB);
-                    logger.info("Создана новая база данных {}", chConfig.getDatabase());
+                    logger.info("Создана новая база данных {} на узле {}", chConfig.getDatabase(), chNode);
                     return true;
                 } else
                     throw new SQLException("Нет указанной базы данных " + chConfig.getDatabase());
@@ -66,50 +106,237 @@ public class ClickHouseDDLer {
     }
 
     public static void prepareTableSync(String tablename) throws SQLException {
-        synchronized (TableLock.getTableLock(tablename)) {
-            TableLock.getTableLock(tablename).check();
-            logger.debug("Подготовка таблицы {} для загрузки", tablename);
-            SortedSet<String> setExistFields = getFieldsInTable(tablename);
-            if (chDDLSync.tableExist(tablename)) {
+        prepareTableSync(getDefaultNode(), tablename, chConfig.getOrderBy(), chConfig.getPartition(), Collections.emptySet());
+    }
+
+    /**
+     * Подготовка таблицы на указанном узле с собственными первичным ключом и секционированием (например, таблицы
+     * группы событий). Если таблица создается, то в нее сразу будут добавлены колонки из набора initialFields.
+     */
+    public static void prepareTableSync(String chNode, String tablename, String orderBy, String partition,
+                                        Set<String> initialFields) throws SQLException {
+        ClickHouseDDLer ddler = getDDLer(chNode);
+        TableLock tableLock = TableLock.getTableLock(chNode, tablename);
+        DdlEvent event = new DdlEvent();
+        event.begin();
+        long waitStart = System.nanoTime();
+        synchronized (tableLock) {
+            tableLock.check();
+            long lockWait = System.nanoTime() - waitStart;
+            LoaderMetrics.ddlWait.observe(lockWait / 1e9);
+            logger.debug("Подготовка таблицы {} на узле {} для загрузки", tablename, chNode);
+            SortedSet<String> setExistFields = ddler.getFieldsInTable(tablename);
+            if (ddler.tableExist(tablename)) {
                 logger.debug("Таблица {} существует", tablename);
                 // Если таблица существует, то получим ее описание, обновим список колонок, при необходимости добавим отсутствующие
-                chDDLSync.updateExistingTableBeforeLoading(tablename, setExistFields);
+                ddler.updateExistingTableBeforeLoading(tablename, setExistFields);
             } else {
                 logger.debug("Таблица {} не существует. Будет создана новая", tablename);
                 // Иначе создаем новую таблицу
-                chDDLSync.createTable(tablename, setExistFields);
+                setExistFields.addAll(initialFields);
+                ddler.createTable(tablename, setExistFields, orderBy, partition);
             }
+            commitDdlEvent(event, "prepareTable", chNode, tablename, lockWait, setExistFields.size());
         }
     }
 
     public static void updateColumnsInTableSync(String tablename, SortedSet<String> setParsedFields) throws SQLException {
-        synchronized (TableLock.getTableLock(tablename)) {
-            TableLock.getTableLock(tablename).check();
-            SortedSet<String> setExistFields = getFieldsInTable(tablename); // Закешированные поля таблицы
+        updateColumnsInTableSync(getDefaultNode(), tablename, setParsedFields);
+    }
+
+    public static void updateColumnsInTableSync(String chNode, String tablename, SortedSet<String> setParsedFields) throws SQLException {
+        ClickHouseDDLer ddler = getDDLer(chNode);
+        TableLock tableLock = TableLock.getTableLock(chNode, tablename);
+        DdlEvent event = new DdlEvent();
+        event.begin();
+        long waitStart = System.nanoTime();
+        synchronized (tableLock) {
+            tableLock.check();
+            long lockWait = System.nanoTime() - waitStart;
+            LoaderMetrics.ddlWait.observe(lockWait / 1e9);
+            SortedSet<String> setExistFields = ddler.getFieldsInTable(tablename); // Закешированные поля таблицы
             Set<String> setNewColumns = new HashSet<>(setParsedFields); // Поля полученные при парсинге лога (копируем, так как будем изменять)
             logger.debug("Обновление колонок таблицы {} при загрузке очередного пакета. Состав известных колонок {}. " +
                     "Состав колонок из пакета {}", tablename, setExistFields, setNewColumns);
             setNewColumns.removeAll(setExistFields); // Поля, которые отсутствуют в таблице
-            chDDLSync.addColumns(tablename, setNewColumns); // Добавим новые колонки
+            ddler.addColumns(tablename, setNewColumns); // Добавим новые колонки
             setExistFields.addAll(setNewColumns); // Сохраним новые колонки в коллекции
+            commitDdlEvent(event, "updateColumns", chNode, tablename, lockWait, setParsedFields.size());
         }
     }
 
-    public static void close() {
+    private static void commitDdlEvent(DdlEvent event, String operation, String chNode, String tablename,
+                                       long lockWait, int columns) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.node = chNode;
+            event.table = tablename;
+            event.lockWait = lockWait;
+            event.columns = columns;
+            event.commit();
+        }
+    }
+
+    private static ClickHouseDDLer getDDLer(String chNode) throws SQLException {
+        synchronized (chDDLSync) {
+            ClickHouseDDLer ddler = ddlersByNode.get(chNode);
+            if (ddler == null)
+                throw new SQLException(String.format("Узел ClickHouse %s не описан в настройках", chNode));
+            return ddler;
+        }
+    }
+
+    /**
+     * Создает (если ее еще нет) таблицу поминутных агрегатов. Таблица использует движок AggregatingMergeTree:
+     * при слиянии кусков строки с одинаковым ключом сворачиваются, счетчики и суммы складываются,
+     * максимумы выбираются, а гистограммы длительностей объединяются через sumMap.
+     */
+    public static void prepareRollupTableSync(String tablename) throws SQLException {
+        prepareServiceTableSync(getDefaultNode(), tablename, String.format("CREATE TABLE IF NOT EXISTS %s (%n", tablename) +
+                "minute DateTime, " +
+                "event String, " +
+                "source String, " +
+                "process_name String, " +
+                "count SimpleAggregateFunction(sum, UInt64), " +
+                "duration_sum SimpleAggregateFunction(sum, UInt64), " +
+                "duration_max SimpleAggregateFunction(max, UInt64), " +
+                // Гистограмма длительностей: номера логарифмических корзин и количество попаданий в каждую
+                "duration_hist SimpleAggregateFunction(sumMap, Tuple(Array(UInt16), Array(UInt64)))" +
+                ") ENGINE = AggregatingMergeTree " +
+                "ORDER BY (event, source, process_name, minute) " +
+                "PARTITION BY toYYYYMM(minute)");
+    }
+
+    /**
+     * Создает (если ее еще нет) на указанном узле таблицу состояния загрузки файлов. Движок ReplacingMergeTree
+     * оставляет по каждому файлу только последнюю версию состояния (по loaded_at)
+     */
+    public static void prepareLoadStateTableSync(String chNode, String tablename) throws SQLException {
+        prepareServiceTableSync(chNode, tablename, String.format("CREATE TABLE IF NOT EXISTS %s (%n", tablename) +
+                "parent String, " +
+                "filename String, " +
+                "path_to_file String, " +
+                "last_line UInt32, " + // последняя прочитанная строка файла
+                "byte_offset UInt64, " + // смещение начала первой незагруженной записи
+                "fingerprint String, " + // ключевые поля последней загруженной записи
+                "head_crc String, " + // длина и контрольная сумма начала файла: по ним видна перезапись файла
+                "loaded_at DateTime64(3)" +
+                ") ENGINE = ReplacingMergeTree(loaded_at) " +
+                "ORDER BY (parent, filename)",
+                // Таблица, созданная предыдущей версией, дополняется новыми колонками
+                String.format("ALTER TABLE %s ADD COLUMN IF NOT EXISTS head_crc String DEFAULT ''", tablename));
+    }
+
+    /**
+     * Создает (если ее еще нет) таблицу журнала производительности загрузчика: времена этапов по пакетам и файлам
+     */
+    public static void prepareLoaderStatsTableSync(String tablename) throws SQLException {
+        prepareServiceTableSync(getDefaultNode(), tablename, String.format("CREATE TABLE IF NOT EXISTS %s (%n", tablename) +
+                "event_time DateTime64(3), " + // момент фиксации пакета или окончания загрузки файла
+                "kind String, " + // batch - пакет, file - файл целиком
+                "host String, " +
+                "node String, " +
+                "tablename String, " +
+                "parent String, " +
+                "filename String, " +
+                "records UInt32, " +
+                "bytes UInt64, " +
+                "read_ms Float64, " +
+                "parse_ms Float64, " +
+                "ddl_wait_ms Float64, " +
+                "insert_ms Float64, " +
+                "total_ms Float64, " +
+                "lag_min_sec Float64, " + // отставание самой новой записи от момента фиксации
+                "lag_max_sec Float64" + // отставание самой старой записи от момента фиксации
+                ") ENGINE = MergeTree " +
+                "ORDER BY (kind, event_time) " +
+                "PARTITION BY toYYYYMM(event_time)");
+    }
+
+    /**
+     * Создает (если ее еще нет) на указанном узле таблицу словаря значений свойств. Движок ReplacingMergeTree схлопывает тексты,
+     * записанные повторно (другим потоком или после вытеснения хеша из кэша)
+     */
+    public static void preparePropertyValuesTableSync(String chNode, String tablename) throws SQLException {
+        prepareServiceTableSync(chNode, tablename, String.format("CREATE TABLE IF NOT EXISTS %s (%n", tablename) +
+                "hash UInt64, " + // sipHash64(value), совпадает с колонкой [свойство]_hash таблицы событий
+                "property String, " +
+                "value String" +
+                ") ENGINE = ReplacingMergeTree " +
+                "ORDER BY hash");
+    }
+
+    private static void prepareServiceTableSync(String chNode, String tablename, String createQuery,
+                                                String... alterQueries) throws SQLException {
+        ClickHouseDDLer ddler = getDDLer(chNode);
+        synchronized (TableLock.getTableLock(chNode, tablename)) {
+            if (ddler.fieldsInTables.containsKey(tablename))
+                return;
+            ddler.execQuery(createQuery);
+            for (String alterQuery : alterQueries)
+                ddler.execQuery(alterQuery);
+            logger.debug("Подготовлена служебная таблица {} на узле {}", tablename, chNode);
+            ddler.getFieldsInTable(tablename);
+        }
+    }
+
+    /**
+     * Поддерживает ли узел токен дедупликации вставок (insert_deduplication_token, ClickHouse 22.2 и новее).
+     * Версия сервера запрашивается один раз
+     */
+    static boolean isDeduplicationSupported(String chNode) throws SQLException {
+        ClickHouseDDLer ddler = getDDLer(chNode);
+        synchronized (ddler) {
+            if (ddler.deduplicationSupported == null) {
+                try (ClickHouseStatement stmt = ddler.getConnection().createStatement();
+                     ResultSet rs = stmt.executeQuery("SELECT version()", ddler.chAdditionalDBParams)) {
+                    ddler.deduplicationSupported = rs.next() && isDeduplicationVersion(rs.getString(1));
+                }
+                if (!ddler.deduplicationSupported)
+                    logger.warn("Версия ClickHouse на узле {} не поддерживает insert_deduplication_token: пакет, вставленный " +
+                            "перед аварийным завершением загрузки, может быть вставлен повторно", chNode);
+            }
+            return ddler.deduplicationSupported;
+        }
+    }
+
+    static boolean isDeduplicationVersion(String version) {
+        String[] parts = version.split("\\.");
         try {
-            chDDLSync.closeConnection();
-        } catch (SQLException e) {
-            logger.error("Не удалась закрыть соединение ClickHouseDDL: {}", e.getMessage());
-            e.printStackTrace();
+            int major = Integer.parseInt(parts[0]);
+            int minor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+            return major > 22 || major == 22 && minor >= 2;
+        } catch (NumberFormatException e) {
+            return false;
         }
     }
 
-    private static SortedSet<String> getFieldsInTable(String tablename) {
-        SortedSet<String> setFields = chDDLSync.fieldsInTables.get(tablename);
+    static ClickHouseConnection getNodeConnection(String chNode) throws SQLException {
+        return getDDLer(chNode).getConnection();
+    }
+
+    static Map<ClickHouseQueryParam, String> getNodeDBParams(String chNode) throws SQLException {
+        return getDDLer(chNode).chAdditionalDBParams;
+    }
+
+    public static void close() {
+        for (String chNode : getNodes()) {
+            try {
+                getDDLer(chNode).closeConnection();
+            } catch (SQLException e) {
+                logger.error("Не удалась закрыть соединение ClickHouseDDL с узлом {}: {}", chNode, e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private SortedSet<String> getFieldsInTable(String tablename) {
+        SortedSet<String> setFields = fieldsInTables.get(tablename);
         if (setFields == null) {
             logger.debug("Для таблицы {} ранее не был закеширован набор полей", tablename);
             setFields = new TreeSet<>();
-            chDDLSync.fieldsInTables.put(tablename, setFields);
+            fieldsInTables.put(tablename, setFields);
         } else {
             logger.debug("Для таблицы {} получен закешированный набор полей {}", tablename, setFields);
         }
@@ -146,7 +373,7 @@ public class ClickHouseDDLer {
         // Соберем итоговый набор колонок для добавлений
         SortedMap<String, String> defaultColumns = getDefaultColumns();
         SortedMap<String, String> missingColumns = new TreeMap<>();
-        missingColumnsNames.forEach(colName -> missingColumns.put(colName, defaultColumns.getOrDefault(colName, "String")));
+        missingColumnsNames.forEach(colName -> missingColumns.put(colName, getColumnType(defaultColumns, colName)));
         // Добавим колонки к таблице
         addColumns(tablename, missingColumns);
         // Запомним все добавленные колонки
@@ -186,7 +413,7 @@ public class ClickHouseDDLer {
 
         StringJoiner joiner = new StringJoiner(", ");
         for (String newColumn : newColumns) {
-            addColumn(tablename, newColumn, "String");
+            addColumn(tablename, newColumn, getColumnType(getDefaultColumns(), newColumn));
             joiner.add(newColumn);
         }
         logger.info("В таблицу {} добавлены колонки {}", tablename, joiner);
@@ -198,7 +425,7 @@ public class ClickHouseDDLer {
         execQuery(query);
     }
 
-    private void createTable(String tablename, Set<String> setFields) throws SQLException {
+    private void createTable(String tablename, Set<String> setFields, String orderBy, String partition) throws SQLException {
         StringBuilder query = new StringBuilder();
         query.append(String.format("CREATE TABLE IF NOT EXISTS %s (%n", tablename));
         // Добавим все колонки по умолчанию
@@ -207,7 +434,7 @@ public class ClickHouseDDLer {
         setFields.addAll(defaultColumns.keySet());
         // Получим список отсутствующих колонок для таблицы
         SortedMap<String, String> missingColumns = new TreeMap<>();
-        setFields.forEach(colName -> missingColumns.put(colName, defaultColumns.getOrDefault(colName, "String")));
+        setFields.forEach(colName -> missingColumns.put(colName, getColumnType(defaultColumns, colName)));
         // Соберем строку с описанием колонок для SQL запроса
         StringJoiner columnJoiner = new StringJoiner(",\n");
         missingColumns.forEach((k, v) -> columnJoiner.add(k + " " + v));
@@ -216,9 +443,13 @@ public class ClickHouseDDLer {
         // Укажем движок таблицы
         query.append(String.format(") ENGINE = %s ", chConfig.getEngine()));
         // Сортировка по отметке времени
-        query.append(String.format("ORDER BY (%s) ", chConfig.getOrderBy()));
+        query.append(String.format("ORDER BY (%s) ", orderBy));
         // Секционирование таблицы по ...
-        query.append(String.format("PARTITION BY (%s)", chConfig.getPartition()));
+        query.append(String.format("PARTITION BY (%s)", partition));
+        // Повторная вставка пакета с тем же токеном дедупликации (см. ClickHouseInserter) будет пропущена сервером.
+        // Для нереплицируемых таблиц окно дедупликации по умолчанию отключено
+        if (chConfig.getEngine().contains("MergeTree") && isDeduplicationSupported(node))
+            query.append(String.format(" SETTINGS non_replicated_deduplication_window = %d", DEDUPLICATION_WINDOW));
         execQuery(query.toString());
         logger.info("Создана таблица {}", tablename);
         logger.debug("SQL запрос на создание таблицы {}", query);
@@ -227,12 +458,17 @@ public class ClickHouseDDLer {
     protected void execQuery(String query) throws SQLException {
         try (ClickHouseStatement stmt = getConnection().createStatement()) {
             stmt.executeQuery(query, chAdditionalDBParams);
+            LoaderMetrics.ddlStatements.inc();
         } catch (SQLException e) {
             throw new SQLException(String.format("Ошибка при выполнении запроса: %s", query), e);
         }
     }
 
     protected ClickHouseConnection getConnection() throws SQLException {
+        if (dataSource == null) {
+            // Например, парсинг без загрузки (бенчмарки): соответствия событий и свойств останутся только в памяти
+            throw new SQLException("Подключение к ClickHouse не инициализировано");
+        }
         if (connection == null || connection.isClosed()) {
             connection = dataSource.getConnection(chConfig.getUser(), chConfig.getPass());
         }
@@ -244,6 +480,19 @@ public class ClickHouseDDLer {
             connection.close();
     }
 
+    /**
+     * Тип колонки: для служебных колонок - из getDefaultColumns(), для хешей обрезанных свойств и записей - UInt64, иначе String
+     */
+    static String getColumnType(SortedMap<String, String> defaultColumns, String colName) {
+        if (PropertyProjection.isHashColumn(colName) || colName.equals(SqlNormalizer.FINGERPRINT_COLUMN)
+                || colName.equals(TechJournalParser.RECORD_SIZE_COLUMN))
+            return defaultColumns.getOrDefault(colName, "UInt64");
+        // Вес записи есть только у прореженных записей, у остальных записей он равен 1
+        if (colName.equals(RecordSampler.WEIGHT_COLUMN))
+            return defaultColumns.getOrDefault(colName, "Float64 DEFAULT 1");
+        return defaultColumns.getOrDefault(colName, "String");
+    }
+
     public static SortedMap<String, String> getDefaultColumns() {
         SortedMap<String, String> defaultColumns = new TreeMap<>();
         defaultColumns.put("filename", "String");
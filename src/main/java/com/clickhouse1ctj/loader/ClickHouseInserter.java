@@ -1,15 +1,26 @@
 package com.clickhouse1ctj.loader;
 
 import com.clickhouse1ctj.parser.LogRecord;
+import com.clickhouse1ctj.parser.PropertyProjection;
+import com.clickhouse1ctj.parser.RecordFilter;
+import com.clickhouse1ctj.parser.RecordFilterException;
+import com.clickhouse1ctj.parser.RecordSampler;
+import com.clickhouse1ctj.parser.SqlNormalizer;
 import com.clickhouse1ctj.parser.TechJournalParser;
 import com.clickhouse1ctj.config.AppConfig;
 import com.clickhouse1ctj.config.ClickHouseConnectConfig;
+import com.clickhouse1ctj.config.SamplingConfig;
+import com.clickhouse1ctj.jfr.InsertBatchEvent;
+import com.clickhouse1ctj.jfr.LastRecordEvent;
+import com.clickhouse1ctj.metrics.LoaderMetrics;
 import com.clickhouse1ctj.parser.TechJournalParserException;
 
 import ru.yandex.clickhouse.*;
 import ru.yandex.clickhouse.settings.ClickHouseQueryParam;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.ZoneId;
 import java.sql.*;
 import java.util.*;
 import org.slf4j.Logger;
@@ -20,120 +31,457 @@ public class ClickHouseInserter implements Runnable {
 
     // Параметры подключения к Clickhouse
     private final ClickHouseConnectConfig chConfig;
-    private final Queue<Path> logsPool;
+    private final LogsPool logsPool;
     private final int batchSize;
-    private final ClickHouseDataSource dataSource;
+    private final boolean rollupEnabled;
+    private final boolean loaderStatsEnabled;
     private final Map<ClickHouseQueryParam, String> chAdditionalDBParams = new EnumMap<>(ClickHouseQueryParam.class);
-    private ClickHouseConnection connection;
-    private int processedFiles; // счетчик обработанных файлов ТЖ
-    private int processedRecords; // счетчик обработанных записей ТЖ
+    private final EventTableRouter tableRouter;
+    private final ShardRouter shardRouter;
+    private final int shardRetries;
+    private final RecordFilter recordFilter; // фильтр записей при загрузке (null - загружаются все записи)
+    private final PropertyProjection projection; // проекция свойств записей (null - загружаются все свойства)
+    private final List<SamplingConfig> sampling; // правила прореживания записей (пусто - загружаются все записи)
+    private final int maxRecordSize; // наибольший размер текста записи в байтах UTF-8 (0 - без ограничения)
+    private final long batchMemoryLimit; // объем текстов записей пакета в байтах (0 - без ограничения)
+    private final SqlNormalizer sqlNormalizer; // нормализация текстов запросов СУБД (null - отключена)
+    private static SqlNormalizer sharedSqlNormalizer; // общий для потоков загрузки, чтобы кэш нормализации был один (читается без блокировки)
+    private final boolean fileSink; // записи пишутся в локальные файлы без подключения к ClickHouse
+    private final RecordSink sink;
+    // Источники данных и соединения по каждому узлу ClickHouse ("host:port")
+    private final Map<String, ClickHouseDataSource> dataSources = new HashMap<>();
+    private final Map<String, ClickHouseConnection> connections = new HashMap<>();
+    private volatile int processedFiles; // счетчик обработанных файлов ТЖ
+    private volatile int processedRecords; // счетчик обработанных записей ТЖ
+    private volatile boolean stopRequested; // остановка потока после вставки текущего пакета
+    private long ddlWaitNanos; // время подготовки таблиц и ожидания DDL по текущему пакету
+    private long insertNanos; // время заполнения и выполнения пакетной вставки по текущему пакету
 
-    public ClickHouseInserter(AppConfig config, Queue<Path> logsPathsPool) {
+    public ClickHouseInserter(AppConfig config, LogsPool logsPathsPool) {
         chConfig = config.clickhouse;
         batchSize = config.getBatchSize();
+        fileSink = config.isFileSink();
+        rollupEnabled = config.isRollupEnabled() && !fileSink;
+        loaderStatsEnabled = config.isLoaderStatsEnabled() && !fileSink;
         logsPool = logsPathsPool;
 
-        String url = "jdbc:clickhouse://" + chConfig.getHost()
-                + ":" + chConfig.getPort()
-                + "/" + chConfig.getDatabase();
-        dataSource = new ClickHouseDataSource(url);
+        // При записи в файлы подключение к ClickHouse не инициализируется и список узлов пуст
+        List<String> nodes = ClickHouseDDLer.getNodes();
+        for (String node : nodes) {
+            dataSources.put(node, new ClickHouseDataSource(chConfig.getJdbcUrl(node, chConfig.getDatabase())));
+        }
         chAdditionalDBParams.put(ClickHouseQueryParam.DATABASE, chConfig.getDatabase());
+        tableRouter = new EventTableRouter(chConfig);
+        shardRouter = new ShardRouter(chConfig, nodes);
+        shardRetries = Integer.max(chConfig.getShardRetries(), 0);
+        try {
+            recordFilter = RecordFilter.compile(config.getFilter());
+        } catch (RecordFilterException e) {
+            // Выражение фильтра проверяется при запуске загрузки (см. TechJournalToClickHouse.checkFilter)
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        projection = PropertyProjection.compile(config.getProjections());
+        sqlNormalizer = config.isSqlFingerprintEnabled() ? getSqlNormalizer(config.getSqlNormalizerCacheSize()) : null;
+        PropertyValuesDictionary.setCacheSize(config.getDictionaryCacheSize());
+        sampling = config.getSampling();
+        maxRecordSize = (int) Long.min(Integer.max(config.getMaxRecordSizeKb(), 0) * 1024L, Integer.MAX_VALUE);
+        batchMemoryLimit = Integer.max(config.getBatchMemoryLimitMb(), 0) * 1024L * 1024L;
+        sink = fileSink ? new NativeFileSink(Path.of(config.getSinkDir())) : new JdbcSink();
 
         processedFiles = 0;
         processedRecords = 0;
     }
 
+    private static synchronized SqlNormalizer getSqlNormalizer(int cacheSize) {
+        if (sharedSqlNormalizer == null || sharedSqlNormalizer.getCacheSize() != cacheSize)
+            sharedSqlNormalizer = new SqlNormalizer(cacheSize);
+        return sharedSqlNormalizer;
+    }
+
     @Override
     public void run() {
         logger.info("Запущен поток #{}", Thread.currentThread().getName());
-        // Пока в пуле есть необработанные логи, выполняем их парсинг и загрузку
-        while (!logsPool.isEmpty()) {
-            Path logFile = logsPool.poll();
-            if (logFile == null) 
-                break; // Другой поток уже мог успеть взять последний файл в проработку
+        // Пока поиск не завершен или в пуле есть необработанные логи, выполняем их парсинг и загрузку
+        while (!stopRequested) {
+            Path logFile;
+            try {
+                logFile = logsPool.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (logFile == null)
+                break; // Поиск завершен, и другие потоки уже разобрали все файлы
 
             try {
                 logger.debug("Старт загрузки файла {}", logFile.toAbsolutePath());
                 // Создаем парсер лога и выполняем загрузку
-                load(new TechJournalParser(logFile));
+                TechJournalParser parser = new TechJournalParser(logFile);
+                parser.setFilter(recordFilter);
+                parser.setProjection(projection);
+                parser.setSqlNormalizer(sqlNormalizer);
+                // Счетчики прореживания по минутам ведутся для каждого файла отдельно
+                parser.setSampler(RecordSampler.create(sampling));
+                parser.setMemoryLimits(maxRecordSize, batchMemoryLimit);
+                load(parser);
                 logger.debug("Завершена загрузка файла {}", logFile.toAbsolutePath());
-            } catch (FileNotFoundException | TechJournalParserException e) {
+            } catch (IOException | TechJournalParserException e) {
                 logger.error("Не удалось загрузить файл ТЖ {}", logFile.toAbsolutePath());
                 e.printStackTrace();
             } catch (SQLException e) {
                 logger.error("Не удалось выполнить запрос к базе Clickhouse при загрузке из файла {}", logFile.toAbsolutePath());
                 e.printStackTrace();
+            } finally {
+                LoaderMetrics.fileLag.remove(logFile.toString());
+                // Состояние загрузки файла больше не нужно в памяти: в режиме демона пул живет все время работы
+                LoadStateStore.evict(logFile);
+                logsPool.done(logFile);
             }
         }
-        try {
-            closeConnection();
-        } catch (SQLException e) {
-            logger.error("Не удалось закрыть соединение после окончания загрузки");
-            e.printStackTrace();
-        }
+        sink.close();
         logger.info("Поток #{} закончил работу, обработав из {} файлов {} строк",
                 Thread.currentThread().getName(), processedFiles, processedRecords);
     }
 
-    public void load(TechJournalParser parser) throws SQLException {
+    public void load(TechJournalParser parser) throws SQLException, IOException {
         if (parser.isEmpty()) {
             logger.info("Файл пустой {}. Его загрузка не требуется", parser.pathToLog.toAbsolutePath());
+            FileStateStore.markLoaded(parser.pathToLog, 0, 0);
             return;
         }
         processedFiles++;
+        boolean completed = false;
+        try {
+            completed = fileSink ? loadToFiles(parser) : loadToClickHouse(parser);
+        } finally {
+            sink.finishFile(parser, completed);
+        }
+        // Информация по связи полей (свойств) и типов событий сохраняется фоновой задачей (см. PropertiesByEvents)
+        if (completed) {
+            FileStateStore.markLoaded(parser.pathToLog, parser.getResumeOffset(), parser.getResumeLineNumber());
+            LoaderMetrics.filesLoaded.inc();
+        }
+    }
+
+    /**
+     * Загрузка файла в ClickHouse. Возвращает false, если загрузка прервана остановкой приложения
+     */
+    private boolean loadToClickHouse(TechJournalParser parser) throws SQLException, IOException {
+        long fileStart = System.nanoTime();
+        ddlWaitNanos = 0;
 
-        // Определим имя и подготовим таблицу в БД
+        // Определим имя и подготовим таблицу в БД на узле, выбранном по ключу распределения
         String tablename = getTablename(parser);
-        logger.debug("Определена таблица {} для загрузки из файла {}", tablename, parser.pathToLog.toAbsolutePath());
-        ClickHouseDDLer.prepareTableSync(tablename);
+        ShardTarget target = new ShardTarget(shardRouter.getNodes(parser));
+        logger.debug("Определена таблица {} на узле {} для загрузки из файла {}",
+                tablename, target.getNode(), parser.pathToLog.toAbsolutePath());
+        // Начало файла сохраняется вместе с состоянием загрузки, по нему видна перезапись файла
+        String head = LoadStateStore.readHead(parser.pathToLog, parser.size);
         // Получим последнюю запись в логе (от которой будет продолжена загрузка)
-        LogRecord lastRecord = getLastRecord(tablename, parser.filename, parser.parentName);
+        LogRecord lastRecord = prepareTargetAndGetLastRecord(target, tablename, parser);
+        LoaderStats.Timings fileTimings = null;
+        if (loaderStatsEnabled) {
+            fileTimings = new LoaderStats.Timings("file", target.getNode(), tablename, parser.parentName, parser.filename);
+            fileTimings.ddlWaitNanos = ddlWaitNanos;
+        }
         if (lastRecord == null)
             logger.info("Ранее файл {}/{} не загружался", parser.parentName, parser.filename);
         else
             logger.info("Последняя загруженная запись: {}", lastRecord);
 
         while (!parser.isCompleted()) {
+            if (stopRequested) {
+                logger.info("Загрузка файла {} прервана остановкой приложения", parser.pathToLog.toAbsolutePath());
+                return false;
+            }
+            ddlWaitNanos = 0;
+            insertNanos = 0;
+            // Число одновременно разбирающих потоков ограничено (maxParseThreads), ожидание не входит во время пакета
+            ResourceGovernor.beginParse();
+            long batchStart = System.nanoTime();
+            long parseStart = parser.getParseNanos();
+            long positionStart = parser.getPosition();
             // Получаем распарсенный лог порциями по batchSize
-            List<LogRecord> batchToInsert = parser.getNextRecords(batchSize, lastRecord);
-            // Вставим пакет в таблицу
-            insertBatchOfRecords(tablename, batchToInsert, parser);
+            List<LogRecord> batchToInsert;
+            try {
+                batchToInsert = parser.getNextRecords(batchSize, lastRecord);
+            } finally {
+                ResourceGovernor.endParse();
+            }
+            long readAndParseNanos = System.nanoTime() - batchStart;
+            // Пропуск загруженных записей выполняется только в первом пакете (до найденной последней записи)
+            lastRecord = null;
+            // Разложим пакет по таблицам групп событий и вставим каждую часть в свою таблицу
+            SortedMap<String, List<LogRecord>> batchesByTable = tableRouter.split(parser.yearMonthDayHour, batchToInsert);
+            for (Map.Entry<String, List<LogRecord>> tableBatch : batchesByTable.entrySet()) {
+                SortedSet<String> batchFields = batchesByTable.size() == 1
+                        ? parser.getParsedFields()
+                        : getFieldsOfRecords(tableBatch.getValue());
+                insertWithFailover(target, tableBatch.getKey(), node -> {
+                    // Словарь дополняется на том же узле до вставки записей, которые на него ссылаются
+                    sink.insertDictionaryValues(node, tableBatch.getValue(), parser);
+                    prepareTable(target, tableBatch.getKey());
+                    sink.insert(node, tableBatch.getKey(), tableBatch.getValue(), batchFields, parser);
+                });
+            }
+            if (!batchToInsert.isEmpty()) {
+                // Запомним, до какого места загружен файл: состояние записывается на основной узел файла
+                LoadStateStore.save(this::getConnection, target.getHomeNode(), target.getNode(),
+                        parser, head, batchToInsert.get(batchToInsert.size() - 1));
+                updateFileLag(parser, batchToInsert.get(batchToInsert.size() - 1));
+                if (fileTimings != null) {
+                    LoaderStats.Timings batchTimings = new LoaderStats.Timings("batch", target.getNode(), tablename,
+                            parser.parentName, parser.filename);
+                    batchTimings.records = batchToInsert.size();
+                    batchTimings.bytes = parser.getPosition() - positionStart;
+                    batchTimings.parseNanos = parser.getParseNanos() - parseStart;
+                    batchTimings.readNanos = readAndParseNanos - batchTimings.parseNanos;
+                    batchTimings.ddlWaitNanos = ddlWaitNanos;
+                    batchTimings.insertNanos = insertNanos;
+                    batchTimings.committed(batchToInsert.get(0).getTimestamp(),
+                            batchToInsert.get(batchToInsert.size() - 1).getTimestamp());
+                    batchTimings.finish(batchStart);
+                    fileTimings.add(batchTimings);
+                    LoaderStats.add(batchTimings);
+                }
+            }
+            processedRecords += batchToInsert.size();
+            if (rollupEnabled)
+                MinuteRollup.flushIfOversized(chConfig.getTablePostfix());
+        }
+        if (fileTimings != null) {
+            fileTimings.finish(fileStart);
+            LoaderStats.add(fileTimings);
+        }
+        return true;
+    }
+
+    /**
+     * Запись файла в локальные файлы (sink: native) без обращения к ClickHouse. Позиция, с которой продолжается
+     * чтение измененного файла, берется из состояния файлов в stateDir (режим демона), а не из таблицы состояния
+     * загрузки. Возвращает false, если запись прервана остановкой приложения
+     */
+    private boolean loadToFiles(TechJournalParser parser) throws SQLException, IOException {
+        FileStateStore.FileState state = FileStateStore.get(parser.pathToLog);
+        if (state != null && state.getLineNumber() > 0 && parser.resumeFrom(state.getByteOffset(), state.getLineNumber()))
+            logger.info("Файл {} будет записан начиная со строки {}", parser.pathToLog.toAbsolutePath(), state.getLineNumber());
+
+        int fileRecords = 0;
+        while (!parser.isCompleted()) {
+            if (stopRequested) {
+                logger.info("Запись файла {} прервана остановкой приложения", parser.pathToLog.toAbsolutePath());
+                return false;
+            }
+            List<LogRecord> batchToInsert;
+            ResourceGovernor.beginParse();
+            try {
+                batchToInsert = parser.getNextRecords(batchSize, null);
+            } finally {
+                ResourceGovernor.endParse();
+            }
+            sink.insertDictionaryValues(null, batchToInsert, parser);
+            SortedMap<String, List<LogRecord>> batchesByTable = tableRouter.split(parser.yearMonthDayHour, batchToInsert);
+            for (Map.Entry<String, List<LogRecord>> tableBatch : batchesByTable.entrySet()) {
+                SortedSet<String> batchFields = batchesByTable.size() == 1
+                        ? parser.getParsedFields()
+                        : getFieldsOfRecords(tableBatch.getValue());
+                sink.insert(null, tableBatch.getKey(), tableBatch.getValue(), batchFields, parser);
+            }
             processedRecords += batchToInsert.size();
+            fileRecords += batchToInsert.size();
         }
+        logger.info("Записано {} записей из файла {}", fileRecords, parser.pathToLog.toAbsolutePath());
+        return true;
+    }
 
-        // Сохраним информацию по связи полей (свойств) и типов событий
-        PropertiesByEvents.save();
+    private static void updateFileLag(TechJournalParser parser, LogRecord lastInserted) {
+        // Отставание загрузки: насколько последняя загруженная запись старше последнего изменения файла
+        try {
+            long modifiedMillis = Files.getLastModifiedTime(parser.pathToLog).toMillis();
+            long recordMillis = lastInserted.getTimestamp().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            LoaderMetrics.fileLag.set(parser.pathToLog.toString(), Long.max(modifiedMillis - recordMillis, 0) / 1000.0);
+        } catch (IOException e) {
+            logger.debug("Не удалось получить дату изменения файла {}: {}", parser.pathToLog.toAbsolutePath(), e.getMessage());
+        }
     }
 
     private String getTablename(TechJournalParser parser) {
         // Имя таблицы, куда будет загружен лог, в формате "210615_Main_TJ"
-        return parser.yearMonthDayHour.substring(0, 6) + "_" + chConfig.getTablePostfix() + "_TJ";
+        return tableRouter.getMainTablename(parser.yearMonthDayHour);
+    }
+
+    private LogRecord prepareTargetAndGetLastRecord(ShardTarget target, String tablename, TechJournalParser parser)
+            throws SQLException, IOException {
+        // Состояние загрузки не ищется на узле переключения: там нет строк, загруженных на основной узел файла.
+        // Если основной узел недоступен, то загрузка файла откладывается до следующей итерации
+        LogRecord lastRecord = getLastRecordByLoadState(target.nodes, parser);
+        // Если основной узел файла недоступен, то переключаемся на следующий узел
+        while (true) {
+            try {
+                prepareTable(target, tablename);
+                return lastRecord;
+            } catch (SQLException e) {
+                if (!target.switchToNextNode(e))
+                    throw e;
+            }
+        }
+    }
+
+    private LogRecord getLastRecordByLoadState(List<String> nodes, TechJournalParser parser) throws SQLException, IOException {
+        LoadStateStore.LoadState state = LoadStateStore.get(nodes, parser);
+        if (state == null) {
+            // Состояние не сохранялось (например, файл загружался предыдущей версией) - ищем последнюю запись в таблицах
+            String daySource = tableRouter.getDaySource(chConfig.getDatabase(), parser.yearMonthDayHour);
+            LastRecordEvent event = new LastRecordEvent();
+            event.begin();
+            LogRecord lastRecord = getLastRecord(nodes, daySource, parser.filename, parser.parentName);
+            event.end();
+            if (event.shouldCommit()) {
+                event.file = parser.pathToLog.toString();
+                event.node = nodes.get(0);
+                event.table = daySource;
+                event.found = lastRecord != null;
+                event.commit();
+            }
+            return lastRecord;
+        }
+        if (!LoadStateStore.isSameHead(parser.pathToLog, state.head)) {
+            // Смещение относится к прежнему содержимому: проверка начала записи по смещению его не отличит
+            logger.info("Файл {} был перезаписан после предыдущей загрузки и будет загружен с начала",
+                    parser.pathToLog.toAbsolutePath());
+            return null;
+        }
+        if (parser.resumeFrom(state.byteOffset, state.lastLine + 1)) {
+            // Чтение продолжится сразу с первой незагруженной записи, пропускать записи не нужно
+            return null;
+        }
+        if (state.byteOffset > parser.size) {
+            logger.info("Файл {} стал меньше загруженной ранее части и будет загружен заново", parser.pathToLog.toAbsolutePath());
+            return null;
+        }
+        // Файл изменился, пропустим записи до последней загруженной
+        return state.getLastRecord();
+    }
+
+    /**
+     * Выполняет вставку на текущий узел файла с повторными попытками, а при недоступности узла переключается на следующий
+     */
+    private void insertWithFailover(ShardTarget target, String tablename, NodeInsert insert)
+            throws SQLException, IOException {
+        while (true) {
+            SQLException lastException = null;
+            for (int attempt = 0; attempt <= shardRetries; attempt++) {
+                try {
+                    insert.run(target.getNode());
+                    return;
+                } catch (SQLException e) {
+                    LoaderMetrics.insertErrors.inc();
+                    lastException = e;
+                    logger.warn("Не удалось вставить пакет в таблицу {} на узле {} (попытка {} из {}): {}",
+                            tablename, target.getNode(), attempt + 1, shardRetries + 1, e.getMessage());
+                    pauseBeforeRetry(attempt);
+                }
+            }
+            if (!target.switchToNextNode(lastException))
+                throw lastException;
+        }
+    }
+
+    private void prepareTable(ShardTarget target, String tablename) throws SQLException {
+        // Таблица готовится на узле один раз за загрузку файла
+        if (!target.preparedTables.add(target.getNode() + "/" + tablename))
+            return;
+        long prepareStart = System.nanoTime();
+        try {
+            prepareEventTable(target.getNode(), tablename);
+        } catch (SQLException e) {
+            target.preparedTables.remove(target.getNode() + "/" + tablename);
+            throw e;
+        } finally {
+            ddlWaitNanos += System.nanoTime() - prepareStart;
+        }
+    }
+
+    private void prepareEventTable(String node, String tablename) throws SQLException {
+        // Таблица группы событий создается сразу с колонками, которые ранее встречались у этих событий,
+        // и с колонками своего первичного ключа. Для общей таблицы набор пуст, а первичный ключ и секционирование
+        // берутся из общих настроек
+        ClickHouseDDLer.prepareTableSync(node, tablename,
+                tableRouter.getOrderBy(tablename),
+                tableRouter.getPartition(tablename),
+                tableRouter.getInitialFields(tablename));
+    }
+
+    private static void pauseBeforeRetry(int attempt) {
+        try {
+            Thread.sleep(100L * (attempt + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static SortedSet<String> getFieldsOfRecords(List<LogRecord> records) {
+        SortedSet<String> fields = new TreeSet<>();
+        for (LogRecord rec : records)
+            fields.addAll(rec.currentLogFields);
+        return fields;
     }
 
-    private ClickHouseConnection getConnection() throws SQLException {
+    private ClickHouseConnection getConnection(String node) throws SQLException {
+        ClickHouseConnection connection = connections.get(node);
         if (connection == null || connection.isClosed()) {
-            connection = dataSource.getConnection(chConfig.getUser(), chConfig.getPass());
+            connection = dataSources.get(node).getConnection(chConfig.getUser(), chConfig.getPass());
+            connections.put(node, connection);
         }
         return connection;
     }
 
+    private void closeConnections() {
+        for (Map.Entry<String, ClickHouseConnection> nodeConnection : connections.entrySet()) {
+            try {
+                if (!nodeConnection.getValue().isClosed())
+                    nodeConnection.getValue().close();
+            } catch (SQLException e) {
+                logger.error("Не удалось закрыть соединение с узлом {} после окончания загрузки", nodeConnection.getKey());
+                e.printStackTrace();
+            }
+        }
+        connections.clear();
+    }
 
-    private void closeConnection() throws SQLException {
-        if (connection != null && !connection.isClosed())
-            connection.close();
+    /**
+     * Последняя загруженная запись файла по всем его узлам (основной узел обязателен, узлы переключения - если доступны)
+     */
+    private LogRecord getLastRecord(List<String> nodes, String daySource, String filename, String parent) throws SQLException {
+        LogRecord lastRecord = null;
+        for (String node : nodes) {
+            LogRecord nodeRecord;
+            try {
+                nodeRecord = getLastRecord(node, daySource, filename, parent);
+            } catch (SQLException e) {
+                if (node.equals(nodes.get(0)))
+                    throw e;
+                logger.warn("Не удалось найти последнюю запись файла {}/{} на узле {}: {}", parent, filename, node, e.getMessage());
+                continue;
+            }
+            if (nodeRecord != null && (lastRecord == null || nodeRecord.getLineNumberInFile() > lastRecord.getLineNumberInFile()))
+                lastRecord = nodeRecord;
+        }
+        return lastRecord;
     }
 
-    private LogRecord getLastRecord(String tablename, String filename, String parent) throws SQLException {
+    private LogRecord getLastRecord(String node, String daySource, String filename, String parent) throws SQLException {
         // Последняя запись определяется максимальный номером строки в файле, а не отметкой времени, так как
-        // встречаются логи ТЖ, где предыдущие записи могут быть старше (на микросекунды) относительно следующих строк
+        // встречаются логи ТЖ, где предыдущие записи могут быть старше (на микросекунды) относительно следующих строк.
+        // Если настроены таблицы групп событий, то поиск выполняется сразу по всем таблицам дня через merge()
         String query = "SELECT TOP 1 datetime, duration, event, level, line_number FROM "
-                + tablename
+                + daySource
                 + " WHERE filename = "
                 + addSingleQuotes(filename)
                 + " AND parent = "
                 + addSingleQuotes(parent)
                 + " ORDER BY line_number DESC";
-        try (ClickHouseStatement stmt = getConnection().createStatement();
+        try (ClickHouseStatement stmt = getConnection(node).createStatement();
              ResultSet rs = stmt.executeQuery(query, chAdditionalDBParams)) {
             if (rs.next()) {
                 return new LogRecord(rs.getString(1),
@@ -147,45 +495,99 @@ public class ClickHouseInserter implements Runnable {
         }
     }
 
-    private void insertBatchOfRecords(String tablename, List<LogRecord> batchToInsert, TechJournalParser parser) throws SQLException {
+    private void insertBatchOfRecords(String node, String tablename, List<LogRecord> batchToInsert,
+                                      SortedSet<String> batchFields, TechJournalParser parser) throws SQLException {
         if (batchToInsert.isEmpty()) {
             logger.info("Нет записей в файле {} для вставки в таблицу {}", parser.pathToLog.toAbsolutePath(), tablename);
             return;
         }
 
         // Обновим набор колонок в таблице, если в логе появились новые поля
-        ClickHouseDDLer.updateColumnsInTableSync(tablename, parser.getParsedFields());
+        long ddlStart = System.nanoTime();
+        ClickHouseDDLer.updateColumnsInTableSync(node, tablename, batchFields);
+        ddlWaitNanos += System.nanoTime() - ddlStart;
 
         // Соберем SQL текст запроса на вставку записей
         StringJoiner joinerColumns = new StringJoiner(",");
         StringJoiner joinerParams = new StringJoiner(",");
         SortedSet<String> setRecordFields = new TreeSet<>(ClickHouseDDLer.getDefaultColumns().keySet());
-        setRecordFields.addAll(parser.getParsedFields());
+        setRecordFields.addAll(batchFields);
         for (String field: setRecordFields) {
             joinerColumns.add(field);
             joinerParams.add("?");
         }
-        String insertQuery = "INSERT INTO " + tablename + " (" + joinerColumns + ") VALUES (" + joinerParams + ")";
+        // Токен дедупликации: повторная вставка тех же строк файла (например, после аварийного завершения между вставкой
+        // пакета и записью состояния загрузки) будет пропущена сервером
+        String settings = ClickHouseDDLer.isDeduplicationSupported(node)
+                ? " SETTINGS insert_deduplication_token = " + quote(getDeduplicationToken(parser, batchToInsert))
+                : "";
+        String insertQuery = "INSERT INTO " + tablename + " (" + joinerColumns + ")" + settings
+                + " VALUES (" + joinerParams + ")";
 
         // Заполним пакетный запрос и выполним вставку
-        try (PreparedStatement stmt = getConnection().prepareStatement(insertQuery)) {
+        TableLock tableLock = TableLock.getTableLock(node, tablename);
+        boolean tableLockTaken = false;
+        long insertStart = System.nanoTime();
+        long lockWaitNanos = 0;
+        try (PreparedStatement stmt = getConnection(node).prepareStatement(insertQuery)) {
             for (LogRecord rec: batchToInsert) {
                 addRecordToBatch(parser, setRecordFields, stmt, rec);
             }
             // Выполним пакетную вставку значений в таблицу
-            TableLock.getTableLock(tablename).down(); // Используется семафор, чтобы исключить параллельные операции DDL
+            long waitStart = System.nanoTime();
+            tableLock.down(); // Используется семафор, чтобы исключить параллельные операции DDL
+            tableLockTaken = true;
+            lockWaitNanos = System.nanoTime() - waitStart;
+            LoaderMetrics.ddlWait.observe(lockWaitNanos / 1e9);
+            InsertBatchEvent event = new InsertBatchEvent();
+            event.begin();
+            long executeStart = System.nanoTime();
             ((ClickHousePreparedStatementImpl) stmt).executeBatch(chAdditionalDBParams);
+            LoaderMetrics.insertDuration.observeSince(executeStart);
+            event.end();
+            if (event.shouldCommit()) {
+                event.file = parser.pathToLog.toString();
+                event.node = node;
+                event.table = tablename;
+                event.batchSize = batchToInsert.size();
+                event.commit();
+            }
+            LoaderMetrics.batchesInserted.inc();
+            LoaderMetrics.recordsInserted.add(batchToInsert.size());
             logger.debug("Выполнена вставка в таблицу {}. Количество добавляемых строк: {}", tablename, batchToInsert.size());
         } catch (SQLException e) {
             logger.error("Не удалось выполнить запрос: {}. Количество добавляемых строк: {}", insertQuery, batchToInsert.size());
             throw new SQLException("Ошибка при пакетной вставка в таблицу", e);
         } finally {
-            TableLock.getTableLock(tablename).up(); // Возврат семафора
+            if (tableLockTaken)
+                tableLock.up(); // Возврат семафора (только если он был захвачен, иначе при повторе вставки DDL зависнет)
+            ddlWaitNanos += lockWaitNanos;
+            insertNanos += System.nanoTime() - insertStart - lockWaitNanos;
+        }
+        if (rollupEnabled) {
+            // Учтем вставленные записи в поминутных агрегатах
+            MinuteRollup.add(parser.source, batchToInsert);
         }
         logger.info("Загружено {} записей из файла {}", batchToInsert.size(), parser.pathToLog.toAbsolutePath());
     }
 
-    private void addRecordToBatch(TechJournalParser parser, SortedSet<String> setFields, PreparedStatement stmt, LogRecord rec) throws SQLException {
+    /**
+     * Токен дедупликации части пакета: файл, номера строк и отпечатки первой и последней записи. Токен не зависит
+     * от того, продолжена ли загрузка со смещения или с пропуском записей, а отпечатки отличают записи файла,
+     * перезаписанного под тем же именем
+     */
+    static String getDeduplicationToken(TechJournalParser parser, List<LogRecord> records) {
+        LogRecord first = records.get(0);
+        LogRecord last = records.get(records.size() - 1);
+        return parser.parentName + "/" + parser.filename + ":" + first.getLineNumberInFile() + "-"
+                + last.getLineNumberInFile() + ":" + records.size() + ":" + first.getFingerprint() + ":" + last.getFingerprint();
+    }
+
+    private static String quote(String value) {
+        return "'" + value.replace("\\", "\\\\").replace("'", "\\'") + "'";
+    }
+
+    static void addRecordToBatch(TechJournalParser parser, SortedSet<String> setFields, PreparedStatement stmt, LogRecord rec) throws SQLException {
         int i = 1;
         for (String field: setFields) {
             switch (field) {
@@ -231,6 +633,13 @@ public class ClickHouseInserter implements Runnable {
         stmt.addBatch();
     }
 
+    /**
+     * Запрашивает остановку потока: текущий пакет будет вставлен, после чего поток завершится
+     */
+    public void stop() {
+        stopRequested = true;
+    }
+
     public int getProcessedRecords() {
         return processedRecords;
     }
@@ -242,5 +651,71 @@ public class ClickHouseInserter implements Runnable {
     private static String addSingleQuotes(String filename) {
         return "'" + filename + "'";
     }
-}
 
+    /**
+     * Вставка пакетов в ClickHouse по JDBC (sink: clickhouse)
+     */
+    private final class JdbcSink implements RecordSink {
+        @Override
+        public void insert(String node, String tablename, List<LogRecord> records, SortedSet<String> fields,
+                           TechJournalParser parser) throws SQLException {
+            insertBatchOfRecords(node, tablename, records, fields, parser);
+        }
+
+        @Override
+        public void insertDictionaryValues(String node, List<LogRecord> records, TechJournalParser parser)
+                throws SQLException {
+            PropertyValuesDictionary.save(getConnection(node), chAdditionalDBParams, node, records);
+        }
+
+        @Override
+        public void finishFile(TechJournalParser parser, boolean completed) {
+            // Вставленные пакеты уже зафиксированы в ClickHouse
+        }
+
+        @Override
+        public void close() {
+            closeConnections();
+        }
+    }
+
+    /**
+     * Узлы ClickHouse для загрузки текущего файла: основной узел и узлы для переключения при сбоях
+     */
+    private static final class ShardTarget {
+        private final List<String> nodes;
+        private final Set<String> preparedTables = new HashSet<>();
+        private int current = 0;
+
+        ShardTarget(List<String> nodes) {
+            this.nodes = nodes;
+        }
+
+        String getNode() {
+            return nodes.get(current);
+        }
+
+        /**
+         * Основной узел файла: на нем хранится состояние загрузки, даже если пакеты вставляются на другой узел
+         */
+        String getHomeNode() {
+            return nodes.get(0);
+        }
+
+        boolean switchToNextNode(SQLException cause) {
+            if (current + 1 >= nodes.size())
+                return false;
+            logger.warn("Узел ClickHouse {} недоступен ({}). Загрузка файла переключена на узел {}",
+                    nodes.get(current), cause.getMessage(), nodes.get(current + 1));
+            current++;
+            return true;
+        }
+    }
+
+    /**
+     * Вставка части пакета на указанный узел (см. insertWithFailover)
+     */
+    private interface NodeInsert {
+        void run(String node) throws SQLException, IOException;
+    }
+}
@@ -0,0 +1,140 @@
+package com.clickhouse1ctj.loader;
+
+import com.clickhouse1ctj.config.AppConfigException;
+import com.clickhouse1ctj.config.ClickHouseConnectConfig;
+import com.clickhouse1ctj.config.EventTableConfig;
+import com.clickhouse1ctj.parser.LogRecord;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Определяет таблицу, в которую будет загружена запись ТЖ, по типу события.
+ * События, перечисленные в настройке clickhouse.eventTables, попадают в таблицы своих групп
+ * (например, 210615_Main_EXCP_TJ), все остальные - в общую дневную таблицу (210615_Main_TJ).
+ */
+class EventTableRouter {
+    private static final Logger logger = LoggerFactory.getLogger(EventTableRouter.class);
+
+    private final ClickHouseConnectConfig chConfig;
+    // Соответствие: событие -> группа (таблица) событий
+    private final Map<String, EventTableConfig> groupByEvent = new HashMap<>();
+    // Соответствие: группа событий -> настройки таблицы
+    private final Map<String, EventTableConfig> groupByName = new HashMap<>();
+
+    EventTableRouter(ClickHouseConnectConfig chConfig) {
+        this.chConfig = chConfig;
+        for (EventTableConfig group : chConfig.getEventTables()) {
+            try {
+                group.validate();
+            } catch (AppConfigException e) {
+                logger.warn("Пропущена группа событий. {}", e.getMessage());
+                continue;
+            }
+            groupByName.put(group.getName(), group);
+            for (String event : group.getEvents()) {
+                EventTableConfig previous = groupByEvent.put(event.toUpperCase(), group);
+                if (previous != null && previous != group)
+                    logger.warn("Событие {} указано в нескольких группах таблиц. Будет использована группа {}",
+                            event, group.getName());
+            }
+        }
+    }
+
+    boolean isEnabled() {
+        return !groupByName.isEmpty();
+    }
+
+    String getMainTablename(String yearMonthDayHour) {
+        // Имя таблицы, куда будет загружен лог, в формате "210615_Main_TJ"
+        return yearMonthDayHour.substring(0, 6) + "_" + chConfig.getTablePostfix() + "_TJ";
+    }
+
+    String getTablename(String yearMonthDayHour, String event) {
+        EventTableConfig group = groupByEvent.get(event);
+        if (group == null)
+            return getMainTablename(yearMonthDayHour);
+        // Таблица группы событий в формате "210615_Main_EXCP_TJ"
+        return yearMonthDayHour.substring(0, 6) + "_" + chConfig.getTablePostfix() + "_" + group.getName() + "_TJ";
+    }
+
+    /**
+     * Раскладывает пакет записей по таблицам с сохранением порядка записей внутри каждой таблицы
+     */
+    SortedMap<String, List<LogRecord>> split(String yearMonthDayHour, List<LogRecord> batch) {
+        SortedMap<String, List<LogRecord>> batchesByTable = new TreeMap<>();
+        if (!isEnabled()) {
+            batchesByTable.put(getMainTablename(yearMonthDayHour), batch);
+            return batchesByTable;
+        }
+        for (LogRecord rec : batch) {
+            batchesByTable.computeIfAbsent(getTablename(yearMonthDayHour, rec.getEvent()), t -> new ArrayList<>())
+                    .add(rec);
+        }
+        return batchesByTable;
+    }
+
+    /**
+     * Возвращает источник данных для поиска уже загруженных записей файла за день: либо общую таблицу,
+     * либо табличную функцию merge() по общей таблице и всем таблицам групп событий этого дня
+     */
+    String getDaySource(String database, String yearMonthDayHour) {
+        String mainTablename = getMainTablename(yearMonthDayHour);
+        if (!isEnabled())
+            return mainTablename;
+        String dayPrefix = yearMonthDayHour.substring(0, 6) + "_" + chConfig.getTablePostfix() + "_";
+        // Имена групп состоят только из латинских букв, цифр и подчеркивания (см. EventTableConfig.validate),
+        // поэтому не содержат спецсимволов регулярных выражений
+        String regexp = "^" + dayPrefix + "((" + String.join("|", groupByName.keySet()) + ")_)?TJ$";
+        return String.format("merge('%s', '%s')", database, regexp);
+    }
+
+    String getOrderBy(String tablename) {
+        EventTableConfig group = getGroupByTablename(tablename);
+        return group == null || group.getOrderBy() == null ? chConfig.getOrderBy() : group.getOrderBy();
+    }
+
+    String getPartition(String tablename) {
+        EventTableConfig group = getGroupByTablename(tablename);
+        return group == null || group.getPartition() == null ? chConfig.getPartition() : group.getPartition();
+    }
+
+    /**
+     * События, записи которых попадают в указанную таблицу группы (для общей таблицы - пустое множество)
+     */
+    Set<String> getEvents(String tablename) {
+        EventTableConfig group = getGroupByTablename(tablename);
+        if (group == null)
+            return Collections.emptySet();
+        Set<String> events = new HashSet<>();
+        group.getEvents().forEach(e -> events.add(e.toUpperCase()));
+        return events;
+    }
+
+    /**
+     * Колонки, которые создаются в таблице группы сразу: свойства, ранее встречавшиеся у событий группы,
+     * и колонки первичного ключа и секционирования группы, без которых таблицу не создать
+     */
+    Set<String> getInitialFields(String tablename) {
+        Set<String> fields = new HashSet<>(PropertiesByEvents.getPropertiesByEvents(getEvents(tablename)));
+        EventTableConfig group = getGroupByTablename(tablename);
+        if (group != null)
+            fields.addAll(group.getKeyColumns());
+        return fields;
+    }
+
+    private EventTableConfig getGroupByTablename(String tablename) {
+        // Имя таблицы группы: YYMMDD_[postfix]_[group]_TJ
+        String prefix = "_" + chConfig.getTablePostfix() + "_";
+        int start = tablename.indexOf(prefix);
+        if (start == -1 || !tablename.endsWith("_TJ"))
+            return null;
+        start += prefix.length();
+        int end = tablename.length() - "_TJ".length();
+        if (start >= end)
+            return null;
+        return groupByName.get(tablename.substring(start, end));
+    }
+}
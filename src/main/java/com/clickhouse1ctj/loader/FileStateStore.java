@@ -0,0 +1,300 @@
+package com.clickhouse1ctj.loader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Локальное состояние просмотренных файлов ТЖ для режима демона: идентификатор файла в файловой системе, размер,
+ * дата изменения, отпечаток содержимого, смещение и номер строки начала незагруженной части и признак завершения загрузки.
+ * Состояние хранится в каталоге stateDir в виде снимка (file_state.snapshot) и журнала изменений
+ * (file_state.log), в который дописывается строка на каждое изменение. При старте читается снимок и поверх
+ * него применяется журнал, а когда журнал становится заметно больше числа файлов, он сворачивается в новый снимок.
+ * При свертке из состояния удаляются файлы, которых больше нет на диске, и загруженные файлы, не изменявшиеся дольше
+ * retentionDays дней. Недописанная при аварийном завершении последняя строка журнала отбрасывается при открытии.
+ * Если каталог состояния не задан, состояние хранится только в памяти (как раньше).
+ */
+public class FileStateStore {
+    private static final Logger logger = LoggerFactory.getLogger(FileStateStore.class);
+    private static final String SNAPSHOT_FILENAME = "file_state.snapshot";
+    private static final String LOG_FILENAME = "file_state.log";
+    private static final int MIN_RECORDS_TO_COMPACT = 10000;
+
+    private static final Map<Path, FileState> states = new ConcurrentHashMap<>();
+    private static Path snapshotFile;
+    private static Path logFile;
+    private static BufferedWriter logWriter;
+    private static int recordsInLog;
+    private static int retentionDays;
+
+    private FileStateStore() {}
+
+    /**
+     * Загружает сохраненное состояние из каталога stateDir и открывает журнал изменений. retentionDays - через сколько
+     * дней после последнего изменения загруженного файла его состояние удаляется при свертке (0 - пока файл существует)
+     */
+    public static synchronized void open(Path stateDir, int retentionDays) {
+        long start = System.currentTimeMillis();
+        FileStateStore.retentionDays = Integer.max(retentionDays, 0);
+        states.clear();
+        try {
+            Files.createDirectories(stateDir);
+            snapshotFile = stateDir.resolve(SNAPSHOT_FILENAME);
+            logFile = stateDir.resolve(LOG_FILENAME);
+            // Новые строки журнала не должны дописываться к недописанной строке
+            truncatePartialLine(logFile);
+            readStates(snapshotFile);
+            recordsInLog = readStates(logFile);
+            logWriter = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            logger.info("Загружено состояние {} файлов из каталога {} за {} мс",
+                    states.size(), stateDir.toAbsolutePath(), System.currentTimeMillis() - start);
+            compactIfNeeded();
+        } catch (IOException e) {
+            logger.warn("Не удалось открыть хранилище состояния файлов в каталоге {}, состояние будет храниться в памяти: {}",
+                    stateDir.toAbsolutePath(), e.getMessage());
+            e.printStackTrace();
+            logWriter = null;
+        }
+    }
+
+    public static FileState get(Path path) {
+        return states.get(path);
+    }
+
+    /**
+     * Запоминает атрибуты и отпечаток файла, отправленного в пул на загрузку. Для перезаписанного файла (rewritten)
+     * смещение и номер строки сбрасываются: загрузка начнется с начала файла
+     */
+    public static void markQueued(Path path, String fileKey, long size, long lastModified, String fingerprint,
+                                  boolean rewritten) {
+        FileState previous = states.get(path);
+        long byteOffset = previous == null || rewritten ? 0 : previous.byteOffset;
+        int lineNumber = previous == null || rewritten ? 0 : previous.lineNumber;
+        put(path, new FileState(fileKey, size, lastModified, fingerprint, byteOffset, lineNumber, false));
+    }
+
+    /**
+     * Отмечает завершение загрузки файла до указанного смещения (lineNumber - номер строки, которая начинается
+     * с этого смещения). Файлы вне хранилища (разовая загрузка) пропускаются
+     */
+    public static void markLoaded(Path path, long byteOffset, int lineNumber) {
+        FileState previous = states.get(path);
+        if (previous == null)
+            return;
+        put(path, new FileState(previous.fileKey, previous.size, previous.lastModified, previous.fingerprint,
+                byteOffset, lineNumber, true));
+    }
+
+    private static synchronized void put(Path path, FileState state) {
+        states.put(path, state);
+        if (logWriter == null)
+            return;
+        try {
+            logWriter.write(toLine(path, state));
+            logWriter.newLine();
+            logWriter.flush();
+            recordsInLog++;
+            compactIfNeeded();
+        } catch (IOException e) {
+            logger.warn("Не удалось сохранить состояние файла {}: {}", path, e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private static void compactIfNeeded() throws IOException {
+        if (recordsInLog < Integer.max(MIN_RECORDS_TO_COMPACT, 2 * states.size()))
+            return;
+        int removed = removeObsolete();
+        // Пишем новый снимок во временный файл и атомарно подменяем им старый, после чего очищаем журнал
+        Path tmpFile = snapshotFile.resolveSibling(SNAPSHOT_FILENAME + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+            for (Map.Entry<Path, FileState> entry : states.entrySet()) {
+                writer.write(toLine(entry.getKey(), entry.getValue()));
+                writer.newLine();
+            }
+        }
+        Files.move(tmpFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logWriter.close();
+        logWriter = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        logger.debug("Журнал состояния файлов ({} записей) свернут в снимок по {} файлам, удалено состояние {} файлов",
+                recordsInLog, states.size(), removed);
+        recordsInLog = 0;
+    }
+
+    /**
+     * Удаляет состояние файлов, которых больше нет на диске (например, удаленных 1С по истечении срока хранения),
+     * и загруженных файлов, не изменявшихся дольше retentionDays дней. Возвращает число удаленных файлов
+     */
+    private static int removeObsolete() {
+        long expiredBefore = retentionDays > 0 ? System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retentionDays) : 0;
+        int removed = 0;
+        for (Iterator<Map.Entry<Path, FileState>> it = states.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, FileState> entry = it.next();
+            FileState state = entry.getValue();
+            if (!Files.exists(entry.getKey()) || state.completed && state.lastModified < expiredBefore) {
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Отрезает от журнала недописанную при аварийном завершении последнюю строку
+     */
+    private static void truncatePartialLine(Path file) throws IOException {
+        if (!Files.exists(file))
+            return;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            long end = channel.size();
+            while (end > 0) {
+                long start = Long.max(end - buffer.capacity(), 0);
+                buffer.clear().limit((int) (end - start));
+                while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) > 0) {
+                    // Читаем фрагмент целиком
+                }
+                for (int i = buffer.position() - 1; i >= 0; i--) {
+                    if (buffer.get(i) == '\n') {
+                        if (start + i + 1 < channel.size())
+                            channel.truncate(start + i + 1);
+                        return;
+                    }
+                }
+                end = start;
+            }
+            // В журнале нет ни одной целой строки
+            channel.truncate(0);
+        }
+    }
+
+    public static synchronized void close() {
+        if (logWriter == null)
+            return;
+        try {
+            logWriter.close();
+        } catch (IOException e) {
+            logger.warn("Не удалось закрыть журнал состояния файлов: {}", e.getMessage());
+            e.printStackTrace();
+        }
+        logWriter = null;
+    }
+
+    private static int readStates(Path file) throws IOException {
+        int count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] values = line.split("\t", -1);
+                // Строки прежнего формата (7 значений) не содержат номер строки
+                if (values.length != 7 && values.length != 8)
+                    continue; // Недописанная при аварийном завершении строка
+                try {
+                    states.put(Path.of(unescape(values[0])), new FileState(unescape(values[1]),
+                            Long.parseLong(values[2]), Long.parseLong(values[3]), values[4],
+                            Long.parseLong(values[5]), values.length == 8 ? Integer.parseInt(values[7]) : 0,
+                            "1".equals(values[6])));
+                    count++;
+                } catch (IllegalArgumentException e) {
+                    logger.warn("Пропущена поврежденная строка состояния файлов: {}", line);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Состояние еще не сохранялось
+        }
+        return count;
+    }
+
+    private static String toLine(Path path, FileState state) {
+        return escape(path.toString()) + "\t" + escape(state.fileKey) + "\t" + state.size + "\t"
+                + state.lastModified + "\t" + state.fingerprint + "\t" + state.byteOffset + "\t"
+                + (state.completed ? "1" : "0") + "\t" + state.lineNumber;
+    }
+
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    static String unescape(String value) {
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    public static final class FileState {
+        private final String fileKey;
+        private final long size;
+        private final long lastModified;
+        private final String fingerprint;
+        private final long byteOffset;
+        private final int lineNumber;
+        private final boolean completed;
+
+        FileState(String fileKey, long size, long lastModified, String fingerprint, long byteOffset, int lineNumber,
+                  boolean completed) {
+            this.fileKey = fileKey;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fingerprint = fingerprint;
+            this.byteOffset = byteOffset;
+            this.lineNumber = lineNumber;
+            this.completed = completed;
+        }
+
+        public String getFileKey() {
+            return fileKey;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public long getByteOffset() {
+            return byteOffset;
+        }
+
+        /**
+         * Номер строки, которая начинается со смещения byteOffset (0 - не сохранялся)
+         */
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        public boolean isCompleted() {
+            return completed;
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.clickhouse1ctj.loader;
+
+import com.clickhouse1ctj.parser.LogRecord;
+import com.clickhouse1ctj.parser.TechJournalParser;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.yandex.clickhouse.ClickHouseConnection;
+import ru.yandex.clickhouse.ClickHousePreparedStatementImpl;
+import ru.yandex.clickhouse.ClickHouseStatement;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Состояние загрузки файлов ТЖ хранится в небольшой таблице {@value TABLENAME} (по строке на файл):
+ * последняя прочитанная строка, смещение в байтах, с которого нужно продолжить чтение, отпечаток
+ * последней загруженной записи и контрольная сумма начала файла, по которой видна перезапись файла под тем же
+ * именем. Состояние записывается сразу после вставки каждого пакета, а в начале итерации загрузки одним запросом
+ * (на каждый узел) зачитывается по всем файлам из пула. Если загрузка прервется между вставкой пакета и записью
+ * состояния, то пакет будет прочитан повторно, но не вставится второй раз: пакеты вставляются с токеном дедупликации
+ * (см. ClickHouseInserter.getDeduplicationToken).
+ * Это избавляет от поиска последней записи файла по широкой таблице логов за весь день.
+ * Состояние файла всегда записывается на его основной узел (первый узел ShardRouter), даже если пакеты после
+ * сбоя вставляются на другой узел. Пока основной узел недоступен, состояние записывается на узел, получивший
+ * пакет, и ставится в очередь на запись на основной узел (см. flushPending)
+ */
+public class LoadStateStore {
+    private static final Logger logger = LoggerFactory.getLogger(LoadStateStore.class);
+    private static final String TABLENAME = "load_state_tj";
+    private static final int MAX_FILENAMES_IN_QUERY = 5000;
+    private static final int HEAD_SIZE = 4 * 1024;
+    private static final DateTimeFormatter loadedAtFormatCH = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    // Состояния файлов пула, полученные при отборе файлов и обновленные после вставки пакетов. Ключ: parent/filename.
+    // Состояние убирается, когда файл покидает пул (см. evict)
+    private static final Map<String, LoadState> states = new ConcurrentHashMap<>();
+    // Файлы, по которым состояние запрошено (в том числе отсутствующее), повторный запрос по ним не нужен
+    private static final Set<String> prefetchedFiles = ConcurrentHashMap.newKeySet();
+    // Состояния, не записанные на основной узел файла из-за его недоступности. Ключ: parent/filename
+    private static final Map<String, PendingState> pendingStates = new ConcurrentHashMap<>();
+
+    private LoadStateStore() {}
+
+    /**
+     * Зачитывает состояние загрузки всех указанных файлов: по одному запросу на каждый узел ClickHouse
+     * (при большом числе файлов запрос разбивается на части по {@value MAX_FILENAMES_IN_QUERY} имен файлов)
+     */
+    public static void prefetch(Collection<Path> files) {
+        if (files.isEmpty())
+            return;
+        flushPending();
+        Set<String> filenames = new TreeSet<>();
+        Set<String> fileKeys = new HashSet<>();
+        for (Path file : files) {
+            filenames.add(file.getFileName().toString());
+            fileKeys.add(getKey(getParentName(file), file.getFileName().toString()));
+        }
+
+        for (String node : ClickHouseDDLer.getNodes()) {
+            try {
+                ClickHouseDDLer.prepareLoadStateTableSync(node, TABLENAME);
+                List<String> filenamesList = new ArrayList<>(filenames);
+                for (int i = 0; i < filenamesList.size(); i += MAX_FILENAMES_IN_QUERY) {
+                    fetchStates(node, filenamesList.subList(i, Integer.min(i + MAX_FILENAMES_IN_QUERY, filenamesList.size())), fileKeys);
+                }
+            } catch (SQLException e) {
+                logger.warn("Не удалось получить состояние загрузки файлов с узла {}: {}", node, e.getMessage());
+                // По файлам будет выполнен индивидуальный поиск последней загруженной записи
+                return;
+            }
+        }
+        prefetchedFiles.addAll(fileKeys);
+        logger.debug("Получено состояние загрузки по {} файлам из {}", fileKeys.stream().filter(states::containsKey).count(), fileKeys.size());
+    }
+
+    /**
+     * Состояние загрузки файла или null, если файл ранее не загружался (или его состояние не сохранялось).
+     * nodes - узлы файла, начиная с основного: состояние обязательно читается с основного узла, а с узлов
+     * переключения - если они доступны (туда состояние записывается, пока основной узел недоступен).
+     * Если основной узел недоступен, то выбрасывается исключение: загружать файл без его состояния нельзя
+     */
+    static LoadState get(List<String> nodes, TechJournalParser parser) throws SQLException {
+        String key = getKey(parser.parentName, parser.filename);
+        if (!prefetchedFiles.contains(key)) {
+            // Файл не попал в общий запрос в начале итерации, запросим его состояние отдельно
+            for (String node : nodes) {
+                try {
+                    ClickHouseDDLer.prepareLoadStateTableSync(node, TABLENAME);
+                    fetchStates(node, List.of(parser.filename), Set.of(key));
+                } catch (SQLException e) {
+                    if (node.equals(nodes.get(0)))
+                        throw e;
+                    logger.warn("Не удалось получить состояние загрузки файла {} с узла {}: {}", key, node, e.getMessage());
+                }
+            }
+            prefetchedFiles.add(key);
+        }
+        // Состояние, еще не записанное ни на один узел, хранится только в очереди отложенной записи
+        PendingState pending = pendingStates.get(key);
+        if (pending != null)
+            states.merge(key, pending.state, LoadStateStore::getLater);
+        return states.get(key);
+    }
+
+    /**
+     * Убирает из памяти состояние файла, покинувшего пул (загрузка завершена или прервана): при следующей загрузке
+     * состояние будет зачитано заново. Отложенная запись состояния на основной узел сохраняется
+     */
+    public static void evict(Path file) {
+        String key = getKey(getParentName(file), file.getFileName().toString());
+        states.remove(key);
+        prefetchedFiles.remove(key);
+    }
+
+    /**
+     * Сохраняет состояние после вставки пакета на основной узел файла homeNode: lastRecord - последняя вставленная
+     * запись файла, node - узел, на который вставлен пакет, head - начало файла (см. readHead). Если основной узел недоступен, то состояние записывается
+     * на узел пакета и ставится в очередь на запись на основной узел. Ошибка записи не прерывает загрузку файла:
+     * состояние в памяти уже обновлено, и до перезапуска приложения чтение файла продолжится с него
+     */
+    static void save(NodeConnections connections, String homeNode, String node, TechJournalParser parser,
+                     String head, LogRecord lastRecord) {
+        String key = getKey(parser.parentName, parser.filename);
+        // Время сохранения, а не записи в таблицу: отложенная запись не должна вытеснить более новое состояние
+        LoadState state = new LoadState(parser.getResumeLineNumber() - 1, parser.getResumeOffset(),
+                lastRecord.getFingerprint(), lastRecord.getLineNumberInFile(), head,
+                loadedAtFormatCH.format(LocalDateTime.now()));
+        states.put(key, state);
+        PendingState pending = new PendingState(homeNode, parser.parentName, parser.filename, parser.pathToLog.toString(), state);
+        try {
+            insertState(connections, homeNode, pending);
+            pendingStates.remove(key);
+            return;
+        } catch (SQLException e) {
+            logger.warn("Не удалось записать состояние загрузки файла {} на основной узел {}: {}", key, homeNode, e.getMessage());
+        }
+        pendingStates.put(key, pending);
+        if (node.equals(homeNode))
+            return;
+        try {
+            insertState(connections, node, pending);
+        } catch (SQLException e) {
+            logger.warn("Не удалось записать состояние загрузки файла {} на узел {}: {}", key, node, e.getMessage());
+        }
+    }
+
+    /**
+     * Записывает на основные узлы состояния, отложенные из-за недоступности узлов. Вызывается в начале итерации
+     */
+    static void flushPending() {
+        for (PendingState pending : new ArrayList<>(pendingStates.values())) {
+            try {
+                insertState(ClickHouseDDLer::getNodeConnection, pending.homeNode, pending);
+                // Состояние могло обновиться после снимка очереди: удаляем только записанное
+                pendingStates.remove(getKey(pending.parent, pending.filename), pending);
+                logger.info("Отложенное состояние загрузки файла {}/{} записано на узел {}",
+                        pending.parent, pending.filename, pending.homeNode);
+            } catch (SQLException e) {
+                logger.debug("Узел {} по-прежнему недоступен для записи состояния загрузки: {}", pending.homeNode, e.getMessage());
+            }
+        }
+    }
+
+    private static void insertState(NodeConnections connections, String node, PendingState pending) throws SQLException {
+        ClickHouseDDLer.prepareLoadStateTableSync(node, TABLENAME);
+        String insertQuery = "INSERT INTO " + TABLENAME
+                + " (parent, filename, path_to_file, last_line, byte_offset, fingerprint, head_crc, loaded_at)"
+                + " VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+        try (PreparedStatement stmt = connections.get(node).prepareStatement(insertQuery)) {
+            stmt.setString(1, pending.parent);
+            stmt.setString(2, pending.filename);
+            stmt.setString(3, pending.pathToFile);
+            stmt.setInt(4, pending.state.lastLine);
+            stmt.setLong(5, pending.state.byteOffset);
+            // Номер первой строки последней записи храним в отпечатке, чтобы восстановить запись целиком
+            stmt.setString(6, pending.state.lastRecordLine + "|" + pending.state.fingerprint);
+            stmt.setString(7, pending.state.head);
+            stmt.setString(8, pending.state.loadedAt);
+            stmt.addBatch();
+            ((ClickHousePreparedStatementImpl) stmt).executeBatch(ClickHouseDDLer.getNodeDBParams(node));
+        }
+    }
+
+    private static void fetchStates(String node, List<String> filenames, Set<String> fileKeys) throws SQLException {
+        StringJoiner filenamesIn = new StringJoiner(", ");
+        filenames.forEach(filename -> filenamesIn.add(quote(filename)));
+        // Без FINAL: последнее состояние выбирается через argMax по loaded_at
+        String query = "SELECT parent, filename, "
+                + "argMax(last_line, loaded_at), argMax(byte_offset, loaded_at), argMax(fingerprint, loaded_at), "
+                + "argMax(head_crc, loaded_at), max(loaded_at) "
+                + "FROM " + TABLENAME
+                + " WHERE filename IN (" + filenamesIn + ")"
+                + " GROUP BY parent, filename";
+        try (ClickHouseStatement stmt = ClickHouseDDLer.getNodeConnection(node).createStatement();
+             ResultSet rs = stmt.executeQuery(query, ClickHouseDDLer.getNodeDBParams(node))) {
+            while (rs.next()) {
+                String key = getKey(rs.getString(1), rs.getString(2));
+                if (!fileKeys.contains(key))
+                    continue;
+                String[] lineAndFingerprint = rs.getString(5).split("\\|", 2);
+                if (lineAndFingerprint.length != 2)
+                    continue;
+                LoadState state = new LoadState(rs.getInt(3), rs.getLong(4),
+                        lineAndFingerprint[1], Integer.parseInt(lineAndFingerprint[0]), rs.getString(6), rs.getString(7));
+                // При переключении узлов состояние одного файла может оказаться на нескольких узлах - берем последнее
+                // (не самое дальнее: после перезаписи файла последнее состояние может иметь меньшее смещение)
+                states.merge(key, state, LoadStateStore::getLater);
+            }
+        }
+    }
+
+    private static LoadState getLater(LoadState prev, LoadState cur) {
+        // Время в формате yyyy-MM-dd HH:mm:ss.SSS сравнивается как строка
+        return cur.loadedAt.compareTo(prev.loadedAt) >= 0 ? cur : prev;
+    }
+
+    /**
+     * Начало файла в виде "длина:контрольная сумма" по первым {@value HEAD_SIZE} байтам (или по всему файлу, если он
+     * меньше). Уже записанное начало при дописывании файла не меняется, поэтому несовпадение означает перезапись файла
+     */
+    static String readHead(Path file, long size) throws IOException {
+        return readHeadBytes(file, (int) Long.min(size, HEAD_SIZE));
+    }
+
+    /**
+     * Совпадает ли начало файла с началом, сохраненным в состоянии загрузки (пустое значение - состояние сохранено
+     * предыдущей версией без контрольной суммы, проверка не выполняется)
+     */
+    static boolean isSameHead(Path file, String head) throws IOException {
+        if (head == null || head.isEmpty())
+            return true;
+        int separator = head.indexOf(':');
+        if (separator < 0)
+            return true;
+        return head.equals(readHeadBytes(file, Integer.parseInt(head.substring(0, separator))));
+    }
+
+    private static String readHeadBytes(Path file, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+                // Читаем начало целиком
+            }
+            buffer.flip();
+            CRC32 crc = new CRC32();
+            crc.update(buffer);
+            // Файл короче сохраненного начала не совпадет с ним по длине
+            return buffer.limit() + ":" + Long.toHexString(crc.getValue());
+        }
+    }
+
+    private static String getParentName(Path file) {
+        Path parent = file.toAbsolutePath().getParent();
+        return parent == null || parent.getFileName() == null ? "" : parent.getFileName().toString();
+    }
+
+    private static String getKey(String parent, String filename) {
+        return parent + "/" + filename;
+    }
+
+    private static String quote(String value) {
+        return "'" + value.replace("\\", "\\\\").replace("'", "\\'") + "'";
+    }
+
+    /**
+     * Соединение с узлом ClickHouse: рабочий поток записывает состояние через свои соединения
+     */
+    interface NodeConnections {
+        ClickHouseConnection get(String node) throws SQLException;
+    }
+
+    private static final class PendingState {
+        final String homeNode;
+        final String parent;
+        final String filename;
+        final String pathToFile;
+        final LoadState state;
+
+        PendingState(String homeNode, String parent, String filename, String pathToFile, LoadState state) {
+            this.homeNode = homeNode;
+            this.parent = parent;
+            this.filename = filename;
+            this.pathToFile = pathToFile;
+            this.state = state;
+        }
+    }
+
+    static final class LoadState {
+        final int lastLine;
+        final long byteOffset;
+        final String fingerprint;
+        final int lastRecordLine;
+        final String head; // начало файла "длина:контрольная сумма" (пусто у состояний прежних версий)
+        final String loadedAt;
+
+        LoadState(int lastLine, long byteOffset, String fingerprint, int lastRecordLine, String head, String loadedAt) {
+            this.lastLine = lastLine;
+            this.byteOffset = byteOffset;
+            this.fingerprint = fingerprint;
+            this.lastRecordLine = lastRecordLine;
+            this.head = head == null ? "" : head;
+            this.loadedAt = loadedAt == null ? "" : loadedAt;
+        }
+
+        LogRecord getLastRecord() {
+            return LogRecord.fromFingerprint(fingerprint, lastRecordLine);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.clickhouse1ctj.loader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.yandex.clickhouse.ClickHousePreparedStatementImpl;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Журнал производительности загрузчика в таблице {@value TABLENAME}: по каждому вставленному пакету и по каждому
+ * загруженному файлу сохраняются время чтения файла, парсинга записей, ожидания DDL, вставки и общее время, а также
+ * отставание загрузки (от отметки времени записи ТЖ до фиксации пакета в ClickHouse). Рабочие потоки только кладут
+ * строки в очередь, в таблицу их пакетами записывает фоновая задача, поэтому на скорость загрузки журнал не влияет.
+ */
+public class LoaderStats {
+    private static final Logger logger = LoggerFactory.getLogger(LoaderStats.class);
+    private static final String TABLENAME = "loader_stats_tj";
+    private static final int FLUSH_INTERVAL_SEC = 10;
+    private static final int MAX_QUEUED_ROWS = 100_000; // при недоступности ClickHouse лишние строки отбрасываются
+    private static final DateTimeFormatter timeFormatCH = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+    private static final String host = getHostName();
+
+    private static final Queue<Timings> rows = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger queuedRows = new AtomicInteger();
+    private static ScheduledExecutorService flushExecutor;
+
+    private LoaderStats() {}
+
+    /**
+     * Ставит строку журнала в очередь на запись. Вызывается рабочими потоками и не обращается к ClickHouse
+     */
+    static void add(Timings timings) {
+        if (queuedRows.incrementAndGet() > MAX_QUEUED_ROWS) {
+            queuedRows.decrementAndGet();
+            logger.debug("Очередь журнала производительности переполнена, строка по файлу {} отброшена", timings.filename);
+            return;
+        }
+        rows.add(timings);
+    }
+
+    /**
+     * Запускает фоновую запись накопленных строк в таблицу. Повторный вызов не создает новую задачу.
+     */
+    public static synchronized void startBackgroundFlush() {
+        if (flushExecutor != null)
+            return;
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "loader-stats-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flushExecutor.scheduleWithFixedDelay(LoaderStats::flushInBackground, FLUSH_INTERVAL_SEC, FLUSH_INTERVAL_SEC, TimeUnit.SECONDS);
+        logger.debug("Запущена фоновая запись журнала производительности с интервалом {} секунд", FLUSH_INTERVAL_SEC);
+    }
+
+    private static void flushInBackground() {
+        try {
+            flush();
+        } catch (SQLException e) {
+            logger.error("Не удалось сохранить журнал производительности в таблицу {}: {}", TABLENAME, e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    public static synchronized void flush() throws SQLException {
+        List<Timings> toFlush = new ArrayList<>();
+        Timings timings;
+        while ((timings = rows.poll()) != null)
+            toFlush.add(timings);
+        if (toFlush.isEmpty())
+            return;
+
+        String insertQuery = "INSERT INTO " + TABLENAME
+                + " (event_time, kind, host, node, tablename, parent, filename, records, bytes,"
+                + " read_ms, parse_ms, ddl_wait_ms, insert_ms, total_ms, lag_min_sec, lag_max_sec)"
+                + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        try {
+            ClickHouseDDLer.prepareLoaderStatsTableSync(TABLENAME);
+            try (PreparedStatement stmt = ClickHouseDDLer.chDDLSync.getConnection().prepareStatement(insertQuery)) {
+                for (Timings row : toFlush) {
+                    stmt.setString(1, timeFormatCH.format(row.eventTime));
+                    stmt.setString(2, row.kind);
+                    stmt.setString(3, host);
+                    stmt.setString(4, row.node);
+                    stmt.setString(5, row.tablename);
+                    stmt.setString(6, row.parent);
+                    stmt.setString(7, row.filename);
+                    stmt.setLong(8, row.records);
+                    stmt.setLong(9, row.bytes);
+                    stmt.setDouble(10, row.readNanos / 1e6);
+                    stmt.setDouble(11, row.parseNanos / 1e6);
+                    stmt.setDouble(12, row.ddlWaitNanos / 1e6);
+                    stmt.setDouble(13, row.insertNanos / 1e6);
+                    stmt.setDouble(14, row.totalNanos / 1e6);
+                    stmt.setDouble(15, row.lagMinSec);
+                    stmt.setDouble(16, row.lagMaxSec);
+                    stmt.addBatch();
+                }
+                ((ClickHousePreparedStatementImpl) stmt).executeBatch(ClickHouseDDLer.chDDLSync.chAdditionalDBParams);
+            }
+        } catch (SQLException e) {
+            // Вернем строки в очередь, чтобы записать их при следующем сбросе
+            rows.addAll(toFlush);
+            throw e;
+        }
+        queuedRows.addAndGet(-toFlush.size());
+        logger.debug("В таблицу {} записано {} строк журнала производительности", TABLENAME, toFlush.size());
+    }
+
+    private static String getHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Времена этапов загрузки по пакету (kind = batch) или по файлу целиком (kind = file)
+     */
+    static final class Timings {
+        private final String kind;
+        private final String node;
+        private final String tablename;
+        private final String parent;
+        private final String filename;
+        private LocalDateTime eventTime;
+        long records;
+        long bytes;
+        long readNanos;
+        long parseNanos;
+        long ddlWaitNanos;
+        long insertNanos;
+        long totalNanos;
+        private double lagMinSec = Double.NaN;
+        private double lagMaxSec = Double.NaN;
+
+        Timings(String kind, String node, String tablename, String parent, String filename) {
+            this.kind = kind;
+            this.node = node;
+            this.tablename = tablename;
+            this.parent = parent;
+            this.filename = filename;
+        }
+
+        /**
+         * Отмечает фиксацию записей с отметками времени от oldest до newest: отставание считается до текущего момента
+         */
+        void committed(LocalDateTime oldest, LocalDateTime newest) {
+            eventTime = LocalDateTime.now();
+            long nowMillis = eventTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            double lagMax = (nowMillis - oldest.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()) / 1000.0;
+            double lagMin = (nowMillis - newest.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()) / 1000.0;
+            lagMaxSec = Double.isNaN(lagMaxSec) ? lagMax : Math.max(lagMaxSec, lagMax);
+            lagMinSec = Double.isNaN(lagMinSec) ? lagMin : Math.min(lagMinSec, lagMin);
+        }
+
+        /**
+         * Добавляет времена пакета к итогам по файлу
+         */
+        void add(Timings batch) {
+            records += batch.records;
+            bytes += batch.bytes;
+            readNanos += batch.readNanos;
+            parseNanos += batch.parseNanos;
+            ddlWaitNanos += batch.ddlWaitNanos;
+            insertNanos += batch.insertNanos;
+            lagMaxSec = Double.isNaN(lagMaxSec) ? batch.lagMaxSec : Math.max(lagMaxSec, batch.lagMaxSec);
+            lagMinSec = Double.isNaN(lagMinSec) ? batch.lagMinSec : Math.min(lagMinSec, batch.lagMinSec);
+        }
+
+        void finish(long startNanos) {
+            totalNanos = System.nanoTime() - startNanos;
+            if (eventTime == null)
+                eventTime = LocalDateTime.now();
+            if (Double.isNaN(lagMinSec)) {
+                lagMinSec = 0;
+                lagMaxSec = 0;
+            }
+        }
+    }
+}
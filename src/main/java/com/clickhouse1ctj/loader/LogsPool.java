@@ -0,0 +1,259 @@
+package com.clickhouse1ctj.loader;
+
+import com.clickhouse1ctj.metrics.LoaderMetrics;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Пул файлов ТЖ для загрузки. Поиск файлов идет параллельно с загрузкой: файлы попадают в пул по мере
+ * отбора, а рабочие потоки ждут новые файлы, пока поиск не завершен. В режиме демона пул живет все время
+ * работы приложения, и поиск на очередной итерации не добавляет файлы, которые еще ожидают загрузки или загружаются.
+ * Если такой файл изменился во время загрузки (событие файловой системы), то он отмечается измененным и после
+ * окончания загрузки снова добавляется в пул.
+ * Файлы текущего и предыдущего часа (по имени YYMMDDHH.log) выдаются в первую очередь: пока они есть, из каждых
+ * recentWeight + backlogWeight выдач на файлы прошлых периодов приходится только backlogWeight.
+ */
+public class LogsPool {
+    private static final long POLL_TIMEOUT_MS = 100;
+    private static final DateTimeFormatter hourFormat = DateTimeFormatter.ofPattern("yyMMddHH");
+
+    public enum FileClass {
+        RECENT, // файлы текущего и предыдущего часа
+        BACKLOG // файлы прошлых периодов
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Map<FileClass, Deque<QueuedFile>> queues = new EnumMap<>(FileClass.class);
+    private final int recentWeight;
+    private final int backlogWeight;
+    private int servedInCycle; // число выдач в текущем цикле recentWeight + backlogWeight
+    // Файлы в очереди и в работе: повторно в пул не добавляются
+    private final Set<Path> pendingFiles = ConcurrentHashMap.newKeySet();
+    // Файлы, изменившиеся во время загрузки: после окончания загрузки снова добавляются в пул
+    private final Set<Path> changedFiles = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger addedFiles = new AtomicInteger();
+    private volatile boolean discoveryFinished;
+
+    public LogsPool(int recentWeight, int backlogWeight) {
+        this.recentWeight = Integer.max(recentWeight, 1);
+        this.backlogWeight = Integer.max(backlogWeight, 0);
+        for (FileClass fileClass : FileClass.values()) {
+            queues.put(fileClass, new ArrayDeque<>());
+            // Глубина очередей отдается в метрики (в приложении один пул, последний созданный пул заменяет предыдущий)
+            LoaderMetrics.queuedFiles.register(fileClass.name().toLowerCase(), () -> size(fileClass));
+        }
+    }
+
+    public LogsPool() {
+        this(1, 1);
+    }
+
+    /**
+     * Добавляет файл в пул, если он еще не ожидает загрузки и не загружается в данный момент
+     */
+    public boolean add(Path path) {
+        if (!pendingFiles.add(path))
+            return false;
+        lock.lock();
+        try {
+            queues.get(getFileClass(path)).addLast(new QueuedFile(path));
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        addedFiles.incrementAndGet();
+        return true;
+    }
+
+    public void addAll(Collection<Path> paths) {
+        for (Path path : paths) {
+            add(path);
+        }
+    }
+
+    /**
+     * Файл ожидает загрузки в пуле или загружается рабочим потоком
+     */
+    public boolean isPending(Path path) {
+        return pendingFiles.contains(path);
+    }
+
+    /**
+     * Отмечает изменение файла, который ожидает загрузки или загружается: после окончания загрузки файл будет
+     * снова добавлен в пул. Возвращает false, если файла нет в пуле (тогда его нужно добавить обычным образом)
+     */
+    public boolean markChanged(Path path) {
+        lock.lock();
+        try {
+            if (!pendingFiles.contains(path))
+                return false;
+            changedFiles.add(path);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Отмечает окончание обработки файла, взятого из пула. Файл, изменившийся во время загрузки, снова добавляется в пул
+     */
+    public void done(Path path) {
+        boolean changed;
+        lock.lock();
+        try {
+            pendingFiles.remove(path);
+            changed = changedFiles.remove(path);
+        } finally {
+            lock.unlock();
+        }
+        if (changed)
+            add(path);
+    }
+
+    /**
+     * Убирает из пула файлы, загрузка которых еще не начиналась. Возвращает их число
+     */
+    public int clearQueued() {
+        lock.lock();
+        try {
+            int count = 0;
+            for (Deque<QueuedFile> queue : queues.values()) {
+                for (QueuedFile queuedFile : queue) {
+                    pendingFiles.remove(queuedFile.path);
+                    changedFiles.remove(queuedFile.path);
+                }
+                count += queue.size();
+                queue.clear();
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Отмечает окончание поиска: после выборки оставшихся файлов рабочие потоки завершатся
+     */
+    public void finishDiscovery() {
+        discoveryFinished = true;
+    }
+
+    public boolean isDiscoveryFinished() {
+        return discoveryFinished;
+    }
+
+    /**
+     * Очередной файл для загрузки. Если пул пуст, ожидает окончания поиска и возвращает null, когда файлов больше не будет
+     */
+    public Path take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                QueuedFile queuedFile = pollByPriority();
+                if (queuedFile != null) {
+                    // Изменения до начала загрузки будут прочитаны этой же загрузкой
+                    changedFiles.remove(queuedFile.path);
+                    return queuedFile.path;
+                }
+                if (discoveryFinished)
+                    return null;
+                notEmpty.await(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private QueuedFile pollByPriority() {
+        Deque<QueuedFile> recent = queues.get(FileClass.RECENT);
+        Deque<QueuedFile> backlog = queues.get(FileClass.BACKLOG);
+        if (recent.isEmpty() || backlog.isEmpty()) {
+            // Без конкуренции между классами выдаем то, что есть
+            servedInCycle = 0;
+            return recent.isEmpty() ? backlog.pollFirst() : recent.pollFirst();
+        }
+        boolean serveBacklog = servedInCycle >= recentWeight;
+        servedInCycle = (servedInCycle + 1) % (recentWeight + backlogWeight);
+        return serveBacklog ? backlog.pollFirst() : recent.pollFirst();
+    }
+
+    static FileClass getFileClass(Path path) {
+        String filename = path.getFileName().toString();
+        if (filename.length() < 8)
+            return FileClass.BACKLOG;
+        try {
+            LocalDateTime fileHour = LocalDateTime.parse(filename.substring(0, 8), hourFormat);
+            LocalDateTime previousHour = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS).minusHours(1);
+            return fileHour.isBefore(previousHour) ? FileClass.BACKLOG : FileClass.RECENT;
+        } catch (DateTimeParseException e) {
+            return FileClass.BACKLOG;
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return queues.get(FileClass.RECENT).size() + queues.get(FileClass.BACKLOG).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size(FileClass fileClass) {
+        lock.lock();
+        try {
+            return queues.get(fileClass).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Отставание класса файлов: сколько секунд ожидает загрузки самый старый файл класса в очереди
+     */
+    public long getLagSeconds(FileClass fileClass) {
+        lock.lock();
+        try {
+            QueuedFile oldest = queues.get(fileClass).peekFirst();
+            return oldest == null ? 0 : TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - oldest.queuedAt);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Число файлов, отобранных в пул с момента его создания
+     */
+    public int getAddedFiles() {
+        return addedFiles.get();
+    }
+
+    private static final class QueuedFile {
+        final Path path;
+        final long queuedAt = System.currentTimeMillis();
+
+        QueuedFile(Path path) {
+            this.path = path;
+        }
+    }
+}
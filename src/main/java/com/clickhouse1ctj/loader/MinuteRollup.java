@@ -0,0 +1,217 @@
+package com.clickhouse1ctj.loader;
+
+import com.clickhouse1ctj.parser.LogRecord;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.yandex.clickhouse.ClickHousePreparedStatementImpl;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Класс работает с одним экземпляром объекта (синглтон) и накапливает поминутные агрегаты
+ * по загруженным записям ТЖ в разрезе: минута, событие, источник (rphost, rmngr ...) и p:processName.
+ * По каждому ключу считаются количество записей, сумма и максимум длительности, а также
+ * гистограмма длительностей по логарифмическим корзинам (4 корзины на каждое удвоение длительности),
+ * по которой в ClickHouse можно оценить перцентили. Накопленные агрегаты сбрасываются в таблицу
+ * rollup_minute_[tablePostfix]_tj на движке AggregatingMergeTree, поэтому повторные сбросы по одной и
+ * той же минуте корректно сворачиваются при слиянии. Прореженные записи учитываются с весом sample_weight,
+ * поэтому агрегаты соответствуют исходному, а не загруженному числу записей.
+ */
+public class MinuteRollup {
+    private static final Logger logger = LoggerFactory.getLogger(MinuteRollup.class);
+    private static final MinuteRollup minuteRollup = new MinuteRollup();
+
+    private static final String PROCESS_NAME_PROPERTY = "\"p:processName\""; // ключ после нормализации парсером
+    private static final int MAX_KEYS_BEFORE_FLUSH = 100_000; // порог количества ключей для досрочного сброса
+    private static final int BUCKETS_PER_OCTAVE = 4;
+    private static final DateTimeFormatter minuteFormatCH = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    // Блокировка на чтение берется при добавлении агрегатов, на запись - при подмене накопленной коллекции
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private ConcurrentHashMap<RollupKey, RollupValue> rollups = new ConcurrentHashMap<>();
+
+    private MinuteRollup() {}
+
+    /**
+     * Добавляет в агрегаты записи, успешно вставленные в таблицу
+     */
+    public static void add(String source, List<LogRecord> records) {
+        // Сначала агрегируем пакет локально, чтобы не обращаться к общей коллекции на каждую запись
+        Map<RollupKey, RollupValue> batchRollups = new HashMap<>();
+        for (LogRecord rec : records) {
+            String processName = rec.get(PROCESS_NAME_PROPERTY);
+            RollupKey key = new RollupKey(rec.getTimestamp().truncatedTo(ChronoUnit.MINUTES),
+                    rec.getEvent(), source, processName == null ? "" : processName);
+            batchRollups.computeIfAbsent(key, k -> new RollupValue()).add(rec.getDuration(), rec.getSampleWeight());
+        }
+        minuteRollup.swapLock.readLock().lock();
+        try {
+            batchRollups.forEach((key, value) -> minuteRollup.rollups.merge(key, value, RollupValue::merge));
+        } finally {
+            minuteRollup.swapLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Сбрасывает агрегаты в таблицу, если их накопилось слишком много. Вызывается потоком загрузки, поэтому ошибка
+     * сброса не прерывает загрузку файла: агрегаты остаются в памяти до следующего сброса
+     */
+    public static void flushIfOversized(String tablePostfix) {
+        if (minuteRollup.rollups.size() < MAX_KEYS_BEFORE_FLUSH)
+            return;
+        try {
+            flush(tablePostfix);
+        } catch (SQLException e) {
+            logger.error("Не удалось сохранить поминутные агрегаты в таблицу {}: {}", getTablename(tablePostfix), e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Сбрасывает накопленные агрегаты в таблицу. При ошибке агрегаты возвращаются в накопленную коллекцию
+     */
+    public static void flush(String tablePostfix) throws SQLException {
+        Map<RollupKey, RollupValue> toFlush;
+        minuteRollup.swapLock.writeLock().lock();
+        try {
+            if (minuteRollup.rollups.isEmpty())
+                return;
+            toFlush = minuteRollup.rollups;
+            minuteRollup.rollups = new ConcurrentHashMap<>();
+        } finally {
+            minuteRollup.swapLock.writeLock().unlock();
+        }
+        String tablename = getTablename(tablePostfix);
+        try {
+            ClickHouseDDLer.prepareRollupTableSync(tablename);
+            minuteRollup.insertRollups(tablename, toFlush);
+        } catch (SQLException e) {
+            // Вернем агрегаты, чтобы сохранить их при следующем сбросе (с добавленными за это время)
+            minuteRollup.swapLock.readLock().lock();
+            try {
+                toFlush.forEach((key, value) -> minuteRollup.rollups.merge(key, value, RollupValue::merge));
+            } finally {
+                minuteRollup.swapLock.readLock().unlock();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Число накопленных ключей агрегатов
+     */
+    static int size() {
+        return minuteRollup.rollups.size();
+    }
+
+    public static String getTablename(String tablePostfix) {
+        return "rollup_minute_" + tablePostfix + "_tj";
+    }
+
+    /**
+     * Номер логарифмической корзины для длительности: корзина b >= 1 соответствует
+     * длительностям из полуинтервала [2^((b-1)/4), 2^(b/4)), нулевая длительность попадает в корзину 0
+     */
+    static int getBucket(long duration) {
+        if (duration <= 0)
+            return 0;
+        return (int) Math.floor(Math.log(duration) / Math.log(2) * BUCKETS_PER_OCTAVE) + 1;
+    }
+
+    private void insertRollups(String tablename, Map<RollupKey, RollupValue> toFlush) throws SQLException {
+        String insertQuery = "INSERT INTO "
+                + tablename
+                + " (minute, event, source, process_name, count, duration_sum, duration_max, duration_hist)"
+                + " VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+        try (PreparedStatement stmt = ClickHouseDDLer.chDDLSync.getConnection().prepareStatement(insertQuery)) {
+            for (Map.Entry<RollupKey, RollupValue> entry : toFlush.entrySet()) {
+                RollupKey key = entry.getKey();
+                RollupValue value = entry.getValue();
+                stmt.setString(1, minuteFormatCH.format(key.minute));
+                stmt.setString(2, key.event);
+                stmt.setString(3, key.source);
+                stmt.setString(4, key.processName);
+                stmt.setLong(5, Math.round(value.count));
+                stmt.setLong(6, Math.round(value.durationSum));
+                stmt.setLong(7, value.durationMax);
+                // Кортеж массивов передаем текстом, так же как он представлен в формате TabSeparated
+                stmt.setString(8, value.getHistogramTuple());
+                stmt.addBatch();
+            }
+            ((ClickHousePreparedStatementImpl) stmt).executeBatch(ClickHouseDDLer.chDDLSync.chAdditionalDBParams);
+        }
+        logger.debug("В таблицу {} сброшено {} поминутных агрегатов", tablename, toFlush.size());
+    }
+
+    private static final class RollupKey {
+        private final LocalDateTime minute;
+        private final String event;
+        private final String source;
+        private final String processName;
+
+        RollupKey(LocalDateTime minute, String event, String source, String processName) {
+            this.minute = minute;
+            this.event = event;
+            this.source = source;
+            this.processName = processName;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof RollupKey)) return false;
+            RollupKey that = (RollupKey) o;
+            return minute.equals(that.minute)
+                    && event.equals(that.event)
+                    && source.equals(that.source)
+                    && processName.equals(that.processName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(minute, event, source, processName);
+        }
+    }
+
+    static final class RollupValue {
+        // Счетчики с учетом веса прореженных записей (см. RecordSampler), округляются при записи в таблицу
+        private double count;
+        private double durationSum;
+        private long durationMax;
+        private final SortedMap<Integer, Double> histogram = new TreeMap<>();
+
+        void add(long duration, double weight) {
+            count += weight;
+            durationSum += duration * weight;
+            durationMax = Math.max(durationMax, duration);
+            histogram.merge(getBucket(duration), weight, Double::sum);
+        }
+
+        RollupValue merge(RollupValue other) {
+            count += other.count;
+            durationSum += other.durationSum;
+            durationMax = Math.max(durationMax, other.durationMax);
+            other.histogram.forEach((bucket, bucketCount) -> histogram.merge(bucket, bucketCount, Double::sum));
+            return this;
+        }
+
+        String getHistogramTuple() {
+            StringJoiner buckets = new StringJoiner(",", "[", "]");
+            StringJoiner counts = new StringJoiner(",", "[", "]");
+            histogram.forEach((bucket, bucketCount) -> {
+                buckets.add(bucket.toString());
+                counts.add(Long.toString(Math.round(bucketCount)));
+            });
+            return "(" + buckets + "," + counts + ")";
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.clickhouse1ctj.loader;
+
+import com.clickhouse1ctj.metrics.LoaderMetrics;
+import com.clickhouse1ctj.parser.LogRecord;
+import com.clickhouse1ctj.parser.TechJournalParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Запись пакетов в локальные файлы в формате ClickHouse Native (настройка sink: native) для площадок без доступа
+ * к ClickHouse. По каждому файлу ТЖ и каждой таблице создается файл
+ * [sinkDir]/[таблица]/[каталог процесса]_[ГГММДДЧЧ]_[метка запуска].native.gz, каждый пакет записывается в него
+ * отдельным блоком с колонками пакета (служебные колонки и свойства). Файлы сжимаются gzip целиком: формат Native
+ * хранит колонки подряд, поэтому однотипные значения сжимаются почти так же хорошо, как при сжатии по колонкам.
+ * Пока загрузка файла ТЖ не завершена, файлы имеют расширение .tmp, при прерывании загрузки они удаляются.
+ * Загрузка в ClickHouse: INSERT INTO [таблица] FROM INFILE '...' COMPRESSION 'gzip' FORMAT Native
+ */
+public class NativeFileSink implements RecordSink {
+    private static final Logger logger = LoggerFactory.getLogger(NativeFileSink.class);
+    static final String FILE_EXTENSION = ".native.gz";
+    private static final String TMP_EXTENSION = ".tmp";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path sinkDir;
+    // Время записей ТЖ указано без часового пояса, в файл оно записывается по часовому поясу компьютера
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final Map<String, TableFile> files = new HashMap<>(); // файлы по таблицам для текущего файла ТЖ
+    private final Set<Long> pendingHashes = new HashSet<>(); // тексты словаря, записанные по текущему файлу ТЖ
+    private Path currentLog;
+    private long currentLogId;
+
+    public NativeFileSink(Path sinkDir) {
+        this.sinkDir = sinkDir;
+    }
+
+    @Override
+    public void insert(String node, String tablename, List<LogRecord> records, SortedSet<String> fields,
+                       TechJournalParser parser) throws IOException {
+        if (records.isEmpty())
+            return;
+        SortedMap<String, String> defaultColumns = ClickHouseDDLer.getDefaultColumns();
+        SortedSet<String> columns = new TreeSet<>(defaultColumns.keySet());
+        columns.addAll(fields);
+
+        NativeOutput out = getOutput(tablename, parser);
+        out.writeVarUInt(columns.size());
+        out.writeVarUInt(records.size());
+        for (String column : columns)
+            writeColumn(out, column, ClickHouseDDLer.getColumnType(defaultColumns, column), records, parser);
+        LoaderMetrics.batchesInserted.inc();
+        LoaderMetrics.recordsInserted.add(records.size());
+        logger.debug("Записано {} записей из файла {} для таблицы {}", records.size(), parser.pathToLog.toAbsolutePath(), tablename);
+    }
+
+    @Override
+    public void insertDictionaryValues(String node, List<LogRecord> records, TechJournalParser parser) throws IOException {
+        Map<Long, LogRecord.DictionaryValue> values = PropertyValuesDictionary.getUnsavedValues(records, null);
+        values.keySet().removeAll(pendingHashes);
+        if (values.isEmpty())
+            return;
+
+        NativeOutput out = getOutput(PropertyValuesDictionary.TABLENAME, parser);
+        out.writeVarUInt(3);
+        out.writeVarUInt(values.size());
+        out.writeString("hash");
+        out.writeString("UInt64");
+        for (LogRecord.DictionaryValue value : values.values())
+            out.writeLong(value.hash);
+        out.writeString("property");
+        out.writeString("String");
+        for (LogRecord.DictionaryValue value : values.values())
+            out.writeString(PropertyValuesDictionary.getPropertyName(value.property));
+        out.writeString("value");
+        out.writeString("String");
+        for (LogRecord.DictionaryValue value : values.values())
+            out.writeString(value.value);
+        pendingHashes.addAll(values.keySet());
+    }
+
+    @Override
+    public void finishFile(TechJournalParser parser, boolean completed) throws IOException {
+        if (!parser.pathToLog.equals(currentLog))
+            return;
+        IOException error = null;
+        for (TableFile file : files.values()) {
+            try {
+                file.output.close();
+                if (completed)
+                    Files.move(file.tmpPath, file.path, StandardCopyOption.ATOMIC_MOVE);
+                else
+                    Files.deleteIfExists(file.tmpPath);
+            } catch (IOException e) {
+                if (error == null)
+                    error = e;
+            }
+        }
+        // Тексты словаря считаются сохраненными, только когда файл словаря готов к загрузке
+        if (completed && error == null)
+            PropertyValuesDictionary.markSaved(pendingHashes, null);
+        files.clear();
+        pendingHashes.clear();
+        currentLog = null;
+        if (error != null)
+            throw error;
+    }
+
+    @Override
+    public void close() {
+        if (currentLog == null)
+            return;
+        for (TableFile file : files.values()) {
+            try {
+                file.output.close();
+                Files.deleteIfExists(file.tmpPath);
+            } catch (IOException e) {
+                logger.warn("Не удалось удалить незавершенный файл {}: {}", file.tmpPath, e.getMessage());
+            }
+        }
+        files.clear();
+        pendingHashes.clear();
+        currentLog = null;
+    }
+
+    private NativeOutput getOutput(String tablename, TechJournalParser parser) throws IOException {
+        if (!parser.pathToLog.equals(currentLog)) {
+            // Файлы предыдущего файла ТЖ, загрузка которого не была завершена, не сохраняются
+            close();
+            currentLog = parser.pathToLog;
+            currentLogId = System.currentTimeMillis();
+        }
+        TableFile file = files.get(tablename);
+        if (file == null) {
+            Path tableDir = sinkDir.resolve(tablename);
+            Files.createDirectories(tableDir);
+            file = new TableFile(tableDir.resolve(parser.parentName + "_" + parser.yearMonthDayHour + "_"
+                    + currentLogId + FILE_EXTENSION));
+            files.put(tablename, file);
+        }
+        return file.output;
+    }
+
+    private void writeColumn(NativeOutput out, String column, String columnType, List<LogRecord> records,
+                             TechJournalParser parser) throws IOException {
+        // Тип колонки таблицы может содержать значение по умолчанию, например "Float64 DEFAULT 1"
+        int defaultPosition = columnType.indexOf(" DEFAULT ");
+        String type = defaultPosition < 0 ? columnType : columnType.substring(0, defaultPosition);
+        String defaultValue = defaultPosition < 0 ? null : columnType.substring(defaultPosition + 9).trim();
+        out.writeString(column);
+        // DateTime(6) - синоним DateTime64(6), в блоке указывается основное имя типа
+        out.writeString(type.equals("DateTime(6)") ? "DateTime64(6)" : type);
+        switch (column) {
+            case "filename":
+                out.writeRepeated(parser.filename, records.size());
+                break;
+            case "parent":
+                out.writeRepeated(parser.parentName, records.size());
+                break;
+            case "source":
+                out.writeRepeated(parser.source, records.size());
+                break;
+            case "path_to_file":
+                out.writeRepeated(parser.pathToLog.toString(), records.size());
+                break;
+            case "source_pid":
+                for (int i = 0; i < records.size(); i++)
+                    out.writeInt(parser.parentPid);
+                break;
+            case "line_number":
+                for (LogRecord rec : records)
+                    out.writeInt(rec.getLineNumberInFile());
+                break;
+            case "datetime":
+                for (LogRecord rec : records)
+                    out.writeLong(toEpochMicros(rec.getTimestamp()));
+                break;
+            case "duration":
+                for (LogRecord rec : records)
+                    out.writeLong(rec.getDuration());
+                break;
+            case "event":
+                for (LogRecord rec : records)
+                    out.writeString(rec.getEvent());
+                break;
+            case "level":
+                for (LogRecord rec : records)
+                    out.writeString(rec.getLevel());
+                break;
+            default:
+                writePropertyColumn(out, column, type, defaultValue, records);
+                break;
+        }
+    }
+
+    private static void writePropertyColumn(NativeOutput out, String column, String type, String defaultValue,
+                                            List<LogRecord> records) throws IOException {
+        switch (type) {
+            case "String":
+                for (LogRecord rec : records)
+                    out.writeString(getValue(rec, column, defaultValue, ""));
+                break;
+            case "UInt64":
+                for (LogRecord rec : records)
+                    out.writeLong(Long.parseUnsignedLong(getValue(rec, column, defaultValue, "0")));
+                break;
+            case "Float64":
+                for (LogRecord rec : records)
+                    out.writeLong(Double.doubleToLongBits(Double.parseDouble(getValue(rec, column, defaultValue, "0"))));
+                break;
+            default:
+                throw new IOException(String.format("Тип %s колонки %s не поддерживается при записи в формате Native", type, column));
+        }
+    }
+
+    private static String getValue(LogRecord rec, String column, String defaultValue, String emptyValue) {
+        String value = rec.get(column);
+        if (value != null)
+            return value;
+        return defaultValue == null ? emptyValue : defaultValue;
+    }
+
+    private long toEpochMicros(LocalDateTime timestamp) {
+        return timestamp.atZone(zone).toEpochSecond() * 1_000_000L + timestamp.getNano() / 1000;
+    }
+
+    private static final class TableFile {
+        private final Path path;
+        private final Path tmpPath;
+        private final NativeOutput output;
+
+        TableFile(Path path) throws IOException {
+            this.path = path;
+            this.tmpPath = path.resolveSibling(path.getFileName() + TMP_EXTENSION);
+            this.output = new NativeOutput(new BufferedOutputStream(
+                    new GZIPOutputStream(Files.newOutputStream(tmpPath), BUFFER_SIZE), BUFFER_SIZE));
+        }
+    }
+
+    /**
+     * Кодирование значений формата Native: длины - VarUInt (LEB128), числа - little-endian, строки - длина и UTF-8
+     */
+    static final class NativeOutput implements Closeable {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[10];
+
+        NativeOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        void writeVarUInt(long value) throws IOException {
+            int length = 0;
+            while ((value & ~0x7FL) != 0) {
+                buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+            out.write(buffer, 0, length);
+        }
+
+        void writeString(String value) throws IOException {
+            writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void writeRepeated(String value, int count) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < count; i++)
+                writeBytes(bytes);
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            writeVarUInt(bytes.length);
+            out.write(bytes);
+        }
+
+        void writeInt(int value) throws IOException {
+            for (int i = 0; i < 4; i++)
+                buffer[i] = (byte) (value >>> (8 * i));
+            out.write(buffer, 0, 4);
+        }
+
+        void writeLong(long value) throws IOException {
+            for (int i = 0; i < 8; i++)
+                buffer[i] = (byte) (value >>> (8 * i));
+            out.write(buffer, 0, 8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
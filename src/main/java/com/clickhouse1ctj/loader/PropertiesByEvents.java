@@ -9,23 +9,31 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Класс работает с одним экземпляром объекта (синглтон). Объект хранит соответствие между
  * свойствами (полями) и каждым типом события из ТЖ. Информация об это соответствии собирается
  * при загрузке ТЖ и хранится в Clickhouse в таблице {@value TABLENAME}.
  * Данная таблица имеет формат: Колонка event String и Колонка property String, где
- * каждая запись определяется принадлежность указанного свойства (property) к указанному типу события (event)
+ * каждая запись определяется принадлежность указанного свойства (property) к указанному типу события (event).
+ * Проверка соответствия выполняется для каждой распарсенной записи ТЖ во всех рабочих потоках, поэтому
+ * она сделана без блокировок: множества свойств по событиям потокобезопасные, а новые пары "событие-свойство"
+ * складываются в неблокирующую очередь, которую периодически сбрасывает в таблицу фоновая задача.
  */
 public class PropertiesByEvents {
     private static final Logger logger = LoggerFactory.getLogger(PropertiesByEvents.class);
     private static final PropertiesByEvents propertiesByEvents = new PropertiesByEvents();
 
     private static final String TABLENAME = "properties_by_events_tj";
-    private final SortedMap<String, Set<String>> mapEventProperties = new TreeMap<>();
-    private final List<String[]> newEventsByProperties = new ArrayList<>();
+    private final ConcurrentMap<String, Set<String>> mapEventProperties = new ConcurrentHashMap<>();
+    private final Queue<String[]> newEventsByProperties = new ConcurrentLinkedQueue<>();
+    private ScheduledExecutorService flushExecutor;
 
     private PropertiesByEvents() {
+        // При записи в файлы (sink: native) подключение к ClickHouse не инициализируется, соответствия ведутся в памяти
+        if (ClickHouseDDLer.getDefaultNode() == null)
+            return;
         // При создании сразу проверим есть ли таблица
         try {
             if (ClickHouseDDLer.chDDLSync.tableExist(TABLENAME)){
@@ -42,33 +50,80 @@ public class PropertiesByEvents {
     }
 
     public static void setPropertiesByEvent(String event, Set<String> setFields) {
+        Set<String> propertiesByEvent = propertiesByEvents.getPropertiesByEvent(event);
         for (String field: setFields) {
-            propertiesByEvents.setPropertyByEvent(event, field);
+            // В общем случае все свойства уже известны, и проверка обходится без записи и блокировок
+            if (!propertiesByEvent.contains(field) && propertiesByEvent.add(field))
+                propertiesByEvents.newEventsByProperties.add(new String[]{event, field}); // Если ранее такой связи не было, то запомним ее
         }
     }
 
+    /**
+     * Возвращает объединение известных свойств по указанным событиям. Используется для того,
+     * чтобы сразу создать таблицу группы событий с нужным набором колонок.
+     */
+    public static Set<String> getPropertiesByEvents(Set<String> events) {
+        Set<String> properties = new HashSet<>();
+        for (String event : events) {
+            properties.addAll(propertiesByEvents.mapEventProperties.getOrDefault(event, Collections.emptySet()));
+        }
+        return properties;
+    }
+
+    /**
+     * Запускает фоновую задачу, которая с указанным интервалом сбрасывает новые пары "событие-свойство" в таблицу.
+     * Повторный вызов не создает новую задачу.
+     */
+    public static synchronized void startBackgroundFlush(int intervalSec) {
+        if (propertiesByEvents.flushExecutor != null)
+            return;
+        propertiesByEvents.flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "properties-by-events-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        propertiesByEvents.flushExecutor.scheduleWithFixedDelay(PropertiesByEvents::saveInBackground,
+                intervalSec, intervalSec, TimeUnit.SECONDS);
+        logger.debug("Запущен фоновый сброс соответствий событий и свойств с интервалом {} секунд", intervalSec);
+    }
+
     public static void save() throws SQLException {
         propertiesByEvents.insertPropertiesAndEventsInTable();
     }
 
-    private void insertPropertiesAndEventsInTable() throws SQLException {
-        if (newEventsByProperties.isEmpty()) return;
+    private static void saveInBackground() {
+        try {
+            save();
+        } catch (SQLException e) {
+            logger.error("Не удалось сохранить соответствия событий и свойств в таблицу {}: {}", TABLENAME, e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void insertPropertiesAndEventsInTable() throws SQLException {
+        // Забираем из очереди все накопленные пары. Параллельно парсеры могут добавлять новые - они попадут в следующий сброс
+        List<String[]> eventsByProperties = new ArrayList<>();
+        String[] eventProperty;
+        while ((eventProperty = newEventsByProperties.poll()) != null)
+            eventsByProperties.add(eventProperty);
+        if (eventsByProperties.isEmpty()) return;
+
         String insertQuery = "INSERT INTO "
                 + TABLENAME
                 + " (event, property) VALUES (?, ?)";
-        synchronized (newEventsByProperties) {
-            try (PreparedStatement stmt = ClickHouseDDLer.chDDLSync.getConnection().prepareStatement(insertQuery)) {
-                // Добавим все новые записи в таблицу
-                for (String[] KeyValue : newEventsByProperties) {
-                    stmt.setString(1, KeyValue[0]);
-                    stmt.setString(2, KeyValue[1]);
-                    stmt.addBatch();
-                }
-                ((ClickHousePreparedStatementImpl) stmt).executeBatch(ClickHouseDDLer.chDDLSync.chAdditionalDBParams);
-                logger.debug("В таблицу {} добавлены новые соответствия событий и свойств: {} записей", TABLENAME, newEventsByProperties.size());
+        try (PreparedStatement stmt = ClickHouseDDLer.chDDLSync.getConnection().prepareStatement(insertQuery)) {
+            // Добавим все новые записи в таблицу
+            for (String[] KeyValue : eventsByProperties) {
+                stmt.setString(1, KeyValue[0]);
+                stmt.setString(2, KeyValue[1]);
+                stmt.addBatch();
             }
-            // Очистим список новых событий и свойств
-            newEventsByProperties.clear();
+            ((ClickHousePreparedStatementImpl) stmt).executeBatch(ClickHouseDDLer.chDDLSync.chAdditionalDBParams);
+            logger.debug("В таблицу {} добавлены новые соответствия событий и свойств: {} записей", TABLENAME, eventsByProperties.size());
+        } catch (SQLException e) {
+            // Вернем пары в очередь, чтобы сохранить их при следующем сбросе
+            newEventsByProperties.addAll(eventsByProperties);
+            throw e;
         }
     }
 
@@ -99,25 +154,22 @@ public class PropertiesByEvents {
         }
     }
 
-    private void setPropertyByEvent(String event, String property) {
-        synchronized (newEventsByProperties) {
-            Set<String> propertiesByEvent = mapEventProperties.get(event);
-            if (propertiesByEvent == null) {
-                propertiesByEvent = new HashSet<>(ClickHouseDDLer.getDefaultColumns().keySet());
-                logger.trace("Создано множество обязательных свойств события {}: {}", event, propertiesByEvent);
-                for (String defaultProperty : propertiesByEvent)
-                    newEventsByProperties.add(new String[]{event, defaultProperty});
-                mapEventProperties.put(event, propertiesByEvent);
-            }
-
-            if (!propertiesByEvent.contains(property)) {
-                propertiesByEvent.add(property);
-                newEventsByProperties.add(new String[]{event, property}); // Если ранее такой связи не было, то запомним ее
-            }
-        }
+    private Set<String> getPropertiesByEvent(String event) {
+        Set<String> propertiesByEvent = mapEventProperties.get(event);
+        if (propertiesByEvent != null)
+            return propertiesByEvent;
+        // Новое событие: множество создается один раз, вместе с ним запоминаются обязательные свойства
+        return mapEventProperties.computeIfAbsent(event, e -> {
+            Set<String> defaultProperties = createNewSetPropertiesByEvent(e);
+            defaultProperties.addAll(ClickHouseDDLer.getDefaultColumns().keySet());
+            logger.trace("Создано множество обязательных свойств события {}: {}", e, defaultProperties);
+            for (String defaultProperty : defaultProperties)
+                newEventsByProperties.add(new String[]{e, defaultProperty});
+            return defaultProperties;
+        });
     }
 
     private Set<String> createNewSetPropertiesByEvent(String event) {
-        return new HashSet<>();
+        return ConcurrentHashMap.newKeySet();
     }
 }
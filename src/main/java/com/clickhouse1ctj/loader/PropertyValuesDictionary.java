@@ -0,0 +1,149 @@
+package com.clickhouse1ctj.loader;
+
+import com.clickhouse1ctj.parser.LogRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.yandex.clickhouse.ClickHouseConnection;
+import ru.yandex.clickhouse.ClickHousePreparedStatementImpl;
+import ru.yandex.clickhouse.settings.ClickHouseQueryParam;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Словарь значений крупных повторяющихся свойств (Context, Sql, planSQLText) в таблице {@value TABLENAME}.
+ * Для свойств, указанных в dictionary правил проекции, в таблицу событий загружается только хеш значения
+ * (колонка [свойство]_hash), а каждый различный текст один раз записывается в словарь на узле пакета перед его вставкой.
+ * Хеши уже записанных текстов хранятся в общем для рабочих потоков LRU-кэше вместе с набором узлов, на которых
+ * записан текст: парсер не выделяет строку только для текстов, записанных на все узлы, а при вставке пакета словарь
+ * узла дополняется недостающими текстами. После вытеснения из кэша текст может быть записан повторно, дубли
+ * схлопывает движок ReplacingMergeTree.
+ */
+public class PropertyValuesDictionary {
+    private static final Logger logger = LoggerFactory.getLogger(PropertyValuesDictionary.class);
+    static final String TABLENAME = "property_values_tj";
+
+    private static int cacheSize = 100_000;
+    // Значение: битовая маска узлов, на которых записан текст (номер бита - порядковый номер узла в nodeIndexes)
+    private static final LinkedHashMap<Long, Long> savedHashes = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > cacheSize;
+        }
+    };
+    // Номера узлов ClickHouse. При записи в локальные файлы узлов нет, словарь один (бит 0)
+    private static Map<String, Integer> nodeIndexes = Collections.emptyMap();
+    private static long allNodesMask = 1L;
+
+    private PropertyValuesDictionary() {}
+
+    public static void setCacheSize(int size) {
+        synchronized (savedHashes) {
+            cacheSize = Integer.max(size, 0);
+            Iterator<Long> eldest = savedHashes.keySet().iterator();
+            while (savedHashes.size() > cacheSize) {
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Узлы ClickHouse, на каждом из которых ведется своя таблица словаря (не больше 64 узлов)
+     */
+    static void setNodes(List<String> nodes) {
+        synchronized (savedHashes) {
+            Map<String, Integer> indexes = new HashMap<>();
+            for (String node : nodes) {
+                if (indexes.size() < Long.SIZE)
+                    indexes.putIfAbsent(node, indexes.size());
+            }
+            nodeIndexes = indexes;
+            allNodesMask = indexes.size() >= Long.SIZE ? -1L : (1L << Integer.max(indexes.size(), 1)) - 1;
+            // Номера узлов могли измениться, кэш сбрасывается
+            savedHashes.clear();
+        }
+    }
+
+    /**
+     * Текст с указанным хешем уже записан в словари всех узлов (по данным кэша)
+     */
+    public static boolean isSaved(long hash) {
+        synchronized (savedHashes) {
+            Long mask = savedHashes.get(hash);
+            return mask != null && (mask & allNodesMask) == allNodesMask;
+        }
+    }
+
+    /**
+     * Текст с указанным хешем уже записан в словарь узла node (по данным кэша)
+     */
+    static boolean isSaved(long hash, String node) {
+        synchronized (savedHashes) {
+            Long mask = savedHashes.get(hash);
+            return mask != null && (mask & getNodeMask(node)) != 0;
+        }
+    }
+
+    /**
+     * Записывает в словарь на узле node тексты словарных свойств пакета, которые еще не были записаны на этот узел.
+     * Хеши попадают в кэш только после успешной вставки, поэтому при ошибке тексты будут записаны с повторным пакетом
+     */
+    static void save(ClickHouseConnection connection, Map<ClickHouseQueryParam, String> dbParams, String node,
+                     List<LogRecord> records) throws SQLException {
+        Map<Long, LogRecord.DictionaryValue> values = getUnsavedValues(records, node);
+        if (values.isEmpty())
+            return;
+
+        ClickHouseDDLer.preparePropertyValuesTableSync(node, TABLENAME);
+        String insertQuery = "INSERT INTO " + TABLENAME + " (hash, property, value) VALUES (?, ?, ?)";
+        try (PreparedStatement stmt = connection.prepareStatement(insertQuery)) {
+            for (LogRecord.DictionaryValue value : values.values()) {
+                stmt.setString(1, Long.toUnsignedString(value.hash));
+                stmt.setString(2, getPropertyName(value.property));
+                stmt.setString(3, value.value);
+                stmt.addBatch();
+            }
+            ((ClickHousePreparedStatementImpl) stmt).executeBatch(dbParams);
+        }
+        markSaved(values.keySet(), node);
+        logger.debug("В словарь {} на узле {} записано {} новых значений", TABLENAME, node, values.size());
+    }
+
+    /**
+     * Различные тексты словарных свойств пакета, еще не записанные в словарь узла node (по данным кэша).
+     * При записи в локальные файлы node = null
+     */
+    static Map<Long, LogRecord.DictionaryValue> getUnsavedValues(List<LogRecord> records, String node) {
+        Map<Long, LogRecord.DictionaryValue> values = new LinkedHashMap<>();
+        for (LogRecord rec : records) {
+            for (LogRecord.DictionaryValue value : rec.getDictionaryValues()) {
+                // Текст мог быть записан другим потоком уже после разбора записи
+                if (!values.containsKey(value.hash) && !isSaved(value.hash, node))
+                    values.put(value.hash, value);
+            }
+        }
+        return values;
+    }
+
+    static void markSaved(Collection<Long> hashes, String node) {
+        synchronized (savedHashes) {
+            long nodeMask = getNodeMask(node);
+            for (Long hash : hashes)
+                savedHashes.merge(hash, nodeMask, (prev, cur) -> prev | cur);
+        }
+    }
+
+    private static long getNodeMask(String node) {
+        Integer index = node == null ? null : nodeIndexes.get(node);
+        return index == null ? 1L : 1L << index;
+    }
+
+    static String getPropertyName(String key) {
+        // Имена свойств, не являющиеся идентификаторами, хранятся в записи в кавычках: "p:processName"
+        if (key.length() > 1 && key.startsWith("\""))
+            return key.substring(1, key.length() - 1);
+        return key;
+    }
+}
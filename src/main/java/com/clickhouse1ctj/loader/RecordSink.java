@@ -0,0 +1,41 @@
+package com.clickhouse1ctj.loader;
+
+import com.clickhouse1ctj.parser.LogRecord;
+import com.clickhouse1ctj.parser.TechJournalParser;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.SortedSet;
+
+/**
+ * Приемник пакетов разобранных записей ТЖ (настройка sink): вставка в ClickHouse по JDBC
+ * или запись в локальные файлы для последующей загрузки (см. NativeFileSink).
+ * Экземпляр принадлежит одному потоку загрузки
+ */
+public interface RecordSink {
+
+    /**
+     * Записывает пакет записей файла ТЖ в таблицу tablename на узле node (для локальных файлов узел не используется).
+     * fields - свойства записей пакета, служебные колонки (ClickHouseDDLer.getDefaultColumns()) добавляются приемником
+     */
+    void insert(String node, String tablename, List<LogRecord> records, SortedSet<String> fields,
+                TechJournalParser parser) throws SQLException, IOException;
+
+    /**
+     * Записывает в словарь значений (PropertyValuesDictionary) на узле node тексты словарных свойств пакета.
+     * Вызывается до вставки записей, которые на них ссылаются, на тот же узел
+     */
+    void insertDictionaryValues(String node, List<LogRecord> records, TechJournalParser parser)
+            throws SQLException, IOException;
+
+    /**
+     * Завершает запись файла ТЖ: completed - загрузка файла дошла до конца, иначе прервана остановкой или ошибкой
+     */
+    void finishFile(TechJournalParser parser, boolean completed) throws IOException;
+
+    /**
+     * Освобождает ресурсы приемника по окончании работы потока
+     */
+    void close();
+}
@@ -0,0 +1,217 @@
+package com.clickhouse1ctj.loader;
+
+import com.clickhouse1ctj.config.AppConfig;
+import com.clickhouse1ctj.metrics.LoaderMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ограничение ресурсов сервера 1С, на котором работает загрузчик:
+ * - readLimitMbPerSec - общая для всех рабочих потоков скорость чтения файлов ТЖ (token bucket с запасом на секунду);
+ * - maxParseThreads - число потоков, одновременно читающих и разбирающих файлы, остальные потоки в это время
+ *   вставляют пакеты или ждут;
+ * - adaptiveThrottling - раз в {@value ADAPT_INTERVAL_SEC} секунд проверяются load average системы (на ядро) и загрузка
+ *   процессора самим загрузчиком. При превышении порогов уровень ограничения уменьшается вдвое, без превышения -
+ *   восстанавливается на {@value LEVEL_STEP_UP_PERCENT}% за проверку. Число потоков разбора и скорость чтения
+ *   уменьшаются пропорционально уровню (но не меньше одного потока).
+ */
+public class ResourceGovernor {
+    private static final Logger logger = LoggerFactory.getLogger(ResourceGovernor.class);
+    private static final int ADAPT_INTERVAL_SEC = 5;
+    private static final int LEVEL_STEP_UP_PERCENT = 10;
+    private static final double MIN_LEVEL = 1.0 / 16;
+
+    private static final Object bucketLock = new Object();
+    private static final Object parseSlots = new Object();
+    private static final AtomicLong readWaitNanos = new AtomicLong();
+    private static final AtomicLong parseWaitNanos = new AtomicLong();
+    private static volatile long readBytesPerSec; // 0 - скорость чтения не ограничена
+    private static volatile int maxParseThreads = Integer.MAX_VALUE;
+    private static volatile double level = 1;
+    private static double tokens;
+    private static long refillNanos;
+    private static int activeParsers;
+    private static int maxLoadAveragePercent;
+    private static int maxCpuPercent;
+    private static long lastCpuNanos = -1;
+    private static long lastCheckNanos;
+    private static ScheduledExecutorService adaptExecutor;
+    private static boolean enabled; // задано хотя бы одно ограничение
+
+    static {
+        LoaderMetrics.throttleWait.register("read", () -> readWaitNanos.get() / 1e9);
+        LoaderMetrics.throttleWait.register("parse", () -> parseWaitNanos.get() / 1e9);
+        LoaderMetrics.throttleLimit.register("level", () -> level);
+        LoaderMetrics.throttleLimit.register("parse_threads", () -> getAllowedParseThreads());
+        LoaderMetrics.throttleLimit.register("read_bytes_per_sec", () -> getReadRate());
+    }
+
+    private ResourceGovernor() {}
+
+    /**
+     * Применяет ограничения из настроек. Вызывается перед запуском рабочих потоков
+     */
+    public static synchronized void configure(AppConfig config) {
+        setLimits(Integer.max(config.getReadLimitMbPerSec(), 0) * 1024L * 1024L,
+                config.getMaxParseThreads() > 0 ? config.getMaxParseThreads() : Integer.max(config.getThreadCount(), 1));
+        maxLoadAveragePercent = config.getMaxLoadAveragePercent();
+        maxCpuPercent = config.getMaxCpuPercent();
+        enabled = config.getReadLimitMbPerSec() > 0 || config.getMaxParseThreads() > 0 || config.isAdaptiveThrottling();
+        if (config.isAdaptiveThrottling() && adaptExecutor == null) {
+            adaptExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "resource-governor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            adaptExecutor.scheduleAtFixedRate(ResourceGovernor::adapt, ADAPT_INTERVAL_SEC, ADAPT_INTERVAL_SEC, TimeUnit.SECONDS);
+        }
+        if (enabled)
+            logger.info("Ограничение ресурсов: {}", getStatistics());
+    }
+
+    static void setLimits(long bytesPerSec, int parseThreads) {
+        synchronized (bucketLock) {
+            readBytesPerSec = bytesPerSec;
+            tokens = bytesPerSec;
+            refillNanos = System.nanoTime();
+        }
+        synchronized (parseSlots) {
+            maxParseThreads = Integer.max(parseThreads, 1);
+            level = 1;
+            parseSlots.notifyAll();
+        }
+    }
+
+    /**
+     * Учитывает прочитанные из файла байты и при превышении скорости чтения приостанавливает поток
+     */
+    public static void acquireRead(long bytes) {
+        if (readBytesPerSec == 0 || bytes <= 0)
+            return;
+        long waitNanos;
+        synchronized (bucketLock) {
+            double rate = getReadRate();
+            long now = System.nanoTime();
+            // Запас не превышает объема чтения за одну секунду
+            tokens = Double.min(tokens + (now - refillNanos) * rate / 1e9, rate);
+            refillNanos = now;
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * 1e9 / rate) : 0;
+        }
+        if (waitNanos > 0) {
+            readWaitNanos.addAndGet(waitNanos);
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Занимает место потока разбора, ожидая, пока число одновременно разбирающих потоков не станет меньше допустимого.
+     * После разбора пакета место освобождается вызовом endParse()
+     */
+    public static void beginParse() {
+        synchronized (parseSlots) {
+            long waitStart = System.nanoTime();
+            while (activeParsers >= getAllowedParseThreads()) {
+                try {
+                    parseSlots.wait(1000);
+                } catch (InterruptedException e) {
+                    // Остановка приложения: поток дочитает пакет без ожидания
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            parseWaitNanos.addAndGet(System.nanoTime() - waitStart);
+            activeParsers++;
+        }
+    }
+
+    public static void endParse() {
+        synchronized (parseSlots) {
+            activeParsers--;
+            parseSlots.notifyAll();
+        }
+    }
+
+    private static void adapt() {
+        try {
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            // Load average недоступен в Windows (-1), тогда учитывается только загрузка процессора загрузчиком
+            double loadPercent = os.getSystemLoadAverage() < 0 ? -1
+                    : os.getSystemLoadAverage() * 100 / os.getAvailableProcessors();
+            double cpuPercent = getProcessCpuPercent(os);
+            boolean overloaded = maxLoadAveragePercent > 0 && loadPercent > maxLoadAveragePercent
+                    || maxCpuPercent > 0 && cpuPercent > maxCpuPercent;
+            double previous = level;
+            adjustLevel(overloaded);
+            if (level != previous)
+                logger.info("Уровень ограничения ресурсов изменен с {}% на {}% (load average на ядро {}%, процессор загрузчика {}%)",
+                        Math.round(previous * 100), Math.round(level * 100), Math.round(loadPercent), Math.round(cpuPercent));
+        } catch (RuntimeException e) {
+            // Исключение в задаче планировщика отменило бы все следующие проверки
+            logger.error("Не удалось проверить загрузку системы: {}", e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    static void adjustLevel(boolean overloaded) {
+        synchronized (parseSlots) {
+            if (overloaded)
+                level = Double.max(level / 2, MIN_LEVEL);
+            else
+                level = Double.min(level + LEVEL_STEP_UP_PERCENT / 100.0, 1);
+            parseSlots.notifyAll();
+        }
+    }
+
+    private static double getProcessCpuPercent(OperatingSystemMXBean os) {
+        if (!(os instanceof com.sun.management.OperatingSystemMXBean))
+            return -1;
+        long cpuNanos = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        long now = System.nanoTime();
+        double percent = -1;
+        if (lastCpuNanos >= 0 && cpuNanos >= 0 && now > lastCheckNanos)
+            percent = (cpuNanos - lastCpuNanos) * 100.0 / (now - lastCheckNanos) / os.getAvailableProcessors();
+        lastCpuNanos = cpuNanos;
+        lastCheckNanos = now;
+        return percent;
+    }
+
+    static int getAllowedParseThreads() {
+        if (maxParseThreads == Integer.MAX_VALUE)
+            return maxParseThreads;
+        return Integer.max((int) Math.round(maxParseThreads * level), 1);
+    }
+
+    private static double getReadRate() {
+        return readBytesPerSec * level;
+    }
+
+    static double getLevel() {
+        return level;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Текущие ограничения и суммарное время ожидания потоков для вывода статистики
+     */
+    public static String getStatistics() {
+        return String.format("уровень %d%%, потоков разбора %d, скорость чтения %s, ожидание чтения %.1f с, ожидание разбора %.1f с",
+                Math.round(level * 100), getAllowedParseThreads(),
+                readBytesPerSec == 0 ? "без ограничения" : String.format("%.1f МБ/с", getReadRate() / 1024 / 1024),
+                readWaitNanos.get() / 1e9, parseWaitNanos.get() / 1e9);
+    }
+}
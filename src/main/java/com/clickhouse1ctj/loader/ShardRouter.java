@@ -0,0 +1,88 @@
+package com.clickhouse1ctj.loader;
+
+import com.clickhouse1ctj.config.ClickHouseConnectConfig;
+import com.clickhouse1ctj.parser.TechJournalParser;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Выбирает узел ClickHouse для записи файла ТЖ по ключу распределения (clickhouse.shardingKey).
+ * Ключ составляется из перечисленных через запятую атрибутов файла: source, source_pid, parent, filename,
+ * day (YYMMDD) и hour (YYMMDDHH). Все атрибуты постоянны в пределах файла, поэтому все пакеты одного файла
+ * попадают на один узел, и поиск последней загруженной записи выполняется на нем же.
+ * Возвращаемый список узлов начинается с основного узла файла, следом идут узлы для переключения при сбоях.
+ */
+class ShardRouter {
+    private static final Logger logger = LoggerFactory.getLogger(ShardRouter.class);
+    private static final Set<String> KEY_ATTRIBUTES = Set.of("source", "source_pid", "parent", "filename", "day", "hour");
+
+    private final List<String> nodes;
+    private final List<String> keyAttributes = new ArrayList<>();
+
+    ShardRouter(List<String> nodes, String shardingKey) {
+        this.nodes = List.copyOf(nodes);
+        for (String attribute : shardingKey.split(",")) {
+            attribute = attribute.trim();
+            if (attribute.isEmpty())
+                continue;
+            if (KEY_ATTRIBUTES.contains(attribute))
+                keyAttributes.add(attribute);
+            else
+                logger.warn("Неизвестный атрибут ключа распределения по узлам: {}. Допустимые значения: {}",
+                        attribute, KEY_ATTRIBUTES);
+        }
+    }
+
+    ShardRouter(ClickHouseConnectConfig chConfig, List<String> nodes) {
+        this(nodes, chConfig.getShardingKey());
+    }
+
+    List<String> getNodes(TechJournalParser parser) {
+        return getNodes(getShardKey(parser.source, parser.parentPid, parser.parentName, parser.filename,
+                parser.yearMonthDayHour));
+    }
+
+    String getShardKey(String source, int sourcePid, String parent, String filename, String yearMonthDayHour) {
+        StringJoiner key = new StringJoiner("|");
+        for (String attribute : keyAttributes) {
+            switch (attribute) {
+                case "source":
+                    key.add(source);
+                    break;
+                case "source_pid":
+                    key.add(String.valueOf(sourcePid));
+                    break;
+                case "parent":
+                    key.add(parent);
+                    break;
+                case "filename":
+                    key.add(filename);
+                    break;
+                case "day":
+                    key.add(yearMonthDayHour.substring(0, 6));
+                    break;
+                case "hour":
+                    key.add(yearMonthDayHour);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return key.toString();
+    }
+
+    List<String> getNodes(String shardKey) {
+        if (nodes.size() == 1)
+            return nodes;
+        // String.hashCode() определен спецификацией, поэтому распределение не меняется между запусками
+        int primary = Math.floorMod(shardKey.hashCode(), nodes.size());
+        List<String> orderedNodes = new ArrayList<>(nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            orderedNodes.add(nodes.get((primary + i) % nodes.size()));
+        }
+        return orderedNodes;
+    }
+}
@@ -19,6 +19,11 @@ class TableLock {
         return tableLocks.computeIfAbsent(tablename, TableLock::new);
     }
 
+    public static TableLock getTableLock(String node, String tablename) {
+        // Одноименные таблицы на разных узлах ClickHouse блокируются независимо
+        return getTableLock(node + "/" + tablename);
+    }
+
     public void check() {
         logger.debug("Начало проверки семафора. Текущее значение {}", semaphore);
         while (semaphore != 0) {
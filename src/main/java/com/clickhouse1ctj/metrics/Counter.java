@@ -0,0 +1,35 @@
+package com.clickhouse1ctj.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Монотонно возрастающий счетчик (тип counter в формате Prometheus)
+ */
+public class Counter implements Metric {
+    private final String name;
+    private final String help;
+    private final LongAdder value = new LongAdder();
+
+    Counter(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public void inc() {
+        value.increment();
+    }
+
+    public void add(long delta) {
+        value.add(delta);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    @Override
+    public void writeTo(StringBuilder sb) {
+        Metric.writeHeader(sb, name, help, "counter");
+        sb.append(name).append(' ').append(value.sum()).append('\n');
+    }
+}
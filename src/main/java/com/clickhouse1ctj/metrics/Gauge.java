@@ -0,0 +1,48 @@
+package com.clickhouse1ctj.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Текущее значение с одной меткой (тип gauge в формате Prometheus). Значение по каждой метке либо
+ * устанавливается явно, либо вычисляется при запросе метрик
+ */
+public class Gauge implements Metric {
+    private final String name;
+    private final String help;
+    private final String label;
+    private final Map<String, DoubleSupplier> values = new ConcurrentSkipListMap<>();
+
+    Gauge(String name, String help, String label) {
+        this.name = name;
+        this.help = help;
+        this.label = label;
+    }
+
+    public void set(String labelValue, double value) {
+        values.put(labelValue, () -> value);
+    }
+
+    public void register(String labelValue, DoubleSupplier supplier) {
+        values.put(labelValue, supplier);
+    }
+
+    public void remove(String labelValue) {
+        values.remove(labelValue);
+    }
+
+    public Double get(String labelValue) {
+        DoubleSupplier supplier = values.get(labelValue);
+        return supplier == null ? null : supplier.getAsDouble();
+    }
+
+    @Override
+    public void writeTo(StringBuilder sb) {
+        Metric.writeHeader(sb, name, help, "gauge");
+        for (Map.Entry<String, DoubleSupplier> value : values.entrySet()) {
+            sb.append(name).append('{').append(label).append("=\"").append(Metric.escapeLabel(value.getKey())).append("\"} ")
+                    .append(value.getValue().getAsDouble()).append('\n');
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.clickhouse1ctj.metrics;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма длительностей в секундах с фиксированными границами корзин (тип histogram в формате Prometheus)
+ */
+public class Histogram implements Metric {
+    // Границы корзин покрывают диапазон от миллисекунды до минуты
+    private static final double[] BUCKETS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    private final String name;
+    private final String help;
+    private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1]; // последняя корзина - +Inf
+    private final DoubleAdder sum = new DoubleAdder();
+
+    Histogram(String name, String help) {
+        this.name = name;
+        this.help = help;
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = new LongAdder();
+    }
+
+    public void observe(double seconds) {
+        int bucket = 0;
+        while (bucket < BUCKETS.length && seconds > BUCKETS[bucket])
+            bucket++;
+        counts[bucket].increment();
+        sum.add(seconds);
+    }
+
+    /**
+     * Учитывает интервал от отметки startNanos (System.nanoTime) до текущего момента
+     */
+    public void observeSince(long startNanos) {
+        observe((System.nanoTime() - startNanos) / 1e9);
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (LongAdder count : counts)
+            total += count.sum();
+        return total;
+    }
+
+    @Override
+    public void writeTo(StringBuilder sb) {
+        Metric.writeHeader(sb, name, help, "histogram");
+        // Корзины в формате Prometheus накопительные: каждая включает все меньшие
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS.length; i++) {
+            cumulative += counts[i].sum();
+            sb.append(name).append("_bucket{le=\"").append(BUCKETS[i]).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += counts[BUCKETS.length].sum();
+        sb.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        sb.append(name).append("_sum ").append(sum.sum()).append('\n');
+        sb.append(name).append("_count ").append(cumulative).append('\n');
+    }
+}
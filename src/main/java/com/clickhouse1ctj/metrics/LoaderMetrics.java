@@ -0,0 +1,68 @@
+package com.clickhouse1ctj.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Метрики этапов загрузки: чтение и парсинг файлов, DDL, вставка пакетов, очередь файлов и отставание загрузки.
+ * Значения накапливаются с момента запуска приложения и отдаются по HTTP (см. MetricsServer)
+ */
+public class LoaderMetrics {
+    private static final List<Metric> metrics = new ArrayList<>();
+
+    public static final Counter bytesRead = register(new Counter("tj_bytes_read_total",
+            "Bytes of technological journal files read by parsers"));
+    public static final Counter recordsParsed = register(new Counter("tj_records_parsed_total",
+            "Records parsed from technological journal files"));
+    public static final Counter recordsRejected = register(new Counter("tj_records_rejected_total",
+            "Records that could not be parsed and were skipped"));
+    public static final Counter recordsFiltered = register(new Counter("tj_records_filtered_total",
+            "Records rejected by the ingest filter"));
+    public static final Counter recordsSampledOut = register(new Counter("tj_records_sampled_out_total",
+            "Records dropped by sampling policies"));
+    public static final Counter recordsTruncated = register(new Counter("tj_records_truncated_total",
+            "Records longer than maxRecordSizeKb loaded truncated"));
+    public static final Counter sqlNormalizerCacheHits = register(new Counter("tj_sql_normalizer_cache_hits_total",
+            "SQL texts whose normalized form was taken from the cache"));
+    public static final Counter sqlNormalizerCacheMisses = register(new Counter("tj_sql_normalizer_cache_misses_total",
+            "SQL texts normalized at ingest"));
+    public static final Counter filesLoaded = register(new Counter("tj_files_loaded_total",
+            "Non-empty files loaded up to the end"));
+    public static final Counter batchesInserted = register(new Counter("tj_batches_inserted_total",
+            "Batches inserted into ClickHouse tables"));
+    public static final Counter recordsInserted = register(new Counter("tj_records_inserted_total",
+            "Records inserted into ClickHouse tables"));
+    public static final Counter insertErrors = register(new Counter("tj_insert_errors_total",
+            "Failed batch insert attempts"));
+    public static final Histogram insertDuration = register(new Histogram("tj_insert_duration_seconds",
+            "Duration of batch insert (executeBatch)"));
+    public static final Counter ddlStatements = register(new Counter("tj_ddl_statements_total",
+            "DDL statements (CREATE, ALTER) executed in ClickHouse"));
+    public static final Histogram ddlWait = register(new Histogram("tj_ddl_wait_seconds",
+            "Time spent waiting for table locks between DDL and inserts"));
+    public static final Gauge queuedFiles = register(new Gauge("tj_queued_files",
+            "Files waiting for loading in the pool by class", "class"));
+    public static final Gauge throttleWait = register(new Gauge("tj_throttle_wait_seconds",
+            "Total time loader threads waited for the read bandwidth limit and parse thread slots", "kind"));
+    public static final Gauge throttleLimit = register(new Gauge("tj_throttle_limit",
+            "Current resource limits: adaptive level, allowed parse threads, read bytes per second", "limit"));
+    public static final Gauge fileLag = register(new Gauge("tj_file_lag_seconds",
+            "Lag of the last loaded record behind the modification time of the file being loaded", "file"));
+
+    private LoaderMetrics() {}
+
+    private static <T extends Metric> T register(T metric) {
+        metrics.add(metric);
+        return metric;
+    }
+
+    /**
+     * Все метрики в текстовом формате Prometheus
+     */
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder();
+        for (Metric metric : metrics)
+            metric.writeTo(sb);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,17 @@
+package com.clickhouse1ctj.metrics;
+
+/**
+ * Метрика, которая умеет вывести себя в текстовом формате Prometheus (exposition format 0.0.4)
+ */
+interface Metric {
+    void writeTo(StringBuilder sb);
+
+    static void writeHeader(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
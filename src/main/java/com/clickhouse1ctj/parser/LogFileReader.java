@@ -0,0 +1,152 @@
+package com.clickhouse1ctj.parser;
+
+import com.clickhouse1ctj.loader.ResourceGovernor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Построчное чтение файла ТЖ (UTF-8) с учетом позиции в байтах. В отличие от BufferedReader позволяет
+ * узнать смещение начала каждой прочитанной строки и продолжить чтение с заданного смещения,
+ * что используется для возобновления загрузки файла без повторного парсинга уже загруженных записей.
+ */
+class LogFileReader implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private byte[] lineBytes = new byte[1024];
+    private long position; // смещение первого непрочитанного байта
+    private long lineOffset; // смещение начала последней прочитанной строки
+    private boolean lineTruncated; // последняя прочитанная строка длиннее ограничения, ее конец пропущен
+    private int lineLength; // число сохраненных байт последней прочитанной строки
+
+    LogFileReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        buffer.flip(); // буфер пуст
+    }
+
+    /**
+     * Переход к указанному смещению в файле
+     */
+    void seek(long offset) throws IOException {
+        channel.position(offset);
+        buffer.clear().flip();
+        position = offset;
+        lineOffset = offset;
+    }
+
+    /**
+     * Читает очередную строку без символов конца строки (\n или \r\n). Возвращает null в конце файла
+     */
+    String readLine() throws IOException {
+        return readLine(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Читает очередную строку, сохраняя не больше maxLength байт: остаток длинной строки дочитывается без сохранения,
+     * чтобы одна огромная строка не занимала память целиком (см. isLineTruncated)
+     */
+    String readLine(int maxLength) throws IOException {
+        lineOffset = position;
+        lineTruncated = false;
+        int length = 0;
+        boolean eol = false;
+        while (!eol) {
+            if (!buffer.hasRemaining() && !fillBuffer()) {
+                if (length == 0)
+                    return null; // Конец файла
+                break;
+            }
+            byte b = buffer.get();
+            position++;
+            if (b == '\n') {
+                eol = true;
+            } else if (length < maxLength) {
+                if (length == lineBytes.length)
+                    lineBytes = Arrays.copyOf(lineBytes, (int) Long.min(length * 2L, maxLength));
+                lineBytes[length++] = b;
+            } else {
+                lineTruncated = true;
+            }
+        }
+        if (lineTruncated)
+            length = getCharBoundary(length);
+        else if (length > 0 && lineBytes[length - 1] == '\r')
+            length--;
+        lineLength = length;
+        return new String(lineBytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Длина без последнего символа UTF-8, байты которого сохранены не полностью
+     */
+    private int getCharBoundary(int length) {
+        int start = length - 1;
+        while (start > 0 && (lineBytes[start] & 0xC0) == 0x80)
+            start--;
+        if (start < 0)
+            return length;
+        int lead = lineBytes[start] & 0xFF;
+        int charLength = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : lead >= 0xC0 ? 2 : 1;
+        return start + charLength > length ? start : length;
+    }
+
+    boolean isLineTruncated() {
+        return lineTruncated;
+    }
+
+    /**
+     * Длина последней прочитанной строки в байтах UTF-8 (без символов конца строки и пропущенного конца длинной строки)
+     */
+    int getLineLength() {
+        return lineLength;
+    }
+
+    /**
+     * SipHash байт файла в диапазоне [start, end). Читается отдельным буфером без изменения позиции чтения строк
+     */
+    long hashRange(long start, long end) throws IOException {
+        SipHash hash = new SipHash();
+        ByteBuffer rangeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long offset = start;
+        while (offset < end) {
+            rangeBuffer.clear().limit((int) Long.min(BUFFER_SIZE, end - offset));
+            int read = channel.read(rangeBuffer, offset);
+            if (read <= 0)
+                break;
+            ResourceGovernor.acquireRead(read);
+            hash.update(rangeBuffer.array(), 0, read);
+            offset += read;
+        }
+        return hash.finish();
+    }
+
+    long getLineOffset() {
+        return lineOffset;
+    }
+
+    long getPosition() {
+        return position;
+    }
+
+    private boolean fillBuffer() throws IOException {
+        buffer.clear();
+        int read = channel.read(buffer);
+        buffer.flip();
+        // Скорость чтения файлов ограничивается общей для рабочих потоков квотой (readLimitMbPerSec)
+        ResourceGovernor.acquireRead(read);
+        return read > 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
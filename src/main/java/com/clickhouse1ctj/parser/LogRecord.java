@@ -17,12 +17,19 @@ public class LogRecord {
     // Other fields:
     private final Map<String, String> logDict = new HashMap<>();
     public final Set<String> currentLogFields = new HashSet<>(KEY_FIELDS); // все поля текущей записи лога
+    private List<DictionaryValue> dictionaryValues = List.of(); // тексты словарных свойств для записи в словарь
 
     private static final DateTimeFormatter timeStampFormat = DateTimeFormatter.ofPattern("yyMMddHHmm:ss.SSSSSS");
     private static final DateTimeFormatter datetimeFormatCH = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSSSSS");
 
     public LogRecord(String rawRecord, int lineNumber, String yearMonthDayHour) throws LogRecordParserException {
-        LogRecordParser parser = new LogRecordParser(rawRecord);
+        this(parseVariablePart(new LogRecordParser(rawRecord)), lineNumber, yearMonthDayHour);
+    }
+
+    /**
+     * Запись по уже разобранной строке лога (обязательная часть и свойства)
+     */
+    LogRecord(LogRecordParser parser, int lineNumber, String yearMonthDayHour) {
         SortedMap<String, String> fullParsedDict = parser.getDict();
         this.lineNumberInFile = lineNumber;
         // Fixed fields
@@ -38,9 +45,15 @@ public class LogRecord {
             this.logDict.put(key, entry.getValue());
         }
         this.currentLogFields.addAll(this.logDict.keySet()); // Запомним поля текущего лога
+        this.dictionaryValues = parser.getDictionaryValues();
         PropertiesByEvents.setPropertiesByEvent(this.event, this.logDict.keySet()); // Отдельно сохраним соответствие: событие -> необязательные свойства
     }
 
+    private static LogRecordParser parseVariablePart(LogRecordParser parser) throws LogRecordParserException {
+        parser.parseVariablePart();
+        return parser;
+    }
+
     public LogRecord(String timestampStr, Long duration, String event, String level, int lineNumber) {
         // Ключевые поля записи лога:
         // Строка timestampStr должна иметь формат yyyy-MM-dd HH:mm:ss.SSSSSS
@@ -51,6 +64,23 @@ public class LogRecord {
         this.lineNumberInFile = lineNumber;
     }
 
+    /**
+     * Восстанавливает ключевые поля записи по отпечатку, полученному методом getFingerprint()
+     */
+    public static LogRecord fromFingerprint(String fingerprint, int lineNumber) {
+        String[] parts = fingerprint.split("\\|", 4);
+        if (parts.length != 4)
+            return null;
+        return new LogRecord(parts[0], Long.parseLong(parts[1]), parts[2], parts[3], lineNumber);
+    }
+
+    /**
+     * Отпечаток ключевых полей записи в формате "datetime|duration|event|level"
+     */
+    public String getFingerprint() {
+        return getDateTime64CH() + "|" + duration + "|" + event + "|" + level;
+    }
+
     public boolean equals(LogRecord log, boolean checkLineNumber) {
         return timestamp.equals(log.timestamp)
                 && duration.equals(log.duration)
@@ -67,6 +97,10 @@ public class LogRecord {
         return datetimeFormatCH.format(this.timestamp);
     }
 
+    public LocalDateTime getTimestamp() {
+        return timestamp;
+    }
+
     public Long getDuration() {
         return duration;
     }
@@ -83,6 +117,21 @@ public class LogRecord {
         return lineNumberInFile;
     }
 
+    /**
+     * Вес записи при прореживании: сколько исходных записей ТЖ представляет загруженная запись
+     */
+    public double getSampleWeight() {
+        String weight = logDict.get(RecordSampler.WEIGHT_COLUMN);
+        return weight == null ? 1 : Double.parseDouble(weight);
+    }
+
+    /**
+     * Тексты словарных свойств записи, которые на момент разбора еще не были записаны в словарь
+     */
+    public List<DictionaryValue> getDictionaryValues() {
+        return dictionaryValues;
+    }
+
     @Override
     public String toString() {
         return "ЗаписьТЖ{" +
@@ -93,5 +142,19 @@ public class LogRecord {
                 ", level='" + level + '\'' +
                 '}';
     }
-}
 
+    /**
+     * Текст словарного свойства и его хеш (значение колонки [свойство]_hash)
+     */
+    public static final class DictionaryValue {
+        public final String property;
+        public final long hash;
+        public final String value;
+
+        DictionaryValue(String property, long hash, String value) {
+            this.property = property;
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+}
@@ -1,10 +1,10 @@
 package com.clickhouse1ctj.parser;
 
+import com.clickhouse1ctj.loader.PropertyValuesDictionary;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
@@ -16,25 +16,55 @@ class LogRecordParser {
     private final String rawRecord;
     private final int rowLength;
     private final SortedMap<String, String> logDict = new TreeMap<>();
+    private List<LogRecord.DictionaryValue> dictionaryValues; // тексты словарных свойств, еще не записанные в словарь
     private int pos1 = 0;
     private int pos2 = 0;
+    private int valueStart; // границы значения очередного свойства в строке записи
+    private int valueEnd;
     private static final char FIELD_SPLITTER = ',';
     private static final char KEY_VALUE_SPLITTER = '=';
+    private static final Set<String> FIX_PART_KEYS = Set.of("minSecMicrosec", "duration", "event", "level");
     private static final Pattern mandatoryLogPartPattern = Pattern.compile("^\\d\\d:\\d\\d\\.\\d{6}-\\d+,[a-zA-Z]+,\\d+,");
 
+    /**
+     * Сразу разбирается только обязательная часть записи (время, длительность, событие, уровень).
+     * Свойства разбираются отдельно методом parseVariablePart(), например, только если запись прошла фильтр
+     */
     LogRecordParser(String rawRecord) throws LogRecordParserException {
         this.rawRecord = rawRecord;
         this.rowLength = rawRecord.length();
-        parseRecord();
+        parseFixPart();
     }
 
     public SortedMap<String, String> getDict() {
         return logDict;
     }
 
-    private void parseRecord() throws LogRecordParserException {
-        parseFixPart();
-        parseVariablePart();
+    List<LogRecord.DictionaryValue> getDictionaryValues() {
+        return dictionaryValues == null ? List.of() : dictionaryValues;
+    }
+
+    String getEvent() {
+        return logDict.get("event");
+    }
+
+    String getLevel() {
+        return logDict.get("level");
+    }
+
+    String getDuration() {
+        return logDict.get("duration");
+    }
+
+    /**
+     * Минута часа из отметки времени записи (mm из mm:ss.ffffff)
+     */
+    String getMinute() {
+        return logDict.get("minSecMicrosec").substring(0, 2);
+    }
+
+    int getLength() {
+        return rowLength;
     }
 
     private void parseFixPart() throws LogRecordParserException {
@@ -62,7 +92,17 @@ class LogRecordParser {
         logDict.put("level", rawRecord.substring(pos1 + 1, pos2));
     }
 
-    private void parseVariablePart() throws LogRecordParserException {
+    void parseVariablePart() throws LogRecordParserException {
+        parseVariablePart(null);
+    }
+
+    /**
+     * Разбирает свойства записи с учетом правила проекции (null - все свойства): значения исключенных свойств
+     * пропускаются без выделения в строку, значения обрезаемых свойств сокращаются до максимальной длины,
+     * а хеш полного значения сохраняется в отдельное поле. Для словарных свойств сохраняется только хеш, а значение
+     * выделяется в строку, только если оно еще не записано в словарь
+     */
+    void parseVariablePart(PropertyProjection.Rule rule) throws LogRecordParserException {
         pos1 = pos2;
         // Пока позиция начала ключа определена и не превышает длину файла ищем пару "Ключ-Значение"
         while (pos1 != -1 && pos1 < rowLength) {
@@ -71,12 +111,34 @@ class LogRecordParser {
                 // Завершим парсинг строки
                 break;
             }
-            String value;
             try {
-                value = getValueInParsingRow();
+                findValueInParsingRow();
             } catch (StringIndexOutOfBoundsException e) {
                 throw new LogRecordParserException(String.format("Ошибка в парсинге значения ключа: %s", e.getMessage()), e);
             }
+            int maxLength = -1;
+            if (rule != null) {
+                if (rule.isExcluded(key)) {
+                    pos1 = pos2;
+                    continue;
+                }
+                if (rule.isDictionary(key)) {
+                    long hash = SipHash.hash(rawRecord, valueStart, valueEnd);
+                    if (logDict.putIfAbsent(rule.getHashColumn(key), Long.toUnsignedString(hash)) == null
+                            && !PropertyValuesDictionary.isSaved(hash))
+                        addDictionaryValue(key, hash, rawRecord.substring(valueStart, valueEnd));
+                    pos1 = pos2;
+                    continue;
+                }
+                maxLength = rule.getMaxLength(key);
+            }
+            String value;
+            if (maxLength >= 0) {
+                value = rawRecord.substring(valueStart, getTruncatedEnd(rawRecord, valueStart, valueEnd, maxLength));
+                logDict.putIfAbsent(rule.getHashColumn(key), Long.toUnsignedString(SipHash.hash(rawRecord, valueStart, valueEnd)));
+            } else {
+                value = rawRecord.substring(valueStart, valueEnd);
+            }
 
             // К сожалению, ключи свойств в записи лога могут совпадать. Например, p:processName
             // В этом случае запишем все значения через запятую.
@@ -91,6 +153,55 @@ class LogRecordParser {
         }
     }
 
+    /**
+     * Применяет правило проекции к уже разобранным свойствам (когда для фильтра записей нужны были все свойства)
+     */
+    void applyProjection(PropertyProjection.Rule rule) {
+        Map<String, String> hashes = new HashMap<>();
+        Iterator<Map.Entry<String, String>> iterator = logDict.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, String> entry = iterator.next();
+            String key = entry.getKey();
+            if (FIX_PART_KEYS.contains(key))
+                continue;
+            if (rule.isExcluded(key)) {
+                iterator.remove();
+                continue;
+            }
+            if (rule.isDictionary(key)) {
+                long hash = SipHash.hash(entry.getValue());
+                hashes.put(rule.getHashColumn(key), Long.toUnsignedString(hash));
+                if (!PropertyValuesDictionary.isSaved(hash))
+                    addDictionaryValue(key, hash, entry.getValue());
+                iterator.remove();
+                continue;
+            }
+            int maxLength = rule.getMaxLength(key);
+            if (maxLength >= 0) {
+                String value = entry.getValue();
+                hashes.put(rule.getHashColumn(key), Long.toUnsignedString(SipHash.hash(value)));
+                entry.setValue(value.substring(0, getTruncatedEnd(value, 0, value.length(), maxLength)));
+            }
+        }
+        logDict.putAll(hashes);
+    }
+
+    private void addDictionaryValue(String key, long hash, String value) {
+        if (dictionaryValues == null)
+            dictionaryValues = new ArrayList<>(1);
+        dictionaryValues.add(new LogRecord.DictionaryValue(key, hash, value));
+    }
+
+    private static int getTruncatedEnd(String value, int start, int end, int maxLength) {
+        if (end - start <= maxLength)
+            return end;
+        int truncatedEnd = start + maxLength;
+        // Не разрываем суррогатную пару
+        if (truncatedEnd > start && Character.isHighSurrogate(value.charAt(truncatedEnd - 1)))
+            truncatedEnd--;
+        return truncatedEnd;
+    }
+
     private String getKeyInParsingRow() {
         // Например: ,OSThread= - ключ в очередном свойстве лога
         pos2 = rawRecord.indexOf(KEY_VALUE_SPLITTER, pos1 + 1);
@@ -102,7 +213,7 @@ class LogRecordParser {
 
         // Чтобы каждый раз не нормализовывать имена свойств, будем их кэшировать.
         String key = cacheNormalizedProperties.computeIfAbsent(
-                rawRecord.substring(pos1 + 1, pos2), this::normalizePropertyKey);
+                rawRecord.substring(pos1 + 1, pos2), LogRecordParser::normalizePropertyKey);
         pos1 = pos2 + 1;
         return key;
     }
@@ -113,7 +224,7 @@ class LogRecordParser {
      * Возможны варианты: удалить недопустимые символы, или использовать кавычки
      * (ClickHouse допускает двойные или обратные).
      */
-    private String normalizePropertyKey(String key) {
+    static String normalizePropertyKey(String key) {
         // Используем кавычки:
         if (!propertyKeyFormat.matcher(key).find())
             return "\"" + key + "\"";
@@ -121,14 +232,18 @@ class LogRecordParser {
             return key;
     }
 
-    private String getValueInParsingRow() {
-        String value;
+    /**
+     * Определяет границы значения очередного свойства (valueStart, valueEnd) без выделения его в строку
+     */
+    private void findValueInParsingRow() {
         // Строка заканчивается пустым значением. Например, ",ConnectionString="
         // В этом случае позиция текущего символа выходит за границу строки,
         // проверим и, если это так, то вернем пустую строку
         if (pos1 == rawRecord.length()) {
             pos2 = pos1; // важно сдвинуть и pos2 за границы строки, чтобы на следующей итерации завершить циклы
-            return "";
+            valueStart = pos1;
+            valueEnd = pos1;
+            return;
         }
         // Символ из текущей позиции строки
         char curCh = rawRecord.charAt(pos1);
@@ -151,15 +266,13 @@ class LogRecordParser {
                     break;
                 }
             }
-            value = rawRecord.substring(pos1 + 1, pos2);
+            valueStart = pos1 + 1;
+            valueEnd = pos2;
             pos2++;
         } else {
             pos2 = rawRecord.indexOf(FIELD_SPLITTER, pos1);
-            if (pos2 == -1)
-                value = rawRecord.substring(pos1);
-            else
-                value = rawRecord.substring(pos1, pos2);
+            valueStart = pos1;
+            valueEnd = pos2 == -1 ? rowLength : pos2;
         }
-        return value;
     }
 }
@@ -0,0 +1,128 @@
+package com.clickhouse1ctj.parser;
+
+import com.clickhouse1ctj.config.PropertyProjectionConfig;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Проекция свойств записей ТЖ (настройка projections): какие свойства загружать по каждому событию. Все правила,
+ * подходящие событию, объединяются: исключаемые и обрезаемые свойства складываются, а если хотя бы одно правило
+ * задает include, то загружаются только перечисленные в include (а также обрезаемые и словарные) свойства.
+ * Исключенные свойства не выделяются парсером в строки, не добавляются колонками в таблицу и не передаются при вставке.
+ * Значения словарных свойств заменяются хешем, а тексты записываются в словарь (см. PropertyValuesDictionary).
+ */
+public class PropertyProjection {
+    static final String HASH_SUFFIX = "_hash";
+    private final List<PropertyProjectionConfig> rules;
+    private final ConcurrentMap<String, Optional<Rule>> rulesByEvent = new ConcurrentHashMap<>();
+
+    private PropertyProjection(List<PropertyProjectionConfig> rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * Проекция по правилам из настроек или null, если правила не заданы (загружаются все свойства)
+     */
+    public static PropertyProjection compile(List<PropertyProjectionConfig> rules) {
+        if (rules == null || rules.isEmpty())
+            return null;
+        return new PropertyProjection(new ArrayList<>(rules));
+    }
+
+    /**
+     * Правило для события или null, если для события правил нет
+     */
+    Rule getRule(String event) {
+        return rulesByEvent.computeIfAbsent(event, this::buildRule).orElse(null);
+    }
+
+    private Optional<Rule> buildRule(String event) {
+        Set<String> include = null;
+        Set<String> exclude = new HashSet<>();
+        Map<String, Integer> truncate = new HashMap<>();
+        Set<String> dictionary = new HashSet<>();
+        boolean found = false;
+        for (PropertyProjectionConfig config : rules) {
+            if (!config.getEvents().isEmpty() && config.getEvents().stream().noneMatch(event::equalsIgnoreCase))
+                continue;
+            found = true;
+            if (!config.getInclude().isEmpty()) {
+                if (include == null)
+                    include = new HashSet<>();
+                for (String name : config.getInclude())
+                    addProperty(include, name);
+            }
+            config.getExclude().forEach(name -> addProperty(exclude, name));
+            config.getDictionary().forEach(name -> addProperty(dictionary, name));
+            for (String name : config.getTruncate()) {
+                // При повторе свойства в нескольких правилах действует меньшая длина
+                truncate.merge(LogRecordParser.normalizePropertyKey(name.trim()), config.getMaxLength(), Integer::min);
+            }
+        }
+        return found ? Optional.of(new Rule(include, exclude, truncate, dictionary)) : Optional.empty();
+    }
+
+    private static void addProperty(Set<String> properties, String name) {
+        properties.add(LogRecordParser.normalizePropertyKey(name.trim()));
+    }
+
+    /**
+     * Колонка для хеша полного значения обрезаемого или словарного свойства: Sql - Sql_hash, "p:processName" - "p:processName_hash"
+     */
+    static String getHashColumn(String key) {
+        if (key.startsWith("\""))
+            return key.substring(0, key.length() - 1) + HASH_SUFFIX + "\"";
+        return key + HASH_SUFFIX;
+    }
+
+    public static boolean isHashColumn(String column) {
+        return column.endsWith(HASH_SUFFIX) || column.endsWith(HASH_SUFFIX + "\"");
+    }
+
+    /**
+     * Итоговое правило проекции для одного события
+     */
+    static final class Rule {
+        private final Set<String> include; // null - ограничения по составу свойств нет
+        private final Set<String> exclude;
+        private final Map<String, Integer> truncate;
+        private final Set<String> dictionary;
+        private final Map<String, String> hashColumns = new HashMap<>();
+
+        Rule(Set<String> include, Set<String> exclude, Map<String, Integer> truncate, Set<String> dictionary) {
+            this.include = include;
+            this.exclude = exclude;
+            this.truncate = truncate;
+            this.dictionary = dictionary;
+            truncate.keySet().forEach(key -> hashColumns.put(key, PropertyProjection.getHashColumn(key)));
+            dictionary.forEach(key -> hashColumns.put(key, PropertyProjection.getHashColumn(key)));
+        }
+
+        boolean isExcluded(String key) {
+            if (exclude.contains(key))
+                return true;
+            return include != null && !include.contains(key) && !truncate.containsKey(key) && !dictionary.contains(key);
+        }
+
+        /**
+         * Значение свойства заменяется хешем, а текст записывается в словарь
+         */
+        boolean isDictionary(String key) {
+            return dictionary.contains(key);
+        }
+
+        /**
+         * Максимальная длина значения свойства или -1, если свойство не обрезается
+         */
+        int getMaxLength(String key) {
+            Integer maxLength = truncate.get(key);
+            return maxLength == null ? -1 : maxLength;
+        }
+
+        String getHashColumn(String key) {
+            return hashColumns.get(key);
+        }
+    }
+}
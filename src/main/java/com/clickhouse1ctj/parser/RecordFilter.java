@@ -0,0 +1,378 @@
+package com.clickhouse1ctj.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Фильтр записей ТЖ при загрузке (настройка filter). Пример выражения:
+ * <pre>event in (EXCP, TLOCK, TTIMEOUT, TDEADLOCK) or event = CALL and duration > 1000000</pre>
+ * Поля: event, level, duration, source (тип процесса из имени каталога, например rphost) и свойства записи
+ * (Usr, Context, "p:processName"). Операции сравнения: =, !=, &lt;&gt;, &gt;, &gt;=, &lt;, &lt;=, in (...), not in (...),
+ * ~ и !~ (поиск по регулярному выражению); связки and, or, not и скобки. Значения - числа, слова или строки
+ * в одинарных кавычках. Отсутствующее в записи свойство считается пустой строкой.
+ * <p>
+ * Условие сначала проверяется по обязательной части записи (событие, уровень, длительность): условия на свойства
+ * на этом шаге неизвестны, и выражение вычисляется в трехзначной логике. Если результат уже ложен, запись
+ * отклоняется без разбора свойств, если истинен - принимается без повторной проверки.
+ */
+public class RecordFilter {
+    private final String expression;
+    private final Node root;
+
+    private RecordFilter(String expression, Node root) {
+        this.expression = expression;
+        this.root = root;
+    }
+
+    /**
+     * Разбирает выражение фильтра. Для пустого выражения возвращает null (загружаются все записи)
+     */
+    public static RecordFilter compile(String expression) throws RecordFilterException {
+        if (expression == null || expression.isBlank())
+            return null;
+        ExpressionParser parser = new ExpressionParser(expression);
+        return new RecordFilter(expression.trim(), parser.parse());
+    }
+
+    /**
+     * Проверка по обязательной части записи: TRUE или FALSE, если результат не зависит от свойств, иначе null
+     */
+    Boolean testFixPart(LogRecordParser record, String source) {
+        return root.evaluate(record, source, false);
+    }
+
+    /**
+     * Проверка записи с разобранными свойствами
+     */
+    boolean test(LogRecordParser record, String source) {
+        return Boolean.TRUE.equals(root.evaluate(record, source, true));
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    private interface Node {
+        /**
+         * Значение условия в трехзначной логике: null - неизвестно (свойства записи еще не разобраны)
+         */
+        Boolean evaluate(LogRecordParser record, String source, boolean withProperties);
+    }
+
+    private static Boolean and(Boolean left, Boolean right) {
+        if (Boolean.FALSE.equals(left) || Boolean.FALSE.equals(right))
+            return Boolean.FALSE;
+        if (left == null || right == null)
+            return null;
+        return Boolean.TRUE;
+    }
+
+    private static Boolean or(Boolean left, Boolean right) {
+        if (Boolean.TRUE.equals(left) || Boolean.TRUE.equals(right))
+            return Boolean.TRUE;
+        if (left == null || right == null)
+            return null;
+        return Boolean.FALSE;
+    }
+
+    private static final class Comparison implements Node {
+        private final String field; // event, level, duration, source или нормализованное имя свойства
+        private final boolean property;
+        private final String operator;
+        private final List<String> values;
+        private final Pattern pattern;
+
+        Comparison(String field, boolean property, String operator, List<String> values) throws RecordFilterException {
+            this.field = field;
+            this.property = property;
+            this.operator = operator;
+            this.values = values;
+            if (operator.equals("~") || operator.equals("!~")) {
+                try {
+                    pattern = Pattern.compile(values.get(0));
+                } catch (PatternSyntaxException e) {
+                    throw new RecordFilterException(String.format("Некорректное регулярное выражение '%s'", values.get(0)), e);
+                }
+            } else {
+                pattern = null;
+            }
+            if (field.equals("duration") && pattern == null) {
+                for (String value : values) {
+                    if (parseNumber(value) == null)
+                        throw new RecordFilterException(String.format("Длительность можно сравнивать только с числом, указано '%s'", value));
+                }
+            }
+        }
+
+        @Override
+        public Boolean evaluate(LogRecordParser record, String source, boolean withProperties) {
+            String actual;
+            if (!property) {
+                switch (field) {
+                    case "event": actual = record.getEvent(); break;
+                    case "level": actual = record.getLevel(); break;
+                    case "duration": actual = record.getDuration(); break;
+                    default: actual = source; break;
+                }
+            } else if (!withProperties) {
+                return null;
+            } else {
+                actual = record.getDict().get(field);
+                if (actual == null)
+                    actual = "";
+            }
+            return compare(actual);
+        }
+
+        private boolean compare(String actual) {
+            switch (operator) {
+                case "=": return isEqual(actual, values.get(0));
+                case "!=": return !isEqual(actual, values.get(0));
+                case "in": return values.stream().anyMatch(value -> isEqual(actual, value));
+                case "not in": return values.stream().noneMatch(value -> isEqual(actual, value));
+                case "~": return pattern.matcher(actual).find();
+                case "!~": return !pattern.matcher(actual).find();
+                default:
+                    int result = compareValues(actual, values.get(0));
+                    switch (operator) {
+                        case ">": return result > 0;
+                        case ">=": return result >= 0;
+                        case "<": return result < 0;
+                        default: return result <= 0;
+                    }
+            }
+        }
+
+        private boolean isEqual(String actual, String expected) {
+            // Имена событий и процессов сравниваются без учета регистра, числа - как числа
+            if (!property && (field.equals("event") || field.equals("source")))
+                return actual.equalsIgnoreCase(expected);
+            return compareValues(actual, expected) == 0;
+        }
+
+        private static int compareValues(String actual, String expected) {
+            Long actualNumber = parseNumber(actual);
+            Long expectedNumber = parseNumber(expected);
+            if (actualNumber != null && expectedNumber != null)
+                return Long.compare(actualNumber, expectedNumber);
+            return actual.compareTo(expected);
+        }
+
+        private static Long parseNumber(String value) {
+            if (value.isEmpty() || value.length() > 18)
+                return null;
+            for (int i = 0; i < value.length(); i++) {
+                if (!Character.isDigit(value.charAt(i)) && !(i == 0 && value.charAt(i) == '-' && value.length() > 1))
+                    return null;
+            }
+            return Long.parseLong(value);
+        }
+    }
+
+    /**
+     * Разбор выражения рекурсивным спуском:
+     * выражение := и ('or' и)*; и := унарное ('and' унарное)*; унарное := 'not' унарное | '(' выражение ')' | сравнение
+     */
+    private static final class ExpressionParser {
+        private static final int WORD = 0;
+        private static final int STRING = 1;
+        private static final int QUOTED_NAME = 2;
+        private static final int SYMBOL = 3;
+        private static final int END = 4;
+
+        private final String expression;
+        private int pos;
+        private int tokenType;
+        private String token;
+        private int tokenStart;
+
+        ExpressionParser(String expression) throws RecordFilterException {
+            this.expression = expression;
+            nextToken();
+        }
+
+        Node parse() throws RecordFilterException {
+            Node root = parseOr();
+            if (tokenType != END)
+                throw error("ожидается and, or или конец выражения");
+            return root;
+        }
+
+        private Node parseOr() throws RecordFilterException {
+            Node left = parseAnd();
+            while (isKeyword("or")) {
+                nextToken();
+                Node leftNode = left;
+                Node rightNode = parseAnd();
+                left = (record, source, withProperties) -> {
+                    Boolean leftValue = leftNode.evaluate(record, source, withProperties);
+                    if (Boolean.TRUE.equals(leftValue))
+                        return Boolean.TRUE;
+                    return or(leftValue, rightNode.evaluate(record, source, withProperties));
+                };
+            }
+            return left;
+        }
+
+        private Node parseAnd() throws RecordFilterException {
+            Node left = parseUnary();
+            while (isKeyword("and")) {
+                nextToken();
+                Node leftNode = left;
+                Node rightNode = parseUnary();
+                left = (record, source, withProperties) -> {
+                    Boolean leftValue = leftNode.evaluate(record, source, withProperties);
+                    if (Boolean.FALSE.equals(leftValue))
+                        return Boolean.FALSE;
+                    return and(leftValue, rightNode.evaluate(record, source, withProperties));
+                };
+            }
+            return left;
+        }
+
+        private Node parseUnary() throws RecordFilterException {
+            if (isKeyword("not")) {
+                nextToken();
+                Node operand = parseUnary();
+                return (record, source, withProperties) -> {
+                    Boolean value = operand.evaluate(record, source, withProperties);
+                    return value == null ? null : !value;
+                };
+            }
+            if (isSymbol("(")) {
+                nextToken();
+                Node node = parseOr();
+                expectSymbol(")");
+                return node;
+            }
+            return parseComparison();
+        }
+
+        private Node parseComparison() throws RecordFilterException {
+            if (tokenType != WORD && tokenType != QUOTED_NAME)
+                throw error("ожидается имя поля");
+            String name = token;
+            boolean quoted = tokenType == QUOTED_NAME;
+            nextToken();
+
+            String field = name.toLowerCase(Locale.ROOT);
+            boolean property = quoted || !(field.equals("event") || field.equals("level")
+                    || field.equals("duration") || field.equals("source"));
+            if (property) {
+                // Имена свойств в записи нормализуются так же, как при парсинге (см. LogRecordParser)
+                field = LogRecordParser.normalizePropertyKey(name);
+            }
+
+            String operator;
+            List<String> values = new ArrayList<>();
+            if (isKeyword("not") || isKeyword("in")) {
+                operator = isKeyword("not") ? "not in" : "in";
+                nextToken();
+                if (operator.equals("not in")) {
+                    if (!isKeyword("in"))
+                        throw error("ожидается in");
+                    nextToken();
+                }
+                expectSymbol("(");
+                values.add(parseValue());
+                while (isSymbol(",")) {
+                    nextToken();
+                    values.add(parseValue());
+                }
+                expectSymbol(")");
+            } else if (tokenType == SYMBOL && List.of("=", "!=", "<>", ">", ">=", "<", "<=", "~", "!~").contains(token)) {
+                operator = token.equals("<>") ? "!=" : token;
+                nextToken();
+                values.add(parseValue());
+            } else {
+                throw error("ожидается операция сравнения");
+            }
+            return new Comparison(field, property, operator, values);
+        }
+
+        private String parseValue() throws RecordFilterException {
+            if (tokenType != WORD && tokenType != STRING)
+                throw error("ожидается значение");
+            String value = token;
+            nextToken();
+            return value;
+        }
+
+        private boolean isKeyword(String keyword) {
+            return tokenType == WORD && token.equalsIgnoreCase(keyword);
+        }
+
+        private boolean isSymbol(String symbol) {
+            return tokenType == SYMBOL && token.equals(symbol);
+        }
+
+        private void expectSymbol(String symbol) throws RecordFilterException {
+            if (!isSymbol(symbol))
+                throw error("ожидается " + symbol);
+            nextToken();
+        }
+
+        private void nextToken() throws RecordFilterException {
+            while (pos < expression.length() && Character.isWhitespace(expression.charAt(pos)))
+                pos++;
+            tokenStart = pos;
+            if (pos == expression.length()) {
+                tokenType = END;
+                token = "";
+                return;
+            }
+            char ch = expression.charAt(pos);
+            if (ch == '\'' || ch == '"') {
+                // Строка в одинарных кавычках или имя свойства в двойных, кавычка внутри удваивается
+                StringBuilder sb = new StringBuilder();
+                pos++;
+                while (true) {
+                    if (pos >= expression.length())
+                        throw error("не закрыта кавычка");
+                    char current = expression.charAt(pos++);
+                    if (current == ch) {
+                        if (pos < expression.length() && expression.charAt(pos) == ch) {
+                            sb.append(ch);
+                            pos++;
+                            continue;
+                        }
+                        break;
+                    }
+                    sb.append(current);
+                }
+                tokenType = ch == '\'' ? STRING : QUOTED_NAME;
+                token = sb.toString();
+            } else if (isWordChar(ch)) {
+                while (pos < expression.length() && isWordChar(expression.charAt(pos)))
+                    pos++;
+                tokenType = WORD;
+                token = expression.substring(tokenStart, pos);
+            } else {
+                String twoChars = expression.substring(pos, Integer.min(pos + 2, expression.length()));
+                if (twoChars.equals("!=") || twoChars.equals("<>") || twoChars.equals(">=")
+                        || twoChars.equals("<=") || twoChars.equals("!~")) {
+                    token = twoChars;
+                } else if ("=<>~(),".indexOf(ch) >= 0) {
+                    token = String.valueOf(ch);
+                } else {
+                    throw error("недопустимый символ '" + ch + "'");
+                }
+                pos += token.length();
+                tokenType = SYMBOL;
+            }
+        }
+
+        private static boolean isWordChar(char ch) {
+            return Character.isLetterOrDigit(ch) || ch == '_' || ch == ':' || ch == '.' || ch == '-';
+        }
+
+        private RecordFilterException error(String message) {
+            return new RecordFilterException(String.format("Ошибка в фильтре записей \"%s\" в позиции %d: %s",
+                    expression, tokenStart + 1, message));
+        }
+    }
+}
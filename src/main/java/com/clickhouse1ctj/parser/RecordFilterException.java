@@ -0,0 +1,7 @@
+package com.clickhouse1ctj.parser;
+
+public class RecordFilterException extends Exception {
+    RecordFilterException(String message) {super(message);}
+
+    RecordFilterException(String message, Exception e) {super(message, e);}
+}
@@ -0,0 +1,112 @@
+package com.clickhouse1ctj.parser;
+
+import com.clickhouse1ctj.config.SamplingConfig;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Прореживание записей высокочастотных событий (SCALL, CALL, MEM, PROC) при загрузке по правилам sampling.
+ * Решение принимается сразу после разбора обязательной части записи, отброшенные записи дальше не разбираются.
+ * Для события действует первое подходящее правило:
+ * - записи с длительностью не меньше minDuration загружаются всегда (вес 1);
+ * - остальные записи загружаются с вероятностью ratio (вес 1/ratio). Выбор определяется хешем начала записи,
+ *   поэтому при повторной загрузке файла отбираются те же записи;
+ * - если задан perMinute, то за минуту из записей события загружаются первые perMinute записей, затем каждая
+ *   вторая из следующих 2*perMinute, каждая четвертая из следующих 4*perMinute и т.д. Вес записи равен шагу
+ *   отбора, поэтому сумма весов за минуту совпадает с числом записей, а число загруженных записей растет
+ *   логарифмически. Полноценная выборка-резервуар потребовала бы придерживать записи минуты до ее окончания,
+ *   что несовместимо с сохранением позиции загрузки после каждого пакета.
+ * Экземпляр хранит счетчики по минутам и создается для каждого файла (записи файла упорядочены по времени).
+ */
+public class RecordSampler {
+    public static final String WEIGHT_COLUMN = "sample_weight";
+    private static final int HASHED_PREFIX_LENGTH = 64;
+    private static final EventState NOT_SAMPLED = new EventState(null);
+    private final List<SamplingConfig> policies;
+    private final Map<String, EventState> states = new HashMap<>();
+
+    private RecordSampler(List<SamplingConfig> policies) {
+        this.policies = policies;
+    }
+
+    /**
+     * Прореживание по правилам из настроек или null, если правила не заданы (загружаются все записи)
+     */
+    public static RecordSampler create(List<SamplingConfig> policies) {
+        if (policies == null || policies.isEmpty())
+            return null;
+        return new RecordSampler(new ArrayList<>(policies));
+    }
+
+    /**
+     * Вес записи: 0 - запись отбрасывается, 1 - загружается без прореживания,
+     * больше 1 - загружается и представляет указанное число записей
+     */
+    double sample(LogRecordParser parser, String rawRecord) {
+        EventState state = states.computeIfAbsent(parser.getEvent(), this::getState);
+        SamplingConfig policy = state.policy;
+        if (policy == null)
+            return 1;
+        if (policy.getMinDuration() > 0 && Long.parseLong(parser.getDuration()) >= policy.getMinDuration())
+            return 1;
+        double weight = 1;
+        if (policy.getRatio() < 1) {
+            long hash = SipHash.hash(rawRecord, 0, Integer.min(rawRecord.length(), HASHED_PREFIX_LENGTH));
+            // Старшие 53 бита хеша - равномерное число в [0, 1)
+            if ((hash >>> 11) * 0x1.0p-53 >= policy.getRatio())
+                return 0;
+            weight = 1 / policy.getRatio();
+        }
+        if (policy.getPerMinute() > 0)
+            weight *= state.nextInMinute(parser.getMinute(), policy.getPerMinute());
+        return weight;
+    }
+
+    private EventState getState(String event) {
+        for (SamplingConfig policy : policies) {
+            if (policy.getEvents().isEmpty() || policy.getEvents().stream().anyMatch(event::equalsIgnoreCase))
+                return new EventState(policy);
+        }
+        return NOT_SAMPLED;
+    }
+
+    private static final class EventState {
+        private final SamplingConfig policy;
+        private String minute;
+        private long step; // каждая step-я запись текущей ступени загружается
+        private long position; // номер записи внутри окна из step записей
+        private int stageLeft; // сколько записей еще загрузить на текущей ступени
+
+        EventState(SamplingConfig policy) {
+            this.policy = policy;
+        }
+
+        /**
+         * Вес очередной записи минуты (шаг отбора) или 0, если запись отбрасывается
+         */
+        long nextInMinute(String recordMinute, int perMinute) {
+            if (!recordMinute.equals(minute)) {
+                minute = recordMinute;
+                step = 1;
+                position = 0;
+                stageLeft = perMinute;
+            }
+            long currentStep = step;
+            boolean keep = position == 0;
+            if (keep)
+                stageLeft--;
+            // Ступень меняется только в конце окна, чтобы последняя загруженная запись представляла ровно step записей
+            if (++position == step) {
+                position = 0;
+                if (stageLeft == 0) {
+                    step *= 2;
+                    stageLeft = perMinute;
+                }
+            }
+            return keep ? currentStep : 0;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.clickhouse1ctj.parser;
+
+/**
+ * SipHash-2-4 с нулевым ключом - тот же алгоритм, что у функции sipHash64 в ClickHouse. Хеш строки считается по ее
+ * байтам UTF-8 без создания промежуточного массива, поэтому значение sipHash64(колонка) в ClickHouse совпадает
+ * с хешем, посчитанным при загрузке
+ */
+public class SipHash {
+    private long v0;
+    private long v1;
+    private long v2;
+    private long v3;
+    private long tail; // неполное 8-байтовое слово
+    private int length; // всего байт
+
+    /**
+     * Потоковое вычисление хеша с нулевым ключом: данные передаются частями методом update, хеш возвращает finish
+     */
+    SipHash() {
+        this(0, 0);
+    }
+
+    private SipHash(long k0, long k1) {
+        v0 = 0x736f6d6570736575L ^ k0;
+        v1 = 0x646f72616e646f6dL ^ k1;
+        v2 = 0x6c7967656e657261L ^ k0;
+        v3 = 0x7465646279746573L ^ k1;
+    }
+
+    public static long hash(CharSequence value) {
+        return hash(value, 0, value.length());
+    }
+
+    /**
+     * Хеш подстроки [start, end) в кодировке UTF-8
+     */
+    public static long hash(CharSequence value, int start, int end) {
+        SipHash state = new SipHash(0, 0);
+        for (int i = start; i < end; i++) {
+            char ch = value.charAt(i);
+            if (ch < 0x80) {
+                state.update(ch);
+            } else if (ch < 0x800) {
+                state.update(0xC0 | ch >> 6);
+                state.update(0x80 | ch & 0x3F);
+            } else if (Character.isHighSurrogate(ch) && i + 1 < end && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(ch, value.charAt(++i));
+                state.update(0xF0 | codePoint >> 18);
+                state.update(0x80 | codePoint >> 12 & 0x3F);
+                state.update(0x80 | codePoint >> 6 & 0x3F);
+                state.update(0x80 | codePoint & 0x3F);
+            } else if (Character.isSurrogate(ch)) {
+                // Непарный суррогат кодируется как '?', так же как в String.getBytes(UTF_8)
+                state.update('?');
+            } else {
+                state.update(0xE0 | ch >> 12);
+                state.update(0x80 | ch >> 6 & 0x3F);
+                state.update(0x80 | ch & 0x3F);
+            }
+        }
+        return state.finish();
+    }
+
+    static long hash(long k0, long k1, byte[] data) {
+        SipHash state = new SipHash(k0, k1);
+        for (byte b : data)
+            state.update(b);
+        return state.finish();
+    }
+
+    void update(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++)
+            update(data[i]);
+    }
+
+    private void update(int b) {
+        tail |= (b & 0xFFL) << (8 * (length & 7));
+        length++;
+        if ((length & 7) == 0) {
+            compress(tail);
+            tail = 0;
+        }
+    }
+
+    long finish() {
+        compress(tail | (length & 0xFFL) << 56);
+        v2 ^= 0xFF;
+        for (int i = 0; i < 4; i++)
+            round();
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+
+    private void compress(long m) {
+        v3 ^= m;
+        round();
+        round();
+        v0 ^= m;
+    }
+
+    private void round() {
+        v0 += v1;
+        v1 = Long.rotateLeft(v1, 13);
+        v1 ^= v0;
+        v0 = Long.rotateLeft(v0, 32);
+        v2 += v3;
+        v3 = Long.rotateLeft(v3, 16);
+        v3 ^= v2;
+        v0 += v3;
+        v3 = Long.rotateLeft(v3, 21);
+        v3 ^= v0;
+        v2 += v1;
+        v1 = Long.rotateLeft(v1, 17);
+        v1 ^= v2;
+        v2 = Long.rotateLeft(v2, 32);
+    }
+}
@@ -0,0 +1,214 @@
+package com.clickhouse1ctj.parser;
+
+import com.clickhouse1ctj.metrics.LoaderMetrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * Нормализация текста запросов СУБД (свойство Sql событий DBMSSQL, DBPOSTGRS и др.) для группировки по виду запроса:
+ * строковые и числовые литералы и параметры заменяются на ?, номера временных таблиц (#tt12, pg_temp.tt12)
+ * отбрасываются, списки IN сворачиваются в IN (...), пробелы схлопываются, значения параметров в конце текста
+ * (p_0: ...) удаляются. В запись добавляются поля Sql_normalized и Sql_fingerprint (sipHash64 нормализованного текста).
+ * Результаты кэшируются по хешу исходного текста, кэш ограничен числом записей и суммарной длиной текстов.
+ * Кэш общий для потоков загрузки и читается без блокировки. Вытеснение приблизительное: при превышении ограничений
+ * один поток за проход удаляет четверть давно не использованных текстов, остальные потоки его не ждут.
+ */
+public class SqlNormalizer {
+    public static final String NORMALIZED_COLUMN = "Sql_normalized";
+    public static final String FINGERPRINT_COLUMN = "Sql_fingerprint";
+    private static final Set<String> SQL_EVENTS = Set.of("DBMSSQL", "DBPOSTGRS", "DBORACLE", "DB2", "DBV8DBENG");
+    private static final long MAX_CACHED_CHARS = 16 * 1024 * 1024;
+    private static final Pattern IN_LIST_PATTERN = Pattern.compile("(?i)\\bIN \\( ?\\?(?: ?, ?\\?)* ?\\)");
+
+    private final int cacheSize;
+    private final ConcurrentHashMap<Long, CacheEntry> cache = new ConcurrentHashMap<>();
+    private final AtomicLong cachedChars = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    public SqlNormalizer(int cacheSize) {
+        this.cacheSize = Integer.max(cacheSize, 0);
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    static boolean isSqlEvent(String event) {
+        return SQL_EVENTS.contains(event);
+    }
+
+    /**
+     * Добавляет в свойства записи нормализованный текст и отпечаток запроса sql
+     */
+    void addColumns(Map<String, String> dict, String sql) {
+        if (sql == null || sql.isEmpty())
+            return;
+        Result result = normalize(sql);
+        dict.put(NORMALIZED_COLUMN, result.normalized);
+        dict.put(FINGERPRINT_COLUMN, Long.toUnsignedString(result.fingerprint));
+    }
+
+    Result normalize(String sql) {
+        long rawHash = SipHash.hash(sql);
+        CacheEntry cached = cache.get(rawHash);
+        if (cached != null) {
+            cached.lastUsed = System.nanoTime();
+            LoaderMetrics.sqlNormalizerCacheHits.inc();
+            return cached.result;
+        }
+        LoaderMetrics.sqlNormalizerCacheMisses.inc();
+        String normalized = normalizeText(sql);
+        Result result = new Result(normalized, SipHash.hash(normalized));
+        if (cacheSize > 0) {
+            if (cache.putIfAbsent(rawHash, new CacheEntry(result)) == null)
+                cachedChars.addAndGet(normalized.length());
+            if (isOverflowed(cacheSize, MAX_CACHED_CHARS))
+                evict();
+        }
+        return result;
+    }
+
+    private boolean isOverflowed(int maxSize, long maxChars) {
+        return cache.size() > maxSize || cachedChars.get() > maxChars && cache.size() > 1;
+    }
+
+    /**
+     * Вытесняет давно не использованные тексты, пока кэш не станет на четверть меньше ограничений.
+     * Если вытеснение уже выполняет другой поток, то текущий поток продолжает работу
+     */
+    private void evict() {
+        if (!evictionLock.tryLock())
+            return;
+        try {
+            int maxSize = cacheSize - cacheSize / 4;
+            long maxChars = MAX_CACHED_CHARS - MAX_CACHED_CHARS / 4;
+            List<Map.Entry<Long, CacheEntry>> entries = new ArrayList<>(cache.entrySet());
+            entries.sort(Comparator.comparingLong(entry -> entry.getValue().lastUsed));
+            for (Map.Entry<Long, CacheEntry> entry : entries) {
+                if (!isOverflowed(maxSize, maxChars))
+                    break;
+                if (cache.remove(entry.getKey(), entry.getValue()))
+                    cachedChars.addAndGet(-entry.getValue().result.normalized.length());
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    static String normalizeText(String sql) {
+        int end = getParametersStart(sql);
+        StringBuilder sb = new StringBuilder(end);
+        boolean space = false;
+        int i = 0;
+        while (i < end) {
+            char ch = sql.charAt(i);
+            if (Character.isWhitespace(ch)) {
+                space = true;
+                i++;
+                continue;
+            }
+            if (space && sb.length() > 0)
+                sb.append(' ');
+            space = false;
+            boolean identifierStart = i == 0 || !isIdentifierChar(sql.charAt(i - 1));
+            if (ch == '\'' || (ch == 'N' || ch == 'n') && identifierStart && i + 1 < end && sql.charAt(i + 1) == '\'') {
+                // Строковый литерал (в том числе N'...'), кавычка внутри удваивается
+                i = sql.indexOf('\'', i) + 1;
+                while (i < end) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < end && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                i++;
+                sb.append('?');
+            } else if (Character.isDigit(ch) && identifierStart) {
+                // Число или двоичная строка 0x...
+                i++;
+                while (i < end && (isIdentifierChar(sql.charAt(i)) || sql.charAt(i) == '.'))
+                    i++;
+                sb.append('?');
+            } else if ((ch == '@' || ch == '$') && identifierStart && i + 1 < end
+                    && (Character.isDigit(sql.charAt(i + 1)) || (sql.charAt(i + 1) == 'P' || sql.charAt(i + 1) == 'p')
+                    && i + 2 < end && Character.isDigit(sql.charAt(i + 2)))) {
+                // Параметры запроса: @P1 (MS SQL), $1 (PostgreSQL)
+                i++;
+                while (i < end && isIdentifierChar(sql.charAt(i)))
+                    i++;
+                sb.append('?');
+            } else if (isIdentifierChar(ch) || ch == '#') {
+                int start = i;
+                i++;
+                while (i < end && isIdentifierChar(sql.charAt(i)))
+                    i++;
+                appendIdentifier(sb, sql, start, i);
+            } else {
+                sb.append(ch);
+                i++;
+            }
+        }
+        String normalized = sb.toString();
+        if (normalized.indexOf('?') >= 0)
+            normalized = IN_LIST_PATTERN.matcher(normalized).replaceAll("IN (...)");
+        return normalized;
+    }
+
+    /**
+     * Временные таблицы 1С (#tt12, tt12) отличаются только номером, номер отбрасывается
+     */
+    private static void appendIdentifier(StringBuilder sb, String sql, int start, int end) {
+        int nameStart = sql.charAt(start) == '#' ? start + 1 : start;
+        int digitsStart = end;
+        while (digitsStart > nameStart && Character.isDigit(sql.charAt(digitsStart - 1)))
+            digitsStart--;
+        if (digitsStart < end && digitsStart - nameStart == 2
+                && (sql.charAt(nameStart) == 't' || sql.charAt(nameStart) == 'T')
+                && (sql.charAt(nameStart + 1) == 't' || sql.charAt(nameStart + 1) == 'T'))
+            sb.append(sql, start, digitsStart);
+        else
+            sb.append(sql, start, end);
+    }
+
+    /**
+     * Начало значений параметров, которые 1С дописывает после текста запроса (p_0: ..., p_1: ...)
+     */
+    private static int getParametersStart(String sql) {
+        int pos = sql.lastIndexOf("p_0:");
+        return pos == -1 ? sql.length() : pos;
+    }
+
+    private static boolean isIdentifierChar(char ch) {
+        return Character.isLetterOrDigit(ch) || ch == '_' || ch == '@' || ch == '$' || ch == '#';
+    }
+
+    private static final class CacheEntry {
+        final Result result;
+        volatile long lastUsed = System.nanoTime(); // время последнего обращения (для вытеснения)
+
+        CacheEntry(Result result) {
+            this.result = result;
+        }
+    }
+
+    static final class Result {
+        final String normalized;
+        final long fingerprint;
+
+        Result(String normalized, long fingerprint) {
+            this.normalized = normalized;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
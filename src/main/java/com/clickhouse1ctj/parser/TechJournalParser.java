@@ -1,5 +1,9 @@
 package com.clickhouse1ctj.parser;
 
+import com.clickhouse1ctj.jfr.ParseBatchEvent;
+import com.clickhouse1ctj.jfr.ParseRecordEvent;
+import com.clickhouse1ctj.metrics.LoaderMetrics;
+
 import java.io.*;
 import java.nio.file.Path;
 import java.util.*;
@@ -10,6 +14,10 @@ import org.slf4j.LoggerFactory;
 
 public class TechJournalParser {
     static final Logger logger = LoggerFactory.getLogger(TechJournalParser.class);
+    // Колонки обрезанных записей: размер записи в файле в байтах и sipHash64 ее полного текста в файле
+    public static final String RECORD_SIZE_COLUMN = "record_size";
+    public static final String RECORD_HASH_COLUMN = "record_hash";
+    static final String TRUNCATION_MARKER = "...[обрезано]";
 
     public final Path pathToLog;
     public final String filename;
@@ -17,19 +25,34 @@ public class TechJournalParser {
     public final String parentName;
     public final String source;
     public final int parentPid;
-    public final BufferedReader logFile;
+    private final LogFileReader logFile;
     public final Long size;
     private int recordCount;
+    private int filteredCount; // записи, отклоненные фильтром
+    private int sampledOutCount; // записи, отброшенные прореживанием
+    private RecordFilter filter; // фильтр записей при загрузке (null - загружаются все записи)
+    private PropertyProjection projection; // проекция свойств записей (null - загружаются все свойства)
+    private SqlNormalizer sqlNormalizer; // нормализация текстов запросов СУБД (null - отпечатки запросов не вычисляются)
+    private RecordSampler sampler; // прореживание записей (null - загружаются все записи)
+    private int maxRecordSize = Integer.MAX_VALUE; // наибольший размер текста записи в байтах UTF-8, остаток отбрасывается
+    private long batchMemoryLimit = Long.MAX_VALUE; // наибольший объем текстов записей пакета в байтах
+    private int truncatedCount; // записи, обрезанные по maxRecordSize
 
     private static final Pattern startLogPattern = Pattern.compile("^\\d\\d:\\d\\d\\.\\d+-\\d+,");
+    private static final int MIN_RECORD_SIZE = 1024; // обязательная часть записи и начало свойств не обрезаются
     private String previousLine;
+    private boolean previousLineTruncated; // конец строки previousLine не сохранен (длиннее maxRecordSize байт)
+    private int previousLineLength; // длина строки previousLine в байтах UTF-8
     private int currentLineNumber;
     private int previousLineNumber;
+    private long previousLineOffset; // смещение в байтах начала еще не загруженной записи
+    private boolean resumed = false; // чтение продолжено с сохраненного смещения (BOM уже пропущен)
     // Поля из очередной порции логов
     private SortedSet<String> logFields;
     private boolean completed = false;
+    private long parseNanos; // суммарное время разбора записей (без чтения строк файла)
 
-    public TechJournalParser(Path pathToLog) throws FileNotFoundException, TechJournalParserException {
+    public TechJournalParser(Path pathToLog) throws IOException, TechJournalParserException {
         this.pathToLog = pathToLog;
         filename = pathToLog.getFileName().toString();
         if (filename.length() != 12 || !isDigit(filename.substring(0, 8))) {
@@ -39,14 +62,40 @@ public class TechJournalParser {
         parentName = pathToLog.getParent().getFileName().toString();
         parentPid = getPID(parentName);
         source = getSource(parentName);
-        logFile = new BufferedReader(
-                new FileReader(pathToLog.toAbsolutePath().toString()));
+        logFile = new LogFileReader(pathToLog.toAbsolutePath());
         size = (new File(pathToLog.toAbsolutePath().toString())).length();
         recordCount = 0;
         currentLineNumber = 0;
         logger.info("Файл {} размером {} байт готов для парсинга", this.pathToLog.toAbsolutePath(), size);
     }
 
+    public void setFilter(RecordFilter filter) {
+        this.filter = filter;
+    }
+
+    public void setProjection(PropertyProjection projection) {
+        this.projection = projection;
+    }
+
+    public void setSqlNormalizer(SqlNormalizer sqlNormalizer) {
+        this.sqlNormalizer = sqlNormalizer;
+    }
+
+    public void setSampler(RecordSampler sampler) {
+        this.sampler = sampler;
+    }
+
+    /**
+     * Ограничения памяти на разбор: maxRecordSize - наибольший размер текста записи в байтах UTF-8, как в файле (остаток многострочной
+     * записи читается без сохранения, значение обрезается с пометкой, а размер и хеш полной записи сохраняются
+     * в колонки record_size и record_hash), batchMemoryLimit - объем текстов записей пакета в байтах, при превышении
+     * которого пакет завершается раньше batchSize записей. 0 - без ограничения
+     */
+    public void setMemoryLimits(int maxRecordSize, long batchMemoryLimit) {
+        this.maxRecordSize = maxRecordSize > 0 ? Integer.max(maxRecordSize, MIN_RECORD_SIZE) : Integer.MAX_VALUE;
+        this.batchMemoryLimit = batchMemoryLimit > 0 ? batchMemoryLimit : Long.MAX_VALUE;
+    }
+
     public boolean isEmpty() {
         return size <= 3;
     }
@@ -55,45 +104,144 @@ public class TechJournalParser {
         return completed;
     }
 
+    /**
+     * Продолжает чтение файла с указанного смещения в байтах (начало первой незагруженной записи),
+     * lineNumber - номер строки файла, которая начинается с этого смещения. Если по смещению нет начала
+     * записи ТЖ (файл был перезаписан или усечен), то чтение остается с начала файла и возвращается false
+     */
+    public boolean resumeFrom(long offset, int lineNumber) {
+        if (previousLine != null || offset <= 0 || offset > size)
+            return false;
+        try {
+            logFile.seek(offset);
+            String line = logFile.readLine(maxRecordSize);
+            if (line == null || startLogPattern.matcher(line).find()) {
+                // Вернемся на начало записи, дальнейшее чтение пойдет с нее
+                logFile.seek(offset);
+                currentLineNumber = lineNumber - 1;
+                resumed = true;
+                logger.debug("Чтение файла {} продолжено со смещения {} (строка {})", pathToLog.toAbsolutePath(), offset, lineNumber);
+                return true;
+            }
+            logger.info("По сохраненному смещению {} файла {} нет начала записи ТЖ, файл будет прочитан с начала",
+                    offset, pathToLog.toAbsolutePath());
+            logFile.seek(0);
+        } catch (IOException e) {
+            logger.error("Не удалось перейти к смещению {} в файле {}", offset, pathToLog.toAbsolutePath());
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Смещение в байтах, с которого нужно продолжить чтение файла после загрузки прочитанных записей
+     */
+    public long getResumeOffset() {
+        return completed ? logFile.getPosition() : previousLineOffset;
+    }
+
+    /**
+     * Номер строки, с которой нужно продолжить чтение файла после загрузки прочитанных записей
+     */
+    public int getResumeLineNumber() {
+        return completed ? currentLineNumber + 1 : previousLineNumber;
+    }
+
     public List<LogRecord> getNextRecords(int count, LogRecord lastRecord) {
         logFields = new TreeSet<>();
+        List<LogRecord> batch = new ArrayList<>(); // Итоговый пакет записей лога
+        long startPosition = logFile.getPosition();
+        ParseBatchEvent event = new ParseBatchEvent();
+        event.begin();
+        try {
+            readNextRecords(batch, count, lastRecord);
+        } finally {
+            LoaderMetrics.bytesRead.add(logFile.getPosition() - startPosition);
+            event.end();
+            if (event.shouldCommit()) {
+                event.file = pathToLog.toString();
+                event.batchSize = count;
+                event.records = batch.size();
+                event.bytes = logFile.getPosition() - startPosition;
+                event.commit();
+            }
+        }
+        return batch;
+    }
+
+    private void readNextRecords(List<LogRecord> batch, int count, LogRecord lastRecord) {
         if (previousLine == null) {
             // Только начали чтение, первая строка может начинаться с BOM-символов
-            previousLine = eraseBOM(readNextLine());
-            previousLineNumber = 1;
+            String firstLine = readNextLine();
+            if (firstLine == null) {
+                // Новых строк в файле нет
+                parsingCompleted();
+                return;
+            }
+            previousLine = resumed ? firstLine : eraseBOM(firstLine);
+            previousLineTruncated = logFile.isLineTruncated();
+            previousLineLength = logFile.getLineLength();
+            previousLineNumber = currentLineNumber;
+            previousLineOffset = logFile.getLineOffset();
         }
 
         // Если указана последняя запись, от которой нужно парсить лог, то пропускаем строки до нее (включая ее)
         boolean skipRecords = lastRecord != null;
 
-        List<LogRecord> batch = new ArrayList<>(); // Итоговый пакет записей лога
         int i = 0;
+        long batchChars = 0;
         while (i < count) {
             StringBuilder sb = new StringBuilder();
             sb.append(previousLine);
+            int recordLength = previousLineLength; // размер собранного текста записи в байтах
+            boolean truncated = previousLineTruncated;
             // Собираем одну запись лога поочередно читая строки файла,
-            // пока не встретим очередную строку, которая начинается с шаблона startLogPattern
+            // пока не встретим очередную строку, которая начинается с шаблона startLogPattern.
+            // Строки сверх maxRecordSize байт только дочитываются до начала следующей записи
             String currentLine = readNextLine();
             while (currentLine != null
                     && !startLogPattern.matcher(currentLine).find()) {
-                sb.append(currentLine);
+                if (!truncated) {
+                    int lineLength = logFile.getLineLength();
+                    truncated = lineLength > maxRecordSize - recordLength || logFile.isLineTruncated();
+                    recordLength += appendLimited(sb, currentLine, lineLength, maxRecordSize - recordLength);
+                }
                 currentLine = readNextLine();
             }
+            long recordEnd = currentLine == null ? logFile.getPosition() : logFile.getLineOffset();
+            if (truncated)
+                sb.append(TRUNCATION_MARKER);
             try {
-                LogRecord logRecord = new LogRecord(sb.toString(), previousLineNumber, yearMonthDayHour);
-                if (!skipRecords) {
+                ParseRecordEvent recordEvent = new ParseRecordEvent();
+                recordEvent.begin();
+                long parseStart = System.nanoTime();
+                LogRecord logRecord = parseRecord(sb.toString(), skipRecords, truncated ? recordEnd : -1);
+                parseNanos += System.nanoTime() - parseStart;
+                recordEvent.end();
+                if (recordEvent.shouldCommit()) {
+                    recordEvent.file = pathToLog.toString();
+                    recordEvent.lineNumber = previousLineNumber;
+                    recordEvent.length = sb.length();
+                    recordEvent.commit();
+                }
+                LoaderMetrics.recordsParsed.inc();
+                if (logRecord == null) {
+                    // Запись отклонена фильтром или прореживанием: не попадает ни в пакет, ни в набор полей таблицы
+                } else if (!skipRecords) {
                     // Добавляем запись в пакет
                     batch.add(logRecord);
                     // Отдельно запоминаем все поля из лога - эта информация нужна для обновления колонок в таблице ClickHouse
                     logFields.addAll(logRecord.currentLogFields);
                     recordCount++;
                     i++;
+                    batchChars += sb.length();
                 } else if (logRecord.equals(lastRecord, false)) {
                     // Если текущая запись лога равна последней записи из базы, то снимаем метку slipRecords
                     // и на следующей итерации начинаем формировать пакет к загрузке
                     skipRecords = false;
                 }
             } catch (LogRecordParserException e) {
+                LoaderMetrics.recordsRejected.inc();
                 logger.warn("Не удалось распарсить строку лога: {}. По причине {}", sb, e.getMessage());
             }
 
@@ -105,9 +253,136 @@ public class TechJournalParser {
             // Текущая прочитанная строка является началом новой записи лога,
             // так как соответствует шаблону startLogPattern. Запомним ее как previousLine для следующей итерации
             previousLine = currentLine;
+            previousLineTruncated = logFile.isLineTruncated();
+            previousLineLength = logFile.getLineLength();
             previousLineNumber = currentLineNumber;
+            previousLineOffset = logFile.getLineOffset();
+            if (batchChars * Character.BYTES >= batchMemoryLimit) {
+                // Длинные записи: пакет завершается раньше, чтобы тексты записей всех потоков не исчерпали память
+                logger.debug("Пакет из {} записей файла {} завершен по ограничению памяти {} байт",
+                        i, pathToLog.toAbsolutePath(), batchMemoryLimit);
+                break;
+            }
         }
-        return batch;
+    }
+
+    /**
+     * Добавляет к тексту записи строку размером lineLength байт UTF-8 или ее начало не больше available байт
+     * (по границе символа). Возвращает число добавленных байт
+     */
+    private static int appendLimited(StringBuilder sb, String line, int lineLength, int available) {
+        if (lineLength <= available) {
+            sb.append(line);
+            return lineLength;
+        }
+        int end = 0;
+        int length = 0;
+        while (end < line.length()) {
+            int codePoint = line.codePointAt(end);
+            int charLength = codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+            if (length + charLength > available)
+                break;
+            length += charLength;
+            end += Character.charCount(codePoint);
+        }
+        sb.append(line, 0, end);
+        return length;
+    }
+
+    /**
+     * Разбирает запись лога. Если задан фильтр, то сначала он проверяется по обязательной части записи, и отклоненная
+     * запись дальше не разбирается. Так же до разбора свойств выполняется прореживание (см. RecordSampler).
+     * Для запросов СУБД добавляются нормализованный текст и отпечаток запроса. Для обрезанной записи (truncatedEnd -
+     * смещение конца записи в файле, иначе -1) добавляются размер и хеш полного текста записи.
+     * Возвращает null, если запись отклонена фильтром или отброшена прореживанием
+     */
+    private LogRecord parseRecord(String rawRecord, boolean skipRecords, long truncatedEnd) throws LogRecordParserException {
+        LogRecordParser recordParser = new LogRecordParser(rawRecord);
+        // Записи до последней загруженной не фильтруются и не прореживаются: среди них ищется последняя загруженная запись
+        Boolean accepted = filter == null || skipRecords ? Boolean.TRUE : filter.testFixPart(recordParser, source);
+        if (Boolean.FALSE.equals(accepted))
+            return rejectByFilter();
+        double weight = 1;
+        if (sampler != null && !skipRecords && accepted != null) {
+            weight = sampler.sample(recordParser, rawRecord);
+            if (weight == 0)
+                return rejectBySampler();
+        }
+        PropertyProjection.Rule rule = projection == null ? null : projection.getRule(recordParser.getEvent());
+        // Записи, среди которых ищется последняя загруженная, не нормализуются: они не попадут в пакет
+        boolean normalizeSql = sqlNormalizer != null && !skipRecords && SqlNormalizer.isSqlEvent(recordParser.getEvent());
+        String sql = null;
+        if (accepted == null || normalizeSql && rule != null) {
+            // Фильтру и нормализации нужны полные значения свойств, в том числе исключенных или обрезанных проекцией:
+            // проекция применяется после них
+            recordParser.parseVariablePart();
+            if (accepted == null) {
+                if (!filter.test(recordParser, source))
+                    return rejectByFilter();
+                // Прореживаются только записи, прошедшие фильтр
+                weight = sampler == null ? 1 : sampler.sample(recordParser, rawRecord);
+                if (weight == 0)
+                    return rejectBySampler();
+            }
+            if (normalizeSql)
+                sql = recordParser.getDict().get("Sql");
+            if (rule != null)
+                recordParser.applyProjection(rule);
+        } else {
+            recordParser.parseVariablePart(rule);
+            if (normalizeSql)
+                sql = recordParser.getDict().get("Sql");
+        }
+        if (sql != null)
+            sqlNormalizer.addColumns(recordParser.getDict(), sql);
+        if (weight != 1)
+            recordParser.getDict().put(RecordSampler.WEIGHT_COLUMN, Double.toString(weight));
+        // Записи, среди которых ищется последняя загруженная, не попадут в пакет: полная запись повторно не читается
+        if (truncatedEnd >= 0 && !skipRecords)
+            addTruncatedRecordColumns(recordParser.getDict(), truncatedEnd);
+        return new LogRecord(recordParser, previousLineNumber, yearMonthDayHour);
+    }
+
+    private void addTruncatedRecordColumns(Map<String, String> dict, long truncatedEnd) {
+        long size = truncatedEnd - previousLineOffset;
+        LoaderMetrics.recordsTruncated.inc();
+        truncatedCount++;
+        logger.debug("Запись в строке {} файла {} размером {} байт обрезана до {} байт",
+                previousLineNumber, pathToLog.toAbsolutePath(), size, maxRecordSize);
+        dict.put(RECORD_SIZE_COLUMN, Long.toString(size));
+        try {
+            // Полный текст перечитывается из файла частями, чтобы не держать его в памяти
+            dict.put(RECORD_HASH_COLUMN, Long.toUnsignedString(logFile.hashRange(previousLineOffset, truncatedEnd)));
+        } catch (IOException e) {
+            logger.error("Не удалось посчитать хеш записи в строке {} файла {}", previousLineNumber, pathToLog.toAbsolutePath());
+            e.printStackTrace();
+        }
+    }
+
+    private LogRecord rejectByFilter() {
+        LoaderMetrics.recordsFiltered.inc();
+        filteredCount++;
+        return null;
+    }
+
+    private LogRecord rejectBySampler() {
+        LoaderMetrics.recordsSampledOut.inc();
+        sampledOutCount++;
+        return null;
+    }
+
+    /**
+     * Количество байт файла, прочитанных с начала (или с позиции продолжения загрузки)
+     */
+    public long getPosition() {
+        return logFile.getPosition();
+    }
+
+    /**
+     * Суммарное время разбора записей в наносекундах. Остальное время getNextRecords приходится на чтение файла
+     */
+    public long getParseNanos() {
+        return parseNanos;
     }
 
     public SortedSet<String> getParsedFields() {
@@ -115,10 +390,11 @@ public class TechJournalParser {
     }
 
     private String readNextLine() {
-        String line = "";
+        String line = null;
         try {
-            line = logFile.readLine();
-            currentLineNumber++;
+            line = logFile.readLine(maxRecordSize);
+            if (line != null)
+                currentLineNumber++;
         } catch (IOException e) {
             logger.error("Не удалось прочитать строку файла {}", pathToLog.toAbsolutePath());
             e.printStackTrace();
@@ -143,7 +419,13 @@ public class TechJournalParser {
             logger.error("Не удалось закрыть файл после парсинга {}", pathToLog.toAbsolutePath());
             e.printStackTrace();
         }
-        logger.info("Завершен парсинг. Всего обработано {} записей из файла {} ", recordCount, pathToLog.toAbsolutePath());
+        if (filteredCount > 0 || sampledOutCount > 0)
+            logger.info("Завершен парсинг. Всего обработано {} записей из файла {}, отклонено фильтром {} записей, "
+                    + "отброшено прореживанием {} записей", recordCount, pathToLog.toAbsolutePath(), filteredCount, sampledOutCount);
+        else
+            logger.info("Завершен парсинг. Всего обработано {} записей из файла {} ", recordCount, pathToLog.toAbsolutePath());
+        if (truncatedCount > 0)
+            logger.info("Обрезано {} записей длиннее {} байт из файла {}", truncatedCount, maxRecordSize, pathToLog.toAbsolutePath());
     }
 
     private int getPID(String parentName) {
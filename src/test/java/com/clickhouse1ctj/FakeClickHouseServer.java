@@ -0,0 +1,492 @@
+package com.clickhouse1ctj;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Поддельный сервер ClickHouse для тестов полного цикла загрузки без реального ClickHouse. Принимает по HTTP
+ * только те запросы, которые выполняет загрузчик (EXISTS, DESCRIBE, CREATE, ALTER, SELECT TOP 1, чтение состояния
+ * загрузки, INSERT в формате TabSeparated), и хранит схему и вставленные строки в памяти. Вставка с уже встречавшимся
+ * токеном insert_deduplication_token пропускается, как в ClickHouse. Можно добавить задержку
+ * ответа, ошибки вставки в таблицы логов и отказ сервера после заданного числа вставок. Ответы отдаются без сжатия,
+ * поэтому в строке подключения должен быть параметр compress=0 (см. clickhouse.jdbcParams)
+ */
+class FakeClickHouseServer implements AutoCloseable {
+    private static final String VERSION = "22.8.1.1";
+    private static final Pattern FORMAT_PATTERN = Pattern.compile("(?is)^(.*?)\\s+FORMAT\\s+(\\w+)\\s*;?\\s*$");
+    private static final Pattern SHOW_DATABASES = Pattern.compile("(?is)^SHOW DATABASES LIKE '(.*)'$");
+    private static final Pattern CREATE_DATABASE = Pattern.compile("(?is)^CREATE DATABASE (IF NOT EXISTS )?(\\S+)$");
+    private static final Pattern EXISTS_TABLE = Pattern.compile("(?is)^EXISTS TABLE (\\S+)$");
+    private static final Pattern CREATE_TABLE = Pattern.compile("(?is)^CREATE TABLE IF NOT EXISTS (\\S+) \\((.*)\\)\\s*ENGINE.*$");
+    private static final Pattern ALTER_ADD_COLUMN = Pattern.compile("(?is)^ALTER TABLE (\\S+) ADD COLUMN IF NOT EXISTS (\"[^\"]+\"|`[^`]+`|\\S+) (.+)$");
+    private static final Pattern DESCRIBE_TABLE = Pattern.compile("(?is)^DESCRIBE TABLE (\\S+)$");
+    private static final Pattern SELECT_LAST_RECORD = Pattern.compile("(?is)^SELECT TOP 1 datetime, duration, event, level, line_number " +
+            "FROM (.+?) WHERE filename = '(.*)' AND parent = '(.*)' ORDER BY line_number DESC$");
+    private static final Pattern SELECT_LOAD_STATE = Pattern.compile("(?is)^SELECT parent, filename, argMax\\(last_line, loaded_at\\), " +
+            "argMax\\(byte_offset, loaded_at\\), argMax\\(fingerprint, loaded_at\\), argMax\\(head_crc, loaded_at\\), " +
+            "max\\(loaded_at\\) FROM (\\S+) WHERE filename IN \\((.*)\\) " +
+            "GROUP BY parent, filename$");
+    private static final Pattern SELECT_PROPERTIES = Pattern.compile("(?is)^SELECT event, property FROM (\\S+)$");
+    private static final Pattern MERGE_SOURCE = Pattern.compile("(?is)^merge\\('(.*)', '(.*)'\\)$");
+    private static final Pattern INSERT = Pattern.compile("(?is)^INSERT INTO (\\S+) \\((.*?)\\)\\s*" +
+            "(?:SETTINGS insert_deduplication_token = '((?:[^'\\\\]|\\\\.)*)'\\s*)?FORMAT TabSeparated\\s*$");
+    // Окно дедупликации вставок по токену (non_replicated_deduplication_window)
+    private static final int DEDUPLICATION_WINDOW = 1000;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+    private final Set<String> databases = ConcurrentHashMap.newKeySet();
+    private final Map<String, FakeTable> tables = new ConcurrentHashMap<>(); // ключ: база.таблица
+    private final AtomicInteger insertFailures = new AtomicInteger();
+    private final AtomicInteger failedInserts = new AtomicInteger();
+    private final AtomicInteger insertsBeforeDown = new AtomicInteger();
+    private final AtomicInteger rejectedRequests = new AtomicInteger();
+    private final AtomicInteger deduplicatedInserts = new AtomicInteger();
+    private volatile boolean down;
+    private volatile long latencyMillis;
+
+    FakeClickHouseServer() throws IOException {
+        databases.add("default");
+        databases.add("system");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Задержка перед ответом на каждый запрос
+     */
+    void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Следующие count вставок в таблицы логов (имя оканчивается на _TJ) завершатся ошибкой
+     */
+    void failInserts(int count) {
+        insertFailures.set(count);
+    }
+
+    int getFailedInserts() {
+        return failedInserts.get();
+    }
+
+    /**
+     * После count успешных вставок в таблицы логов сервер отказывает: на все запросы возвращается ошибка,
+     * пока сервер не будет восстановлен (setDown(false))
+     */
+    void goDownAfterInserts(int count) {
+        insertsBeforeDown.set(count);
+    }
+
+    void setDown(boolean down) {
+        this.down = down;
+    }
+
+    boolean isDown() {
+        return down;
+    }
+
+    int getRejectedRequests() {
+        return rejectedRequests.get();
+    }
+
+    int getDeduplicatedInserts() {
+        return deduplicatedInserts.get();
+    }
+
+    /**
+     * Удаляет последние вставленные строки таблицы (например, чтобы смоделировать потерю записи состояния загрузки)
+     */
+    void removeLastRows(String database, String tablename, int count) {
+        FakeTable table = tables.get(database + "." + tablename);
+        if (table == null)
+            return;
+        synchronized (table) {
+            table.rows.subList(Integer.max(table.rows.size() - count, 0), table.rows.size()).clear();
+        }
+    }
+
+    List<Map<String, String>> getRows(String database, String tablename) {
+        FakeTable table = tables.get(database + "." + tablename);
+        if (table == null)
+            return Collections.emptyList();
+        synchronized (table) {
+            return new ArrayList<>(table.rows);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, String> params = parseParams(exchange.getRequestURI().getRawQuery());
+            String body;
+            try (InputStream is = exchange.getRequestBody()) {
+                body = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            if (latencyMillis > 0)
+                Thread.sleep(latencyMillis);
+
+            String response;
+            int status = 200;
+            try {
+                if (down) {
+                    rejectedRequests.incrementAndGet();
+                    throw new FakeException(210, "Connection refused: server is down");
+                }
+                String compress = params.getOrDefault("compress", "0");
+                if (compress.equals("1") || compress.equalsIgnoreCase("true"))
+                    throw new FakeException(0, "Compressed responses are not supported, add compress=0 to JDBC parameters");
+                // Запрос передается либо в параметре query (тогда в теле данные для вставки), либо в теле
+                String query = params.get("query");
+                String data = "";
+                if (query == null) {
+                    query = body;
+                    if (query.trim().toUpperCase(Locale.ROOT).startsWith("INSERT") && query.contains("\n")) {
+                        data = query.substring(query.indexOf('\n') + 1);
+                        query = query.substring(0, query.indexOf('\n'));
+                    }
+                } else {
+                    data = body;
+                }
+                response = execute(params.getOrDefault("database", "default"), query.trim(), data);
+            } catch (FakeException e) {
+                status = 500;
+                response = String.format("Code: %d. DB::Exception: %s (version %s (fake))%n", e.code, e.getMessage(), VERSION);
+            }
+            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/tab-separated-values; charset=UTF-8");
+            exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+            if (bytes.length > 0) {
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(bytes);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String execute(String database, String query, String data) throws FakeException {
+        Matcher formatMatcher = FORMAT_PATTERN.matcher(query);
+        if (formatMatcher.matches() && !query.toUpperCase(Locale.ROOT).startsWith("INSERT"))
+            query = formatMatcher.group(1).trim();
+        Matcher m;
+        if (query.equalsIgnoreCase("SELECT timezone()"))
+            return resultSet(new String[]{"timezone()"}, new String[]{"String"}, List.<String[]>of(new String[]{"UTC"}));
+        if (query.equalsIgnoreCase("SELECT version()"))
+            return resultSet(new String[]{"version()"}, new String[]{"String"}, List.<String[]>of(new String[]{VERSION}));
+        if (query.equals("SELECT 1"))
+            return resultSet(new String[]{"1"}, new String[]{"UInt8"}, List.<String[]>of(new String[]{"1"}));
+        if ((m = SHOW_DATABASES.matcher(query)).matches()) {
+            List<String[]> rows = new ArrayList<>();
+            if (databases.contains(m.group(1)))
+                rows.add(new String[]{m.group(1)});
+            return resultSet(new String[]{"name"}, new String[]{"String"}, rows);
+        }
+        if ((m = CREATE_DATABASE.matcher(query)).matches()) {
+            databases.add(m.group(2));
+            return "";
+        }
+        if ((m = EXISTS_TABLE.matcher(query)).matches()) {
+            String exists = tables.containsKey(getTableKey(database, m.group(1))) ? "1" : "0";
+            return resultSet(new String[]{"result"}, new String[]{"UInt8"}, List.<String[]>of(new String[]{exists}));
+        }
+        if ((m = CREATE_TABLE.matcher(query)).matches()) {
+            FakeTable table = new FakeTable();
+            for (String columnDefinition : split(m.group(2))) {
+                String[] nameAndType = splitNameAndType(columnDefinition);
+                table.columns.put(nameAndType[0], nameAndType[1]);
+            }
+            tables.putIfAbsent(getTableKey(database, m.group(1)), table);
+            return "";
+        }
+        if ((m = ALTER_ADD_COLUMN.matcher(query)).matches()) {
+            FakeTable table = getTable(database, m.group(1));
+            synchronized (table) {
+                table.columns.putIfAbsent(unquote(m.group(2)), m.group(3).trim());
+            }
+            return "";
+        }
+        if ((m = DESCRIBE_TABLE.matcher(query)).matches()) {
+            FakeTable table = getTable(database, m.group(1));
+            List<String[]> rows = new ArrayList<>();
+            synchronized (table) {
+                table.columns.forEach((name, type) -> rows.add(new String[]{name, type, "", "", "", "", ""}));
+            }
+            return resultSet(new String[]{"name", "type", "default_type", "default_expression", "comment", "codec_expression", "ttl_expression"},
+                    new String[]{"String", "String", "String", "String", "String", "String", "String"}, rows);
+        }
+        if ((m = SELECT_LAST_RECORD.matcher(query)).matches())
+            return selectLastRecord(database, m.group(1), m.group(2), m.group(3));
+        if ((m = SELECT_LOAD_STATE.matcher(query)).matches())
+            return selectLoadState(database, m.group(1), m.group(2));
+        if ((m = SELECT_PROPERTIES.matcher(query)).matches()) {
+            List<String[]> rows = new ArrayList<>();
+            for (Map<String, String> row : getRows(database, getTable(database, m.group(1))))
+                rows.add(new String[]{row.get("event"), row.get("property")});
+            return resultSet(new String[]{"event", "property"}, new String[]{"String", "String"}, rows);
+        }
+        if ((m = INSERT.matcher(query)).matches()) {
+            insert(database, m.group(1), m.group(2), m.group(3), data);
+            return "";
+        }
+        throw new FakeException(62, "Syntax error: query is not supported by fake server: " + query);
+    }
+
+    private String selectLastRecord(String database, String source, String filename, String parent) throws FakeException {
+        List<FakeTable> sourceTables = new ArrayList<>();
+        Matcher merge = MERGE_SOURCE.matcher(source);
+        if (merge.matches()) {
+            Pattern tablePattern = Pattern.compile(merge.group(2));
+            for (Map.Entry<String, FakeTable> table : tables.entrySet()) {
+                String prefix = merge.group(1) + ".";
+                if (table.getKey().startsWith(prefix) && tablePattern.matcher(table.getKey().substring(prefix.length())).find())
+                    sourceTables.add(table.getValue());
+            }
+        } else {
+            sourceTables.add(getTable(database, source));
+        }
+        Map<String, String> last = null;
+        for (FakeTable table : sourceTables) {
+            for (Map<String, String> row : getRows(database, table)) {
+                if (!filename.equals(row.get("filename")) || !parent.equals(row.get("parent")))
+                    continue;
+                if (last == null || Long.parseLong(row.get("line_number")) > Long.parseLong(last.get("line_number")))
+                    last = row;
+            }
+        }
+        List<String[]> rows = new ArrayList<>();
+        if (last != null)
+            rows.add(new String[]{last.get("datetime"), last.get("duration"), last.get("event"), last.get("level"), last.get("line_number")});
+        return resultSet(new String[]{"datetime", "duration", "event", "level", "line_number"},
+                new String[]{"String", "UInt64", "String", "String", "UInt32"}, rows);
+    }
+
+    private String selectLoadState(String database, String tablename, String filenamesIn) throws FakeException {
+        Set<String> filenames = new HashSet<>();
+        Matcher quoted = Pattern.compile("'((?:[^'\\\\]|\\\\.)*)'").matcher(filenamesIn);
+        while (quoted.find())
+            filenames.add(quoted.group(1).replace("\\'", "'").replace("\\\\", "\\"));
+        // Последнее состояние по каждому файлу выбирается по loaded_at, как argMax в ClickHouse
+        Map<String, Map<String, String>> lastStates = new TreeMap<>();
+        for (Map<String, String> row : getRows(database, getTable(database, tablename))) {
+            if (!filenames.contains(row.get("filename")))
+                continue;
+            lastStates.merge(row.get("parent") + "/" + row.get("filename"), row,
+                    (prev, cur) -> cur.get("loaded_at").compareTo(prev.get("loaded_at")) >= 0 ? cur : prev);
+        }
+        List<String[]> rows = new ArrayList<>();
+        for (Map<String, String> state : lastStates.values())
+            rows.add(new String[]{state.get("parent"), state.get("filename"), state.get("last_line"),
+                    state.get("byte_offset"), state.get("fingerprint"), state.get("head_crc"), state.get("loaded_at")});
+        return resultSet(new String[]{"parent", "filename", "argMax(last_line, loaded_at)",
+                        "argMax(byte_offset, loaded_at)", "argMax(fingerprint, loaded_at)", "argMax(head_crc, loaded_at)",
+                        "max(loaded_at)"},
+                new String[]{"String", "String", "UInt32", "UInt64", "String", "String", "DateTime64(3)"}, rows);
+    }
+
+    private void insert(String database, String tablename, String columnsList, String token, String data)
+            throws FakeException {
+        FakeTable table = getTable(database, tablename);
+        if (tablename.endsWith("_TJ") && insertFailures.getAndUpdate(n -> Integer.max(n - 1, 0)) > 0) {
+            failedInserts.incrementAndGet();
+            throw new FakeException(210, "Injected insert error into table " + tablename);
+        }
+        List<String> columns = new ArrayList<>();
+        for (String column : split(columnsList))
+            columns.add(unquote(column.trim()));
+        List<Map<String, String>> rows = new ArrayList<>();
+        synchronized (table) {
+            for (String column : columns) {
+                if (!table.columns.containsKey(column))
+                    throw new FakeException(16, "No such column " + column + " in table " + tablename);
+            }
+        }
+        for (String line : data.split("\n")) {
+            if (line.isEmpty())
+                continue;
+            String[] values = line.split("\t", -1);
+            if (values.length != columns.size())
+                throw new FakeException(27, "Cannot parse input: expected " + columns.size() + " values, got " + values.length);
+            Map<String, String> row = new HashMap<>();
+            for (int i = 0; i < values.length; i++)
+                row.put(columns.get(i), unescape(values[i]));
+            rows.add(row);
+        }
+        synchronized (table) {
+            if (token == null || !table.deduplicationTokens.contains(token))
+                table.rows.addAll(rows);
+            else
+                deduplicatedInserts.incrementAndGet();
+            if (token != null) {
+                table.deduplicationTokens.addLast(token);
+                if (table.deduplicationTokens.size() > DEDUPLICATION_WINDOW)
+                    table.deduplicationTokens.removeFirst();
+            }
+        }
+        if (tablename.endsWith("_TJ") && insertsBeforeDown.getAndUpdate(n -> Integer.max(n - 1, 0)) == 1)
+            down = true;
+    }
+
+    private FakeTable getTable(String database, String tablename) throws FakeException {
+        FakeTable table = tables.get(getTableKey(database, tablename));
+        if (table == null)
+            throw new FakeException(60, "Table " + getTableKey(database, tablename) + " doesn't exist");
+        return table;
+    }
+
+    private static List<Map<String, String>> getRows(String database, FakeTable table) {
+        synchronized (table) {
+            return new ArrayList<>(table.rows);
+        }
+    }
+
+    private static String getTableKey(String database, String tablename) {
+        return tablename.contains(".") ? tablename : database + "." + tablename;
+    }
+
+    private static String resultSet(String[] names, String[] types, List<String[]> rows) {
+        // Формат TabSeparatedWithNamesAndTypes: имена колонок, типы колонок, строки данных
+        StringBuilder sb = new StringBuilder();
+        appendRow(sb, names);
+        appendRow(sb, types);
+        for (String[] row : rows)
+            appendRow(sb, row);
+        return sb.toString();
+    }
+
+    private static void appendRow(StringBuilder sb, String[] values) {
+        StringJoiner joiner = new StringJoiner("\t");
+        for (String value : values)
+            joiner.add(value == null ? "\\N" : escape(value));
+        sb.append(joiner).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String value) {
+        if (value.equals("\\N"))
+            return null;
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != '\\' || i + 1 == value.length()) {
+                sb.append(c);
+                continue;
+            }
+            char escaped = value.charAt(++i);
+            switch (escaped) {
+                case 'n': sb.append('\n'); break;
+                case 't': sb.append('\t'); break;
+                case 'r': sb.append('\r'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case '0': sb.append('\0'); break;
+                default: sb.append(escaped); break;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Делит список по запятым верхнего уровня (без учета запятых в скобках и кавычках)
+     */
+    private static List<String> split(String list) {
+        List<String> items = new ArrayList<>();
+        int depth = 0;
+        char quote = 0;
+        StringBuilder item = new StringBuilder();
+        for (char c : list.toCharArray()) {
+            if (quote != 0) {
+                if (c == quote)
+                    quote = 0;
+            } else if (c == '"' || c == '`' || c == '\'') {
+                quote = c;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                items.add(item.toString().trim());
+                item.setLength(0);
+                continue;
+            }
+            item.append(c);
+        }
+        if (item.toString().trim().length() > 0)
+            items.add(item.toString().trim());
+        return items;
+    }
+
+    private static String[] splitNameAndType(String columnDefinition) {
+        String definition = columnDefinition.trim();
+        int nameEnd;
+        if (definition.startsWith("\"") || definition.startsWith("`"))
+            nameEnd = definition.indexOf(definition.charAt(0), 1) + 1;
+        else
+            nameEnd = definition.indexOf(' ');
+        return new String[]{unquote(definition.substring(0, nameEnd)), definition.substring(nameEnd).trim()};
+    }
+
+    private static String unquote(String name) {
+        if (name.length() > 1 && (name.startsWith("\"") && name.endsWith("\"") || name.startsWith("`") && name.endsWith("`")))
+            return name.substring(1, name.length() - 1);
+        return name;
+    }
+
+    private static Map<String, String> parseParams(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null)
+            return params;
+        for (String param : rawQuery.split("&")) {
+            String[] keyValue = param.split("=", 2);
+            params.put(URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8),
+                    keyValue.length > 1 ? URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8) : "");
+        }
+        return params;
+    }
+
+    private static final class FakeTable {
+        private final Map<String, String> columns = new LinkedHashMap<>();
+        private final List<Map<String, String>> rows = new ArrayList<>();
+        private final Deque<String> deduplicationTokens = new ArrayDeque<>();
+    }
+
+    private static final class FakeException extends Exception {
+        private final int code;
+
+        FakeException(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+}
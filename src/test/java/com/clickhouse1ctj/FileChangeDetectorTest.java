@@ -0,0 +1,112 @@
+package com.clickhouse1ctj;
+
+import com.clickhouse1ctj.config.AppConfig;
+import com.clickhouse1ctj.loader.FileStateStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileChangeDetectorTest {
+    private final FileChangeDetector detector = new FileChangeDetector(new AppConfig());
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void unchangedAttributes() throws IOException {
+        Path file = writeLog("21102210.log", 'a', 8 * 1024);
+        queueAndLoad(file, getAttributes(file));
+        assertNull(detector.getChangedFingerprint(file, getAttributes(file), FileStateStore.get(file)));
+    }
+
+    @Test
+    void append() throws IOException {
+        Path file = writeLog("21102211.log", 'a', 8 * 1024);
+        queueAndLoad(file, getAttributes(file));
+        Files.write(file, "b".repeat(1024).getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        BasicFileAttributes attributes = getAttributes(file);
+        FileStateStore.FileState previous = FileStateStore.get(file);
+        String fingerprint = detector.getChangedFingerprint(file, attributes, previous);
+        assertNotNull(fingerprint);
+        assertFalse(detector.isRewritten(previous, fingerprint, attributes));
+        // Дописанный файл продолжает загружаться с прежнего смещения
+        FileStateStore.markQueued(file, FileChangeDetector.getFileKey(attributes), attributes.size(),
+                attributes.lastModifiedTime().toMillis(), fingerprint, false);
+        assertEquals(8 * 1024, FileStateStore.get(file).getByteOffset());
+        assertEquals(100, FileStateStore.get(file).getLineNumber());
+    }
+
+    @Test
+    void truncateAndRegrow() throws IOException {
+        Path file = writeLog("21102212.log", 'a', 8 * 1024);
+        queueAndLoad(file, getAttributes(file));
+        // Файл перезаписан под тем же именем и уже вырос больше прежнего размера
+        Files.write(file, "c".repeat(10 * 1024).getBytes(StandardCharsets.UTF_8), StandardOpenOption.TRUNCATE_EXISTING);
+
+        BasicFileAttributes attributes = getAttributes(file);
+        FileStateStore.FileState previous = FileStateStore.get(file);
+        String fingerprint = detector.getChangedFingerprint(file, attributes, previous);
+        assertNotNull(fingerprint);
+        assertTrue(detector.isRewritten(previous, fingerprint, attributes));
+        // Смещение прежнего содержимого сбрасывается: загрузка начнется с начала файла
+        FileStateStore.markQueued(file, FileChangeDetector.getFileKey(attributes), attributes.size(),
+                attributes.lastModifiedTime().toMillis(), fingerprint, true);
+        assertEquals(0, FileStateStore.get(file).getByteOffset());
+        assertEquals(0, FileStateStore.get(file).getLineNumber());
+    }
+
+    @Test
+    void truncate() throws IOException {
+        Path file = writeLog("21102213.log", 'a', 8 * 1024);
+        queueAndLoad(file, getAttributes(file));
+        Files.write(file, "a".repeat(1024).getBytes(StandardCharsets.UTF_8), StandardOpenOption.TRUNCATE_EXISTING);
+
+        BasicFileAttributes attributes = getAttributes(file);
+        FileStateStore.FileState previous = FileStateStore.get(file);
+        String fingerprint = detector.getChangedFingerprint(file, attributes, previous);
+        assertNotNull(fingerprint);
+        assertTrue(detector.isRewritten(previous, fingerprint, attributes));
+    }
+
+    @Test
+    void newFileKey() throws IOException {
+        Path file = writeLog("21102214.log", 'a', 8 * 1024);
+        BasicFileAttributes attributes = getAttributes(file);
+        // Прежний файл с тем же именем имел другой идентификатор (ротация с переименованием)
+        FileStateStore.markQueued(file, "(dev=0,ino=0)", attributes.size(), attributes.lastModifiedTime().toMillis(),
+                "", false);
+        FileStateStore.markLoaded(file, attributes.size(), 100);
+
+        FileStateStore.FileState previous = FileStateStore.get(file);
+        String fingerprint = detector.getChangedFingerprint(file, attributes, previous);
+        assertNotNull(fingerprint);
+        assertTrue(detector.isRewritten(previous, fingerprint, attributes));
+    }
+
+    private Path writeLog(String filename, char content, int size) throws IOException {
+        Path file = tempDir.resolve(filename);
+        Files.write(file, String.valueOf(content).repeat(size).getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private void queueAndLoad(Path file, BasicFileAttributes attributes) {
+        String fingerprint = detector.getChangedFingerprint(file, attributes, FileStateStore.get(file));
+        assertNotNull(fingerprint);
+        FileStateStore.markQueued(file, FileChangeDetector.getFileKey(attributes), attributes.size(),
+                attributes.lastModifiedTime().toMillis(), fingerprint, false);
+        FileStateStore.markLoaded(file, attributes.size(), 100);
+    }
+
+    private static BasicFileAttributes getAttributes(Path file) throws IOException {
+        return Files.readAttributes(file, BasicFileAttributes.class);
+    }
+}
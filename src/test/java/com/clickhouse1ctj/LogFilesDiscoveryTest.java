@@ -0,0 +1,53 @@
+package com.clickhouse1ctj;
+
+import com.clickhouse1ctj.config.AppConfig;
+import com.clickhouse1ctj.loader.LogsPool;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogFilesDiscoveryTest {
+    @TempDir
+    Path tempDir;
+
+    @DisplayName("Изменение загружаемого файла не теряется, если события сброшены полным обходом каталогов")
+    @Test
+    void reconcileMarksLoadingFileChanged() throws Exception {
+        Path loading = tempDir.resolve("rphost_1").resolve("21102210.log");
+        Path other = tempDir.resolve("rphost_1").resolve("21102211.log");
+        Files.createDirectories(loading.getParent());
+        Files.write(loading, "line\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(other, "line\n".getBytes(StandardCharsets.UTF_8));
+        AppConfig appConfig = new AppConfig();
+        LogFilesDiscovery discovery = new LogFilesDiscovery(appConfig, new FileChangeDetector(appConfig));
+        // Сверка на каждой итерации: накопленные события всегда сбрасываются
+        LogFilesWatcher watcher = new LogFilesWatcher(new Path[]{tempDir}, ".log", 0);
+        LogsPool logsPool = new LogsPool();
+        try {
+            logsPool.add(loading);
+            assertEquals(loading, logsPool.take());
+            Files.write(loading, "line\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+            assertTrue(watcher.takeReconcileRequired());
+            assertTrue(watcher.takeChangedFiles().isEmpty());
+            discovery.scan(new Path[]{tempDir}, logsPool).get();
+            assertEquals(other, logsPool.take());
+            assertTrue(logsPool.isEmpty());
+
+            // После окончания загрузки файл снова попадает в пул
+            logsPool.done(loading);
+            assertTrue(logsPool.isPending(loading));
+            assertEquals(loading, logsPool.take());
+        } finally {
+            watcher.close();
+            discovery.shutdown();
+        }
+    }
+}
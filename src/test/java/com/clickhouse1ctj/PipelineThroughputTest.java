@@ -0,0 +1,323 @@
+package com.clickhouse1ctj;
+
+import com.clickhouse1ctj.config.AppConfig;
+import com.clickhouse1ctj.generator.TechJournalGenerator;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Сквозной тест загрузки: сгенерированные логи ТЖ загружаются полным циклом TechJournalToClickHouse в поддельный
+ * сервер ClickHouse. Проверяются скорость загрузки, продолжение загрузки дописанного файла, отсутствие дублей после
+ * потери записи состояния загрузки и повтор вставки после ошибки, запись словаря значений свойств и запись в локальные файлы формата Native. Минимальную скорость можно задать свойством tj.minRecordsPerSec (gradlew test -PminRecordsPerSec=...)
+ */
+class PipelineThroughputTest {
+    static final String TEST_DATABASE_NAME = "TEST_PIPELINE";
+    static final LocalDateTime START_HOUR = LocalDateTime.of(2021, 10, 22, 15, 0);
+    static final String EVENT_MIX = "CALL:30,SCALL:20,DBMSSQL:25,SDBL:10,TLOCK:10,EXCP:5";
+    static final int MIN_RECORDS_PER_SEC = Integer.getInteger("tj.minRecordsPerSec", 1000);
+    private static final Pattern RECORD_START = Pattern.compile("^\\d{2}:\\d{2}\\.\\d+-\\d+,");
+    static FakeClickHouseServer fakeServer;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeAll
+    static void beforeAll() throws IOException {
+        fakeServer = new FakeClickHouseServer();
+    }
+
+    @AfterAll
+    static void afterAll() {
+        fakeServer.close();
+    }
+
+    @Test
+    void throughput() throws IOException {
+        int processes = 4;
+        int recordsPerFile = 5000;
+        new TechJournalGenerator(tempDir, START_HOUR, 1, processes, recordsPerFile, EVENT_MIX, 100, true, 11).generate();
+
+        long start = System.nanoTime();
+        load(getConfig("speed"), tempDir);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        List<Map<String, String>> rows = fakeServer.getRows(TEST_DATABASE_NAME, "211022_speed_TJ");
+        assertEquals(processes * recordsPerFile, rows.size());
+        assertEquals(rows.size(), countDistinctLines(rows));
+        double recordsPerSec = rows.size() / seconds;
+        assertTrue(recordsPerSec >= MIN_RECORDS_PER_SEC,
+                String.format("Скорость загрузки %.0f записей/с ниже минимальной %d записей/с", recordsPerSec, MIN_RECORDS_PER_SEC));
+    }
+
+    @Test
+    void resumeAfterAppend() throws IOException {
+        // Сначала в каталоге логов только начало файла, затем файл дописывается до конца
+        Path generated = tempDir.resolve("generated");
+        new TechJournalGenerator(generated, START_HOUR, 1, 1, 3000, EVENT_MIX, 50, true, 12).generate();
+        Path source = getLogFiles(generated).get(0);
+        byte[] content = Files.readAllBytes(source);
+        int cut = getRecordOffset(content, 2000);
+
+        Path logs = tempDir.resolve("logs");
+        Path logFile = logs.resolve(source.getParent().getFileName()).resolve(source.getFileName());
+        Files.createDirectories(logFile.getParent());
+        Files.write(logFile, Arrays.copyOf(content, cut));
+        load(getConfig("resume"), logs);
+        assertEquals(2000, fakeServer.getRows(TEST_DATABASE_NAME, "211022_resume_TJ").size());
+
+        Files.write(logFile, Arrays.copyOfRange(content, cut, content.length), StandardOpenOption.APPEND);
+        load(getConfig("resume"), logs);
+        List<Map<String, String>> rows = fakeServer.getRows(TEST_DATABASE_NAME, "211022_resume_TJ");
+        assertEquals(3000, rows.size());
+        assertEquals(3000, countDistinctLines(rows));
+
+        // Повторный запуск без изменений файла ничего не добавляет
+        load(getConfig("resume"), logs);
+        assertEquals(3000, fakeServer.getRows(TEST_DATABASE_NAME, "211022_resume_TJ").size());
+    }
+
+    @Test
+    void resumeAfterLostLoadState() throws IOException {
+        new TechJournalGenerator(tempDir, START_HOUR, 1, 1, 2000, EVENT_MIX, 50, true, 15).generate();
+        AppConfig config = getConfig("dedup");
+        config.setBatchSize(500);
+        load(config, tempDir);
+        assertEquals(2000, fakeServer.getRows(TEST_DATABASE_NAME, "211022_dedup_TJ").size());
+
+        // Аварийное завершение между вставкой последнего пакета и записью состояния: состояние отстает на пакет,
+        // и повторно прочитанный пакет отбрасывается сервером по токену дедупликации
+        fakeServer.removeLastRows(TEST_DATABASE_NAME, "load_state_tj", 1);
+        int deduplicated = fakeServer.getDeduplicatedInserts();
+        load(config, tempDir);
+        List<Map<String, String>> rows = fakeServer.getRows(TEST_DATABASE_NAME, "211022_dedup_TJ");
+        assertEquals(2000, rows.size());
+        assertEquals(2000, countDistinctLines(rows));
+        assertTrue(fakeServer.getDeduplicatedInserts() > deduplicated);
+    }
+
+    @Test
+    void retryAfterInsertError() throws IOException {
+        new TechJournalGenerator(tempDir, START_HOUR, 1, 1, 1000, EVENT_MIX, 50, true, 13).generate();
+        fakeServer.failInserts(1);
+        fakeServer.setLatencyMillis(5);
+        AppConfig config = getConfig("retry");
+        config.clickhouse.setShardRetries(2);
+        try {
+            load(config, tempDir);
+        } finally {
+            fakeServer.setLatencyMillis(0);
+        }
+        assertEquals(1, fakeServer.getFailedInserts());
+        List<Map<String, String>> rows = fakeServer.getRows(TEST_DATABASE_NAME, "211022_retry_TJ");
+        assertEquals(1000, rows.size());
+        assertEquals(1000, countDistinctLines(rows));
+    }
+
+    @Test
+    void dictionaryProperties() throws IOException {
+        new TechJournalGenerator(tempDir, START_HOUR, 1, 2, 1000, EVENT_MIX, 50, true, 14).generate();
+        AppConfig config = getConfig("dict");
+        config.setProjectionsSpec("*:#Context");
+        load(config, tempDir);
+
+        List<Map<String, String>> rows = fakeServer.getRows(TEST_DATABASE_NAME, "211022_dict_TJ");
+        assertEquals(2000, rows.size());
+        assertTrue(rows.stream().noneMatch(row -> row.containsKey("Context")));
+        Set<String> hashes = rows.stream()
+                .map(row -> row.get("Context_hash"))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+        assertFalse(hashes.isEmpty());
+        // Каждый текст Context записан в словарь, а повторяющиеся тексты записаны один раз
+        List<Map<String, String>> values = fakeServer.getRows(TEST_DATABASE_NAME, "property_values_tj");
+        assertEquals(hashes, values.stream().map(row -> row.get("hash")).collect(Collectors.toSet()));
+        assertTrue(values.size() < rows.size());
+        assertTrue(values.stream().allMatch(row -> row.get("property").equals("Context")));
+    }
+
+    @Test
+    void nativeFileSink() throws IOException {
+        new TechJournalGenerator(tempDir.resolve("logs"), START_HOUR, 1, 2, 1500, EVENT_MIX, 50, true, 15).generate();
+        Path sinkDir = tempDir.resolve("out");
+        AppConfig config = getConfig("native");
+        config.setSink("native");
+        config.setSinkDir(sinkDir.toString());
+        config.setProjectionsSpec("*:#Context");
+        load(config, tempDir.resolve("logs"));
+
+        // В ClickHouse ничего не вставляется, по каждому файлу ТЖ создан свой файл таблицы
+        assertTrue(fakeServer.getRows(TEST_DATABASE_NAME, "211022_native_TJ").isEmpty());
+        List<Path> tableFiles = getFiles(sinkDir.resolve("211022_native_TJ"));
+        assertEquals(2, tableFiles.size());
+        assertTrue(tableFiles.stream().allMatch(file -> file.toString().endsWith(".native.gz")));
+        List<Map<String, String>> rows = new ArrayList<>();
+        for (Path file : tableFiles)
+            rows.addAll(readNative(file));
+        assertEquals(3000, rows.size());
+        assertEquals(3000, countDistinctLines(rows));
+        assertTrue(rows.stream().allMatch(row -> row.get("datetime").startsWith("2021-10-22T15:")));
+        assertTrue(rows.stream().allMatch(row -> Long.parseLong(row.get("duration")) >= 0));
+
+        // Словарь значений записан отдельными файлами и покрывает все хеши Context
+        Set<String> hashes = rows.stream()
+                .map(row -> row.get("Context_hash"))
+                .filter(hash -> hash != null && !hash.equals("0"))
+                .collect(Collectors.toSet());
+        assertFalse(hashes.isEmpty());
+        Set<String> dictionaryHashes = new HashSet<>();
+        for (Path file : getFiles(sinkDir.resolve("property_values_tj")))
+            readNative(file).forEach(row -> dictionaryHashes.add(row.get("hash")));
+        assertEquals(hashes, dictionaryHashes);
+    }
+
+    static AppConfig getConfig(String tablePostfix) {
+        AppConfig config = new AppConfig();
+        config.setThreadCount(2);
+        config.setDaemonMode(false);
+        config.clickhouse.setHost("127.0.0.1");
+        config.clickhouse.setPort(String.valueOf(fakeServer.getPort()));
+        config.clickhouse.setDatabase(TEST_DATABASE_NAME);
+        config.clickhouse.setTablePostfix(tablePostfix);
+        // Поддельный сервер отдает ответы без сжатия
+        config.clickhouse.setJdbcParams("compress=0");
+        return config;
+    }
+
+    static void load(AppConfig config, Path logs) {
+        TechJournalToClickHouse.appConfig = config;
+        TechJournalToClickHouse.pathsToLogs = new Path[]{logs};
+        new TechJournalToClickHouse().run();
+    }
+
+    static List<Path> getLogFiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(file -> file.toString().endsWith(".log")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Смещение в байтах начала записи с порядковым номером index (с нуля)
+     */
+    static int getRecordOffset(byte[] content, int index) {
+        int records = 0;
+        int lineStart = 0;
+        for (int i = 0; i <= content.length; i++) {
+            if (i < content.length && content[i] != '\n')
+                continue;
+            String line = new String(content, lineStart, i - lineStart, StandardCharsets.UTF_8).replace("\uFEFF", "");
+            if (RECORD_START.matcher(line).find() && records++ == index)
+                return lineStart;
+            lineStart = i + 1;
+        }
+        throw new IllegalArgumentException("В файле меньше " + (index + 1) + " записей");
+    }
+
+    private static List<Path> getFiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Чтение файла формата Native (gzip): строки всех блоков, значения приведены к строкам
+     */
+    private static List<Map<String, String>> readNative(Path file) throws IOException {
+        List<Map<String, String>> rows = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                int columns;
+                try {
+                    columns = (int) readVarUInt(in);
+                } catch (EOFException e) {
+                    return rows;
+                }
+                int blockRows = (int) readVarUInt(in);
+                List<Map<String, String>> block = new ArrayList<>();
+                for (int i = 0; i < blockRows; i++)
+                    block.add(new HashMap<>());
+                for (int c = 0; c < columns; c++) {
+                    String name = readString(in);
+                    String type = readString(in);
+                    for (Map<String, String> row : block)
+                        row.put(name, readValue(in, type));
+                }
+                rows.addAll(block);
+            }
+        }
+    }
+
+    private static String readValue(DataInputStream in, String type) throws IOException {
+        byte[] bytes = new byte[8];
+        switch (type) {
+            case "String":
+                return readString(in);
+            case "UInt32":
+                in.readFully(bytes, 0, 4);
+                return Long.toString(toLittleEndian(bytes, 4));
+            case "UInt64":
+                in.readFully(bytes);
+                return Long.toUnsignedString(toLittleEndian(bytes, 8));
+            case "Float64":
+                in.readFully(bytes);
+                return Double.toString(Double.longBitsToDouble(toLittleEndian(bytes, 8)));
+            case "DateTime64(6)":
+                in.readFully(bytes);
+                long micros = toLittleEndian(bytes, 8);
+                return java.time.Instant.ofEpochSecond(Math.floorDiv(micros, 1_000_000), Math.floorMod(micros, 1_000_000) * 1000)
+                        .atZone(java.time.ZoneId.systemDefault()).toLocalDateTime().toString();
+            default:
+                throw new IOException("Неизвестный тип колонки " + type);
+        }
+    }
+
+    private static long toLittleEndian(byte[] bytes, int length) {
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--)
+            value = (value << 8) | (bytes[i] & 0xFF);
+        return value;
+    }
+
+    private static long readVarUInt(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarUInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static long countDistinctLines(List<Map<String, String>> rows) {
+        return rows.stream()
+                .map(row -> row.get("parent") + "/" + row.get("filename") + ":" + row.get("line_number"))
+                .distinct()
+                .count();
+    }
+}
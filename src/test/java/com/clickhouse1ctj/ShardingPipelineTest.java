@@ -0,0 +1,170 @@
+package com.clickhouse1ctj;
+
+import com.clickhouse1ctj.config.AppConfig;
+import com.clickhouse1ctj.generator.TechJournalGenerator;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static com.clickhouse1ctj.PipelineThroughputTest.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Сквозной тест распределенной записи на несколько узлов ClickHouse (clickhouse.shards): файлы раскладываются
+ * по узлам по ключу распределения, при отказе узла посреди файла загрузка переключается на следующий узел,
+ * а после восстановления узла дописанные файлы продолжают загружаться на основной узел без повторной вставки строк
+ */
+class ShardingPipelineTest {
+    static final String TEST_DATABASE_NAME = "TEST_SHARDING";
+    static final String TABLENAME = "211022_shard_TJ";
+    static final int PROCESSES = 6;
+    static final int RECORDS_PER_FILE = 2000;
+    static final int RECORDS_BEFORE_APPEND = 1500;
+    static FakeClickHouseServer[] servers;
+
+    @TempDir
+    Path tempDir;
+
+    @BeforeAll
+    static void beforeAll() throws IOException {
+        servers = new FakeClickHouseServer[3];
+        for (int i = 0; i < servers.length; i++)
+            servers[i] = new FakeClickHouseServer();
+    }
+
+    @AfterAll
+    static void afterAll() {
+        for (FakeClickHouseServer server : servers)
+            server.close();
+    }
+
+    @Test
+    void shardingAndFailover() throws IOException {
+        // Сначала в каталоге логов только начало каждого файла, после восстановления узла файлы дописываются до конца.
+        // Процессы генератора (seed 23) распределяются по всем трем узлам
+        Path generated = tempDir.resolve("generated");
+        new TechJournalGenerator(generated, START_HOUR, 1, PROCESSES, RECORDS_PER_FILE, EVENT_MIX, 50, true, 23).generate();
+        Path logs = tempDir.resolve("logs");
+        Map<Path, byte[]> tails = new LinkedHashMap<>();
+        for (Path source : getLogFiles(generated)) {
+            byte[] content = Files.readAllBytes(source);
+            int cut = getRecordOffset(content, RECORDS_BEFORE_APPEND);
+            Path logFile = logs.resolve(generated.relativize(source));
+            Files.createDirectories(logFile.getParent());
+            Files.write(logFile, Arrays.copyOf(content, cut));
+            tails.put(logFile, Arrays.copyOfRange(content, cut, content.length));
+        }
+
+        // Основной узел одного из файлов отказывает после первой вставки пакета: файл остается загруженным наполовину
+        int failedNode = getHomeNode(getLogFiles(logs).get(0).getParent().getFileName().toString());
+        servers[failedNode].goDownAfterInserts(1);
+        load(getConfig(), logs);
+        assertTrue(servers[failedNode].isDown());
+        assertTrue(servers[failedNode].getRejectedRequests() > 0);
+
+        List<Map<String, String>> rows = getAllRows();
+        assertEquals(PROCESSES * RECORDS_BEFORE_APPEND, rows.size());
+        assertEquals(rows.size(), countDistinctLines(rows));
+        Map<String, Set<Integer>> nodesByFile = getNodesByFile();
+        assertEquals(PROCESSES, nodesByFile.size());
+        boolean failedOver = false;
+        for (Map.Entry<String, Set<Integer>> file : nodesByFile.entrySet()) {
+            int homeNode = getHomeNode(file.getKey().substring(0, file.getKey().indexOf('/')));
+            if (homeNode != failedNode) {
+                // Пакеты файла записаны только на его основной узел
+                assertEquals(Set.of(homeNode), file.getValue(), file.getKey());
+            } else {
+                // Файлы отказавшего узла загружены на следующий узел
+                assertTrue(file.getValue().contains((homeNode + 1) % servers.length), file.getKey());
+                assertTrue(Set.of(homeNode, (homeNode + 1) % servers.length).containsAll(file.getValue()), file.getKey());
+                failedOver |= file.getValue().size() == 2;
+            }
+        }
+        assertTrue(failedOver, "Нет файла, загрузка которого переключилась на другой узел посреди файла");
+        // Файлы распределены по всем узлам
+        assertEquals(Set.of(0, 1, 2), nodesByFile.values().stream().flatMap(Set::stream).collect(Collectors.toSet()));
+
+        // Узел восстановлен, файлы дописаны: загрузка продолжается с последней загруженной записи
+        servers[failedNode].setDown(false);
+        for (Map.Entry<Path, byte[]> tail : tails.entrySet())
+            Files.write(tail.getKey(), tail.getValue(), StandardOpenOption.APPEND);
+        load(getConfig(), logs);
+
+        rows = getAllRows();
+        assertEquals(PROCESSES * RECORDS_PER_FILE, rows.size());
+        assertEquals(rows.size(), countDistinctLines(rows));
+        // Дописанная часть каждого файла загружена на его основной узел: там находится последняя запись файла
+        Map<String, Integer> lastLineNodes = new HashMap<>();
+        Map<String, Integer> lastLines = new HashMap<>();
+        for (int node = 0; node < servers.length; node++) {
+            for (Map<String, String> row : servers[node].getRows(TEST_DATABASE_NAME, TABLENAME)) {
+                String file = row.get("parent") + "/" + row.get("filename");
+                int line = Integer.parseInt(row.get("line_number"));
+                if (line > lastLines.getOrDefault(file, 0)) {
+                    lastLines.put(file, line);
+                    lastLineNodes.put(file, node);
+                }
+            }
+        }
+        assertEquals(PROCESSES, lastLineNodes.size());
+        lastLineNodes.forEach((file, node) -> assertEquals(getHomeNode(file.substring(0, file.indexOf('/'))), (int) node, file));
+
+        // Повторный запуск без изменений файлов ничего не добавляет
+        load(getConfig(), logs);
+        assertEquals(PROCESSES * RECORDS_PER_FILE, getAllRows().size());
+    }
+
+    static AppConfig getConfig() {
+        AppConfig config = new AppConfig();
+        config.setThreadCount(2);
+        config.setDaemonMode(false);
+        config.setBatchSize(500);
+        config.clickhouse.setHost("127.0.0.1");
+        config.clickhouse.setPort(String.valueOf(servers[0].getPort()));
+        StringJoiner shards = new StringJoiner(", ");
+        for (FakeClickHouseServer server : servers)
+            shards.add("127.0.0.1:" + server.getPort());
+        config.clickhouse.setShards(shards.toString());
+        config.clickhouse.setShardingKey("parent");
+        config.clickhouse.setShardRetries(0);
+        config.clickhouse.setDatabase(TEST_DATABASE_NAME);
+        config.clickhouse.setTablePostfix("shard");
+        // Поддельный сервер отдает ответы без сжатия
+        config.clickhouse.setJdbcParams("compress=0");
+        return config;
+    }
+
+    /**
+     * Номер основного узла файла: ключ распределения состоит из имени каталога процесса (см. ShardRouter)
+     */
+    private static int getHomeNode(String parent) {
+        return Math.floorMod(parent.hashCode(), servers.length);
+    }
+
+    private static List<Map<String, String>> getAllRows() {
+        List<Map<String, String>> rows = new ArrayList<>();
+        for (FakeClickHouseServer server : servers)
+            rows.addAll(server.getRows(TEST_DATABASE_NAME, TABLENAME));
+        return rows;
+    }
+
+    /**
+     * Номера узлов, на которые загружены строки каждого файла. Ключ: parent/filename
+     */
+    private static Map<String, Set<Integer>> getNodesByFile() {
+        Map<String, Set<Integer>> nodesByFile = new TreeMap<>();
+        for (int node = 0; node < servers.length; node++) {
+            for (Map<String, String> row : servers[node].getRows(TEST_DATABASE_NAME, TABLENAME))
+                nodesByFile.computeIfAbsent(row.get("parent") + "/" + row.get("filename"), key -> new TreeSet<>()).add(node);
+        }
+        return nodesByFile;
+    }
+}
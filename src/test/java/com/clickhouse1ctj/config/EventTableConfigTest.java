@@ -0,0 +1,53 @@
+package com.clickhouse1ctj.config;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventTableConfigTest {
+
+    @Test
+    void getKeyColumns() {
+        EventTableConfig group = new EventTableConfig("LOCKS", List.of("TLOCK"),
+                "datetime, event, OSThread, \"p:processName\", cityHash64(Context)", "toHour(datetime)");
+        assertEquals(Set.of("datetime", "event", "OSThread", "\"p:processName\"", "Context"), group.getKeyColumns());
+        assertEquals(Set.of("source"), EventTableConfig.getColumns("concat(source, '_day')"));
+    }
+
+    @Test
+    void inheritedKeyHasNoColumns() {
+        assertTrue(new EventTableConfig("EXCP", List.of("EXCP"), null, null).getKeyColumns().isEmpty());
+    }
+
+    @Test
+    void validate() throws AppConfigException {
+        new EventTableConfig("LOCKS_2", List.of("TLOCK"), "datetime, OSThread", null).validate();
+        new EventTableConfig("EXCP", List.of("EXCP"), null, null).validate();
+    }
+
+    @Test
+    void validateName() {
+        // Имя группы входит в регулярное выражение поиска таблиц дня
+        assertThrows(AppConfigException.class, () -> new EventTableConfig("LOCKS|EXCP", List.of("TLOCK"), null, null).validate());
+        assertThrows(AppConfigException.class, () -> new EventTableConfig("Блокировки", List.of("TLOCK"), null, null).validate());
+        assertThrows(AppConfigException.class, () -> new EventTableConfig(null, List.of("TLOCK"), null, null).validate());
+    }
+
+    @Test
+    void validateEvents() {
+        assertThrows(AppConfigException.class, () -> new EventTableConfig("LOCKS", List.of(), null, null).validate());
+        assertThrows(AppConfigException.class, () -> new EventTableConfig("LOCKS", null, null, null).validate());
+    }
+
+    @Test
+    void validateOrderBy() {
+        assertThrows(AppConfigException.class, () -> new EventTableConfig("LOCKS", List.of("TLOCK"), " ", null).validate());
+        assertThrows(AppConfigException.class, () -> new EventTableConfig("LOCKS", List.of("TLOCK"), "tuple()", null).validate());
+        AppConfigException e = assertThrows(AppConfigException.class,
+                () -> new EventTableConfig("LOCKS", List.of("TLOCK"), "datetime, p:processName", null).validate());
+        assertTrue(e.getMessage().contains("LOCKS"));
+    }
+}
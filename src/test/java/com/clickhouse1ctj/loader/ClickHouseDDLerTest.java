@@ -0,0 +1,18 @@
+package com.clickhouse1ctj.loader;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClickHouseDDLerTest {
+
+    @Test
+    void isDeduplicationVersion() {
+        // Токен дедупликации вставок появился в ClickHouse 22.2
+        assertFalse(ClickHouseDDLer.isDeduplicationVersion("21.8.1.1"));
+        assertFalse(ClickHouseDDLer.isDeduplicationVersion("22.1.3.7"));
+        assertTrue(ClickHouseDDLer.isDeduplicationVersion("22.2.2.1"));
+        assertTrue(ClickHouseDDLer.isDeduplicationVersion("23.8.1.2992"));
+        assertFalse(ClickHouseDDLer.isDeduplicationVersion("unknown"));
+    }
+}
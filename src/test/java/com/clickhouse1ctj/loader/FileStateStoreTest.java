@@ -0,0 +1,151 @@
+package com.clickhouse1ctj.loader;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileStateStoreTest {
+    @TempDir
+    Path tempDir;
+
+    @AfterEach
+    void afterEach() {
+        FileStateStore.close();
+    }
+
+    @Test
+    void snapshotAndLogReplay() throws IOException {
+        Path stateDir = tempDir.resolve("state");
+        Path loaded = createLog("rphost_1/21102210.log");
+        Path queued = createLog("rphost_1/21102211.log");
+        FileStateStore.open(stateDir, 0);
+        FileStateStore.markQueued(loaded, "key1", 100, 1000, "head:tail", false);
+        FileStateStore.markLoaded(loaded, 100, 7);
+        FileStateStore.markQueued(queued, "key2", 200, 2000, "", false);
+        FileStateStore.close();
+
+        // Состояние восстанавливается из журнала
+        FileStateStore.open(stateDir, 0);
+        assertState(FileStateStore.get(loaded), "key1", 100, 1000, "head:tail", 100, 7, true);
+        assertState(FileStateStore.get(queued), "key2", 200, 2000, "", 0, 0, false);
+
+        // Изменения после свертки в снимок применяются поверх снимка
+        compact(loaded, 1);
+        FileStateStore.markLoaded(queued, 150, 3);
+        FileStateStore.close();
+        FileStateStore.open(stateDir, 0);
+        assertState(FileStateStore.get(loaded), "key1", 100, 1000, "head:tail", 1, 1, true);
+        assertState(FileStateStore.get(queued), "key2", 200, 2000, "", 150, 3, true);
+    }
+
+    @Test
+    void compactionRemovesObsoleteFiles() throws IOException {
+        Path stateDir = tempDir.resolve("state");
+        Path current = createLog("rphost_1/21102210.log");
+        Path deleted = createLog("rphost_1/21102211.log");
+        Path expired = createLog("rphost_1/21091010.log");
+        Path expiredLoading = createLog("rphost_1/21091011.log");
+        long monthAgo = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(30);
+        FileStateStore.open(stateDir, 7);
+        FileStateStore.markQueued(current, "key1", 100, System.currentTimeMillis(), "", false);
+        FileStateStore.markQueued(deleted, "key2", 100, System.currentTimeMillis(), "", false);
+        FileStateStore.markQueued(expired, "key3", 100, monthAgo, "", false);
+        FileStateStore.markLoaded(expired, 100, 5);
+        FileStateStore.markQueued(expiredLoading, "key4", 100, monthAgo, "", false);
+        Files.delete(deleted);
+
+        compact(current, 1);
+        assertTrue(Files.size(stateDir.resolve("file_state.log")) < 1024);
+        assertNotNull(FileStateStore.get(current));
+        assertNull(FileStateStore.get(deleted));
+        assertNull(FileStateStore.get(expired));
+        // Не загруженный до конца файл не удаляется по сроку хранения
+        assertNotNull(FileStateStore.get(expiredLoading));
+
+        FileStateStore.close();
+        FileStateStore.open(stateDir, 7);
+        assertNotNull(FileStateStore.get(current));
+        assertNull(FileStateStore.get(deleted));
+        assertNull(FileStateStore.get(expired));
+        assertNotNull(FileStateStore.get(expiredLoading));
+    }
+
+    @Test
+    void partlyWrittenLastLine() throws IOException {
+        Path stateDir = tempDir.resolve("state");
+        Path first = createLog("rphost_1/21102210.log");
+        Path second = createLog("rphost_1/21102211.log");
+        FileStateStore.open(stateDir, 0);
+        FileStateStore.markQueued(first, "key1", 100, 1000, "", false);
+        FileStateStore.markLoaded(first, 100, 7);
+        FileStateStore.close();
+        // Аварийное завершение посреди записи строки
+        Files.write(stateDir.resolve("file_state.log"), (first + "\tkey1\t200\t20").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        FileStateStore.open(stateDir, 0);
+        assertState(FileStateStore.get(first), "key1", 100, 1000, "", 100, 7, true);
+        // Следующая строка журнала не склеивается с недописанной
+        FileStateStore.markQueued(second, "key2", 300, 3000, "", false);
+        FileStateStore.close();
+        FileStateStore.open(stateDir, 0);
+        assertState(FileStateStore.get(first), "key1", 100, 1000, "", 100, 7, true);
+        assertState(FileStateStore.get(second), "key2", 300, 3000, "", 0, 0, false);
+    }
+
+    @Test
+    void escapeAndUnescape() throws IOException {
+        String value = "C:\\logs\\rphost_1\tcopy\nnew\\t.log";
+        String escaped = FileStateStore.escape(value);
+        assertFalse(escaped.contains("\t"));
+        assertFalse(escaped.contains("\n"));
+        assertEquals(value, FileStateStore.unescape(escaped));
+        assertEquals("\\", FileStateStore.unescape(FileStateStore.escape("\\")));
+        assertEquals("\\t", FileStateStore.unescape(FileStateStore.escape("\\t")));
+
+        // Путь со спецсимволами переживает сохранение и чтение журнала
+        Path stateDir = tempDir.resolve("state");
+        Path file = createLog("rphost\t1\\a/21102210.log");
+        FileStateStore.open(stateDir, 0);
+        FileStateStore.markQueued(file, "key\t1", 100, 1000, "", false);
+        FileStateStore.close();
+        FileStateStore.open(stateDir, 0);
+        assertState(FileStateStore.get(file), "key\t1", 100, 1000, "", 0, 0, false);
+    }
+
+    private Path createLog(String name) throws IOException {
+        Path file = tempDir.resolve("logs").resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[]{'\n'});
+        return file;
+    }
+
+    /**
+     * Изменяет состояние файла, пока журнал не свернется в снимок
+     */
+    private static void compact(Path file, int lineNumber) {
+        for (int i = 0; i < 10000; i++)
+            FileStateStore.markLoaded(file, lineNumber, lineNumber);
+    }
+
+    private static void assertState(FileStateStore.FileState state, String fileKey, long size, long lastModified,
+                                    String fingerprint, long byteOffset, int lineNumber, boolean completed) {
+        assertNotNull(state);
+        assertEquals(fileKey, state.getFileKey());
+        assertEquals(size, state.getSize());
+        assertEquals(lastModified, state.getLastModified());
+        assertEquals(fingerprint, state.getFingerprint());
+        assertEquals(byteOffset, state.getByteOffset());
+        assertEquals(lineNumber, state.getLineNumber());
+        assertEquals(completed, state.isCompleted());
+    }
+}
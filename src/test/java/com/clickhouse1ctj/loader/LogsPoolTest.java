@@ -0,0 +1,88 @@
+package com.clickhouse1ctj.loader;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogsPoolTest {
+    static final DateTimeFormatter hourFormat = DateTimeFormatter.ofPattern("yyMMddHH");
+
+    static Path getLogPath(String parent, LocalDateTime hour) {
+        return Path.of("logs", parent, hour.format(hourFormat) + ".log");
+    }
+
+    @DisplayName("Файлы текущего и предыдущего часа относятся к свежим")
+    @Test
+    void getFileClass() {
+        LocalDateTime now = LocalDateTime.now();
+        assertEquals(LogsPool.FileClass.RECENT, LogsPool.getFileClass(getLogPath("rphost_1234", now)));
+        assertEquals(LogsPool.FileClass.RECENT, LogsPool.getFileClass(getLogPath("rphost_1234", now.minusHours(1))));
+        assertEquals(LogsPool.FileClass.BACKLOG, LogsPool.getFileClass(getLogPath("rphost_1234", now.minusHours(3))));
+        assertEquals(LogsPool.FileClass.BACKLOG, LogsPool.getFileClass(Path.of("logs", "rphost_1234", "readme.log")));
+    }
+
+    @DisplayName("Свежие файлы выдаются в первую очередь с учетом доли старых файлов")
+    @Test
+    void takeByPriority() throws InterruptedException {
+        LocalDateTime now = LocalDateTime.now();
+        LogsPool pool = new LogsPool(2, 1);
+        for (int i = 0; i < 3; i++) {
+            pool.add(getLogPath("rphost_" + i, now.minusDays(1)));
+        }
+        for (int i = 0; i < 4; i++) {
+            pool.add(getLogPath("rphost_" + i, now));
+        }
+        pool.finishDiscovery();
+
+        StringBuilder order = new StringBuilder();
+        Path path;
+        while ((path = pool.take()) != null) {
+            order.append(LogsPool.getFileClass(path) == LogsPool.FileClass.RECENT ? "R" : "B");
+            pool.done(path);
+        }
+        assertEquals("RRBRRBB", order.toString());
+    }
+
+    @DisplayName("Файл в очереди или в работе повторно в пул не добавляется")
+    @Test
+    void addPendingFile() throws InterruptedException {
+        Path path = getLogPath("rphost_1234", LocalDateTime.now());
+        LogsPool pool = new LogsPool();
+        assertTrue(pool.add(path));
+        assertFalse(pool.add(path));
+        assertEquals(path, pool.take());
+        assertFalse(pool.add(path));
+        pool.done(path);
+        assertTrue(pool.add(path));
+        assertEquals(1, pool.clearQueued());
+        assertFalse(pool.isPending(path));
+    }
+
+    @DisplayName("Файл, изменившийся во время загрузки, после ее окончания снова добавляется в пул")
+    @Test
+    void changedDuringLoad() throws InterruptedException {
+        Path path = getLogPath("rphost_1234", LocalDateTime.now());
+        LogsPool pool = new LogsPool();
+        assertFalse(pool.markChanged(path));
+        pool.add(path);
+        // Изменение до начала загрузки будет прочитано этой же загрузкой
+        assertTrue(pool.markChanged(path));
+        assertEquals(path, pool.take());
+        pool.done(path);
+        assertFalse(pool.isPending(path));
+
+        pool.add(path);
+        assertEquals(path, pool.take());
+        assertTrue(pool.markChanged(path));
+        pool.done(path);
+        assertTrue(pool.isPending(path));
+        assertEquals(path, pool.take());
+        pool.done(path);
+        assertFalse(pool.isPending(path));
+    }
+}
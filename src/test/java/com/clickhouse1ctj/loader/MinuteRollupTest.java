@@ -0,0 +1,53 @@
+package com.clickhouse1ctj.loader;
+
+import com.clickhouse1ctj.parser.LogRecord;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MinuteRollupTest {
+
+    @Test
+    void getBucket() {
+        assertEquals(0, MinuteRollup.getBucket(0));
+        assertEquals(0, MinuteRollup.getBucket(-5));
+        assertEquals(1, MinuteRollup.getBucket(1));
+        // 4 корзины на каждое удвоение длительности
+        assertEquals(5, MinuteRollup.getBucket(2));
+        assertEquals(9, MinuteRollup.getBucket(4));
+        assertEquals(MinuteRollup.getBucket(1000) + 4, MinuteRollup.getBucket(2000));
+        assertEquals(80, MinuteRollup.getBucket(1_000_000));
+        for (long duration = 1; duration < 100_000; duration++)
+            assertTrue(MinuteRollup.getBucket(duration) <= MinuteRollup.getBucket(duration + 1));
+    }
+
+    @Test
+    void mergeAndHistogramTuple() {
+        MinuteRollup.RollupValue value = new MinuteRollup.RollupValue();
+        value.add(1, 1);
+        value.add(2, 1);
+        MinuteRollup.RollupValue other = new MinuteRollup.RollupValue();
+        other.add(2, 2.5);
+        other.add(0, 1);
+
+        assertSame(value, value.merge(other));
+        assertEquals("([0,1,5],[1,1,4])", value.getHistogramTuple());
+        assertEquals("([],[])", new MinuteRollup.RollupValue().getHistogramTuple());
+    }
+
+    @Test
+    void keepRollupsOnFlushError() {
+        int keys = MinuteRollup.size();
+        MinuteRollup.add("rollup-test", List.of(
+                new LogRecord("2021-10-22 15:00:01.000000", 10L, "CALL", "0", 1),
+                new LogRecord("2021-10-22 15:01:01.000000", 20L, "CALL", "0", 2)));
+        assertEquals(keys + 2, MinuteRollup.size());
+
+        // Подключение к ClickHouse не инициализировано: агрегаты возвращаются в накопленную коллекцию
+        assertThrows(SQLException.class, () -> MinuteRollup.flush("test"));
+        assertEquals(keys + 2, MinuteRollup.size());
+    }
+}
@@ -0,0 +1,80 @@
+package com.clickhouse1ctj.loader;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResourceGovernorTest {
+
+    @AfterEach
+    void resetLimits() {
+        ResourceGovernor.setLimits(0, Integer.MAX_VALUE);
+    }
+
+    @DisplayName("Скорость чтения: после запаса на секунду потоки ждут пропорционально прочитанному объему")
+    @Test
+    void readLimit() {
+        ResourceGovernor.setLimits(4 * 1024 * 1024, 1);
+        long start = System.nanoTime();
+        for (int i = 0; i < 96; i++)
+            ResourceGovernor.acquireRead(64 * 1024); // 6 МБ: 4 МБ из запаса и 2 МБ со скоростью 4 МБ/с
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertTrue(seconds > 0.4 && seconds < 2, "Время чтения " + seconds);
+    }
+
+    @DisplayName("Число одновременно разбирающих потоков не превышает допустимого и снижается вместе с уровнем")
+    @Test
+    void parseThreads() throws InterruptedException {
+        ResourceGovernor.setLimits(0, 4);
+        assertEquals(4, runParsers(8));
+
+        ResourceGovernor.adjustLevel(true);
+        assertEquals(0.5, ResourceGovernor.getLevel());
+        assertEquals(2, ResourceGovernor.getAllowedParseThreads());
+        assertEquals(2, runParsers(8));
+        for (int i = 0; i < 10; i++)
+            ResourceGovernor.adjustLevel(true);
+        assertEquals(1, ResourceGovernor.getAllowedParseThreads());
+        // Без перегрузки уровень восстанавливается постепенно
+        for (int i = 0; i < 20; i++)
+            ResourceGovernor.adjustLevel(false);
+        assertEquals(1.0, ResourceGovernor.getLevel());
+        assertEquals(4, ResourceGovernor.getAllowedParseThreads());
+    }
+
+    /**
+     * Запускает потоки, которые разбирают по несколько пакетов, и возвращает наибольшее число одновременных разборов
+     */
+    private static int runParsers(int threads) throws InterruptedException {
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        List<Thread> parsers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                for (int batch = 0; batch < 5; batch++) {
+                    ResourceGovernor.beginParse();
+                    try {
+                        maxActive.accumulateAndGet(active.incrementAndGet(), Integer::max);
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        active.decrementAndGet();
+                        ResourceGovernor.endParse();
+                    }
+                }
+            });
+            thread.start();
+            parsers.add(thread);
+        }
+        for (Thread thread : parsers)
+            thread.join();
+        return maxActive.get();
+    }
+}
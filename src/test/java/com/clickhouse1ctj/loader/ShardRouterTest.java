@@ -0,0 +1,55 @@
+package com.clickhouse1ctj.loader;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardRouterTest {
+    static final List<String> TEST_NODES = List.of("localhost:18123", "localhost:18124", "localhost:18125");
+
+    @DisplayName("Единственный узел используется для всех файлов")
+    @Test
+    void singleNode() {
+        ShardRouter router = new ShardRouter(List.of("localhost:8123"), "source, source_pid");
+        assertEquals(List.of("localhost:8123"), router.getNodes("rphost|1234"));
+    }
+
+    @DisplayName("Ключ распределения собирается из указанных атрибутов файла")
+    @Test
+    void getShardKey() {
+        ShardRouter router = new ShardRouter(TEST_NODES, "source, source_pid, hour, unknown");
+        assertEquals("rphost|1234|21102215",
+                router.getShardKey("rphost", 1234, "rphost_1234", "21102215.log", "21102215"));
+        router = new ShardRouter(TEST_NODES, "day");
+        assertEquals("211022", router.getShardKey("rphost", 1234, "rphost_1234", "21102215.log", "21102215"));
+    }
+
+    @DisplayName("Порядок узлов для ключа постоянен и содержит все узлы для переключения")
+    @Test
+    void getNodesForFailover() {
+        ShardRouter router = new ShardRouter(TEST_NODES, "source, source_pid");
+        List<String> nodes = router.getNodes("rphost|1234");
+        assertEquals(nodes, router.getNodes("rphost|1234"));
+        assertEquals(TEST_NODES.size(), nodes.size());
+        assertEquals(new HashSet<>(TEST_NODES), new HashSet<>(nodes));
+        // Узлы для переключения идут по кругу следом за основным
+        int primary = TEST_NODES.indexOf(nodes.get(0));
+        assertEquals(TEST_NODES.get((primary + 1) % TEST_NODES.size()), nodes.get(1));
+    }
+
+    @DisplayName("Файлы разных процессов распределяются по всем узлам")
+    @Test
+    void distribution() {
+        ShardRouter router = new ShardRouter(TEST_NODES, "source, source_pid");
+        Set<String> primaryNodes = new HashSet<>();
+        for (int pid = 1000; pid < 1100; pid++) {
+            primaryNodes.add(router.getNodes(router.getShardKey("rphost", pid, "rphost_" + pid, "21102215.log", "21102215")).get(0));
+        }
+        assertEquals(new HashSet<>(TEST_NODES), primaryNodes);
+    }
+}
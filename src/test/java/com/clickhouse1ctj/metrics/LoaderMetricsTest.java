@@ -0,0 +1,53 @@
+package com.clickhouse1ctj.metrics;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoaderMetricsTest {
+
+    @DisplayName("Корзины гистограммы накопительные, последняя включает все значения")
+    @Test
+    void histogramBuckets() {
+        Histogram histogram = new Histogram("test_seconds", "Test histogram");
+        histogram.observe(0.0005);
+        histogram.observe(0.3);
+        histogram.observe(120);
+        StringBuilder sb = new StringBuilder();
+        histogram.writeTo(sb);
+        String text = sb.toString();
+        assertTrue(text.contains("# TYPE test_seconds histogram\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"0.001\"} 1\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"0.25\"} 1\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"0.5\"} 2\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"60.0\"} 2\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"+Inf\"} 3\n"));
+        assertTrue(text.contains("test_seconds_count 3\n"));
+    }
+
+    @DisplayName("Значения меток экранируются, удаленная метка не выводится")
+    @Test
+    void gaugeLabels() {
+        Gauge gauge = new Gauge("test_lag_seconds", "Test gauge", "file");
+        gauge.set("C:\\logs\\rphost_1\\21102215.log", 1.5);
+        gauge.set("removed", 2);
+        gauge.remove("removed");
+        StringBuilder sb = new StringBuilder();
+        gauge.writeTo(sb);
+        assertEquals("# HELP test_lag_seconds Test gauge\n" +
+                "# TYPE test_lag_seconds gauge\n" +
+                "test_lag_seconds{file=\"C:\\\\logs\\\\rphost_1\\\\21102215.log\"} 1.5\n", sb.toString());
+    }
+
+    @DisplayName("Все метрики загрузчика выводятся с описанием типа")
+    @Test
+    void scrape() {
+        LoaderMetrics.recordsParsed.add(5);
+        String text = LoaderMetrics.scrape();
+        assertTrue(text.contains("# TYPE tj_records_parsed_total counter\n"));
+        assertTrue(text.contains("tj_records_parsed_total " + LoaderMetrics.recordsParsed.get() + "\n"));
+        assertTrue(text.contains("# TYPE tj_insert_duration_seconds histogram\n"));
+        assertTrue(text.contains("# TYPE tj_queued_files gauge\n"));
+    }
+}
@@ -0,0 +1,140 @@
+package com.clickhouse1ctj.parser;
+
+import com.clickhouse1ctj.config.AppConfig;
+import com.clickhouse1ctj.config.PropertyProjectionConfig;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PropertyProjectionTest {
+    static final String SQL = "SELECT T1._IDRRef FROM dbo._Reference42 T1 WHERE T1._Code = 'Код ''001'''";
+    static final String DBMSSQL_RECORD = "20:19.957001-3,DBMSSQL,5,process=rphost,p:processName=buh,Usr=Иванов,"
+            + "Sql=\"" + SQL + "\",Rows=1,Context='Форма.Записать'";
+
+    static Map<String, String> parse(PropertyProjection projection, String rawRecord) throws LogRecordParserException {
+        LogRecordParser parser = new LogRecordParser(rawRecord);
+        parser.parseVariablePart(projection.getRule(parser.getEvent()));
+        return parser.getDict();
+    }
+
+    @DisplayName("SipHash-2-4 совпадает с эталонными значениями и считается по байтам UTF-8")
+    @Test
+    void sipHash() {
+        long k0 = 0x0706050403020100L;
+        long k1 = 0x0f0e0d0c0b0a0908L;
+        assertEquals(0x726fdb47dd0e0e31L, SipHash.hash(k0, k1, new byte[0]));
+        byte[] message = new byte[15];
+        for (int i = 0; i < message.length; i++)
+            message[i] = (byte) i;
+        assertEquals(0xa129ca6149be45e5L, SipHash.hash(k0, k1, message));
+
+        String value = "Контекст 𝄞 " + SQL;
+        assertEquals(SipHash.hash(0, 0, value.getBytes(StandardCharsets.UTF_8)), SipHash.hash(value));
+        assertEquals(SipHash.hash(value.substring(9)), SipHash.hash(value, 9, value.length()));
+    }
+
+    @DisplayName("Исключенные свойства не попадают в запись, обрезанные сохраняют хеш полного значения")
+    @Test
+    void excludeAndTruncate() throws LogRecordParserException {
+        PropertyProjection projection = PropertyProjection.compile(List.of(
+                new PropertyProjectionConfig(List.of(), List.of(), List.of("Context"), List.of(), 0),
+                new PropertyProjectionConfig(List.of("DBMSSQL"), List.of(), List.of("p:processName"), List.of("Sql"), 20)));
+        Map<String, String> dict = parse(projection, DBMSSQL_RECORD);
+        assertFalse(dict.containsKey("Context"));
+        assertFalse(dict.containsKey("\"p:processName\""));
+        assertEquals("Иванов", dict.get("Usr"));
+        assertEquals(SQL.substring(0, 20), dict.get("Sql"));
+        assertEquals(Long.toUnsignedString(SipHash.hash(SQL)), dict.get("Sql_hash"));
+
+        // Для других событий действует только общее правило
+        Map<String, String> callDict = parse(projection, DBMSSQL_RECORD.replace("DBMSSQL", "CALL"));
+        assertFalse(callDict.containsKey("Context"));
+        assertEquals(SQL, callDict.get("Sql"));
+        assertFalse(callDict.containsKey("Sql_hash"));
+    }
+
+    @DisplayName("При include загружаются только перечисленные и обрезаемые свойства")
+    @Test
+    void include() throws LogRecordParserException {
+        PropertyProjection projection = PropertyProjection.compile(List.of(
+                new PropertyProjectionConfig(List.of("dbmssql"), List.of("Usr", "Rows"), List.of(), List.of("Sql"), 1024)));
+        Map<String, String> dict = parse(projection, DBMSSQL_RECORD);
+        assertEquals("Иванов", dict.get("Usr"));
+        assertEquals("1", dict.get("Rows"));
+        assertEquals(SQL, dict.get("Sql"));
+        assertTrue(dict.containsKey("Sql_hash"));
+        assertFalse(dict.containsKey("process"));
+        assertFalse(dict.containsKey("Context"));
+        assertEquals("DBMSSQL", dict.get("event"));
+    }
+
+    @DisplayName("Проекция после полного разбора дает тот же результат, что и при разборе")
+    @Test
+    void applyProjection() throws LogRecordParserException {
+        PropertyProjection projection = PropertyProjection.compile(List.of(
+                new PropertyProjectionConfig(List.of(), List.of(), List.of("Context", "p:processName"), List.of("Sql"), 10)));
+        LogRecordParser parser = new LogRecordParser(DBMSSQL_RECORD);
+        parser.parseVariablePart();
+        parser.applyProjection(projection.getRule(parser.getEvent()));
+        assertEquals(parse(projection, DBMSSQL_RECORD), parser.getDict());
+    }
+
+    @DisplayName("Словарное свойство заменяется хешем, а текст передается для записи в словарь")
+    @Test
+    void dictionary() throws LogRecordParserException {
+        PropertyProjectionConfig rule = new PropertyProjectionConfig(List.of("DBMSSQL"), List.of("Usr"), List.of(), List.of(), 0);
+        rule.setDictionary(List.of("Context", "Sql"));
+        PropertyProjection projection = PropertyProjection.compile(List.of(rule));
+        LogRecordParser parser = new LogRecordParser(DBMSSQL_RECORD);
+        parser.parseVariablePart(projection.getRule(parser.getEvent()));
+        Map<String, String> dict = parser.getDict();
+        assertFalse(dict.containsKey("Sql"));
+        assertFalse(dict.containsKey("Context"));
+        assertFalse(dict.containsKey("Rows"));
+        assertEquals("Иванов", dict.get("Usr"));
+        assertEquals(Long.toUnsignedString(SipHash.hash(SQL)), dict.get("Sql_hash"));
+        assertEquals(Long.toUnsignedString(SipHash.hash("Форма.Записать")), dict.get("Context_hash"));
+        List<LogRecord.DictionaryValue> values = parser.getDictionaryValues();
+        assertEquals(2, values.size());
+        assertEquals("Sql", values.get(0).property);
+        assertEquals(SQL, values.get(0).value);
+        assertEquals(SipHash.hash(SQL), values.get(0).hash);
+
+        // После полного разбора (для фильтра) результат тот же
+        LogRecordParser fullParser = new LogRecordParser(DBMSSQL_RECORD);
+        fullParser.parseVariablePart();
+        fullParser.applyProjection(projection.getRule(fullParser.getEvent()));
+        assertEquals(dict, fullParser.getDict());
+        assertEquals(2, fullParser.getDictionaryValues().size());
+
+        AppConfig config = new AppConfig();
+        config.setProjectionsSpec("CALL:#Context");
+        assertEquals(List.of("Context"), config.getProjections().get(0).getDictionary());
+    }
+
+    @DisplayName("Правила из строки переменной окружения и имена колонок хешей")
+    @Test
+    void projectionsSpec() {
+        AppConfig config = new AppConfig();
+        config.setProjectionsSpec("CALL, SCALL:-Context;DBMSSQL:~Sql,~planSQLText,+Usr;*:-Headers");
+        List<PropertyProjectionConfig> rules = config.getProjections();
+        assertEquals(3, rules.size());
+        assertEquals(List.of("CALL", "SCALL"), rules.get(0).getEvents());
+        assertEquals(List.of("Context"), rules.get(0).getExclude());
+        assertEquals(List.of("Sql", "planSQLText"), rules.get(1).getTruncate());
+        assertEquals(List.of("Usr"), rules.get(1).getInclude());
+        assertEquals(1024, rules.get(1).getMaxLength());
+        assertTrue(rules.get(2).getEvents().isEmpty());
+
+        assertEquals("Sql_hash", PropertyProjection.getHashColumn("Sql"));
+        assertEquals("\"p:processName_hash\"", PropertyProjection.getHashColumn("\"p:processName\""));
+        assertTrue(PropertyProjection.isHashColumn("\"p:processName_hash\""));
+        assertFalse(PropertyProjection.isHashColumn("Sql"));
+        assertNull(PropertyProjection.compile(List.of()));
+    }
+}
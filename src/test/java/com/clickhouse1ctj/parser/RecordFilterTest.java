@@ -0,0 +1,91 @@
+package com.clickhouse1ctj.parser;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecordFilterTest {
+    static final String CALL_RECORD = "20:19.029001-1500000,CALL,2,process=rphost,p:processName=buh,Usr=Иванов,Context='Форма.Записать'";
+    static final String EXCP_RECORD = "20:19.029004-0,EXCP,1,process=rphost,OSThread=11000,Exception=DataBaseException";
+
+    static LogRecordParser parseFixPart(String rawRecord) throws LogRecordParserException {
+        return new LogRecordParser(rawRecord);
+    }
+
+    static LogRecordParser parseRecord(String rawRecord) throws LogRecordParserException {
+        LogRecordParser parser = new LogRecordParser(rawRecord);
+        parser.parseVariablePart();
+        return parser;
+    }
+
+    @DisplayName("Условия на событие и длительность вычисляются по обязательной части записи")
+    @Test
+    void testFixPart() throws Exception {
+        RecordFilter filter = RecordFilter.compile("event in (EXCP, TLOCK, TTIMEOUT, TDEADLOCK) or event = call and duration > 1000000");
+        assertEquals(Boolean.TRUE, filter.testFixPart(parseFixPart(CALL_RECORD), "rphost"));
+        assertEquals(Boolean.TRUE, filter.testFixPart(parseFixPart(EXCP_RECORD), "rphost"));
+        assertEquals(Boolean.FALSE, filter.testFixPart(parseFixPart(CALL_RECORD.replace("-1500000,", "-15,")), "rphost"));
+        assertEquals(Boolean.FALSE, RecordFilter.compile("source != ragent").testFixPart(parseFixPart(EXCP_RECORD), "ragent"));
+    }
+
+    @DisplayName("Условия на свойства до их разбора неизвестны, но не мешают отклонить запись по другим условиям")
+    @Test
+    void testProperties() throws Exception {
+        RecordFilter filter = RecordFilter.compile("event = CALL and Usr = 'Иванов' and not Context ~ '^Обработка'");
+        assertNull(filter.testFixPart(parseFixPart(CALL_RECORD), "rphost"));
+        assertEquals(Boolean.FALSE, filter.testFixPart(parseFixPart(EXCP_RECORD), "rphost"));
+        assertTrue(filter.test(parseRecord(CALL_RECORD), "rphost"));
+        assertFalse(filter.test(parseRecord(CALL_RECORD.replace("Иванов", "Петров")), "rphost"));
+
+        // Свойство с недопустимыми символами в имени и отсутствующее свойство (пустая строка)
+        assertTrue(RecordFilter.compile("\"p:processName\" = buh").test(parseRecord(CALL_RECORD), "rphost"));
+        assertTrue(RecordFilter.compile("Sql = ''").test(parseRecord(CALL_RECORD), "rphost"));
+        assertTrue(RecordFilter.compile("OSThread >= 9999").test(parseRecord(EXCP_RECORD), "rphost"));
+    }
+
+    @DisplayName("Пустой фильтр не задается, ошибки в выражении сообщаются с позицией")
+    @Test
+    void compile() throws Exception {
+        assertNull(RecordFilter.compile(""));
+        assertNull(RecordFilter.compile(null));
+        assertEquals("level <= 2", RecordFilter.compile(" level <= 2 ").toString());
+
+        RecordFilterException e = assertThrows(RecordFilterException.class, () -> RecordFilter.compile("event = CALL and"));
+        assertTrue(e.getMessage().contains("позиции 17"), e.getMessage());
+        assertThrows(RecordFilterException.class, () -> RecordFilter.compile("event in (EXCP"));
+        assertThrows(RecordFilterException.class, () -> RecordFilter.compile("duration > long"));
+        assertThrows(RecordFilterException.class, () -> RecordFilter.compile("Context ~ '('"));
+        assertThrows(RecordFilterException.class, () -> RecordFilter.compile("Usr = 'Иванов"));
+    }
+
+    @DisplayName("Отклоненные фильтром записи не попадают в пакет")
+    @Test
+    void parseWithFilter() throws Exception {
+        Path logFile = Path.of("src/test/resources/test_logs/rphost_1234/21102215.log");
+        TechJournalParser allRecordsParser = new TechJournalParser(logFile);
+        List<LogRecord> allRecords = readAll(allRecordsParser);
+
+        TechJournalParser parser = new TechJournalParser(logFile);
+        parser.setFilter(RecordFilter.compile("event = EXCP or event = DBMSSQL and Sql ~ 'SELECT'"));
+        List<LogRecord> records = readAll(parser);
+
+        long expected = allRecords.stream()
+                .filter(r -> r.getEvent().equals("EXCP") || r.getEvent().equals("DBMSSQL") && r.get("Sql").contains("SELECT"))
+                .count();
+        assertTrue(expected > 0);
+        assertEquals(expected, records.size());
+        assertTrue(records.stream().allMatch(r -> r.getEvent().equals("EXCP") || r.getEvent().equals("DBMSSQL")));
+    }
+
+    static List<LogRecord> readAll(TechJournalParser parser) {
+        List<LogRecord> records = new ArrayList<>();
+        while (!parser.isCompleted())
+            records.addAll(parser.getNextRecords(1000, null));
+        return records;
+    }
+}
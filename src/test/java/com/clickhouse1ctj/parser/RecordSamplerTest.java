@@ -0,0 +1,85 @@
+package com.clickhouse1ctj.parser;
+
+import com.clickhouse1ctj.config.AppConfig;
+import com.clickhouse1ctj.config.SamplingConfig;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecordSamplerTest {
+
+    static String record(int minute, int index, String event, long duration) {
+        return String.format("%02d:%02d.%06d-%d,%s,1,process=rphost,Usr=User%d", minute, index % 60, index, duration, event, index);
+    }
+
+    static double sample(RecordSampler sampler, String rawRecord) throws LogRecordParserException {
+        return sampler.sample(new LogRecordParser(rawRecord), rawRecord);
+    }
+
+    @DisplayName("Доля записей: отбор повторяется при повторной загрузке, вес равен 1/ratio, длительные записи не отбрасываются")
+    @Test
+    void ratioAndMinDuration() throws LogRecordParserException {
+        List<SamplingConfig> policies = List.of(new SamplingConfig(List.of("scall", "CALL"), 0.1, 1000000, 0));
+        RecordSampler sampler = RecordSampler.create(policies);
+        RecordSampler repeated = RecordSampler.create(policies);
+        int kept = 0;
+        for (int i = 0; i < 10000; i++) {
+            String rawRecord = record(i / 1000, i, "SCALL", 100);
+            double weight = sample(sampler, rawRecord);
+            assertEquals(weight, sample(repeated, rawRecord));
+            if (weight > 0) {
+                assertEquals(10, weight, 1e-9);
+                kept++;
+            }
+        }
+        assertTrue(kept > 800 && kept < 1200, "Загружено записей: " + kept);
+
+        for (int i = 0; i < 100; i++)
+            assertEquals(1.0, sample(sampler, record(0, i, "CALL", 1000000 + i)));
+        // Для событий без правил прореживания нет
+        assertEquals(1.0, sample(sampler, record(0, 1, "EXCP", 100)));
+        assertNull(RecordSampler.create(List.of()));
+    }
+
+    @DisplayName("Ограничение за минуту: число загруженных записей растет логарифмически, сумма весов равна числу записей")
+    @Test
+    void perMinute() throws LogRecordParserException {
+        RecordSampler sampler = RecordSampler.create(List.of(new SamplingConfig(List.of(), 1, 0, 100)));
+        int records = 100 + 200 + 400 + 800;
+        for (int minute = 0; minute < 2; minute++) {
+            int kept = 0;
+            double weights = 0;
+            for (int i = 0; i < records; i++) {
+                double weight = sample(sampler, record(minute, i, "MEM", 0));
+                if (weight > 0) {
+                    kept++;
+                    weights += weight;
+                }
+                if (i < 100)
+                    assertEquals(1.0, weight);
+            }
+            // Счетчики сбрасываются в начале каждой минуты
+            assertEquals(400, kept);
+            assertEquals(records, weights, 1e-9);
+        }
+    }
+
+    @DisplayName("Правила прореживания из строки переменной окружения")
+    @Test
+    void samplingSpec() {
+        AppConfig config = new AppConfig();
+        config.setSamplingSpec("SCALL, CALL:ratio=0.1,minDuration=1000000;MEM,PROC:perMinute=1000;*:ratio=abc");
+        List<SamplingConfig> rules = config.getSampling();
+        assertEquals(3, rules.size());
+        assertEquals(List.of("SCALL", "CALL"), rules.get(0).getEvents());
+        assertEquals(0.1, rules.get(0).getRatio());
+        assertEquals(1000000, rules.get(0).getMinDuration());
+        assertEquals(1000, rules.get(1).getPerMinute());
+        assertEquals(1.0, rules.get(1).getRatio());
+        assertTrue(rules.get(2).getEvents().isEmpty());
+        assertEquals(1.0, rules.get(2).getRatio());
+    }
+}
@@ -0,0 +1,82 @@
+package com.clickhouse1ctj.parser;
+
+import com.clickhouse1ctj.metrics.LoaderMetrics;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SqlNormalizerTest {
+
+    @DisplayName("Литералы, параметры и номера временных таблиц заменяются, пробелы схлопываются")
+    @Test
+    void normalizeText() {
+        assertEquals("SELECT T1._IDRRef FROM dbo._Reference42 T1 WHERE T1._Code = ? AND T1._Fld15 > ?",
+                SqlNormalizer.normalizeText("SELECT T1._IDRRef\n  FROM dbo._Reference42 T1\tWHERE T1._Code = N'Код ''001''' "
+                        + "AND T1._Fld15 > 12.5"));
+        assertEquals("INSERT INTO #tt (_Q_000_F_000) SELECT T1._Fld1 FROM #tt T1 WHERE T1._Fld2RRef = ?",
+                SqlNormalizer.normalizeText("INSERT INTO #tt12 (_Q_000_F_000) SELECT T1._Fld1 FROM #tt3 T1 "
+                        + "WHERE T1._Fld2RRef = 0x8A3B00155D01C90311E8F2D3A4B5C6D7"));
+        assertEquals("SELECT T1.fld1 FROM pg_temp.tt T1 WHERE T1.fld2 = ? AND T1.fld3 = ?",
+                SqlNormalizer.normalizeText("SELECT T1.fld1 FROM pg_temp.tt7 T1 WHERE T1.fld2 = $1 AND T1.fld3 = @P2"));
+        assertEquals("SELECT T1._Fld1 FROM dbo._Document12 T1 WHERE T1._IDRRef IN (...) AND T1._Marked = ?",
+                SqlNormalizer.normalizeText("SELECT T1._Fld1 FROM dbo._Document12 T1 WHERE T1._IDRRef IN (@P1, @P2,@P3) "
+                        + "AND T1._Marked = 0x00p_0: 0x10BF p_1: 0x10C0 p_2: N'Текст'"));
+    }
+
+    @DisplayName("Одинаковые по виду запросы дают одинаковый отпечаток, повторные тексты берутся из кэша")
+    @Test
+    void fingerprintAndCache() {
+        SqlNormalizer normalizer = new SqlNormalizer(2);
+        Map<String, String> first = new TreeMap<>();
+        normalizer.addColumns(first, "SELECT * FROM #tt1 WHERE _Fld1 IN (1, 2, 3)");
+        Map<String, String> second = new TreeMap<>();
+        normalizer.addColumns(second, "SELECT  *  FROM #tt25 WHERE _Fld1 IN (4)");
+        assertEquals("SELECT * FROM #tt WHERE _Fld1 IN (...)", first.get(SqlNormalizer.NORMALIZED_COLUMN));
+        assertEquals(first, second);
+        assertEquals(Long.toUnsignedString(SipHash.hash("SELECT * FROM #tt WHERE _Fld1 IN (...)")),
+                first.get(SqlNormalizer.FINGERPRINT_COLUMN));
+
+        long hits = LoaderMetrics.sqlNormalizerCacheHits.get();
+        normalizer.addColumns(new TreeMap<>(), "SELECT * FROM #tt1 WHERE _Fld1 IN (1, 2, 3)");
+        assertEquals(hits + 1, LoaderMetrics.sqlNormalizerCacheHits.get());
+        // Кэш ограничен двумя записями: самая давно использованная вытесняется
+        normalizer.addColumns(new TreeMap<>(), "SELECT 1");
+        normalizer.addColumns(new TreeMap<>(), "SELECT  *  FROM #tt25 WHERE _Fld1 IN (4)");
+        assertEquals(hits + 1, LoaderMetrics.sqlNormalizerCacheHits.get());
+    }
+
+    @DisplayName("Общий кэш корректно работает из нескольких потоков при постоянном вытеснении")
+    @Test
+    void concurrentCache() throws Exception {
+        SqlNormalizer normalizer = new SqlNormalizer(100);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 20_000; i++) {
+                        String sql = "SELECT T1._Fld" + i % 300 + " FROM #tt" + i + " T1 WHERE T1._Code = " + i;
+                        String normalized = "SELECT T1._Fld" + i % 300 + " FROM #tt T1 WHERE T1._Code = ?";
+                        SqlNormalizer.Result result = normalizer.normalize(sql);
+                        assertEquals(normalized, result.normalized);
+                        assertEquals(SipHash.hash(normalized), result.fingerprint);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures)
+                future.get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
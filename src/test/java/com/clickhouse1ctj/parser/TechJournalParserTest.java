@@ -0,0 +1,175 @@
+package com.clickhouse1ctj.parser;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TechJournalParserTest {
+    static final int MB = 1024 * 1024;
+
+    @TempDir
+    Path tempDir;
+
+    @DisplayName("Огромные записи обрезаются с пометкой, размером и хешем, память на разбор не растет с размером записи")
+    @Test
+    void giantRecords() throws Exception {
+        Path logFile = tempDir.resolve("rphost_1234").resolve("21102215.log");
+        Files.createDirectories(logFile.getParent());
+        long[] excp;
+        long[] sdbl;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(logFile))) {
+            write(out, null, "20:19.029001-150,CALL,2,process=rphost,Usr=Иванов\n");
+            // Многострочный контекст: 4 строки по 8 МБ
+            SipHash hash = new SipHash();
+            long size = write(out, hash, "20:19.029002-0,EXCP,1,process=rphost,Exception=DataBaseException,Context='");
+            for (int line = 0; line < 4; line++)
+                size += writeRepeated(out, hash, "Форма.Записать : " + line + "\t", 8 * MB) + write(out, hash, "\n");
+            size += write(out, hash, "'\n");
+            excp = new long[]{size, hash.finish()};
+            // Однострочный запрос на 16 МБ
+            hash = new SipHash();
+            size = write(out, hash, "20:19.029003-10,SDBL,3,process=rphost,Sql=\"SELECT ");
+            size += writeRepeated(out, hash, "T1.Field, ", 16 * MB) + write(out, hash, "\"\n");
+            sdbl = new long[]{size, hash.finish()};
+            write(out, null, "20:19.029004-20,CALL,2,process=rphost,Usr=Петров\n");
+        }
+
+        TechJournalParser parser = new TechJournalParser(logFile);
+        parser.setMemoryLimits(64 * 1024, 0);
+        long allocatedBefore = getAllocatedBytes();
+        List<LogRecord> records = RecordFilterTest.readAll(parser);
+        long allocated = getAllocatedBytes() - allocatedBefore;
+
+        assertEquals(4, records.size());
+        assertEquals("Иванов", records.get(0).get("Usr"));
+        assertNull(records.get(0).get(TechJournalParser.RECORD_SIZE_COLUMN));
+        assertEquals("Петров", records.get(3).get("Usr"));
+        // Номера строк не сбиваются пропущенными строками
+        assertEquals(7, records.get(2).getLineNumberInFile());
+        assertEquals(8, records.get(3).getLineNumberInFile());
+
+        String context = records.get(1).get("Context");
+        assertTrue(context.startsWith("Форма.Записать : 0"));
+        assertTrue(context.endsWith(TechJournalParser.TRUNCATION_MARKER));
+        assertTrue(context.length() < 64 * 1024);
+        assertEquals(Long.toString(excp[0]), records.get(1).get(TechJournalParser.RECORD_SIZE_COLUMN));
+        assertEquals(Long.toUnsignedString(excp[1]), records.get(1).get(TechJournalParser.RECORD_HASH_COLUMN));
+
+        String sql = records.get(2).get("Sql");
+        assertTrue(sql.startsWith("SELECT T1.Field, "));
+        assertTrue(sql.endsWith(TechJournalParser.TRUNCATION_MARKER));
+        assertEquals(Long.toString(sdbl[0]), records.get(2).get(TechJournalParser.RECORD_SIZE_COLUMN));
+        assertEquals(Long.toUnsignedString(sdbl[1]), records.get(2).get(TechJournalParser.RECORD_HASH_COLUMN));
+
+        // Файл занимает почти 50 МБ, без ограничения одна строка записи заняла бы в памяти больше 16 МБ
+        if (allocated >= 0)
+            assertTrue(allocated < 8 * MB, "Выделено памяти при разборе: " + allocated);
+    }
+
+    @DisplayName("Размер обрезанной записи ограничивается в байтах UTF-8 и для однострочных, и для многострочных записей")
+    @Test
+    void maxRecordSizeInBytes() throws Exception {
+        Path logFile = tempDir.resolve("rphost_1234").resolve("21102217.log");
+        Files.createDirectories(logFile.getParent());
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(logFile))) {
+            write(out, null, "20:19.029001-0,EXCP,1,Context='");
+            for (int line = 0; line < 4; line++)
+                writeRepeated(out, null, "Форма.Записать\n", 3000);
+            write(out, null, "'\n");
+            write(out, null, "20:19.029002-0,SDBL,1,Sql=\"ВЫБРАТЬ ");
+            writeRepeated(out, null, "Т1.Поле, ", 8000);
+            write(out, null, "\"\n");
+        }
+
+        TechJournalParser parser = new TechJournalParser(logFile);
+        parser.setMemoryLimits(4096, 0);
+        List<LogRecord> records = RecordFilterTest.readAll(parser);
+
+        assertEquals(2, records.size());
+        String context = records.get(0).get("Context");
+        assertTrue(context.startsWith("Форма.Записать"));
+        assertTrue(context.endsWith(TechJournalParser.TRUNCATION_MARKER));
+        assertTrue(context.getBytes(StandardCharsets.UTF_8).length <= 4096);
+        // Кириллица занимает 2 байта на символ: по числу символов запись обрезается примерно вдвое раньше
+        assertTrue(context.length() < 3000);
+        String sql = records.get(1).get("Sql");
+        assertTrue(sql.startsWith("ВЫБРАТЬ Т1.Поле, "));
+        assertTrue(sql.endsWith(TechJournalParser.TRUNCATION_MARKER));
+        assertTrue(sql.getBytes(StandardCharsets.UTF_8).length <= 4096);
+    }
+
+    @DisplayName("Пакет длинных записей завершается по ограничению памяти, следующий пакет продолжает чтение")
+    @Test
+    void batchMemoryLimit() throws Exception {
+        Path logFile = tempDir.resolve("rphost_1234").resolve("21102216.log");
+        Files.createDirectories(logFile.getParent());
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(logFile))) {
+            for (int i = 0; i < 100; i++) {
+                write(out, null, String.format("20:%02d.%06d-0,EXCP,1,Context='", i % 60, i));
+                writeRepeated(out, null, "Модуль.Процедура\n", 128 * 1024);
+                write(out, null, "'\n");
+            }
+        }
+
+        TechJournalParser parser = new TechJournalParser(logFile);
+        // Текст записи - 4096 строк по 16 символов (128 КБ памяти) и начало записи: пакет завершается на 8-й записи
+        parser.setMemoryLimits(0, MB);
+        List<LogRecord> batch = parser.getNextRecords(1000, null);
+        assertEquals(8, batch.size());
+        int total = batch.size();
+        while (!parser.isCompleted()) {
+            batch = parser.getNextRecords(1000, null);
+            assertTrue(batch.size() <= 8);
+            total += batch.size();
+        }
+        assertEquals(100, total);
+        assertNull(batch.get(batch.size() - 1).get(TechJournalParser.RECORD_SIZE_COLUMN));
+    }
+
+    /**
+     * Выделенная текущим потоком память в байтах (-1, если JVM ее не считает)
+     */
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long write(OutputStream out, SipHash hash, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes);
+        if (hash != null)
+            hash.update(bytes, 0, bytes.length);
+        return bytes.length;
+    }
+
+    /**
+     * Пишет фрагмент повторно, пока не наберется не меньше size байт
+     */
+    private static long writeRepeated(OutputStream out, SipHash hash, String fragment, int size) throws IOException {
+        byte[] bytes = fragment.getBytes(StandardCharsets.UTF_8);
+        byte[] chunk = new byte[(64 * 1024 + bytes.length - 1) / bytes.length * bytes.length];
+        for (int i = 0; i < chunk.length; i += bytes.length)
+            System.arraycopy(bytes, 0, chunk, i, bytes.length);
+        long written = 0;
+        while (written < size) {
+            out.write(chunk);
+            if (hash != null)
+                hash.update(chunk, 0, chunk.length);
+            written += chunk.length;
+        }
+        return written;
+    }
+}